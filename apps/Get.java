@@ -1,6 +1,7 @@
 package apps;
 
 import java.io.*;
+import java.util.*;
 
 import common.*;
 import naming.*;
@@ -15,13 +16,23 @@ import client.*;
     able to contact the remote server and create the local file, the source file
     is copied to the destination file. If the destination is a directory, a new
     file is created in the directory with the same name as the source file.
+
+    <p>
+    The file is copied in ranges, several at a time, from all the storage
+    servers hosting it, and the throughput of the copy is printed when it
+    completes. See <code>StripedTransfer</code>; the number of ranges copied at
+    a time is given by the system property <code>client.parallelism</code>.
+
+    <p>
+    With the option <code>-r</code>, the source must be a remote directory, and
+    the whole tree under it is retrieved. Local directories are created as the
+    tree is walked, and the files are retrieved by the workers of a
+    <code>WorkQueue</code>, many at a time. The numbers of files and bytes
+    copied per second are printed when the retrieval completes. The tree is
+    walked through the <code>MetadataCache</code> of the naming server.
  */
 public class Get extends ClientApplication
 {
-    /** The size of each request for data cannot exceed
-        <code>BLOCK_SIZE</code>. */
-    private static final int    BLOCK_SIZE = 1024 * 1024;
-
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -35,12 +46,18 @@ public class Get extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
-        if(arguments.length != 2)
+        boolean         recursive = arguments.length == 3 &&
+                                    arguments[0].equals("-r");
+
+        if(arguments.length != 2 && !recursive)
         {
-            throw new ApplicationFailure("usage: get source_file " +
+            throw new ApplicationFailure("usage: get [-r] source_file " +
                                          "destination_file");
         }
 
+        if(recursive)
+            arguments = Arrays.copyOfRange(arguments, 1, 3);
+
         // Parse the source and destination paths.
         RemotePath      source;
         File            destination;
@@ -55,83 +72,184 @@ public class Get extends ClientApplication
                                          e.getMessage());
         }
 
-        // Make sure the source file is not the root directory.
-        if(source.path.isRoot())
+        // Make sure the source file is not the root directory. The root may
+        // be retrieved as a tree, into the destination itself.
+        if(source.path.isRoot() && !recursive)
             throw new ApplicationFailure("source is the root directory");
 
         destination = new File(arguments[1]);
 
         // If the destination file is a directory, get a path to a file in that
         // directory with the same name as the source file.
-        if(destination.isDirectory())
+        if(destination.isDirectory() && !source.path.isRoot())
             destination = new File(destination, source.path.last());
 
-        // Get a stub for the naming server and lock the source file.
         Service         naming_server = NamingStubs.service(source.hostname);
 
+        if(!recursive)
+        {
+            StripedTransfer transfer = new StripedTransfer(naming_server);
+
+            download(naming_server, transfer, source.path, destination);
+            System.out.println(source + ": " + transfer.report());
+            return;
+        }
+
         try
         {
-            naming_server.lock(source.path, false);
+            if(!naming_server.isDirectory(source.path))
+                throw new ApplicationFailure(source + " is not a directory");
         }
+        catch(ApplicationFailure e) { throw e; }
         catch(Throwable t)
         {
-            throw new ApplicationFailure("cannot lock " + source + ": " +
+            throw new ApplicationFailure("cannot retrieve " + source + ": " +
                                          t.getMessage());
         }
 
-        // Create an input stream reading bytes from the remote file, and an
-        // output stream for writing bytes to a local copy of the file.
-        // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
-        // write them to the local file.
-        byte[]              read_buffer;
-        DFSInputStream      input_stream = null;
-        OutputStream        output_stream = null;
+        // Walk the remote tree on this thread, and retrieve the files on the
+        // workers of the queue.
+        WorkQueue       queue = new WorkQueue();
 
         try
         {
-            read_buffer = new byte[BLOCK_SIZE];
-            output_stream = new FileOutputStream(destination);
-            input_stream = new DFSInputStream(naming_server, source.path);
+            downloadTree(naming_server, queue, source.path, destination);
+        }
+        finally
+        {
+            for(ApplicationFailure failure : queue.finish())
+                report(failure);
+        }
 
-            int             bytes_remaining = input_stream.available();
-            int             bytes_to_transfer;
-            int             bytes_read;
+        System.out.println(source + ": " + queue.report());
+    }
 
-            while(bytes_remaining > 0)
-            {
-                bytes_to_transfer = bytes_remaining;
-                if(bytes_to_transfer > BLOCK_SIZE)
-                    bytes_to_transfer = BLOCK_SIZE;
+    /** Creates a local directory and the tree under it, submitting the
+        retrieval of each file to the queue.
 
-                bytes_read =
-                    input_stream.read(read_buffer, 0, bytes_to_transfer);
-                bytes_remaining = input_stream.available();
+        <p>
+        Entries are visited in the order of <code>Path.compareTo</code>. A
+        directory that cannot be listed or created is reported, and its
+        subtree is skipped.
 
-                if(bytes_read <= 0)
-                    throw new EOFException("unexpected end of file");
+        @param naming_server The naming server.
+        @param queue Queue on which files are retrieved.
+        @param source Path to the remote directory.
+        @param destination Local directory, which is created if it does not
+                           exist.
+     */
+    private void downloadTree(final Service naming_server, WorkQueue queue,
+                              Path source, File destination)
+        throws ApplicationFailure
+    {
+        if(!destination.isDirectory() && !destination.mkdir())
+        {
+            report(new ApplicationFailure("cannot create " + destination));
+            return;
+        }
 
-                // Write only as many bytes as were actually read.
-                output_stream.write(read_buffer, 0, bytes_read);
-            }
+        ArrayList<Path> children = new ArrayList<Path>();
+
+        try
+        {
+            for(String name : MetadataCache.of(naming_server).list(source))
+                children.add(new Path(source, name));
         }
         catch(Throwable t)
         {
-            throw new ApplicationFailure("cannot transfer " + source + ": " +
-                                         t.getMessage());
+            report(new ApplicationFailure("cannot list " + source + ": " +
+                                          t.getMessage()));
+            return;
         }
-        finally
+
+        Collections.sort(children);
+
+        for(final Path child : children)
         {
-            // In all cases, make an effort to close all streams, and to
-            // unlock the file.
-            if(input_stream != null)
+            final File  file = new File(destination, child.last());
+            boolean     directory;
+
+            try
             {
-                try
+                directory =
+                    MetadataCache.of(naming_server).isDirectory(child);
+            }
+            catch(Throwable t)
+            {
+                // The entry may have been deleted since the listing.
+                report(new ApplicationFailure("cannot retrieve " + child +
+                                              ": " + t.getMessage()));
+                continue;
+            }
+
+            if(directory)
+            {
+                downloadTree(naming_server, queue, child, file);
+                continue;
+            }
+
+            queue.submit(new WorkQueue.Task()
+            {
+                @Override
+                long run() throws ApplicationFailure
                 {
-                    input_stream.close();
+                    return download(naming_server,
+                                    new StripedTransfer(naming_server),
+                                    child, file);
                 }
-                catch(Throwable t) { }
-            }
+            });
+        }
+    }
+
+    /** Retrieves one file, which is locked for shared access while its data
+        is received.
+
+        @param naming_server The naming server.
+        @param transfer Transfer through which the data is received.
+        @param source Path to the remote file.
+        @param destination Local file, which is created or replaced.
+        @return The number of bytes retrieved.
+        @throws ApplicationFailure If the file cannot be retrieved.
+     */
+    private long download(Service naming_server, StripedTransfer transfer,
+                          Path source, File destination)
+        throws ApplicationFailure
+    {
+        // Lock the source file.
+        LeasedLock          lock;
 
+        try
+        {
+            lock = LeasedLock.lock(naming_server, source, false);
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot lock " + source + ": " +
+                                         t.getMessage());
+        }
+
+        // Create an output stream for writing bytes to a local copy of the
+        // file, and copy the remote file into it.
+        FileOutputStream    output_stream = null;
+
+        try
+        {
+            output_stream = new FileOutputStream(destination);
+            long            length =
+                transfer.download(source, output_stream.getChannel());
+            output_stream.close();
+
+            return length;
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot transfer " + source + ": " +
+                                         t.getMessage());
+        }
+        finally
+        {
+            // In all cases, make an effort to close the stream, and to unlock
+            // the file.
             if(output_stream != null)
             {
                 try
@@ -143,7 +261,10 @@ public class Get extends ClientApplication
 
             try
             {
-                naming_server.unlock(source.path, false);
+                // The file may have changed after the lease on the lock
+                // expired.
+                if(!lock.unlock())
+                    fatal("lock on " + source + " expired during transfer");
             }
             catch(Throwable t)
             {
@@ -1,6 +1,7 @@
 package apps;
 
 import java.io.*;
+import java.util.*;
 
 import common.*;
 import naming.*;
@@ -12,13 +13,22 @@ import client.*;
     The <code>put</code> command expects two arguments. The first is the source,
     which must be a path to a local file. The second is the destination, which
     must be a path to a remote file or directory.
+
+    <p>
+    The file is copied in ranges, several at a time, and the throughput of the
+    copy is printed when it completes. See <code>StripedTransfer</code>; the
+    number of ranges copied at a time is given by the system property
+    <code>client.parallelism</code>.
+
+    <p>
+    With the option <code>-r</code>, the source must be a local directory, and
+    the whole tree under it is uploaded. Directories are created as the tree
+    is walked, and the files are uploaded by the workers of a
+    <code>WorkQueue</code>, many at a time. The numbers of files and bytes
+    copied per second are printed when the upload completes.
  */
 public class Put extends ClientApplication
 {
-    /** At most <code>BLOCK_SIZE</code> bytes of data are sent in a single write
-        request. */
-    private static final int    BLOCK_SIZE = 1024 * 1024;
-
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -32,12 +42,18 @@ public class Put extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
-        if(arguments.length != 2)
+        boolean         recursive = arguments.length == 3 &&
+                                    arguments[0].equals("-r");
+
+        if(arguments.length != 2 && !recursive)
         {
-            throw new ApplicationFailure("usage: put source_file " +
+            throw new ApplicationFailure("usage: put [-r] source_file " +
                                          "destination_file");
         }
 
+        if(recursive)
+            arguments = Arrays.copyOfRange(arguments, 1, 3);
+
         // Parse the source and destination paths.
         File            source;
         RemotePath      destination;
@@ -54,145 +70,223 @@ public class Put extends ClientApplication
                                          e.getMessage());
         }
 
-        // The source must refer to an existing file.
+        // The source must refer to an existing file, or to a directory when
+        // the whole tree is to be uploaded.
         if(!source.exists())
             throw new ApplicationFailure("source file does not exist");
 
-        if(source.isDirectory())
+        if(source.isDirectory() != recursive)
         {
-            throw new ApplicationFailure("source path refers to a " +
-                                         "directory");
+            throw new ApplicationFailure("source path " +
+                (recursive ? "does not refer" : "refers") + " to a directory");
         }
 
-        // If the destination path is the root directory, then a new file will
-        // be created in the root directory - but the root directory must be
-        // locked. Otherwise, it is safe to try to lock the parent of the
-        // destination path.
-        Path            path_to_lock;
-
-        if(destination.path.isRoot())
-            path_to_lock = destination.path;
-        else
-            path_to_lock = destination.path.parent();
-
         // Obtain a stub for the remote naming server.
         Service         naming_server =
             NamingStubs.service(destination.hostname);
 
-        // Lock the parent of the destination path on the remote server.
+        // Path to receive the new file or tree. This will either be the
+        // destination path as provided, or if the path refers to a directory,
+        // then a new path within that directory.
+        Path            destination_path = destination.path;
+
         try
         {
-            naming_server.lock(path_to_lock, true);
+            if(naming_server.isDirectory(destination.path))
+            {
+                String      filename = source.getName();
+                if(filename.length() == 0)
+                    throw new ApplicationFailure("source filename empty");
+
+                destination_path = new Path(destination.path, filename);
+            }
         }
+        catch(FileNotFoundException e) { }
+        catch(ApplicationFailure e) { throw e; }
         catch(Throwable t)
         {
-            throw new ApplicationFailure("cannot lock " + path_to_lock + ": " +
-                                         t.getMessage());
+            throw new ApplicationFailure("cannot upload to " + destination +
+                                         ": " + t.getMessage());
+        }
+
+        if(!recursive)
+        {
+            StripedTransfer transfer = new StripedTransfer(naming_server);
+
+            upload(naming_server, transfer, source, destination_path);
+            System.out.println(destination_path + ": " + transfer.report());
+            return;
         }
 
-        byte[]              read_buffer;
-        InputStream         input_stream = null;
-        DFSOutputStream     output_stream = null;
+        // Walk the local tree on this thread, and upload the files on the
+        // workers of the queue.
+        WorkQueue       queue = new WorkQueue();
 
         try
         {
-            // Path to receive the new file. This will either be the destination
-            // path as provided, or if the path refers to a directory, then a
-            // new file within that directory.
-            Path            destination_path = destination.path;
+            uploadTree(naming_server, queue, source, destination_path);
+        }
+        finally
+        {
+            for(ApplicationFailure failure : queue.finish())
+                report(failure);
+        }
 
-            // If the destination path refers to a directory, create a new path
-            // to point to a new file in that directory.
-            try
-            {
-                if(naming_server.isDirectory(destination.path))
-                {
-                    String  filename = source.getName();
-                    if(filename.length() == 0)
-                        throw new ApplicationFailure("source filename empty");
-
-                    destination_path = new Path(destination.path, filename);
-
-                    // If, after modifying the path, the path still refers to a
-                    // directory, then the application must terminate.
-                    if(naming_server.isDirectory(destination_path))
-                    {
-                        throw new ApplicationFailure(destination + " is a " +
-                                                     "directory");
-                    }
-                }
+        System.out.println(destination_path + ": " + queue.report());
+    }
+
+    /** Creates a remote directory and the tree under it, submitting the
+        upload of each file to the queue.
 
-                // If control has reached here, the destination path exists, and
-                // it is a regular file. Attempt to delete it.
-                naming_server.delete(destination_path);
+        <p>
+        Entries are visited in the order of <code>Path.compareTo</code>. A
+        directory that cannot be created is reported, and its subtree is
+        skipped.
+
+        @param naming_server The naming server.
+        @param queue Queue on which files are uploaded.
+        @param source Local directory.
+        @param destination Path to the remote directory, which is created if
+                           it does not exist.
+     */
+    private void uploadTree(final Service naming_server, WorkQueue queue,
+                            File source, Path destination)
+        throws ApplicationFailure
+    {
+        try
+        {
+            // The naming server locks the parent directory itself.
+            if(!naming_server.createDirectory(destination) &&
+               !naming_server.isDirectory(destination))
+            {
+                throw new ApplicationFailure(destination + " is a file");
             }
-            catch(FileNotFoundException e) { }
+        }
+        catch(ApplicationFailure e)
+        {
+            report(e);
+            return;
+        }
+        catch(Throwable t)
+        {
+            report(new ApplicationFailure("cannot create " + destination +
+                                          ": " + t.getMessage()));
+            return;
+        }
 
-            // Create a new file with the name of the destination file.
-            naming_server.createFile(destination_path);
+        String[]        names = source.list();
+
+        if(names == null)
+        {
+            report(new ApplicationFailure("cannot list " + source));
+            return;
+        }
 
-            // Obtain the size of the source file.
-            long            bytes_remaining = source.length();
+        ArrayList<Path> children = new ArrayList<Path>(names.length);
 
-            // Allocate the temporary read buffer and open streams.
-            read_buffer = new byte[BLOCK_SIZE];
-            input_stream = new FileInputStream(source);
-            output_stream =
-                new DFSOutputStream(naming_server, destination_path);
-
-            // As long as there are bytes remaining to be copied from the
-            // source file, copy at most BLOCK_SIZE bytes at a time. Read
-            // the bytes to be transferred in a single block into the buffer
-            // read_buffer, and then send the buffer to the storage server.
-            while(bytes_remaining > 0)
+        for(String name : names)
+            children.add(new Path(destination, name));
+
+        Collections.sort(children);
+
+        for(final Path child : children)
+        {
+            final File  file = new File(source, child.last());
+
+            if(file.isDirectory())
+            {
+                uploadTree(naming_server, queue, file, child);
+                continue;
+            }
+
+            queue.submit(new WorkQueue.Task()
             {
-                int         bytes_to_transfer = BLOCK_SIZE;
-                if(bytes_remaining < BLOCK_SIZE)
-                    bytes_to_transfer = (int)bytes_remaining;
-
-                int         bytes_loaded = 0;
-                int         bytes_read;
-
-                // Reading from the local file is done in a loop, because
-                // the read call for local files does not guarantee that the
-                // number of bytes read will be equal to the number of bytes
-                // requested, even if care has been taken to avoid premature
-                // end of file conditions.
-                while(bytes_loaded < bytes_to_transfer)
+                @Override
+                long run() throws ApplicationFailure
                 {
-                    bytes_read =
-                        input_stream.read(read_buffer, bytes_loaded,
-                                          bytes_to_transfer - bytes_loaded);
+                    return upload(naming_server,
+                                  new StripedTransfer(naming_server), file,
+                                  child);
+                }
+            });
+        }
+    }
+
+    /** Uploads one file, replacing any existing file of the same name.
 
-                    if(bytes_read <= 0)
-                        throw new EOFException("unexpected end of file");
+        <p>
+        The naming server locks the parent directory itself while it deletes
+        or creates a file, so the parent must not be locked by the client
+        around those calls. Once the file has been created, it is locked for
+        exclusive access while its data is sent.
 
-                    bytes_loaded += bytes_read;
+        @param naming_server The naming server.
+        @param transfer Transfer through which the data is sent.
+        @param source Local file.
+        @param destination Path to the remote file.
+        @return The number of bytes uploaded.
+        @throws ApplicationFailure If the file cannot be uploaded.
+     */
+    private long upload(Service naming_server, StripedTransfer transfer,
+                        File source, Path destination)
+        throws ApplicationFailure
+    {
+        try
+        {
+            // If the destination exists, it must be a regular file. Attempt to
+            // delete it.
+            try
+            {
+                if(naming_server.isDirectory(destination))
+                {
+                    throw new ApplicationFailure(destination + " is a " +
+                                                 "directory");
                 }
 
-                output_stream.write(read_buffer, 0, bytes_to_transfer);
-                bytes_remaining -= bytes_to_transfer;
+                naming_server.delete(destination);
             }
+            catch(FileNotFoundException e) { }
+
+            // Create a new file with the name of the destination file.
+            naming_server.createFile(destination);
         }
         catch(ApplicationFailure e) { throw e; }
         catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot create " + destination +
+                                         ": " + t.getMessage());
+        }
+
+        // Lock the new file on the remote server.
+        LeasedLock          lock;
+
+        try
+        {
+            lock = LeasedLock.lock(naming_server, destination, true);
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot lock " + destination + ": " +
+                                         t.getMessage());
+        }
+
+        FileInputStream     input_stream = null;
+
+        try
+        {
+            // Copy the source file into the new file.
+            input_stream = new FileInputStream(source);
+            return transfer.upload(input_stream.getChannel(), destination);
+        }
+        catch(Throwable t)
         {
             throw new ApplicationFailure("cannot transfer " + source +
                                          ": " + t.getMessage());
         }
         finally
         {
-            // In all cases, make an effort to close all streams and unlock
-            // the parent directory.
-            if(output_stream != null)
-            {
-                try
-                {
-                    output_stream.close();
-                }
-                catch(Throwable t) { }
-            }
-
+            // In all cases, make an effort to close the stream and unlock the
+            // file.
             if(input_stream != null)
             {
                 try
@@ -204,11 +298,15 @@ public class Put extends ClientApplication
 
             try
             {
-                naming_server.unlock(path_to_lock, true);
+                // Another client may have changed the file after the lease on
+                // the lock expired.
+                if(!lock.unlock())
+                    fatal("lock on " + destination + " expired during " +
+                          "transfer");
             }
             catch(Throwable t)
             {
-                fatal("could not unlock " + path_to_lock + ": " +
+                fatal("could not unlock " + destination + ": " +
                       t.getMessage());
             }
         }
@@ -10,6 +10,12 @@ import naming.*;
     <p>
     This application takes a list of remote paths, and attempts to delete the
     files and directories named by those paths. Directory deletion is recursive.
+
+    <p>
+    The paths are deleted in parallel, by the workers of a
+    <code>WorkQueue</code>, in the order of <code>Path.compareTo</code>. The
+    number of paths deleted per second is printed when all have been
+    processed.
  */
 public class Remove extends ClientApplication
 {
@@ -26,63 +32,94 @@ public class Remove extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
-        // Check that there is exactly one argument.
+        // Check that there is at least one argument.
         if(arguments.length < 1)
             throw new ApplicationFailure("usage: rm path ...");
 
-        // Delete the item named by each argument.
-        for(String remote_path : Arrays.asList(arguments))
+        // Parse the arguments, and order them by path.
+        ArrayList<RemotePath>   objects = new ArrayList<RemotePath>();
+
+        for(String remote_path : arguments)
         {
             try
             {
-                remove(remote_path);
-                report();
+                objects.add(new RemotePath(remote_path));
             }
-            catch(ApplicationFailure e)
+            catch(IllegalArgumentException e)
             {
-                report(e);
+                report(new ApplicationFailure("cannot parse path: " +
+                                              e.getMessage()));
             }
         }
-    }
 
-    /** Deletes a single file or directory.
+        Collections.sort(objects, new Comparator<RemotePath>()
+        {
+            @Override
+            public int compare(RemotePath first, RemotePath second)
+            {
+                return first.path.compareTo(second.path);
+            }
+        });
 
-        @param remote_path Path to the file or directory to be deleted.
-        @throws ApplicationFailure If the file or directory cannot be deleted.
-     */
-    private void remove(String remote_path) throws ApplicationFailure
-    {
-        // Parse the argument.
-        RemotePath      object;
+        // Delete the item named by each argument.
+        WorkQueue               queue = new WorkQueue();
 
         try
         {
-            object = new RemotePath(remote_path);
+            for(final RemotePath object : objects)
+            {
+                queue.submit(new WorkQueue.Task()
+                {
+                    @Override
+                    long run() throws ApplicationFailure
+                    {
+                        remove(object);
+                        return 0;
+                    }
+                });
+            }
         }
-        catch(IllegalArgumentException e)
+        finally
         {
-            throw new ApplicationFailure("cannot parse path: " +
-                                         e.getMessage());
+            for(ApplicationFailure failure : queue.finish())
+                report(failure);
         }
 
+        System.out.println(String.format("%d paths deleted in %.2f s " +
+            "(%.1f paths/s)", queue.files(), queue.seconds(),
+            queue.files() / Math.max(queue.seconds(), 1e-9)));
+    }
+
+    /** Deletes a single file or directory.
+
+        @param object Path to the file or directory to be deleted.
+        @throws ApplicationFailure If the file or directory cannot be deleted.
+     */
+    private void remove(RemotePath object) throws ApplicationFailure
+    {
         // Check that the path is not the remote root directory.
         if(object.path.isRoot())
             throw new ApplicationFailure("cannot delete root directory");
 
-        // Get the path to the parent object, the naming server stub, and lock
-        // the parent object for exclusive access.
-        Path            parent = object.path.parent();
-
         Service         naming_server = NamingStubs.service(object.hostname);
 
+        // The naming server locks the parent directory itself while it
+        // deletes a file, so the parent must not be locked here. A directory
+        // is deleted without further locking, so it is locked for exclusive
+        // access, which keeps other clients out of the whole tree under it.
+        boolean         directory;
+
         try
         {
-            naming_server.lock(parent, true);
+            directory = naming_server.isDirectory(object.path);
+
+            if(directory)
+                naming_server.lock(object.path, true);
         }
         catch(Throwable t)
         {
-            throw new ApplicationFailure("cannot lock " + object.parent() +
-                                         ": " + t.getMessage());
+            throw new ApplicationFailure("cannot lock " + object + ": " +
+                                         t.getMessage());
         }
 
         // Delete the object in question.
@@ -99,15 +136,15 @@ public class Remove extends ClientApplication
         }
         finally
         {
-            // Make an effort to unlock the parent directory.
+            // Make an effort to unlock the directory.
             try
             {
-                naming_server.unlock(parent, true);
+                if(directory)
+                    naming_server.unlock(object.path, true);
             }
             catch(Throwable t)
             {
-                fatal("could not unlock " + object.parent() + ": " +
-                      t.getMessage());
+                fatal("could not unlock " + object + ": " + t.getMessage());
             }
         }
     }
@@ -0,0 +1,179 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded queue of tasks, each on one file, run by a pool of worker threads.
+
+    <p>
+    Applications that work on a whole tree walk it on their own thread,
+    performing the operations that later ones depend on, such as creating
+    directories, and submit the work on each file as a task. Workers then
+    overlap the naming server requests and data transfers of many files. At
+    most <code>CAPACITY</code> tasks wait in the queue: <code>submit</code>
+    blocks while it is full, so that a walk does not run arbitrarily far
+    ahead of the transfers.
+
+    <p>
+    Each task holds at most one lock at a time, and tasks are submitted in
+    the order of <code>Path.compareTo</code>, the order in which locks on
+    several paths must be taken. Tasks therefore cannot deadlock one another,
+    or other applications that follow the same convention.
+
+    <p>
+    A task that fails does not stop the others. Its failure is kept, and
+    returned by <code>finish</code>, so that the application can report it on
+    its own thread.
+
+    <p>
+    The number of workers is given by the system property
+    <code>apps.workers</code> (default 8), and the capacity of the queue by
+    <code>apps.queue</code> (default 64).
+ */
+class WorkQueue
+{
+    /** Number of worker threads. */
+    static final int            WORKERS =
+        Math.max(1, Integer.getInteger("apps.workers", 8));
+    /** Largest number of tasks waiting for a worker. */
+    static final int            CAPACITY =
+        Math.max(1, Integer.getInteger("apps.queue", 64));
+
+    /** Worker threads. */
+    private final ExecutorService   workers =
+        Executors.newFixedThreadPool(WORKERS, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "apps-worker");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    /** Permits for tasks submitted and not yet finished. */
+    private final Semaphore     slots = new Semaphore(WORKERS + CAPACITY);
+    /** Failures of the tasks finished so far. */
+    private final ConcurrentLinkedQueue<ApplicationFailure> failures =
+        new ConcurrentLinkedQueue<ApplicationFailure>();
+
+    /** Number of tasks that have succeeded. */
+    private final AtomicLong    files = new AtomicLong();
+    /** Number of bytes moved by the tasks that have succeeded. */
+    private final AtomicLong    bytes = new AtomicLong();
+    /** Time at which the queue was created. */
+    private final long          start = System.nanoTime();
+    /** Time at which <code>finish</code> returned, or zero. */
+    private long                end = 0;
+
+    /** Work on one file. */
+    abstract static class Task
+    {
+        /** Performs the task.
+
+            @return The number of bytes moved.
+            @throws ApplicationFailure If the task fails.
+         */
+        abstract long run() throws ApplicationFailure;
+    }
+
+    /** Submits a task, waiting while the queue is full.
+
+        @throws ApplicationFailure If the calling thread is interrupted while
+                                   waiting.
+     */
+    void submit(final Task task) throws ApplicationFailure
+    {
+        try
+        {
+            slots.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            throw new ApplicationFailure("interrupted");
+        }
+
+        workers.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    bytes.addAndGet(task.run());
+                    files.incrementAndGet();
+                }
+                catch(ApplicationFailure e)
+                {
+                    failures.add(e);
+                }
+                catch(Throwable t)
+                {
+                    failures.add(new ApplicationFailure(t.toString()));
+                }
+                finally
+                {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /** Waits for all submitted tasks to finish, and stops the workers.
+
+        @return The failures of the tasks, in the order in which they
+                occurred.
+        @throws ApplicationFailure If the calling thread is interrupted while
+                                   waiting.
+     */
+    List<ApplicationFailure> finish() throws ApplicationFailure
+    {
+        workers.shutdown();
+
+        try
+        {
+            while(!workers.awaitTermination(1, TimeUnit.SECONDS));
+        }
+        catch(InterruptedException e)
+        {
+            workers.shutdownNow();
+            throw new ApplicationFailure("interrupted");
+        }
+
+        end = System.nanoTime();
+
+        return new ArrayList<ApplicationFailure>(failures);
+    }
+
+    /** Returns the number of tasks that have succeeded. */
+    long files()
+    {
+        return files.get();
+    }
+
+    /** Returns the time from the creation of the queue to the return of
+        <code>finish</code>, or to now if it has not returned, in seconds. */
+    double seconds()
+    {
+        return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+    }
+
+    /** Returns a one-line description of the tasks that have succeeded: the
+        numbers of files and bytes, the time taken, and the rates. */
+    String report()
+    {
+        double          seconds = Math.max(seconds(), 1e-9);
+
+        return String.format("%d files, %d bytes in %.2f s (%.1f files/s, " +
+                             "%.1f MB/s)", files.get(), bytes.get(), seconds,
+                             files.get() / seconds, bytes.get() / seconds / 1e6);
+    }
+}
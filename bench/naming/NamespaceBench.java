@@ -0,0 +1,138 @@
+package naming;
+
+import java.util.Random;
+
+import common.*;
+
+/** Measures the directory tree of the naming server at a large size.
+
+    <p>
+    The benchmark registers a tree of files, spread evenly over directories
+    directly under the root, and reports the time taken and the heap used by
+    the tree. It then times lookups of random files, listings of whole
+    directories, and the creation and removal of files in one more
+    directory. Lookups and listings should take the same time whatever the
+    size of the tree.
+
+    <p>
+    Usage: <code>NamespaceBench [directories [files [rounds]]]</code>. The
+    defaults are 10000 directories of 1000 files each, 10 million entries in
+    all, and 3 rounds of measurements. The default size needs about 1 GB of
+    heap.
+ */
+public class NamespaceBench
+{
+    /** Number of paths timed in each measurement of lookups, creations and
+        removals. */
+    private static final int    OPERATIONS = 100000;
+    /** Number of listings timed in each round. */
+    private static final int    LISTINGS = 1000;
+
+    /** Runs the benchmark.
+
+        @param arguments Optional numbers of directories, of files in each
+                         directory, and of rounds.
+     */
+    public static void main(String[] arguments)
+    {
+        int             directories =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 10000;
+        int             files =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 1000;
+        int             rounds =
+            arguments.length > 2 ? Integer.parseInt(arguments[2]) : 3;
+
+        long            before = heap();
+        long            start = System.nanoTime();
+        NamespaceTree   tree = new NamespaceTree();
+
+        for(int directory = 0; directory < directories; ++directory)
+        {
+            Path        parent = new Path("/d" + directory);
+
+            for(int file = 0; file < files; ++file)
+                tree.register(new Path(parent, "f" + file));
+        }
+
+        double          seconds = (System.nanoTime() - start) / 1e9;
+        long            used = heap() - before;
+
+        System.out.printf("built %d entries in %.1f s, %d MB of heap%n",
+                          (long)directories * files, seconds, used >> 20);
+
+        Random          random = new Random(1);
+        Path[]          lookups = new Path[OPERATIONS];
+        Path[]          listed = new Path[LISTINGS];
+        Path[]          created = new Path[OPERATIONS];
+
+        for(int index = 0; index < OPERATIONS; ++index)
+        {
+            lookups[index] = new Path("/d" + random.nextInt(directories) +
+                                      "/f" + random.nextInt(files));
+            created[index] = new Path("/new/f" + index);
+        }
+
+        for(int index = 0; index < LISTINGS; ++index)
+            listed[index] = new Path("/d" + random.nextInt(directories));
+
+        tree.createDirectory(new Path("/new"));
+
+        for(int round = 0; round < rounds; ++round)
+        {
+            start = System.nanoTime();
+
+            for(Path path : lookups)
+            {
+                if(!tree.isFile(path))
+                    throw new AssertionError(path + " not found");
+            }
+
+            print("isFile", round, OPERATIONS, start);
+            start = System.nanoTime();
+
+            for(Path path : listed)
+            {
+                if(tree.list(path).length != files)
+                    throw new AssertionError(path + " listed incorrectly");
+            }
+
+            print("list", round, LISTINGS, start);
+            start = System.nanoTime();
+
+            for(Path path : created)
+            {
+                if(!tree.createFile(path))
+                    throw new AssertionError(path + " not created");
+            }
+
+            print("createFile", round, OPERATIONS, start);
+            start = System.nanoTime();
+
+            for(Path path : created)
+            {
+                if(!tree.remove(path))
+                    throw new AssertionError(path + " not removed");
+            }
+
+            print("remove", round, OPERATIONS, start);
+        }
+    }
+
+    /** Returns the heap in use after a garbage collection. */
+    private static long heap()
+    {
+        Runtime         runtime = Runtime.getRuntime();
+
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Prints the time per operation of one measurement. */
+    private static void print(String measurement, int round, int operations,
+                              long start)
+    {
+        System.out.printf("%-10s round %d: %8.3f us per call%n", measurement,
+                          round + 1,
+                          (System.nanoTime() - start) / 1e3 / operations);
+    }
+}
@@ -0,0 +1,21 @@
+/** Benchmarks.
+
+    <p>
+    As with unit tests, each benchmark resides in the same package as the code
+    it measures, so that it can use package-private classes and methods: the
+    benchmark of the naming server namespace, for example, is in the file
+    <code>bench/naming/NamespaceBench.java</code>, and its first Java
+    directive is <code>package naming</code>. Benchmarks are not tests. They
+    check nothing, and are not run by the <code>test</code> target.
+
+    <p>
+    Each benchmark is a class with a <code>main</code> method, which takes
+    its parameters as optional command line arguments, runs its measurements
+    in several rounds, and prints one line per measurement. Benchmarks that
+    start servers use the default ports, so no other servers should be running
+    on the same host. To run all benchmarks with their default parameters,
+    execute <code>make bench</code>. To run one benchmark, execute, for
+    example, <code>java -cp .:reference-rmi.jar:bench rmi.IsDirectoryBench</code>
+    from the command line.
+ */
+package bench;
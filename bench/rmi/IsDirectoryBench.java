@@ -0,0 +1,120 @@
+package rmi;
+
+import java.lang.reflect.Method;
+
+import common.*;
+import naming.*;
+
+/** Measures the cost of a call to <code>Service.isDirectory</code>.
+
+    <p>
+    The benchmark first measures dispatch alone, in the same virtual machine
+    as the naming server. A call is dispatched once as it was before method
+    tables were introduced: the method is checked for
+    <code>RMIException</code> by scanning its exception types, looked up on
+    the server class by name and parameter types, and invoked reflectively.
+    It is then dispatched through the <code>MethodTable</code> of the
+    interface, as stubs and skeletons do now. The benchmark then makes the
+    same call remotely, through a stub for a naming server listening on the
+    default port, which shows how much of the cost of a remote call is
+    dispatch.
+
+    <p>
+    Usage: <code>IsDirectoryBench [calls [rounds]]</code>. The defaults are
+    50000 calls in each of 3 rounds. The wire protocol is chosen as usual by
+    the system property <code>rmi.codec</code>.
+ */
+public class IsDirectoryBench
+{
+    /** Runs the benchmark.
+
+        @param arguments Optional number of calls per round, and number of
+                         rounds.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        int             calls =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 50000;
+        int             rounds =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 3;
+
+        NamingServer    server = new NamingServer();
+        Path            root = new Path("/");
+        Method          method =
+            Service.class.getMethod("isDirectory", Path.class);
+        MethodTable     table = MethodTable.forInterface(Service.class);
+
+        for(int round = 0; round < rounds; ++round)
+        {
+            long        start = System.nanoTime();
+
+            for(int call = 0; call < calls; ++call)
+            {
+                boolean remote = false;
+
+                for(Class<?> type : method.getExceptionTypes())
+                    remote |= type == RMIException.class;
+
+                Method  target = server.getClass().getMethod(
+                    method.getName(), method.getParameterTypes());
+
+                if(!remote || !(Boolean)target.invoke(server,
+                                                      new Object[] {root}))
+                {
+                    throw new AssertionError("unexpected result");
+                }
+            }
+
+            print("lookup per call", round, calls, start);
+            start = System.nanoTime();
+
+            for(int call = 0; call < calls; ++call)
+            {
+                int     id = table.id(method);
+
+                if(!table.isRemote(id) ||
+                   !(Boolean)table.invoke(id, server, new Object[] {root}))
+                {
+                    throw new AssertionError("unexpected result");
+                }
+            }
+
+            print("method table", round, calls, start);
+        }
+
+        server.start();
+
+        try
+        {
+            Service     stub = NamingStubs.service("127.0.0.1");
+
+            for(int round = 0; round < rounds; ++round)
+            {
+                long    start = System.nanoTime();
+
+                for(int call = 0; call < calls; ++call)
+                {
+                    if(!stub.isDirectory(root))
+                        throw new AssertionError("unexpected result");
+                }
+
+                print("remote call", round, calls, start);
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+
+        System.exit(0);
+    }
+
+    /** Prints the time per call of one round. */
+    private static void print(String measurement, int round, int calls,
+                              long start)
+    {
+        System.out.printf("%-16s round %d: %8.3f us per call%n", measurement,
+                          round + 1,
+                          (System.nanoTime() - start) / 1e3 / calls);
+    }
+}
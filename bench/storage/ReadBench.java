@@ -0,0 +1,176 @@
+package storage;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import test.*;
+import common.*;
+
+/** Measures the aggregate read throughput of a storage server as the number
+    of concurrent clients grows.
+
+    <p>
+    Each client is a thread that makes 4 KiB reads at random offsets of its
+    own file, through the <code>Storage</code> methods of a storage server
+    in the same virtual machine, for a fixed time. In the first series of
+    rounds the clients run alone. In the second, one more thread repeatedly
+    writes 64 MiB to another file, in 1 MiB calls, so that the cost of a
+    long write to readers of other files is shown. The server is not started,
+    so no remote calls are made.
+
+    <p>
+    Usage: <code>ReadBench [seconds [clients...]]</code>. The defaults are 3
+    seconds per round, and rounds of 1, 4 and 16 clients.
+ */
+public class ReadBench
+{
+    /** Size of each file read, in bytes. */
+    private static final int    FILE_SIZE = 1 << 20;
+    /** Size of each read, in bytes. */
+    private static final int    READ_SIZE = 4096;
+    /** Number of bytes written by each pass of the writer. */
+    private static final int    WRITE_TOTAL = 64 << 20;
+    /** Size of each write, in bytes. */
+    private static final int    WRITE_SIZE = 1 << 20;
+
+    /** Runs the benchmark.
+
+        @param arguments Optional number of seconds per round, followed by
+                         the numbers of clients in each round.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int             seconds =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 3;
+        int[]           rounds = {1, 4, 16};
+
+        if(arguments.length > 1)
+        {
+            rounds = new int[arguments.length - 1];
+
+            for(int index = 1; index < arguments.length; ++index)
+                rounds[index - 1] = Integer.parseInt(arguments[index]);
+        }
+
+        int             files = 0;
+
+        for(int clients : rounds)
+            files = Math.max(files, clients);
+
+        TemporaryDirectory  directory = new TemporaryDirectory();
+
+        try
+        {
+            char[]      contents = new char[FILE_SIZE];
+
+            for(int index = 0; index < files; ++index)
+                directory.add(new String[] {"file" + index},
+                              new String(contents));
+
+            directory.add(new String[] {"written"});
+
+            StorageServer   server = new StorageServer(directory.root());
+
+            for(boolean writing : new boolean[] {false, true})
+            {
+                for(int clients : rounds)
+                {
+                    double  rate = round(server, clients, writing, seconds);
+                    String  label = clients + " clients" +
+                                    (writing ? ", one writer:" : ":");
+
+                    System.out.printf("%-24s %10.0f reads/s%n", label, rate);
+                }
+            }
+        }
+        finally
+        {
+            directory.remove();
+        }
+
+        System.exit(0);
+    }
+
+    /** Runs one round, and returns the aggregate number of reads per
+        second. */
+    private static double round(final StorageServer server, int clients,
+                                boolean writing, int seconds)
+        throws InterruptedException
+    {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong    reads = new AtomicLong();
+        Thread[]            threads = new Thread[clients + (writing ? 1 : 0)];
+
+        for(int index = 0; index < clients; ++index)
+        {
+            final Path      file = new Path("/file" + index);
+            final Random    random = new Random(index);
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while(running.get())
+                        {
+                            server.read(file, random.nextInt(
+                                FILE_SIZE - READ_SIZE + 1), READ_SIZE);
+                            reads.incrementAndGet();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+
+        if(writing)
+        {
+            final Path      file = new Path("/written");
+            final byte[]    data = new byte[WRITE_SIZE];
+
+            threads[clients] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while(running.get())
+                        {
+                            for(int offset = 0; offset < WRITE_TOTAL &&
+                                                running.get();
+                                offset += WRITE_SIZE)
+                            {
+                                server.write(file, offset, data);
+                            }
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+
+        long                start = System.nanoTime();
+
+        for(Thread thread : threads)
+            thread.start();
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+
+        for(Thread thread : threads)
+            thread.join();
+
+        return reads.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
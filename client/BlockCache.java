@@ -0,0 +1,472 @@
+package client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Cache of file blocks read from storage servers, shared by all
+    <code>DFSInputStream</code> objects in the Java virtual machine.
+
+    <p>
+    Files are divided into blocks of <code>BLOCK_SIZE</code> bytes. A block is
+    read from its storage server in one request, either by the stream that
+    needs it or, ahead of need, by one of a small pool of background threads.
+    A block being read is already in the cache, so that a stream needing a
+    block that is being read ahead waits for that read instead of issuing
+    another.
+
+    <p>
+    Blocks are identified by the storage server, the file, the length of the
+    file, and the index of the block. The cache holds at most
+    <code>CAPACITY</code> bytes of blocks, evicting the least recently used
+    blocks first. The blocks of a file are dropped whenever a
+    <code>DFSInputStream</code> is opened on it, and when it is written
+    through a <code>DFSOutputStream</code> in the same virtual machine, so a
+    stream never uses blocks read before it was opened: a client that locks
+    a file before opening a stream sees every write made before it was
+    granted the lock, whether or not the write changed the length of the
+    file. Blocks are shared by the streams open on a file at the same time,
+    and each block is used for at most <code>LIFETIME</code> milliseconds
+    after it was read, which bounds how stale the data of a stream kept open
+    without a lock can be.
+
+    <p>
+    The parameters are given by the system properties
+    <code>client.block</code> (bytes, default 256 KiB),
+    <code>client.cache</code> (bytes, default 64 MiB; zero disables the cache),
+    <code>client.cache.lifetime</code> (milliseconds, default 5000) and
+    <code>client.readahead.threads</code> (default 4).
+ */
+class BlockCache
+{
+    /** Size of a block, in bytes. */
+    static final int            BLOCK_SIZE =
+        Math.max(1, Integer.getInteger("client.block", 256 * 1024));
+    /** Largest number of bytes of blocks held. */
+    static final long           CAPACITY =
+        Math.max(0, Long.getLong("client.cache", 64L * 1024 * 1024));
+    /** Time for which a block may be used after it is read, in
+        nanoseconds. */
+    static final long           LIFETIME = TimeUnit.MILLISECONDS.toNanos(
+        Math.max(0, Long.getLong("client.cache.lifetime", 5000)));
+    /** Number of threads reading blocks ahead. */
+    private static final int    THREADS =
+        Math.max(1, Integer.getInteger("client.readahead.threads", 4));
+
+    /** The cache shared by the streams of this virtual machine. */
+    private static final BlockCache shared = new BlockCache();
+
+    /** Blocks, from least to most recently used. Guarded by the map. */
+    private final LinkedHashMap<Key, Block> blocks =
+        new LinkedHashMap<Key, Block>(64, 0.75f, true);
+    /** Number of bytes of blocks held. Guarded by <code>blocks</code>. */
+    private long                size = 0;
+    /** Threads reading blocks ahead. */
+    private final ExecutorService   readers =
+        Executors.newFixedThreadPool(THREADS, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "dfs-readahead");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Number of blocks found in the cache. */
+    private final AtomicLong    hits = new AtomicLong();
+    /** Number of blocks read by the stream that needed them. */
+    private final AtomicLong    misses = new AtomicLong();
+    /** Number of blocks read ahead. */
+    private final AtomicLong    prefetches = new AtomicLong();
+
+    /** Identity of a block. */
+    private static class Key
+    {
+        final Storage       server;
+        final Path          file;
+        final long          length;
+        final long          index;
+        /** Hash code, computed once. */
+        final int           hash;
+
+        Key(Storage server, Path file, long length, long index)
+        {
+            this.server = server;
+            this.file = file;
+            this.length = length;
+            this.index = index;
+            this.hash = (server.hashCode() * 31 + file.hashCode()) * 31 +
+                        (int)(length ^ (length >>> 32)) * 17 + (int)index;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof Key))
+                return false;
+
+            Key             key = (Key)other;
+
+            return hash == key.hash && index == key.index &&
+                   length == key.length && server.equals(key.server) &&
+                   file.equals(key.file);
+        }
+    }
+
+    /** Block of a file, which may still be being read. Guarded by the
+        object. */
+    private static class Block
+    {
+        final Key           key;
+        /** Data of the block, once read. */
+        final byte[]        data;
+        /** Indicates that the read has finished. */
+        boolean             done = false;
+        /** Error with which the read failed, if it did. */
+        IOException         error = null;
+        /** Time at which the read finished. */
+        long                read = 0;
+
+        Block(Key key, int size)
+        {
+            this.key = key;
+            this.data = new byte[size];
+        }
+    }
+
+    /** Returns the cache shared by the streams of this virtual machine. */
+    static BlockCache shared()
+    {
+        return shared;
+    }
+
+    /** Copies bytes of a file into a buffer, through the cache.
+
+        @param server Storage server hosting the file.
+        @param file The file.
+        @param length Length of the file.
+        @param offset Offset in the file of the first byte to copy.
+        @param buffer Buffer receiving the bytes.
+        @param buffer_offset Offset in the buffer of the first byte.
+        @param count Number of bytes to copy, which must all be in the file.
+        @throws IOException If a block cannot be read.
+     */
+    void read(Storage server, Path file, long length, long offset,
+              byte[] buffer, int buffer_offset, int count)
+        throws IOException
+    {
+        while(count > 0)
+        {
+            long            index = offset / BLOCK_SIZE;
+            int             start = (int)(offset - index * BLOCK_SIZE);
+            Block           block = block(server, file, length, index);
+            int             copied = Math.min(count, block.data.length - start);
+
+            System.arraycopy(block.data, start, buffer, buffer_offset, copied);
+
+            offset += copied;
+            buffer_offset += copied;
+            count -= copied;
+        }
+    }
+
+    /** Starts reading blocks of a file ahead of need, unless they are already
+        in the cache.
+
+        @param first Index of the first block to read.
+        @param count Number of blocks to read. Blocks past the end of the file
+                     are not read.
+     */
+    void prefetch(final Storage server, final Path file, final long length,
+                  long first, int count)
+    {
+        long            last = Math.min(first + count, blocks(length));
+
+        for(long index = first; index < last; ++index)
+        {
+            final Block     block = claim(new Key(server, file, length, index));
+
+            if(block == null)
+                continue;
+
+            prefetches.incrementAndGet();
+
+            try
+            {
+                readers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        fetch(block);
+                    }
+                });
+            }
+            catch(RejectedExecutionException e)
+            {
+                fetch(block);
+            }
+        }
+    }
+
+    /** Drops the blocks of a file. */
+    void invalidate(Path file)
+    {
+        synchronized(blocks)
+        {
+            Iterator<Block>     iterator = blocks.values().iterator();
+
+            while(iterator.hasNext())
+            {
+                Block           block = iterator.next();
+
+                if(block.key.file.equals(file))
+                {
+                    size -= block.data.length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /** Returns the number of blocks found in the cache. */
+    long hits()
+    {
+        return hits.get();
+    }
+
+    /** Returns the number of blocks read by the stream that needed them. */
+    long misses()
+    {
+        return misses.get();
+    }
+
+    /** Returns the number of blocks read ahead. */
+    long prefetches()
+    {
+        return prefetches.get();
+    }
+
+    /** Returns the number of blocks in a file of the given length. */
+    static long blocks(long length)
+    {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /** Returns a block once it has been read, reading it if it is not in the
+        cache. */
+    private Block block(Storage server, Path file, long length, long index)
+        throws IOException
+    {
+        Key             key = new Key(server, file, length, index);
+        Block           block;
+        boolean         found;
+
+        synchronized(blocks)
+        {
+            block = find(key);
+            found = block != null;
+
+            if(!found)
+                block = enter(key);
+        }
+
+        if(found)
+            hits.incrementAndGet();
+        else
+        {
+            misses.incrementAndGet();
+            fetch(block);
+        }
+
+        synchronized(block)
+        {
+            while(!block.done)
+            {
+                try
+                {
+                    block.wait();
+                }
+                catch(InterruptedException e)
+                {
+                    throw new InterruptedIOException(
+                        "interrupted while reading " + file);
+                }
+            }
+
+            if(block.error != null)
+                throw block.error;
+        }
+
+        return block;
+    }
+
+    /** Enters a new block in the cache, unless a usable block with the same
+        key is already there.
+
+        @return The new block, which the caller is to read, or
+                <code>null</code> if the cache already has the block.
+     */
+    private Block claim(Key key)
+    {
+        synchronized(blocks)
+        {
+            if(find(key) != null)
+                return null;
+
+            return enter(key);
+        }
+    }
+
+    /** Returns the block with the given key if it is in the cache and may
+        still be used, dropping it if it may not. Called with
+        <code>blocks</code> locked. */
+    private Block find(Key key)
+    {
+        Block           block = blocks.get(key);
+
+        if(block == null)
+            return null;
+
+        if(usable(block, System.nanoTime()))
+            return block;
+
+        blocks.remove(key);
+        size -= block.data.length;
+        return null;
+    }
+
+    /** Creates a block to be read, and enters it in the cache. Called with
+        <code>blocks</code> locked. */
+    private Block enter(Key key)
+    {
+        long            start = key.index * BLOCK_SIZE;
+        Block           block = new Block(key,
+            (int)Math.min(BLOCK_SIZE, key.length - start));
+
+        if(CAPACITY == 0)
+            return block;
+
+        blocks.put(key, block);
+        size += block.data.length;
+        evict();
+        return block;
+    }
+
+    /** Returns <code>true</code> if a block may still be used. */
+    private static boolean usable(Block block, long now)
+    {
+        synchronized(block)
+        {
+            return !block.done ||
+                   (block.error == null && now - block.read < LIFETIME);
+        }
+    }
+
+    /** Evicts least recently used blocks that have been read until the cache
+        is within its capacity. Called with <code>blocks</code> locked. */
+    private void evict()
+    {
+        Iterator<Map.Entry<Key, Block>> iterator =
+            blocks.entrySet().iterator();
+
+        while(size > CAPACITY && iterator.hasNext())
+        {
+            Block       block = iterator.next().getValue();
+
+            synchronized(block)
+            {
+                if(!block.done)
+                    continue;
+            }
+
+            size -= block.data.length;
+            iterator.remove();
+        }
+    }
+
+    /** Reads a block from its storage server, and wakes its waiters. A block
+        that cannot be read is dropped, so that it is read again when it is
+        next needed. */
+    private void fetch(Block block)
+    {
+        Key             key = block.key;
+        IOException     error = null;
+
+        try
+        {
+            long        start = key.index * BLOCK_SIZE;
+
+            if(block.data.length >= DFSInputStream.BULK_THRESHOLD &&
+               key.server instanceof BulkStorage)
+            {
+                ((BulkStorage)key.server).openRead(key.file, start,
+                    block.data.length).read(ByteBuffer.wrap(block.data));
+            }
+            else
+            {
+                byte[]  data = key.server.read(key.file, start,
+                                               block.data.length);
+
+                System.arraycopy(data, 0, block.data, 0, block.data.length);
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            error = new IOException("file missing on storage server", e);
+        }
+        catch(RMIException e)
+        {
+            error = new IOException("unable to contact storage server", e);
+        }
+        catch(IOException e)
+        {
+            error = e;
+        }
+        catch(RuntimeException e)
+        {
+            error = new IOException("unable to read block", e);
+        }
+
+        if(error != null)
+        {
+            synchronized(blocks)
+            {
+                if(blocks.get(key) == block)
+                {
+                    blocks.remove(key);
+                    size -= block.data.length;
+                }
+            }
+        }
+
+        synchronized(block)
+        {
+            block.error = error;
+            block.read = System.nanoTime();
+            block.done = true;
+            block.notifyAll();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 import rmi.*;
 import common.*;
@@ -12,10 +13,27 @@ import storage.*;
 
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
-    hosting the given file. Each read call corresponds to one network request.
-    If this behavior is not desirable, the <code>DFSInputStream</code> should be
-    wrapped in a <code>BufferedInputStream</code> or other class providing
-    buffered input.
+    hosting the given file. Reads of less than <code>BULK_THRESHOLD</code>
+    bytes are served from blocks of the file, which are kept in a cache shared
+    by all streams in the Java virtual machine, so that small reads do not
+    each make a network request. When the stream is read sequentially, it
+    reads blocks ahead of the current offset in the background, doubling the
+    number of blocks read ahead with each sequential read up to
+    <code>READ_AHEAD</code>. A read at any other offset stops read ahead until
+    reads are sequential again. Blocks of the file cached before the stream
+    was opened are dropped, so that the stream reads the file as it was when
+    opened. See <code>BlockCache</code> for the block size, the size of the
+    cache, and how long cached blocks are used. The storage server hosting
+    the file is looked up on the naming server itself, not through its
+    <code>MetadataCache</code>: the cache learns of changes to the file's
+    replicas only after they are made, and may still name a replica that was
+    made stale by the last write when the caller was granted its lock.
+
+    <p>
+    Reads of at least <code>BULK_THRESHOLD</code> bytes, and blocks of at least
+    that size, are received from a storage server that supports bulk
+    transfers over its data channel, larger reads directly into the caller's
+    buffer. See <code>BulkStorage</code>.
 
     <p>
     <code>DFSInputStream</code> does not support marks.
@@ -28,6 +46,13 @@ import storage.*;
  */
 public class DFSInputStream extends InputStream
 {
+    /** Smallest read, in bytes, made as a bulk transfer. */
+    public static final int BULK_THRESHOLD = 256 * 1024;
+    /** Largest number of blocks read ahead, given by the system property
+        <code>client.readahead</code>. */
+    public static final int READ_AHEAD =
+        Math.max(0, Integer.getInteger("client.readahead", 16));
+
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
@@ -43,6 +68,14 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Cache through which blocks of the file are read. */
+    private final BlockCache    cache = BlockCache.shared();
+    /** Offset following the previous read, at which the next read is
+        sequential. */
+    private long            next = 0;
+    /** Number of blocks read ahead after the current read. */
+    private int             window = 0;
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -62,7 +95,8 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve a stub for the storage server hosting the file, and the
+        // length of the file from the storage server.
         try
         {
             storage_server = naming_server.getStorage(file);
@@ -72,7 +106,6 @@ public class DFSInputStream extends InputStream
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
         try
         {
             length = storage_server.size(file);
@@ -84,6 +117,10 @@ public class DFSInputStream extends InputStream
 
         path = file;
         this.naming_server = naming_server;
+
+        // Blocks read earlier may predate writes made before the caller was
+        // granted its lock on the file.
+        this.cache.invalidate(file);
     }
 
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
@@ -169,8 +206,9 @@ public class DFSInputStream extends InputStream
     /** Reads bytes from the input stream into a byte buffer.
 
         <p>
-        The read is performed in a single request to the storage server. If the
-        operation succeeds, the number of bytes read will be either
+        Small reads are served from the block cache, reading the blocks that
+        are not there from the storage server. Large reads are performed in a
+        single request to the storage server. If the operation succeeds, the number of bytes read will be either
         <code>read_length</code> or the number of bytes remaining in the file,
         whichever is less.
 
@@ -232,6 +270,43 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
+        // Small reads are served from the block cache, which reads ahead.
+        // Large reads already amortize the round trip, and gain nothing from
+        // being split into blocks and copied.
+        if(BlockCache.CAPACITY > 0 && read_length < BULK_THRESHOLD)
+        {
+            readAhead(read_length);
+            cache.read(storage_server, path, length, offset, buffer,
+                       buffer_offset, read_length);
+            offset += read_length;
+
+            return read_length;
+        }
+
+        // Large reads are streamed straight into the caller's buffer.
+        if(read_length >= BULK_THRESHOLD &&
+           storage_server instanceof BulkStorage)
+        {
+            try
+            {
+                BulkTicket  ticket = ((BulkStorage)storage_server).openRead(
+                    path, offset, read_length);
+                ticket.read(ByteBuffer.wrap(buffer, buffer_offset,
+                                            read_length));
+                offset += read_length;
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            return read_length;
+        }
+
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
         byte[]      result;
@@ -252,13 +327,34 @@ public class DFSInputStream extends InputStream
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        System.arraycopy(result, 0, buffer, buffer_offset, read_length);
 
         // Return the number of bytes read.
         return read_length;
     }
 
+    /** Adjusts the read ahead window for a read at the current offset, and
+        starts reading the blocks past the first one that the read spans, and
+        the blocks in the window after them. */
+    private void readAhead(int read_length)
+    {
+        if(offset == next)
+            window = Math.min(READ_AHEAD, Math.max(1, window * 2));
+        else
+            window = 0;
+
+        next = offset + read_length;
+
+        long        first = offset / BlockCache.BLOCK_SIZE;
+        long        last = (next - 1) / BlockCache.BLOCK_SIZE;
+
+        if(last > first || window > 0)
+        {
+            cache.prefetch(storage_server, path, length, first + 1,
+                           (int)(last - first) + window);
+        }
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
@@ -2,6 +2,13 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import rmi.*;
 import common.*;
@@ -12,15 +19,42 @@ import storage.*;
 
     <p>
     Write calls on a <code>DFSOutputStream</code> are directed to a storage
-    server hosting the given file. Each call corresponds to one network request.
-    If this is not desirable, the <code>DFSOutputStream</code> should be wrapped
-    in a <code>BufferedOutputStream</code> object.
+    server hosting the given file. By default, each call corresponds to one
+    network request, and errors are reported by the call that caused them.
+
+    <p>
+    In write-behind mode, chosen when the stream is created or by the system
+    property <code>client.writebehind</code>, writes are instead copied into
+    blocks of <code>WRITE_BLOCK</code> bytes, aligned on multiples of the
+    block size in the file, and each full block is sent in the background.
+    Up to <code>WRITES_IN_FLIGHT</code> blocks of a stream are sent at once;
+    further writes wait for one of them to complete. A write that does not
+    follow the previous one, after <code>skip</code>, first sends the partial
+    block. <code>flush</code> sends the partial block and waits for all the
+    blocks sent, and is the point at which an error in sending any of them is
+    reported; <code>close</code> does the same. Once an error has been
+    reported, further writes fail.
 
     <p>
     Creating a <code>DFSOutputStream</code> for a file does not cause the file
     to be created or truncated. The file must exist, and the existing file data
     is left in place. Writes to the stream cause file data to be overwritten,
     starting from the beginning of the file.
+
+    <p>
+    Blocks of the file cached by <code>DFSInputStream</code> objects in the
+    same Java virtual machine are dropped when the stream is created and when
+    it is closed. The storage server hosting the file is looked up on the
+    naming server itself, not through its <code>MetadataCache</code>, which
+    may still name a replica that the naming server dropped when it granted
+    the caller's exclusive lock. Data written to such a replica would be lost
+    when the replica is deleted.
+
+    <p>
+    Writes of at least <code>DFSInputStream.BULK_THRESHOLD</code> bytes to a
+    storage server that supports bulk transfers, and blocks of at least that
+    size in write-behind mode, are sent over its data channel, directly from
+    the buffer that holds them. See <code>BulkStorage</code>.
  */
 public class DFSOutputStream extends OutputStream
 {
@@ -37,6 +71,48 @@ public class DFSOutputStream extends OutputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Size of the blocks sent in write-behind mode, given in bytes by the
+        system property <code>client.write.block</code>. */
+    public static final int WRITE_BLOCK =
+        Math.max(1, Integer.getInteger("client.write.block", 1024 * 1024));
+    /** Largest number of blocks of a stream sent at once in write-behind
+        mode, given by the system property <code>client.write.inflight</code>.
+     */
+    public static final int WRITES_IN_FLIGHT =
+        Math.max(1, Integer.getInteger("client.write.inflight", 4));
+
+    /** Threads sending blocks in write-behind mode, shared by all
+        streams. */
+    private static final ExecutorService    senders =
+        Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "dfs-write-behind");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Indicates that writes are buffered and sent in the background. */
+    private final boolean   write_behind;
+    /** Block being filled, or <code>null</code> if there is none. */
+    private byte[]          block = null;
+    /** Offset in the file of the first byte of the block being filled. */
+    private long            block_offset = 0;
+    /** Number of bytes in the block being filled. */
+    private int             block_length = 0;
+    /** Permits for the blocks that may be sent at once. */
+    private final Semaphore in_flight = new Semaphore(WRITES_IN_FLIGHT);
+    /** Blocks that have been sent, for reuse. */
+    private final ConcurrentLinkedQueue<byte[]>  spare =
+        new ConcurrentLinkedQueue<byte[]>();
+    /** First error in sending a block, or <code>null</code> if there has been
+        none. */
+    private volatile IOException    error = null;
+
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
 
@@ -56,6 +132,34 @@ public class DFSOutputStream extends OutputStream
     public DFSOutputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
+        this(naming_server, file, Boolean.getBoolean("client.writebehind"));
+    }
+
+    /** Creates a <code>DFSOutputStream</code> for a file listed by the given
+        naming server, choosing whether writes are sent in the background.
+
+        <p>
+        The file should be locked on the naming server for exclusive access.
+
+        @param naming_server Stub for the naming server hosting metadata for the
+                             file.
+        @param file Path to the file.
+        @param write_behind If <code>true</code>, writes are gathered into
+                            blocks that are sent in the background, and errors
+                            are reported by <code>flush</code> and
+                            <code>close</code>.
+        @throws FileNotFoundException If the file is not listed by the given
+                                      naming server, or if the path refers to a
+                                      directory.
+        @throws IOException If the naming server cannot be contacted to retrieve
+                            file metadata.
+     */
+    public DFSOutputStream(Service naming_server, Path file,
+                           boolean write_behind)
+        throws FileNotFoundException, IOException
+    {
+        this.write_behind = write_behind;
+
         // Retrieve a stub for the storage server hosting the file.
         try
         {
@@ -68,6 +172,10 @@ public class DFSOutputStream extends OutputStream
 
         path = file;
         this.naming_server = naming_server;
+
+        // Blocks of the file read in this virtual machine are about to become
+        // stale.
+        BlockCache.shared().invalidate(path);
     }
 
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
@@ -141,19 +249,72 @@ public class DFSOutputStream extends OutputStream
     /** Closes the output stream.
 
         <p>
-        The stream is marked as closed. Further attempts to use the output
+        In write-behind mode, the stream is first flushed. The stream is
+        marked as closed in any case. Further attempts to use the output
         stream will result in <code>IOException</code>.
+
+        @throws IOException If a block written in the background could not be
+                            sent.
      */
     @Override
     public void close() throws IOException
     {
-        closed = true;
+        if(closed)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closed = true;
+            BlockCache.shared().invalidate(path);
+        }
+    }
+
+    /** Sends any partial block and waits until all blocks written in the
+        background have been sent. Does nothing unless the stream is in
+        write-behind mode, even if the stream is closed, since every write is
+        then already complete.
+
+        @throws IOException If the stream is in write-behind mode and is
+                            closed, or if a block could not be sent.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if(!write_behind)
+            return;
+
+        if(closed)
+        {
+            throw new IOException("distributed filesystem output stream " +
+                                  "already closed");
+        }
+
+        sendBlock();
+
+        try
+        {
+            in_flight.acquire(WRITES_IN_FLIGHT);
+            in_flight.release(WRITES_IN_FLIGHT);
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException("interrupted while flushing " +
+                                             path);
+        }
+
+        checkError();
     }
 
     /** Writes bytes from a buffer to the output stream.
 
         <p>
-        The write is performed in a single request to the storage server.
+        The write is performed in a single request to the storage server,
+        unless the stream is in write-behind mode, in which case the bytes are
+        copied and sent later.
 
         @param buffer Buffer containing bytes to be written.
         @param buffer_offset Offset into the buffer from which bytes are to be
@@ -161,7 +322,9 @@ public class DFSOutputStream extends OutputStream
         @param write_length Number of bytes to be written.
         @throws IOException If the stream is closed, if the storage server
                             cannot be contacted, or if a write error occurs on
-                            the storage server.
+                            the storage server. In write-behind mode, such
+                            errors are reported by a later write or by
+                            <code>flush</code>.
         @throws NullPointerException If <code>buffer</code> is
                                      <code>null</code>.
         @throws IndexOutOfBoundsException If <code>buffer_offset</code> or
@@ -199,33 +362,148 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
-        // Create the data buffer that will be sent over the network. If the
-        // buffer offset is zero and all the bytes in the user-provided buffer
-        // are to be written, the user-provided buffer will be serialized
-        // directly. Otherwise, make a new buffer, copy the requisite number of
-        // bytes from the proper offset in the user-provided buffer to the new
-        // buffer, and later serialize the new buffer.
-        byte[]      data;
-
-        if((buffer_offset == 0) && (buffer.length == write_length))
-            data = buffer;
-        else
+        if(!write_behind)
+        {
+            // Send the write request to the server. If the write request
+            // succeeds, advance the stream offset.
+            send(buffer, buffer_offset, write_length, offset);
+            offset += write_length;
+            return;
+        }
+
+        checkError();
+
+        // A write that does not follow the block being filled starts a new
+        // block.
+        if(block != null && block_offset + block_length != offset)
+            sendBlock();
+
+        while(write_length > 0)
         {
-            data = new byte[write_length];
+            if(block == null)
+            {
+                block = spare.poll();
+                if(block == null)
+                    block = new byte[WRITE_BLOCK];
+
+                block_offset = offset;
+                block_length = 0;
+            }
+
+            // Blocks end at multiples of the block size in the file.
+            int     end = (int)(WRITE_BLOCK - block_offset % WRITE_BLOCK);
+            int     copied = Math.min(write_length, end - block_length);
+
+            System.arraycopy(buffer, buffer_offset, block, block_length,
+                             copied);
+
+            block_length += copied;
+            buffer_offset += copied;
+            write_length -= copied;
+            offset += copied;
+
+            if(block_length == end)
+                sendBlock();
+        }
+    }
+
+    /** Sends the block being filled in the background, if there is one.
+        Waits for a block to be sent if as many as allowed are in flight. */
+    private void sendBlock() throws IOException
+    {
+        if(block == null)
+            return;
 
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+        final byte[]    data = block;
+        final int       length = block_length;
+        final long      at = block_offset;
+
+        block = null;
+
+        try
+        {
+            in_flight.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            spare.offer(data);
+            throw new InterruptedIOException("interrupted while writing " +
+                                             path);
         }
 
-        // Send the write request to the server. If the write request succeds,
-        // advance the stream offset.
+        senders.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    send(data, 0, length, at);
+                }
+                catch(IOException e)
+                {
+                    if(error == null)
+                        error = e;
+                }
+                catch(RuntimeException e)
+                {
+                    if(error == null)
+                        error = new IOException("unable to write block", e);
+                }
+                finally
+                {
+                    spare.offer(data);
+                    in_flight.release();
+                }
+            }
+        });
+    }
+
+    /** Throws the first error in sending a block, if there has been one. */
+    private void checkError() throws IOException
+    {
+        IOException     failure = error;
+
+        if(failure != null)
+            throw new IOException("write to " + path + " failed", failure);
+    }
+
+    /** Writes bytes to the file at the given offset, in one request to the
+        storage server. */
+    private void send(byte[] buffer, int buffer_offset, int write_length,
+                      long at)
+        throws IOException
+    {
         try
         {
-            storage_server.write(path, offset, data);
-            offset += write_length;
+            // Large writes are streamed straight from the buffer.
+            if(write_length >= DFSInputStream.BULK_THRESHOLD &&
+               storage_server instanceof BulkStorage)
+            {
+                BulkTicket  ticket = ((BulkStorage)storage_server).openWrite(
+                    path, at, write_length);
+                ticket.write(ByteBuffer.wrap(buffer, buffer_offset,
+                                             write_length));
+                return;
+            }
+
+            // The whole buffer is serialized if it is to be written whole.
+            // Otherwise, the bytes to be written are copied out first.
+            byte[]  data = buffer;
+
+            if(buffer_offset != 0 || buffer.length != write_length)
+            {
+                data = Arrays.copyOfRange(buffer, buffer_offset,
+                                          buffer_offset + write_length);
+            }
+
+            storage_server.write(path, at, data);
         }
         catch(FileNotFoundException e)
         {
+            // The storage server may have been found in the metadata cache
+            // after the file moved; the next stream looks it up again.
+            MetadataCache.of(naming_server).invalidate(path);
             throw new IOException("file missing on storage server", e);
         }
         catch(RMIException e)
@@ -0,0 +1,332 @@
+package client;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Cache of naming server metadata, shared by all clients of one naming
+    server in the Java virtual machine.
+
+    <p>
+    The cache holds the results of <code>Service.getStorage</code>,
+    <code>Service.isDirectory</code> and <code>Service.list</code>. A result
+    is used for at most <code>TTL</code> milliseconds after it was obtained.
+    Errors, such as a missing file, are not cached.
+
+    <p>
+    If the naming server stub implements <code>CacheService</code>, a
+    background thread waits in the naming server for changes, and drops the
+    results for each path created, deleted, or given new replicas as soon as
+    it is told of the change, together with the results for everything
+    under the path and the listing of its parent. Results are then stale
+    only for the time it takes the change to reach the client, and for at
+    most <code>TTL</code> milliseconds while the naming server cannot be
+    reached. A result obtained while a change to its path is being applied
+    is not kept.
+
+    <p>
+    The parameters are given by the system properties
+    <code>client.metadata.ttl</code> (milliseconds, default 5000; zero
+    disables the cache) and <code>client.metadata.entries</code> (the number
+    of results of each kind kept, default 10000).
+ */
+public class MetadataCache
+{
+    /** Time for which a result may be used after it is obtained, in
+        milliseconds. */
+    public static final long    TTL =
+        Math.max(0, Long.getLong("client.metadata.ttl", 5000));
+    /** Largest number of results of each kind kept. */
+    static final int            ENTRIES =
+        Math.max(1, Integer.getInteger("client.metadata.entries", 10000));
+    /** Time for which the watching thread waits for changes in one call, in
+        milliseconds. The naming server runs these calls outside the workers
+        of its service executor, so a waiting call holds no worker. */
+    private static final long   WAIT = 30000;
+    /** Time after which the watching thread retries a failed call, in
+        milliseconds. */
+    private static final long   RETRY = 1000;
+
+    /** Cache of each naming server used in this virtual machine. */
+    private static final ConcurrentHashMap<Service, MetadataCache>  caches =
+        new ConcurrentHashMap<Service, MetadataCache>();
+
+    /** Naming server whose metadata is cached. */
+    private final Service       naming_server;
+    /** Storage servers returned by <code>getStorage</code>. */
+    private final ConcurrentHashMap<Path, Entry>    storage =
+        new ConcurrentHashMap<Path, Entry>();
+    /** Answers returned by <code>isDirectory</code>. */
+    private final ConcurrentHashMap<Path, Entry>    directories =
+        new ConcurrentHashMap<Path, Entry>();
+    /** Listings returned by <code>list</code>. */
+    private final ConcurrentHashMap<Path, Entry>    listings =
+        new ConcurrentHashMap<Path, Entry>();
+    /** Number of invalidations so far, by which a result obtained while
+        one was applied is detected. */
+    private final AtomicLong    generation = new AtomicLong();
+
+    /** Number of results found in the cache. */
+    private final AtomicLong    hits = new AtomicLong();
+    /** Number of results obtained from the naming server. */
+    private final AtomicLong    misses = new AtomicLong();
+
+    /** Cached result. */
+    private static class Entry
+    {
+        final Object        value;
+        /** Time at which the result was obtained. */
+        final long          time = System.nanoTime();
+
+        Entry(Object value)
+        {
+            this.value = value;
+        }
+    }
+
+    /** Creates a cache for a naming server, and starts watching for
+        changes if the naming server supports it. */
+    private MetadataCache(Service naming_server)
+    {
+        this.naming_server = naming_server;
+
+        if(!(naming_server instanceof CacheService) || TTL == 0)
+            return;
+
+        Thread          watcher = new Thread("dfs-metadata-watch")
+        {
+            @Override
+            public void run()
+            {
+                watch((CacheService)MetadataCache.this.naming_server);
+            }
+        };
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /** Returns the cache of a naming server, creating it if necessary.
+
+        @param naming_server Stub for the naming server.
+     */
+    public static MetadataCache of(Service naming_server)
+    {
+        MetadataCache   cache = caches.get(naming_server);
+
+        if(cache != null)
+            return cache;
+
+        synchronized(caches)
+        {
+            cache = caches.get(naming_server);
+            if(cache == null)
+            {
+                cache = new MetadataCache(naming_server);
+                caches.put(naming_server, cache);
+            }
+        }
+
+        return cache;
+    }
+
+    /** Returns a storage server hosting a file, as by
+        <code>Service.getStorage</code>.
+
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        Object          value = find(storage, file);
+
+        if(value != null)
+            return (Storage)value;
+
+        long            before = generation.get();
+        Storage         server = naming_server.getStorage(file);
+
+        keep(storage, file, server, before);
+        return server;
+    }
+
+    /** Determines whether a path refers to a directory, as by
+        <code>Service.isDirectory</code>.
+
+        @throws FileNotFoundException If the path does not exist.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        Object          value = find(directories, path);
+
+        if(value != null)
+            return (Boolean)value;
+
+        long            before = generation.get();
+        boolean         directory = naming_server.isDirectory(path);
+
+        keep(directories, path, directory, before);
+        return directory;
+    }
+
+    /** Lists the contents of a directory, as by <code>Service.list</code>.
+
+        @throws FileNotFoundException If the directory does not exist.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        Object          value = find(listings, directory);
+
+        if(value != null)
+            return ((String[])value).clone();
+
+        long            before = generation.get();
+        String[]        names = naming_server.list(directory);
+
+        keep(listings, directory, names.clone(), before);
+        return names;
+    }
+
+    /** Drops the cached results for a path and everything under it, and the
+        listing of its parent directory. */
+    public void invalidate(Path path)
+    {
+        generation.incrementAndGet();
+
+        drop(storage, path);
+        drop(directories, path);
+        drop(listings, path);
+
+        if(!path.isRoot())
+            listings.remove(path.parent());
+    }
+
+    /** Drops all cached results. */
+    public void clear()
+    {
+        generation.incrementAndGet();
+
+        storage.clear();
+        directories.clear();
+        listings.clear();
+    }
+
+    /** Returns the number of results found in the cache. */
+    public long hits()
+    {
+        return hits.get();
+    }
+
+    /** Returns the number of results obtained from the naming server. */
+    public long misses()
+    {
+        return misses.get();
+    }
+
+    /** Returns a cached result that may still be used, or <code>null</code>
+        if there is none. */
+    private Object find(ConcurrentHashMap<Path, Entry> entries, Path path)
+    {
+        Entry           entry = entries.get(path);
+
+        if(entry != null && System.nanoTime() - entry.time <
+                            TimeUnit.MILLISECONDS.toNanos(TTL))
+        {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        if(entry != null)
+            entries.remove(path, entry);
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** Caches a result obtained from the naming server, unless the cache has
+        been invalidated since the request for it was made.
+
+        @param before Number of invalidations when the request was made.
+     */
+    private void keep(ConcurrentHashMap<Path, Entry> entries, Path path,
+                      Object value, long before)
+    {
+        if(TTL == 0 || generation.get() != before)
+            return;
+
+        if(entries.size() >= ENTRIES)
+            entries.clear();
+
+        Entry           entry = new Entry(value);
+
+        entries.put(path, entry);
+
+        // An invalidation applied between the check above and the put may
+        // have missed the new entry.
+        if(generation.get() != before)
+            entries.remove(path, entry);
+    }
+
+    /** Removes the results for a path and everything under it. */
+    private static void drop(ConcurrentHashMap<Path, Entry> entries,
+                             Path path)
+    {
+        Iterator<Path>  iterator = entries.keySet().iterator();
+
+        while(iterator.hasNext())
+        {
+            if(iterator.next().isSubpath(path))
+                iterator.remove();
+        }
+    }
+
+    /** Applies the changes reported by the naming server, for as long as the
+        virtual machine runs. */
+    private void watch(CacheService service)
+    {
+        long            sequence = -1;
+
+        while(true)
+        {
+            try
+            {
+                Changes changes = service.changes(sequence, WAIT);
+
+                if(changes.reset)
+                    clear();
+                else
+                {
+                    for(Path path : changes.paths)
+                        invalidate(path);
+                }
+
+                sequence = changes.sequence;
+            }
+            catch(RMIException e)
+            {
+                // Changes are missed until the naming server can be reached
+                // again; cached results expire meanwhile.
+                try
+                {
+                    Thread.sleep(RETRY);
+                }
+                catch(InterruptedException interrupted)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Copies whole files between the local filesystem and the distributed
+    filesystem over several connections at once.
+
+    <p>
+    A file is divided into ranges of <code>STRIPE_SIZE</code> bytes, and up to
+    <code>parallelism</code> ranges are transferred at the same time, each in
+    its own request to a storage server. Ranges of at least
+    <code>DFSInputStream.BULK_THRESHOLD</code> bytes are streamed over the
+    data channel of servers that support bulk transfers, directly between the
+    socket and the local file; see <code>BulkStorage</code>. Ranges are
+    written into the local or remote file at their own offsets, so they may
+    complete in any order.
+
+    <p>
+    A download spreads its ranges over all the storage servers hosting up to
+    date copies of the file, as listed by <code>ReplicaService</code> when
+    the naming server stub supports it. A range that cannot be read from one
+    replica is read from the next. An upload writes to the storage server
+    returned by <code>Service.getStorage</code>.
+
+    <p>
+    <code>StripedTransfer</code> does not provide locking: a file downloaded
+    should be locked for shared access, and a file uploaded for exclusive
+    access, or its parent directory when the file is created for the upload.
+    After each transfer, <code>report</code> describes its throughput.
+
+    <p>
+    The defaults are given by the system properties <code>client.stripe</code>
+    (bytes, default 4 MiB) and <code>client.parallelism</code> (default 4).
+ */
+public class StripedTransfer
+{
+    /** Size of the ranges into which files are divided, in bytes. */
+    public static final int     STRIPE_SIZE =
+        Math.max(1, Integer.getInteger("client.stripe", 4 * 1024 * 1024));
+    /** Default number of ranges transferred at the same time. */
+    public static final int     PARALLELISM =
+        Math.max(1, Integer.getInteger("client.parallelism", 4));
+
+    /** Threads transferring ranges, shared by all transfers. */
+    private static final ExecutorService    workers =
+        Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "dfs-transfer");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Naming server hosting metadata for the files transferred. */
+    private final Service       naming_server;
+    /** Largest number of ranges transferred at the same time. */
+    private final int           parallelism;
+
+    /** Number of bytes moved by the latest transfer. */
+    private long                bytes = 0;
+    /** Duration of the latest transfer, in nanoseconds. */
+    private long                elapsed = 0;
+    /** Number of connections used by the latest transfer. */
+    private int                 connections = 0;
+    /** Number of storage servers used by the latest transfer. */
+    private int                 servers = 0;
+
+    /** Creates a <code>StripedTransfer</code> with the default parallelism.
+
+        @param naming_server Stub for the naming server hosting metadata for
+                             the files to be transferred.
+     */
+    public StripedTransfer(Service naming_server)
+    {
+        this(naming_server, PARALLELISM);
+    }
+
+    /** Creates a <code>StripedTransfer</code>.
+
+        @param naming_server Stub for the naming server hosting metadata for
+                             the files to be transferred.
+        @param parallelism Largest number of ranges transferred at the same
+                           time.
+        @throws IllegalArgumentException If <code>parallelism</code> is less
+                                         than one.
+     */
+    public StripedTransfer(Service naming_server, int parallelism)
+    {
+        if(naming_server == null)
+            throw new NullPointerException("naming server is null");
+
+        if(parallelism < 1)
+            throw new IllegalArgumentException("parallelism less than one");
+
+        this.naming_server = naming_server;
+        this.parallelism = parallelism;
+    }
+
+    /** Copies a file from the distributed filesystem into a local file.
+
+        @param source Path to the remote file.
+        @param destination Channel to the local file, which receives the
+                           bytes of the remote file at the same offsets.
+        @return The number of bytes copied.
+        @throws FileNotFoundException If the file is not listed by the naming
+                                      server, or if the path refers to a
+                                      directory.
+        @throws IOException If the naming server or every storage server
+                            hosting some range cannot be contacted, or if the
+                            local file cannot be written.
+     */
+    public synchronized long download(final Path source,
+                                      final FileChannel destination)
+        throws FileNotFoundException, IOException
+    {
+        long                start = System.nanoTime();
+        final Storage[]     replicas = replicas(source);
+        final long          length;
+
+        try
+        {
+            length = replicas[0].size(source);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact storage server", e);
+        }
+
+        // Extend the local file to its final length first, so that no range
+        // is written past its end.
+        if(length > 0)
+            destination.write(ByteBuffer.allocate(1), length - 1);
+
+        run(length, new Range()
+        {
+            @Override
+            void transfer(long index, long offset, int count)
+                throws IOException
+            {
+                IOException     failure = null;
+
+                for(int attempt = 0; attempt < replicas.length; ++attempt)
+                {
+                    Storage     server =
+                        replicas[(int)((index + attempt) % replicas.length)];
+
+                    try
+                    {
+                        receive(server, source, destination, offset, count);
+                        return;
+                    }
+                    catch(IOException e)
+                    {
+                        failure = e;
+                    }
+                }
+
+                throw failure;
+            }
+        });
+
+        finish(start, length, (int)Math.min(replicas.length, ranges(length)));
+        return length;
+    }
+
+    /** Copies a local file into an existing file in the distributed
+        filesystem.
+
+        @param source Channel to the local file, which is copied from its
+                      beginning to its current size.
+        @param destination Path to the remote file. The file should be empty;
+                           bytes beyond the size of the local file are left
+                           unchanged.
+        @return The number of bytes copied.
+        @throws FileNotFoundException If the file is not listed by the naming
+                                      server, or if the path refers to a
+                                      directory.
+        @throws IOException If the naming server or the storage server hosting
+                            the file cannot be contacted, or if the local file
+                            cannot be read.
+     */
+    public synchronized long upload(final FileChannel source,
+                                    final Path destination)
+        throws FileNotFoundException, IOException
+    {
+        long                start = System.nanoTime();
+        final Storage       server;
+        final long          length = source.size();
+
+        try
+        {
+            server = naming_server.getStorage(destination);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+
+        run(length, new Range()
+        {
+            @Override
+            void transfer(long index, long offset, int count)
+                throws IOException
+            {
+                send(server, destination, source, offset, count);
+            }
+        });
+
+        finish(start, length, 1);
+        return length;
+    }
+
+    /** Returns the number of bytes moved by the latest transfer. */
+    public synchronized long bytes()
+    {
+        return bytes;
+    }
+
+    /** Returns the throughput of the latest transfer, in bytes per second.
+     */
+    public synchronized double throughput()
+    {
+        if(elapsed == 0)
+            return 0;
+
+        return bytes * 1e9 / elapsed;
+    }
+
+    /** Returns a one-line description of the latest transfer: the number of
+        bytes moved, the time taken, the throughput, and the number of
+        connections and storage servers used. */
+    public synchronized String report()
+    {
+        return String.format("%d bytes in %.2f s (%.1f MB/s) over %d " +
+                             "connection%s to %d server%s", bytes,
+                             elapsed / 1e9, throughput() / 1e6, connections,
+                             connections == 1 ? "" : "s", servers,
+                             servers == 1 ? "" : "s");
+    }
+
+    /** Transfer of one range of a file. */
+    private abstract static class Range
+    {
+        /** Transfers a range.
+
+            @param index Index of the range in the file.
+            @param offset Offset in the file of the first byte of the range.
+            @param count Number of bytes in the range.
+            @throws IOException If the range cannot be transferred.
+         */
+        abstract void transfer(long index, long offset, int count)
+            throws IOException;
+    }
+
+    /** Returns the number of ranges in a file of the given length. */
+    private static long ranges(long length)
+    {
+        return (length + STRIPE_SIZE - 1) / STRIPE_SIZE;
+    }
+
+    /** Transfers all the ranges of a file, up to <code>parallelism</code> at
+        a time, and waits for them.
+
+        <p>
+        Each of the workers takes the next range not yet taken until there is
+        none left. After a range fails, no further ranges are started, and the
+        first failure is thrown once the ranges in progress are over.
+     */
+    private void run(final long length, final Range range) throws IOException
+    {
+        final long          count = ranges(length);
+        final AtomicLong    next = new AtomicLong();
+        int                 threads = (int)Math.min(parallelism, count);
+        List<Future<?>>     futures = new ArrayList<Future<?>>(threads);
+
+        connections = threads;
+
+        for(int thread = 0; thread < threads; ++thread)
+        {
+            futures.add(workers.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    for(long index = next.getAndIncrement(); index < count;
+                        index = next.getAndIncrement())
+                    {
+                        long    offset = index * STRIPE_SIZE;
+
+                        try
+                        {
+                            range.transfer(index, offset, (int)Math.min(
+                                STRIPE_SIZE, length - offset));
+                        }
+                        catch(IOException | RuntimeException e)
+                        {
+                            next.set(count);
+                            throw e;
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        IOException         failure = null;
+
+        for(Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch(InterruptedException e)
+            {
+                for(Future<?> other : futures)
+                    other.cancel(true);
+
+                throw new InterruptedIOException("interrupted during " +
+                                                 "transfer");
+            }
+            catch(ExecutionException e)
+            {
+                if(failure != null)
+                    continue;
+
+                Throwable   cause = e.getCause();
+
+                if(cause instanceof IOException)
+                    failure = (IOException)cause;
+                else
+                    failure = new IOException("unable to transfer range",
+                                              cause);
+            }
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    /** Records the statistics of a completed transfer. */
+    private void finish(long start, long length, int servers)
+    {
+        this.bytes = length;
+        this.elapsed = System.nanoTime() - start;
+        this.servers = servers;
+    }
+
+    /** Returns the storage servers hosting a file, the one returned by
+        <code>getStorage</code> first. */
+    private Storage[] replicas(Path file)
+        throws FileNotFoundException, IOException
+    {
+        try
+        {
+            if(naming_server instanceof ReplicaService)
+                return ((ReplicaService)naming_server).getReplicas(file);
+
+            return new Storage[] {naming_server.getStorage(file)};
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+    }
+
+    /** Reads a range of a remote file from one storage server into the
+        local file. */
+    private static void receive(Storage server, Path file,
+                                FileChannel destination, long offset,
+                                int count)
+        throws IOException
+    {
+        try
+        {
+            if(count >= DFSInputStream.BULK_THRESHOLD &&
+               server instanceof BulkStorage)
+            {
+                ((BulkStorage)server).openRead(file, offset, count)
+                    .read(destination, offset);
+                return;
+            }
+
+            ByteBuffer  data = ByteBuffer.wrap(server.read(file, offset,
+                                                           count));
+
+            while(data.hasRemaining())
+                destination.write(data, offset + data.position());
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
+        catch(IndexOutOfBoundsException e)
+        {
+            throw new IOException("range missing on storage server", e);
+        }
+    }
+
+    /** Writes a range of the local file into a remote file on its storage
+        server. */
+    private static void send(Storage server, Path file, FileChannel source,
+                             long offset, int count)
+        throws IOException
+    {
+        try
+        {
+            if(count >= DFSInputStream.BULK_THRESHOLD &&
+               server instanceof BulkStorage)
+            {
+                ((BulkStorage)server).openWrite(file, offset, count)
+                    .write(source, offset);
+                return;
+            }
+
+            ByteBuffer  data = ByteBuffer.allocate(count);
+
+            while(data.hasRemaining())
+            {
+                if(source.read(data, offset + data.position()) < 0)
+                    throw new EOFException("unexpected end of file");
+            }
+
+            server.write(file, offset, data.array());
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
+    }
+}
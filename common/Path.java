@@ -348,16 +348,27 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public int compareTo(Path other)
     {
-        if(isSubpath(other)){
-            return 1;
-        }
-        if(other.toString().equals(this.toString())){
-            return 0;
+        // Paths are ordered by their components, compared one at a time, so
+        // that every path follows its ancestors, and a path and its
+        // descendants are contiguous in the order.
+        Iterator<String>    mine = iterator();
+        Iterator<String>    theirs = other.iterator();
+
+        while(mine.hasNext() && theirs.hasNext())
+        {
+            int             order = mine.next().compareTo(theirs.next());
+
+            if(order != 0)
+                return order;
         }
 
-        return -1;
+        if(mine.hasNext())
+            return 1;
 
-        //throw new UnsupportedOperationException("not implemented");
+        if(theirs.hasNext())
+            return -1;
+
+        return 0;
     }
 
     /** Compares two paths for equality.
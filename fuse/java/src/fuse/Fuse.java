@@ -3,6 +3,7 @@ package fuse;
 import java.io.*;
 
 import rmi.*;
+import client.*;
 import common.*;
 import naming.*;
 import storage.*;
@@ -42,6 +43,23 @@ import storage.*;
     yet when the storage server is contacted to retrieve file data, the file may
     already have been deleted by another user.
 
+    <p>
+    Storage servers, directory checks and listings are looked up through a
+    <code>MetadataCache</code>, so that repeated queries on the same paths,
+    such as those made for <code>stat</code>, do not each contact the naming
+    server. Objects created or deleted through this client are dropped from
+    the cache at once; changes made by other clients are dropped when the
+    naming server reports them. Writes look up the storage server on the
+    naming server itself, so that data is not written to a replica that the
+    naming server has already dropped and is about to delete.
+
+    <p>
+    File data is read and written directly through the storage server, not
+    through the block cache of <code>DFSInputStream</code>. That cache drops a
+    file's blocks when a stream is opened on it, and FUSE does not tell this
+    class when files are opened; the kernel already caches the pages of
+    files read through FUSE.
+
     <p>
     To use these methods, the native code should first call
     <code>initialize</code>. After that, any of the methods may be called in any
@@ -53,6 +71,8 @@ abstract class Fuse
 {
     /** Stub for the naming server to be contacted. */
     private static Service  naming_server = null;
+    /** Cache of the naming server's metadata. */
+    private static MetadataCache    cache = null;
 
     /** Prevents any class from derived from <code>Fuse</code>. */
     private Fuse()
@@ -74,6 +94,7 @@ abstract class Fuse
     static void initialize(byte[] raw_hostname)
     {
         naming_server = NamingStubs.service(decode(raw_hostname));
+        cache = MetadataCache.of(naming_server);
     }
 
     /** Checks if the given path refers to a directory.
@@ -91,7 +112,7 @@ abstract class Fuse
     static boolean directory(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.isDirectory(new Path(decode(raw_path)));
+        return cache.isDirectory(new Path(decode(raw_path)));
     }
 
     /** Returns the size of the given file.
@@ -110,9 +131,18 @@ abstract class Fuse
         throws FileNotFoundException, RMIException
     {
         Path        path = new Path(decode(raw_path));
-        Storage     storage_server = naming_server.getStorage(path);
 
-        return storage_server.size(path);
+        try
+        {
+            return cache.getStorage(path).size(path);
+        }
+        catch(FileNotFoundException e)
+        {
+            // The cached storage server may no longer host the file, if it
+            // has been deleted and created again since it was looked up.
+            cache.invalidate(path);
+            return cache.getStorage(path).size(path);
+        }
     }
 
     /** Creates a file on the remote filesystem.
@@ -134,7 +164,16 @@ abstract class Fuse
     static boolean createFile(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.createFile(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        try
+        {
+            return naming_server.createFile(path);
+        }
+        finally
+        {
+            cache.invalidate(path);
+        }
     }
 
     /** Creates a directory on the remote filesystem.
@@ -154,7 +193,16 @@ abstract class Fuse
     static boolean createDirectory(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.createDirectory(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        try
+        {
+            return naming_server.createDirectory(path);
+        }
+        finally
+        {
+            cache.invalidate(path);
+        }
     }
 
     /** Deletes an object on the remote filesystem.
@@ -173,7 +221,16 @@ abstract class Fuse
     static boolean delete(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.delete(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        try
+        {
+            return naming_server.delete(path);
+        }
+        finally
+        {
+            cache.invalidate(path);
+        }
     }
 
     /** Reads from a file on the remote filesystem.
@@ -209,7 +266,7 @@ abstract class Fuse
     {
         // Decode the path and obtain a storage server stub.
         Path        path = new Path(decode(raw_path));
-        Storage     storage_server = naming_server.getStorage(path);
+        Storage     storage_server = cache.getStorage(path);
 
         // Check that the starting offset is within the bounds of the file. If
         // it is beyond the end of the file, return the empty array.
@@ -266,7 +323,7 @@ abstract class Fuse
         throws FileNotFoundException, RMIException
     {
         // Decode the path and the list the directory.
-        String[]    children = naming_server.list(new Path(decode(raw_path)));
+        String[]    children = cache.list(new Path(decode(raw_path)));
         byte[][]    encoded_children = new byte[children.length][];
 
         int         flattened_length = 0;
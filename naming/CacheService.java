@@ -0,0 +1,39 @@
+package naming;
+
+import common.*;
+import rmi.RMIException;
+
+/** Naming server client service interface through which clients keep cached
+    metadata up to date.
+
+    <p>
+    Clients may cache the results of <code>getStorage</code>,
+    <code>isDirectory</code> and <code>list</code>. The naming server numbers
+    each change that can make such a result stale: the creation or deletion
+    of a file or directory, and a change to the set of storage servers
+    hosting a file. A client learns of the changes by calling
+    <code>changes</code> repeatedly. The call waits in the naming server
+    until there are changes to report, so that each change is pushed to
+    waiting clients as soon as it is made, without clients polling.
+
+    <p>
+    Stubs returned by <code>NamingStubs.service</code> implement this
+    interface. <code>client.MetadataCache</code> uses it.
+ */
+public interface CacheService extends ReplicaService
+{
+    /** Returns the changes made after a given change, waiting for one if
+        there are none yet.
+
+        @param sequence The <code>sequence</code> of the last set of changes
+                        received, or <code>-1</code> on the first call.
+        @param timeout The longest time to wait for a change, in
+                       milliseconds. The naming server may wait for less.
+        @return The changes made since the given one, which may be none if
+                the wait timed out. The first call always returns a set with
+                <code>reset</code> set.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Changes changes(long sequence, long timeout) throws RMIException;
+}
@@ -0,0 +1,94 @@
+package naming;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import common.*;
+
+/** Numbered log of the most recent metadata changes, from which clients of
+    <code>CacheService</code> learn what to drop from their caches.
+
+    <p>
+    The log keeps the last <code>CAPACITY</code> changed paths in a ring.
+    Numbering starts from a value derived from the time at which the log was
+    created, so that a client following a naming server that has been
+    restarted presents a number the new log does not hold, and is told to
+    reset its cache rather than miss the changes made before it reconnected.
+
+    <p>
+    The capacity is given by the system property <code>naming.changes</code>,
+    and defaults to 4096. Clients wait at most <code>MAX_WAIT</code>
+    milliseconds per call. Each caching client has a call waiting at almost
+    all times, so the naming server runs these calls outside the workers of
+    its service executor: see <code>Skeleton.setWaiting</code>.
+ */
+class ChangeLog
+{
+    /** Number of changes kept. */
+    static final int            CAPACITY =
+        Math.max(1, Integer.getInteger("naming.changes", 4096));
+    /** Longest time a client waits for changes, in milliseconds. */
+    static final long           MAX_WAIT = 60000;
+
+    /** Changed paths, indexed by number modulo the capacity. Guarded by the
+        log. */
+    private final Path[]        log = new Path[CAPACITY];
+    /** Number of the latest change. Guarded by the log. */
+    private long                sequence = System.currentTimeMillis() << 20;
+    /** Indicates that the naming server is stopping, and that waiting
+        clients are to be released. Guarded by the log. */
+    private boolean             closed = false;
+
+    /** Records a change to a path, and wakes the waiting clients. */
+    synchronized void record(Path path)
+    {
+        ++sequence;
+        log[(int)(sequence % CAPACITY)] = path;
+        notifyAll();
+    }
+
+    /** Returns the changes made after a given change, waiting up to the
+        given time for one if there are none yet. */
+    synchronized Changes since(long after, long timeout)
+    {
+        long            deadline = System.currentTimeMillis() +
+                                   Math.max(0, Math.min(timeout, MAX_WAIT));
+
+        while(!closed && after == sequence)
+        {
+            long        remaining = deadline - System.currentTimeMillis();
+
+            if(remaining <= 0)
+                break;
+
+            try
+            {
+                wait(remaining);
+            }
+            catch(InterruptedException e)
+            {
+                break;
+            }
+        }
+
+        // The client has missed changes no longer in the log, or presents a
+        // number this log never issued.
+        if(after < 0 || after > sequence || sequence - after > CAPACITY)
+            return new Changes(sequence, new Path[0], true);
+
+        Set<Path>       paths = new LinkedHashSet<Path>();
+
+        for(long number = after + 1; number <= sequence; ++number)
+            paths.add(log[(int)(number % CAPACITY)]);
+
+        return new Changes(sequence, paths.toArray(new Path[paths.size()]),
+                           false);
+    }
+
+    /** Releases the waiting clients, and stops further waits. */
+    synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,46 @@
+package naming;
+
+import java.io.Serializable;
+
+import common.*;
+
+/** Paths whose metadata has changed on the naming server, as returned by
+    <code>CacheService.changes</code>.
+
+    <p>
+    Each change is numbered. A client passes the <code>sequence</code> of one
+    set of changes to the next call, so as to receive the changes that follow
+    it. The naming server keeps only the most recent changes: a client that
+    falls too far behind, or that was following a naming server that has
+    since been restarted, receives a set with <code>reset</code> set, and must
+    drop everything it has cached.
+ */
+public class Changes implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Number of the latest change included. */
+    public final long       sequence;
+    /** Paths that have been created, deleted, or had their replicas changed.
+        A path stands for itself and everything under it, and also changes
+        the listing of its parent directory. */
+    public final Path[]     paths;
+    /** Indicates that changes have been missed, and that all cached
+        metadata must be dropped. <code>paths</code> is then empty. */
+    public final boolean    reset;
+
+    /** Creates a set of changes. */
+    public Changes(long sequence, Path[] paths, boolean reset)
+    {
+        this.sequence = sequence;
+        this.paths = paths;
+        this.reset = reset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return (reset ? "reset" : paths.length + " changes") + " up to " +
+               sequence;
+    }
+}
@@ -0,0 +1,43 @@
+package naming;
+
+import storage.*;
+import rmi.RMIException;
+
+/** Naming server registration interface with load reporting.
+
+    <p>
+    After registering, a storage server reports its capacity and load to the
+    naming server at regular intervals. The naming server uses the reports
+    to place new files and replicas, and stops placing data on a storage
+    server whose reports have stopped arriving. Storage servers that never
+    report are treated as having unknown load, and remain eligible.
+
+    <p>
+    Stubs returned by <code>NamingStubs.registration</code> implement this
+    interface.
+ */
+public interface Heartbeat extends Registration
+{
+    /** Reports the capacity and load of a storage server.
+
+        @param client_stub Storage server client service stub, as given to
+                           <code>register</code>.
+        @param report The current capacity and load of the storage server.
+        @return <code>true</code> if the report was accepted,
+                <code>false</code> if the storage server is not registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean heartbeat(Storage client_stub, LoadReport report)
+        throws RMIException;
+
+    /** Returns the interval at which storage servers are to report, in
+        milliseconds.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long heartbeatInterval() throws RMIException;
+}
@@ -0,0 +1,369 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+import rmi.RMIException;
+import storage.*;
+
+/** Background deletion of stale replicas.
+
+    <p>
+    When a replicated file is written, the naming server drops the replicas
+    other than the one being written from the file's metadata at once, so that
+    they are no longer handed to clients, and passes them to the invalidator
+    together with the version of the file that made them stale. The
+    invalidator deletes them from their storage servers in the background:
+    <code>DELAY</code> milliseconds after the first pending deletion, it sends
+    each storage server all the deletions pending for it in one batch, through
+    <code>BatchCommand.deleteAll</code> if the server's command stub supports
+    it.
+
+    <p>
+    Deletions that fail, either because a storage server cannot be reached or
+    because it reports that a file was not deleted, are retried after a delay
+    that doubles with each consecutive failure of the server, from
+    <code>DELAY</code> up to <code>MAX_DELAY</code> milliseconds; deletions
+    for other servers are sent as usual meanwhile. A file that was not deleted
+    because it no longer exists on the server is not retried.
+    Once <code>command</code> reports that a server is no longer registered,
+    or is presumed down because it has stopped sending heartbeats, its
+    pending deletions are abandoned.
+
+    <p>
+    A stale replica remains on its storage server until it is deleted, so the
+    naming server does not place a new copy of the same file, or any file at
+    a path above or below it, on that server while a deletion is pending: see
+    <code>pending</code>. Otherwise, a deletion of a file that has since been
+    replaced by a directory would delete the directory's contents.
+
+    <p>
+    The delays are given in milliseconds by the system properties
+    <code>naming.invalidation.delay</code>, which defaults to 50, and
+    <code>naming.invalidation.maxdelay</code>, which defaults to 10000.
+ */
+abstract class Invalidator
+{
+    /** Time for which deletions are gathered into a batch, in milliseconds. */
+    static final long           DELAY =
+        Math.max(0, Long.getLong("naming.invalidation.delay", 50));
+    /** Longest delay before deletions are retried on a storage server that
+        could not be reached, in milliseconds. */
+    static final long           MAX_DELAY =
+        Math.max(DELAY, Long.getLong("naming.invalidation.maxdelay", 10000));
+
+    /** Pending deletions of each storage server: the stale files, with the
+        versions that made them stale. */
+    private final ConcurrentHashMap<Storage, ConcurrentHashMap<Path, Long>>
+                                pending =
+        new ConcurrentHashMap<Storage, ConcurrentHashMap<Path, Long>>();
+    /** Thread sending the batches. */
+    private final ScheduledExecutorService  sender =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "naming-invalidator");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    /** Retry state of the storage servers that could not be reached. */
+    private final ConcurrentHashMap<Storage, Retry>     retries =
+        new ConcurrentHashMap<Storage, Retry>();
+    /** Indicates that a batch is scheduled. Guarded by the object. */
+    private boolean             scheduled = false;
+    /** Time at which the scheduled batch is to be sent, as given by
+        <code>System.nanoTime</code>. Guarded by the object. */
+    private long                scheduled_at = 0;
+    /** Number of batches sent. */
+    private final AtomicLong    batches = new AtomicLong();
+    /** Number of replicas deleted. */
+    private final AtomicLong    deleted = new AtomicLong();
+
+    /** Deletions on a storage server that could not be reached. */
+    private static class Retry
+    {
+        /** Delay before the next attempt, in milliseconds. */
+        final long              delay;
+        /** Time of the next attempt, as given by
+            <code>System.nanoTime</code>. */
+        final long              due;
+
+        Retry(long delay)
+        {
+            this.delay = delay;
+            this.due = System.nanoTime() +
+                       TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+    }
+
+    /** Returns the command stub of a storage server, or <code>null</code> if
+        the server is no longer registered or is presumed down. */
+    abstract Command command(Storage server);
+
+    /** Schedules the deletion of a stale replica.
+
+        @param server The storage server holding the replica.
+        @param file The replicated file.
+        @param version The version of the file that made the replica stale.
+     */
+    void invalidate(Storage server, Path file, long version)
+    {
+        ConcurrentHashMap<Path, Long>   files = pending.get(server);
+
+        if(files == null)
+        {
+            ConcurrentHashMap<Path, Long>   created =
+                new ConcurrentHashMap<Path, Long>();
+
+            files = pending.putIfAbsent(server, created);
+            if(files == null)
+                files = created;
+        }
+
+        files.put(file, version);
+        schedule(DELAY);
+    }
+
+    /** Returns <code>true</code> if a stale replica of a file, of one of its
+        parent directories, or of a file under it is yet to be deleted from a
+        storage server. */
+    boolean pending(Storage server, Path file)
+    {
+        ConcurrentHashMap<Path, Long>   files = pending.get(server);
+
+        if(files == null)
+            return false;
+
+        for(Path stale : files.keySet())
+        {
+            if(within(file, stale) || within(stale, file))
+                return true;
+        }
+
+        return false;
+    }
+
+    /** Returns <code>true</code> if a path is the same as another, or lies
+        under it. */
+    private static boolean within(Path path, Path directory)
+    {
+        for(Path current = path; ; current = current.parent())
+        {
+            if(current.equals(directory))
+                return true;
+
+            if(current.isRoot())
+                return false;
+        }
+    }
+
+    /** Returns the number of batches sent. */
+    long batches()
+    {
+        return batches.get();
+    }
+
+    /** Returns the number of stale replicas deleted. */
+    long deleted()
+    {
+        return deleted.get();
+    }
+
+    /** Stops sending batches. Pending deletions are abandoned. */
+    void stop()
+    {
+        sender.shutdownNow();
+    }
+
+    /** Schedules a batch after the given delay, unless one is already
+        scheduled to be sent no later. */
+    private synchronized void schedule(long delay)
+    {
+        long            at = System.nanoTime() +
+                             TimeUnit.MILLISECONDS.toNanos(delay);
+
+        if(scheduled && scheduled_at - at <= 0)
+            return;
+
+        scheduled = true;
+        scheduled_at = at;
+
+        try
+        {
+            sender.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    send();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            // The invalidator has been stopped.
+        }
+    }
+
+    /** Sends each storage server its pending deletions, except servers
+        whose next retry is not yet due. */
+    private void send()
+    {
+        // Deletions added from now on are sent with the next batch. A batch
+        // that was rescheduled earlier leaves a later run behind, which finds
+        // little or nothing to send.
+        synchronized(this)
+        {
+            scheduled = false;
+        }
+
+        long            now = System.nanoTime();
+        long            next = -1;
+
+        for(Map.Entry<Storage, ConcurrentHashMap<Path, Long>> entry :
+                pending.entrySet())
+        {
+            Storage     server = entry.getKey();
+            ConcurrentHashMap<Path, Long>   files = entry.getValue();
+
+            if(files.isEmpty())
+            {
+                retries.remove(server);
+                continue;
+            }
+
+            Command     command = command(server);
+
+            if(command == null)
+            {
+                pending.remove(server);
+                retries.remove(server);
+                continue;
+            }
+
+            Retry       retry = retries.get(server);
+
+            if(retry != null && retry.due - now > 0)
+            {
+                long    wait = TimeUnit.NANOSECONDS.toMillis(retry.due - now);
+
+                next = next < 0 ? wait : Math.min(next, wait);
+                continue;
+            }
+
+            List<Path>  paths = new ArrayList<Path>(files.size());
+            List<Long>  versions = new ArrayList<Long>(files.size());
+
+            for(Map.Entry<Path, Long> file : files.entrySet())
+            {
+                paths.add(file.getKey());
+                versions.add(file.getValue());
+            }
+
+            boolean[]   results;
+
+            try
+            {
+                results = delete(command, paths);
+            }
+            catch(RMIException e)
+            {
+                next = backoff(server, retry, next);
+                continue;
+            }
+
+            batches.incrementAndGet();
+
+            boolean     failed = false;
+
+            // A file made stale again meanwhile keeps its newer entry, which
+            // is deleted with the next batch. A file that was not deleted
+            // stays pending, unless it is already gone.
+            for(int index = 0; index < paths.size(); ++index)
+            {
+                if(results[index])
+                    deleted.incrementAndGet();
+                else if(exists(server, paths.get(index)))
+                {
+                    failed = true;
+                    continue;
+                }
+
+                files.remove(paths.get(index), versions.get(index));
+            }
+
+            if(failed)
+                next = backoff(server, retry, next);
+            else
+                retries.remove(server);
+        }
+
+        if(next >= 0)
+            schedule(next);
+    }
+
+    /** Doubles the delay before deletions are retried on a storage server,
+        and returns the delay before the next batch is due, given the delay
+        found so far, or -1 if none has been. */
+    private long backoff(Storage server, Retry retry, long next)
+    {
+        long            delay = retry == null ? Math.max(1, DELAY) :
+                                Math.min(MAX_DELAY, 2 * retry.delay);
+
+        retries.put(server, new Retry(delay));
+        return next < 0 ? delay : Math.min(next, delay);
+    }
+
+    /** Deletes files on a storage server, in one call if possible, and
+        returns for each file whether it was deleted. */
+    private static boolean[] delete(Command command, List<Path> paths)
+        throws RMIException
+    {
+        if(command instanceof BatchCommand)
+        {
+            return ((BatchCommand)command).deleteAll(
+                paths.toArray(new Path[paths.size()]));
+        }
+
+        boolean[]       results = new boolean[paths.size()];
+
+        for(int index = 0; index < paths.size(); ++index)
+            results[index] = command.delete(paths.get(index));
+
+        return results;
+    }
+
+    /** Returns <code>true</code> unless a storage server reports that a file
+        does not exist on it. A server that cannot be reached is assumed to
+        still hold the file. */
+    private static boolean exists(Storage server, Path file)
+    {
+        try
+        {
+            server.size(file);
+            return true;
+        }
+        catch(FileNotFoundException e)
+        {
+            return false;
+        }
+        catch(RMIException e)
+        {
+            return true;
+        }
+    }
+}
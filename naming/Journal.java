@@ -0,0 +1,543 @@
+package naming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/** Write-ahead journal and snapshots of naming server metadata.
+
+    <p>
+    Each change to the metadata is encoded by the caller as a record and
+    appended to the journal. The caller then waits until the record is
+    durable before acknowledging the change. Records are written by a single
+    writer thread, which takes every record appended since its last write,
+    writes them together and forces them to disk with one <code>fsync</code>.
+    Concurrent changes therefore share the cost of a disk flush (group
+    commit).
+
+    <p>
+    The journal is kept in a directory as a sequence of numbered segments,
+    <code>journal-<i>n</i></code>. After <code>SNAPSHOT_INTERVAL</code>
+    records, the writer starts a new segment, and a background thread writes
+    the complete metadata to <code>snapshot-<i>n</i></code>, where
+    <i>n</i> is the number of the new segment. Once the snapshot is complete
+    and durable, older segments and snapshots are deleted.
+
+    <p>
+    Snapshots are taken while the metadata continues to change, so a snapshot
+    may already include some of the changes recorded in its segment. Records
+    must therefore describe the resulting state of what they change, rather
+    than the change itself, so that applying a record again has no further
+    effect. Recovery loads the latest snapshot and applies the records of
+    every later segment in order. Each record carries a checksum, and a
+    segment is truncated at its first incomplete or damaged record, which can
+    only be the last one written before a crash.
+
+    <p>
+    The snapshot interval is read from the system property
+    <code>naming.journal.snapshot</code>, and defaults to one million records.
+    Setting <code>naming.journal.fsync</code> to <code>false</code> leaves
+    flushing to the operating system, for testing.
+ */
+class Journal
+{
+    /** Number of records after which a snapshot is taken. */
+    static final long           SNAPSHOT_INTERVAL =
+        Math.max(1, Long.getLong("naming.journal.snapshot", 1000000));
+    /** Indicates that writes are forced to disk. */
+    static final boolean        FSYNC =
+        !"false".equals(System.getProperty("naming.journal.fsync"));
+
+    /** Prefix of journal segment file names. */
+    private static final String JOURNAL = "journal-";
+    /** Prefix of snapshot file names. */
+    private static final String SNAPSHOT = "snapshot-";
+
+    /** Metadata recorded in the journal. */
+    interface State
+    {
+        /** Writes the complete metadata as a sequence of records.
+
+            <p>
+            This is called on a background thread while the metadata may be
+            changing.
+         */
+        void snapshot(Sink sink) throws IOException;
+
+        /** Applies a record read from a snapshot or the journal. */
+        void apply(DataInputStream record) throws IOException;
+    }
+
+    /** Destination of the records of a snapshot. */
+    interface Sink
+    {
+        /** Writes a record. */
+        void write(byte[] record) throws IOException;
+    }
+
+    /** Directory holding the journal. */
+    private final File          directory;
+    /** The recorded metadata. */
+    private final State         state;
+
+    /** Segment currently being written. Used only by the writer thread once
+        recovery is complete. */
+    private FileChannel         segment;
+    /** Number of the current segment. */
+    private long                generation;
+    /** Number of records written since the last snapshot was started. */
+    private long                since_snapshot = 0;
+    /** Thread writing a snapshot, if any. */
+    private Thread              snapshotter = null;
+
+    /** Records appended but not yet written. */
+    private ByteArrayOutputStream   pending = new ByteArrayOutputStream();
+    /** Number of records appended. */
+    private long                appended = 0;
+    /** Number of records written and forced to disk. */
+    private long                synced = 0;
+    /** Failure of the writer thread, after which no record is accepted. */
+    private IOException         failure = null;
+    /** Indicates that the journal is being closed. */
+    private boolean             closing = false;
+    /** The writer thread. */
+    private Thread              writer;
+
+    /** Creates a journal in the given directory. The journal must be
+        recovered before records are appended. */
+    Journal(File directory, State state)
+    {
+        this.directory = directory;
+        this.state = state;
+    }
+
+    /** Loads the latest snapshot, applies the records written after it, and
+        starts a new segment for further records.
+
+        @return The number of records applied from journal segments.
+        @throws IOException If the directory cannot be read or written, or a
+                            snapshot is damaged.
+     */
+    long recover() throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+
+        TreeSet<Long>   snapshots = new TreeSet<Long>();
+        TreeSet<Long>   segments = new TreeSet<Long>();
+
+        for(String name : directory.list())
+        {
+            if(name.startsWith(SNAPSHOT) && !name.endsWith(".tmp"))
+                snapshots.add(number(name, SNAPSHOT));
+            else if(name.startsWith(JOURNAL))
+                segments.add(number(name, JOURNAL));
+            else if(name.endsWith(".tmp"))
+                new File(directory, name).delete();
+        }
+
+        snapshots.remove(-1L);
+        segments.remove(-1L);
+
+        long            base = snapshots.isEmpty() ? 0 : snapshots.last();
+        long            replayed = 0;
+
+        if(!snapshots.isEmpty())
+            read(file(SNAPSHOT, base), false);
+
+        for(long number : segments.tailSet(base))
+            replayed += read(file(JOURNAL, number), true);
+
+        generation = Math.max(base, segments.isEmpty() ? 0 : segments.last())
+            + 1;
+        segment = open(generation);
+        discard(base);
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "naming-journal");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Compact what was replayed, so that the next recovery is faster.
+        if(replayed > 0)
+            startSnapshot(generation);
+
+        return replayed;
+    }
+
+    /** Appends a record without waiting for it to become durable.
+
+        @return The sequence number of the record, to be passed to
+                <code>await</code>.
+        @throws IOException If the journal has failed or been closed.
+     */
+    synchronized long append(byte[] record) throws IOException
+    {
+        if(failure != null)
+            throw new IOException("journal failed", failure);
+        if(closing)
+            throw new IOException("journal closed");
+
+        frame(new DataOutputStream(pending), record);
+        notifyAll();
+
+        return ++appended;
+    }
+
+    /** Waits until the record with the given sequence number, and all
+        records before it, are durable.
+
+        @throws IOException If the journal fails before the record is
+                            written.
+     */
+    synchronized void await(long sequence) throws IOException
+    {
+        try
+        {
+            while(synced < sequence && failure == null)
+                wait();
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException("interrupted waiting for journal");
+        }
+
+        if(synced < sequence)
+            throw new IOException("journal failed", failure);
+    }
+
+    /** Appends a record and waits until it is durable. */
+    void commit(byte[] record) throws IOException
+    {
+        await(append(record));
+    }
+
+    /** Writes the records already appended, takes a final snapshot if any
+        records were written since the last one, and closes the journal. */
+    void close()
+    {
+        synchronized(this)
+        {
+            if(closing)
+                return;
+
+            closing = true;
+            notifyAll();
+        }
+
+        try
+        {
+            writer.join();
+
+            Thread      running;
+
+            synchronized(this)
+            {
+                running = snapshotter;
+            }
+
+            if(running != null)
+                running.join();
+
+            if(failure == null && since_snapshot > 0)
+            {
+                rotate();
+                snapshot(generation);
+            }
+
+            segment.close();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /** Body of the writer thread. */
+    private void write()
+    {
+        while(true)
+        {
+            byte[]      batch;
+            long        target;
+
+            synchronized(this)
+            {
+                try
+                {
+                    while(pending.size() == 0 && !closing)
+                        wait();
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+
+                if(pending.size() == 0)
+                    return;
+
+                batch = pending.toByteArray();
+                pending.reset();
+                target = appended;
+            }
+
+            try
+            {
+                ByteBuffer  buffer = ByteBuffer.wrap(batch);
+
+                while(buffer.hasRemaining())
+                    segment.write(buffer);
+
+                if(FSYNC)
+                    segment.force(false);
+            }
+            catch(IOException e)
+            {
+                synchronized(this)
+                {
+                    failure = e;
+                    notifyAll();
+                }
+
+                return;
+            }
+
+            long        written;
+
+            synchronized(this)
+            {
+                written = target - synced;
+                synced = target;
+                notifyAll();
+            }
+
+            since_snapshot += written;
+
+            if(since_snapshot >= SNAPSHOT_INTERVAL && !snapshotting())
+            {
+                try
+                {
+                    rotate();
+                    startSnapshot(generation);
+                }
+                catch(IOException e)
+                {
+                    synchronized(this)
+                    {
+                        failure = e;
+                        notifyAll();
+                    }
+
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Closes the current segment and starts the next. Called by the writer
+        thread, or once it has stopped. */
+    private void rotate() throws IOException
+    {
+        segment.close();
+        segment = open(++generation);
+        since_snapshot = 0;
+    }
+
+    /** Returns <code>true</code> if a snapshot is being written. */
+    private synchronized boolean snapshotting()
+    {
+        return snapshotter != null;
+    }
+
+    /** Starts writing a snapshot on a background thread. */
+    private synchronized void startSnapshot(final long number)
+    {
+        snapshotter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    snapshot(number);
+                }
+                catch(IOException e)
+                {
+                    // The journal segments are kept, so no metadata is lost.
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    synchronized(Journal.this)
+                    {
+                        snapshotter = null;
+                    }
+                }
+            }
+        }, "naming-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /** Writes a snapshot covering the segments before the given one, and
+        deletes the files it makes obsolete. */
+    private void snapshot(long number) throws IOException
+    {
+        File            temporary = new File(directory,
+                                             SNAPSHOT + number + ".tmp");
+
+        try(FileOutputStream file = new FileOutputStream(temporary))
+        {
+            final DataOutputStream  output = new DataOutputStream(
+                new BufferedOutputStream(file, 1 << 16));
+
+            state.snapshot(new Sink()
+            {
+                @Override
+                public void write(byte[] record) throws IOException
+                {
+                    frame(output, record);
+                }
+            });
+
+            output.flush();
+            file.getChannel().force(false);
+        }
+
+        Files.move(temporary.toPath(), file(SNAPSHOT, number).toPath(),
+                   StandardCopyOption.ATOMIC_MOVE);
+        discard(number);
+    }
+
+    /** Reads the records of a snapshot or segment and applies them.
+
+        @param truncate <code>true</code> if the file is a journal segment,
+                        which is truncated at the first damaged record.
+        @return The number of records applied.
+     */
+    private long read(File file, boolean truncate) throws IOException
+    {
+        long            count = 0;
+        long            valid = 0;
+
+        try(DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+        {
+            CRC32       crc = new CRC32();
+
+            while(true)
+            {
+                byte[]  record;
+
+                try
+                {
+                    int     length = input.readInt();
+                    int     checksum = input.readInt();
+
+                    if(length < 0 || length > file.length())
+                        break;
+
+                    record = new byte[length];
+                    input.readFully(record);
+
+                    crc.reset();
+                    crc.update(record);
+
+                    if((int)crc.getValue() != checksum)
+                        break;
+                }
+                catch(EOFException e)
+                {
+                    break;
+                }
+
+                state.apply(new DataInputStream(
+                    new ByteArrayInputStream(record)));
+                valid += 8 + record.length;
+                ++count;
+            }
+        }
+
+        if(valid < file.length())
+        {
+            if(!truncate)
+                throw new IOException("damaged snapshot " + file);
+
+            try(FileChannel channel = FileChannel.open(
+                    file.toPath(), StandardOpenOption.WRITE))
+            {
+                channel.truncate(valid);
+            }
+        }
+
+        return count;
+    }
+
+    /** Deletes the segments and snapshots older than the given number. */
+    private void discard(long number)
+    {
+        for(String name : directory.list())
+        {
+            long        found = name.endsWith(".tmp") ? -1 :
+                name.startsWith(SNAPSHOT) ? number(name, SNAPSHOT) :
+                name.startsWith(JOURNAL) ? number(name, JOURNAL) : -1;
+
+            if(found >= 0 && found < number)
+                new File(directory, name).delete();
+        }
+    }
+
+    /** Creates and opens a new segment. */
+    private FileChannel open(long number) throws IOException
+    {
+        return FileChannel.open(file(JOURNAL, number).toPath(),
+                                StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.WRITE);
+    }
+
+    /** Returns the file with the given prefix and number. */
+    private File file(String prefix, long number)
+    {
+        return new File(directory, prefix + number);
+    }
+
+    /** Writes a record with its length and checksum. */
+    private static void frame(DataOutputStream output, byte[] record)
+        throws IOException
+    {
+        CRC32           crc = new CRC32();
+        crc.update(record);
+
+        output.writeInt(record.length);
+        output.writeInt((int)crc.getValue());
+        output.write(record);
+    }
+
+    /** Returns the number in a file name, or -1 if it has none. */
+    private static long number(String name, String prefix)
+    {
+        try
+        {
+            return Long.parseLong(name.substring(prefix.length()));
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
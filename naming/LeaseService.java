@@ -0,0 +1,76 @@
+package naming;
+
+import java.io.*;
+import common.*;
+import rmi.RMIException;
+
+/** Naming server client service interface with renewable locks.
+
+    <p>
+    Locks taken through <code>Service.lock</code> are held until they are
+    unlocked, so a client that fails while holding one keeps other users
+    waiting. This interface adds locks held under a lease, which the client
+    renews periodically for as long as it needs the lock. If the client
+    stops renewing the lease, the lock is released automatically once the
+    lease duration has passed. Such a lock is identified by a lease number,
+    which also lets the naming server tell apart several users holding the
+    same object for shared access.
+
+    <p>
+    Stubs returned by <code>NamingStubs.service</code> implement this
+    interface. <code>LeasedLock</code> takes a lock through it and keeps the
+    lease renewed in the background.
+ */
+public interface LeaseService extends Service
+{
+    /** Locks a file or directory under a renewable lease.
+
+        <p>
+        The object is locked exactly as by <code>Service.lock</code>. The lock
+        is released by <code>release</code>, or when the lease expires: one
+        lease duration after it was granted or last renewed.
+
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is to be locked for
+                         exclusive access. Otherwise, it is to be locked for
+                         shared access.
+        @return The number of the lease.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found.
+        @throws IllegalStateException Under the same conditions as
+                                      <code>Service.lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long lease(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Extends a lease to one lease duration from now.
+
+        @param lease The number of the lease.
+        @return <code>true</code> if the lease was renewed, <code>false</code>
+                if it has already expired or been released. In the latter
+                case, the lock is no longer held.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean renew(long lease) throws RMIException;
+
+    /** Releases the lock held under a lease.
+
+        @param lease The number of the lease.
+        @return <code>true</code> if the lock was released, <code>false</code>
+                if the lease had already expired or been released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean release(long lease) throws RMIException;
+
+    /** Returns the lease duration, in milliseconds. Clients should renew
+        their leases well within this time.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long leaseDuration() throws RMIException;
+}
@@ -0,0 +1,168 @@
+package naming;
+
+import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import common.*;
+import rmi.RMIException;
+
+/** Lock on a file or directory, kept alive by renewing its lease.
+
+    <p>
+    A client that holds a lock for longer than the naming server's lease
+    duration takes it through this class. If the naming server stub
+    implements <code>LeaseService</code>, the lock is taken as a lease, and a
+    shared background thread renews it three times per lease duration until
+    <code>unlock</code> is called. If the client fails, renewals stop and the
+    naming server releases the lock when the lease expires. Otherwise, the
+    lock is taken through <code>Service.lock</code> and is not renewed.
+
+    <p>
+    A failed renewal, because the naming server could not be reached, is
+    retried at the next period. If the naming server reports that the lease
+    has expired, the lock has been lost, and <code>lost</code> returns
+    <code>true</code>.
+ */
+public class LeasedLock
+{
+    /** Thread renewing the leases of all locks in this process, including
+        those the naming server holds during its own copies. */
+    static final ScheduledExecutorService           renewer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "naming-lease-renewer");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Naming server holding the lock. */
+    private final Service               service;
+    /** The locked file or directory. */
+    private final Path                  path;
+    /** Indicates that the lock is held for exclusive access. */
+    private final boolean               exclusive;
+    /** Number of the lease, if the lock is renewed. */
+    private final long                  lease;
+    /** Periodic renewal of the lease, or <code>null</code> if the lock is
+        not renewed. */
+    private final ScheduledFuture<?>    renewal;
+    /** Indicates that the lease expired before the lock was released. */
+    private volatile boolean            lost = false;
+
+    /** Locks a file or directory, renewing the lease on the lock in the
+        background if the naming server supports it.
+
+        @param service The naming server.
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is locked for
+                         exclusive access. Otherwise, it is locked for shared
+                         access.
+        @return The lock.
+        @throws FileNotFoundException If the object cannot be found.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public static LeasedLock lock(Service service, Path path,
+                                  boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        if(!(service instanceof LeaseService))
+        {
+            service.lock(path, exclusive);
+            return new LeasedLock(service, path, exclusive, 0, 0);
+        }
+
+        LeaseService    leases = (LeaseService)service;
+        long            duration = leases.leaseDuration();
+        long            lease = leases.lease(path, exclusive);
+
+        return new LeasedLock(service, path, exclusive, lease,
+                              Math.max(1, duration / 3));
+    }
+
+    /** Creates a lock and starts renewing its lease, if it has one. */
+    private LeasedLock(Service service, Path path, boolean exclusive,
+                       long lease, long period)
+    {
+        this.service = service;
+        this.path = path;
+        this.exclusive = exclusive;
+        this.lease = lease;
+
+        if(period == 0)
+        {
+            renewal = null;
+            return;
+        }
+
+        renewal = renewer.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                renew();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Releases the lock and stops renewing its lease.
+
+        @return <code>true</code> if the lock was held until released,
+                <code>false</code> if its lease had expired.
+        @throws RMIException If the naming server cannot be contacted. The
+                             lock is then released when its lease expires.
+     */
+    public boolean unlock() throws RMIException
+    {
+        if(renewal == null)
+        {
+            service.unlock(path, exclusive);
+            return true;
+        }
+
+        renewal.cancel(false);
+
+        if(!((LeaseService)service).release(lease))
+            lost = true;
+
+        return !lost;
+    }
+
+    /** Returns <code>true</code> if the lease on the lock is known to have
+        expired. */
+    public boolean lost()
+    {
+        return lost;
+    }
+
+    /** Returns the locked file or directory. */
+    public Path path()
+    {
+        return path;
+    }
+
+    /** Renews the lease, stopping renewals if it has expired. */
+    private void renew()
+    {
+        try
+        {
+            if(!((LeaseService)service).renew(lease))
+            {
+                lost = true;
+                renewal.cancel(false);
+            }
+        }
+        catch(RMIException e)
+        {
+            // Try again at the next period. The lease lasts three periods.
+        }
+    }
+}
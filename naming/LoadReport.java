@@ -0,0 +1,41 @@
+package naming;
+
+import java.io.Serializable;
+
+/** Capacity and load of a storage server, as reported in a heartbeat.
+
+    <p>
+    Reports are sent periodically by each storage server through
+    <code>Heartbeat.heartbeat</code>, and are used by the naming server to
+    place new files and replicas. See <code>Placement</code>.
+ */
+public class LoadReport implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Total size of the storage server's local storage, in bytes. */
+    public final long       capacity;
+    /** Space available for new data on the local storage, in bytes. */
+    public final long       free;
+    /** Number of client requests being served when the report was made. */
+    public final int        requests;
+    /** Rack or zone of the storage server, or <code>null</code> if it has
+        not been given one. Replicas of a file are spread across zones. */
+    public final String     zone;
+
+    /** Creates a load report. */
+    public LoadReport(long capacity, long free, int requests, String zone)
+    {
+        this.capacity = capacity;
+        this.free = free;
+        this.requests = requests;
+        this.zone = zone;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "capacity " + capacity + ", free " + free + ", requests " +
+               requests + (zone == null ? "" : ", zone " + zone);
+    }
+}
@@ -0,0 +1,133 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import storage.*;
+
+/** Latest load reports of the storage servers registered with the naming
+    server.
+
+    <p>
+    Besides each server's latest report, the table counts the files placed
+    on the server since that report, so that placement decisions made
+    between two reports account for each other. A server that has reported
+    at least once, but whose reports have stopped for
+    <code>MISSED</code> heartbeat intervals, is presumed down and is not
+    offered as a candidate. Servers that have never reported are always
+    offered.
+
+    <p>
+    The heartbeat interval is given in milliseconds by the system property
+    <code>naming.heartbeat</code>, and defaults to one second.
+ */
+class LoadTable
+{
+    /** Interval at which storage servers report, in milliseconds. */
+    static final long           INTERVAL =
+        Math.max(1, Long.getLong("naming.heartbeat", 1000));
+    /** Number of intervals without a report after which a server is
+        presumed down. */
+    static final int            MISSED = 3;
+
+    /** Load of each server that has reported or received files. */
+    private final ConcurrentHashMap<Storage, Entry>     entries =
+        new ConcurrentHashMap<Storage, Entry>();
+
+    /** Load of a storage server. */
+    private static class Entry
+    {
+        /** Latest report, or <code>null</code> if none has been received. */
+        volatile LoadReport     report = null;
+        /** Time at which the latest report was received. */
+        volatile long           received = 0;
+        /** Number of files placed on the server since the latest report. */
+        final AtomicInteger     placed = new AtomicInteger();
+    }
+
+    /** Records a report from a storage server. */
+    void report(Storage server, LoadReport report)
+    {
+        Entry           entry = entry(server);
+
+        entry.report = report;
+        entry.received = System.nanoTime();
+        entry.placed.set(0);
+    }
+
+    /** Records that a file has been placed on a storage server. */
+    void placed(Storage server)
+    {
+        entry(server).placed.incrementAndGet();
+    }
+
+    /** Returns the candidates for placement among the given servers: all of
+        them, except those presumed down. */
+    List<Placement.Candidate> candidates(Collection<Storage> servers)
+    {
+        List<Placement.Candidate>   candidates =
+            new ArrayList<Placement.Candidate>(servers.size());
+        long                        deadline = deadline();
+
+        for(Storage server : servers)
+        {
+            Entry                   entry = entries.get(server);
+
+            if(entry == null)
+            {
+                candidates.add(new Placement.Candidate(server, null, 0));
+                continue;
+            }
+
+            LoadReport              report = entry.report;
+
+            if(report != null && entry.received - deadline < 0)
+                continue;
+
+            candidates.add(new Placement.Candidate(server, report,
+                                                   entry.placed.get()));
+        }
+
+        return candidates;
+    }
+
+    /** Returns <code>true</code> if a server is presumed down: it has
+        reported at least once, but not for <code>MISSED</code> heartbeat
+        intervals. */
+    boolean down(Storage server)
+    {
+        Entry           entry = entries.get(server);
+
+        return entry != null && entry.report != null &&
+               entry.received - deadline() < 0;
+    }
+
+    /** Returns the time before which a server's latest report must have
+        been received for it to be presumed down. */
+    private static long deadline()
+    {
+        return System.nanoTime() -
+               TimeUnit.MILLISECONDS.toNanos(INTERVAL * MISSED);
+    }
+
+    /** Returns the entry of a server, creating it if necessary. */
+    private Entry entry(Storage server)
+    {
+        Entry           entry = entries.get(server);
+
+        if(entry == null)
+        {
+            Entry       created = new Entry();
+
+            entry = entries.putIfAbsent(server, created);
+            if(entry == null)
+                entry = created;
+        }
+
+        return entry;
+    }
+}
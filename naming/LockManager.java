@@ -0,0 +1,720 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+import common.*;
+
+/** Reader-writer locks on the files and directories of the naming server.
+
+    <p>
+    Each locked path has its own queued reader-writer lock. Requests for a
+    lock are served in the order in which they arrive, except that
+    consecutive requests for shared access are granted together: a request
+    for shared access waits if a request for exclusive access is queued ahead
+    of it, even while the lock is held for shared access. These are the
+    semantics required by <code>Service.lock</code>. Unlike the locks of
+    <code>java.util.concurrent</code>, a lock is not owned by the thread that
+    took it, so it may be released by a different thread, as happens when
+    lock and unlock requests arrive over separate connections.
+
+    <p>
+    Locking a path locks each of its ancestors for shared access, from the
+    root down, and then the path itself. Because every caller takes locks in
+    this order, callers cannot deadlock one another. Unlocking releases the
+    locks in the opposite order.
+
+    <p>
+    The locks form a tree mirroring the locked part of the namespace: each
+    lock holds the locks of its children by name, and a link to its parent.
+    A request descends the tree once, one path component at a time, taking
+    each lock as it reaches it, so that locking a deep path neither builds
+    the paths of its ancestors nor hashes or compares whole paths. Locks are
+    created when a path is first locked, and are discarded as soon as no
+    caller holds, waits for, or is passing through them, so the number of
+    locks is bounded by the number of paths in use rather than the size of
+    the filesystem.
+
+    <p>
+    A lock is held until it is released, as <code>Service.lock</code>
+    requires. A lock passed to <code>track</code> is instead held under a
+    lease, which expires if it is not renewed by its number within the lease
+    duration, so that a client that fails while holding such a lock cannot
+    stall the namespace. Expiry releases the lock exactly as
+    <code>unlock</code> would, waking the requests waiting for it. A lease
+    expires one lease duration after it was tracked or last renewed. Pending
+    leases are kept in a <code>TimingWheel</code>, so that tracking,
+    releasing and renewing a lease take constant time. The lease duration
+    is given in milliseconds by the system property
+    <code>naming.lease</code> when the lock manager is created, and defaults
+    to 30 seconds; leases expire up to one tick of the wheel,
+    <code>naming.lease.tick</code> milliseconds (default 100), late.
+
+    <p>
+    The time each request waits for its locks is recorded in a histogram for
+    the leading components of the requested path. The number of components
+    is given by the system property <code>naming.lock.prefix</code>, and
+    defaults to one, so that, for example, all waits for paths under
+    <code>/etc</code> are counted together.
+ */
+public class LockManager
+{
+    /** Number of leading path components by which wait times are grouped. */
+    static final int            PREFIX_DEPTH =
+        Math.max(0, Integer.getInteger("naming.lock.prefix", 1));
+    /** Length of a tick of the lease expiry wheel, in milliseconds. */
+    static final long           LEASE_TICK =
+        Math.max(1, Long.getLong("naming.lease.tick", 100));
+
+    /** Wait time histograms, by path prefix. */
+    private final ConcurrentHashMap<Path, WaitHistogram>    waits =
+        new ConcurrentHashMap<Path, WaitHistogram>();
+    /** Lock of the root directory, which is never discarded. */
+    private final Node                                      root;
+    /** Number of locks other than the root. */
+    private final AtomicInteger                             count =
+        new AtomicInteger();
+    /** Lease duration, in milliseconds. */
+    private final long                                      duration;
+    /** Pending leases, by expiry time. */
+    private final TimingWheel                               wheel;
+    /** Leases that may be renewed, by number. */
+    private final ConcurrentHashMap<Long, Lease>            tracked =
+        new ConcurrentHashMap<Long, Lease>();
+    /** Last lease number given out. */
+    private final AtomicLong                                numbers =
+        new AtomicLong();
+    /** Number of leases that have expired. */
+    private final AtomicLong                                expirations =
+        new AtomicLong();
+
+    /** Lock of a single path.
+
+        <p>
+        The synchronizer state is the number of holders with shared access,
+        or <code>-1</code> while the lock is held for exclusive access. The
+        queue of the synchronizer holds waiting requests in arrival order;
+        a request is only granted if no other request is queued ahead of it.
+     */
+    private static class Node extends AbstractQueuedSynchronizer
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Lock of the parent directory, or <code>null</code> for the
+            root. */
+        final Node              parent;
+        /** Last component of the path. */
+        final String            name;
+        /** Number of components of the path. */
+        final int               depth;
+        /** The path, if it is no deeper than the prefix by which wait times
+            are grouped. */
+        final Path              path;
+        /** Locks of the children in use, by name. */
+        final ConcurrentHashMap<String, Node>   children =
+            new ConcurrentHashMap<String, Node>(4);
+        /** Wait time histogram of the path, if it is no deeper than the
+            prefix. */
+        final WaitHistogram     histogram;
+        /** Leases on the lock, in the order in which they were granted, or
+            <code>null</code> if none has been. Guarded by the node. */
+        ArrayList<Lease>        leases = null;
+
+        /** Number of callers holding, waiting for or passing through the
+            lock, or <code>-1</code> once the node has been discarded. */
+        final AtomicInteger     users = new AtomicInteger();
+
+        Node(Node parent, String name, Path path, WaitHistogram histogram)
+        {
+            this.parent = parent;
+            this.name = name;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.path = path;
+            this.histogram = histogram;
+        }
+
+        /** Registers a caller of the lock.
+
+            @return <code>false</code> if the node has been discarded, and a
+                    new node must be used.
+         */
+        boolean reference()
+        {
+            while(true)
+            {
+                int             count = users.get();
+
+                if(count < 0)
+                    return false;
+
+                if(users.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        /** Unregisters a caller of the lock.
+
+            @return <code>true</code> if the node is now unused and has been
+                    discarded.
+         */
+        boolean dereference()
+        {
+            return users.decrementAndGet() == 0 && users.compareAndSet(0, -1);
+        }
+
+        @Override
+        protected boolean tryAcquire(int ignored)
+        {
+            return !hasQueuedPredecessors() && compareAndSetState(0, -1);
+        }
+
+        @Override
+        protected boolean tryRelease(int ignored)
+        {
+            if(getState() != -1)
+                throw new IllegalMonitorStateException();
+
+            setState(0);
+            return true;
+        }
+
+        @Override
+        protected int tryAcquireShared(int ignored)
+        {
+            while(true)
+            {
+                int             state = getState();
+
+                if(state < 0 || hasQueuedPredecessors())
+                    return -1;
+
+                // A positive result lets the synchronizer wake the next
+                // queued request, so that consecutive shared requests are
+                // granted together.
+                if(compareAndSetState(state, state + 1))
+                    return 1;
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(int ignored)
+        {
+            while(true)
+            {
+                int             state = getState();
+
+                if(state <= 0)
+                    throw new IllegalMonitorStateException();
+
+                if(compareAndSetState(state, state - 1))
+                    return state == 1;
+            }
+        }
+
+        /** Takes the lock if no other request is waiting and it is free for
+            the given kind of access. */
+        boolean tryLock(boolean exclusive)
+        {
+            return exclusive ? tryAcquire(1) : tryAcquireShared(1) >= 0;
+        }
+
+        /** Waits for the lock and takes it. */
+        void lock(boolean exclusive) throws InterruptedException
+        {
+            if(exclusive)
+                acquireInterruptibly(1);
+            else
+                acquireSharedInterruptibly(1);
+        }
+
+        /** Releases the lock. */
+        void unlock(boolean exclusive)
+        {
+            if(exclusive)
+                release(1);
+            else
+                releaseShared(1);
+        }
+    }
+
+    /** Lease on a lock: the right to hold it until a deadline. */
+    class Lease extends TimingWheel.Timeout
+    {
+        /** The lock held. */
+        final Node              node;
+        /** Indicates that the lock is held for exclusive access. */
+        final boolean           exclusive;
+        /** Set once the lock has been released, or the lease has expired. */
+        final AtomicBoolean     ended = new AtomicBoolean();
+        /** Number of the lease, or zero if it is not tracked and does not
+            expire. */
+        volatile long           number = 0;
+
+        Lease(Node node, boolean exclusive)
+        {
+            this.node = node;
+            this.exclusive = exclusive;
+        }
+
+        @Override
+        void expire()
+        {
+            if(finish(this))
+                expirations.incrementAndGet();
+        }
+    }
+
+    /** Distribution of the time lock requests waited for their locks.
+
+        <p>
+        Waits are counted in buckets whose bounds are powers of two
+        microseconds: bucket <code>0</code> counts requests that waited less
+        than a microsecond, including those granted at once, and bucket
+        <code>i</code> counts waits of at least <code>2<sup>i-1</sup></code>
+        and less than <code>2<sup>i</sup></code> microseconds.
+     */
+    public static class WaitHistogram
+    {
+        /** Number of buckets. */
+        public static final int     BUCKETS = 40;
+
+        /** Number of waits in each bucket. */
+        private final AtomicLongArray   buckets = new AtomicLongArray(BUCKETS);
+        /** Total time waited, in nanoseconds. */
+        private final AtomicLong        total = new AtomicLong();
+
+        /** Records a wait of the given number of nanoseconds. */
+        void record(long nanoseconds)
+        {
+            long        microseconds = nanoseconds / 1000;
+            int         bucket = 64 - Long.numberOfLeadingZeros(microseconds);
+
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            total.addAndGet(nanoseconds);
+        }
+
+        /** Returns the number of requests recorded. */
+        public long count()
+        {
+            long        count = 0;
+
+            for(int bucket = 0; bucket < BUCKETS; ++bucket)
+                count += buckets.get(bucket);
+
+            return count;
+        }
+
+        /** Returns the total time waited, in nanoseconds. */
+        public long totalWait()
+        {
+            return total.get();
+        }
+
+        /** Returns the number of requests recorded in each bucket. */
+        public long[] buckets()
+        {
+            long[]      counts = new long[BUCKETS];
+
+            for(int bucket = 0; bucket < BUCKETS; ++bucket)
+                counts[bucket] = buckets.get(bucket);
+
+            return counts;
+        }
+
+        /** Returns an upper bound on the given fraction of waits, in
+            microseconds.
+
+            @param fraction A fraction between zero and one, such as
+                            <code>0.99</code>.
+            @return The upper bound of the first bucket at which the given
+                    fraction of the recorded waits is reached, or zero if
+                    that fraction of requests did not wait.
+         */
+        public long percentile(double fraction)
+        {
+            long[]      counts = buckets();
+            long        total_count = 0;
+
+            for(long count : counts)
+                total_count += count;
+
+            long        needed = (long)Math.ceil(fraction * total_count);
+            long        seen = 0;
+
+            for(int bucket = 0; bucket < BUCKETS; ++bucket)
+            {
+                seen += counts[bucket];
+
+                if(seen >= needed)
+                    return bucket == 0 ? 0 : 1L << bucket;
+            }
+
+            return 1L << (BUCKETS - 1);
+        }
+    }
+
+    /** Creates a lock manager with no locks held, and the lease duration
+        given by the system property <code>naming.lease</code>. */
+    LockManager()
+    {
+        this(Long.getLong("naming.lease", 30000));
+    }
+
+    /** Creates a lock manager with no locks held.
+
+        @param duration Lease duration, in milliseconds.
+     */
+    LockManager(long duration)
+    {
+        Path            path = new Path();
+
+        this.duration = Math.max(1, duration);
+        wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(LEASE_TICK),
+                                TimeUnit.MILLISECONDS.toNanos(this.duration),
+                                "naming-lease");
+        root = new Node(null, null, path, histogram(path));
+    }
+
+    /** Locks a path, and its ancestors for shared access.
+
+        @param path The path to be locked.
+        @param exclusive If <code>true</code>, the path is locked for exclusive
+                         access. Otherwise, it is locked for shared access.
+        @return The lease on the lock, which does not expire unless it is
+                passed to <code>track</code>.
+        @throws InterruptedException If the calling thread is interrupted while
+                                     waiting. No locks are then held.
+     */
+    Lease lock(Path path, boolean exclusive) throws InterruptedException
+    {
+        Iterator<String>    components = path.iterator();
+        Node                node = root;
+        Node                held = null;
+        WaitHistogram       histogram = root.histogram;
+        long                started = 0;
+
+        try
+        {
+            while(true)
+            {
+                boolean     last = !components.hasNext();
+                boolean     mode = exclusive && last;
+
+                if(!node.tryLock(mode))
+                {
+                    if(started == 0)
+                        started = System.nanoTime();
+
+                    node.lock(mode);
+                }
+
+                held = node;
+
+                if(node.histogram != null)
+                    histogram = node.histogram;
+
+                if(last)
+                    break;
+
+                node = child(node, components.next());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            if(node != held)
+                dereference(node);
+
+            unlockLineage(held);
+            throw e;
+        }
+
+        long            now = System.nanoTime();
+        Lease           lease = new Lease(node, exclusive);
+
+        histogram.record(started == 0 ? 0 : now - started);
+
+        synchronized(node)
+        {
+            if(node.leases == null)
+                node.leases = new ArrayList<Lease>(2);
+
+            node.leases.add(lease);
+        }
+
+        return lease;
+    }
+
+    /** Unlocks a path and its ancestors.
+
+        @param path The path to be unlocked.
+        @param exclusive Must be the same as when the path was locked.
+        @throws IllegalArgumentException If the path is not locked for the
+                                         given kind of access.
+     */
+    void unlock(Path path, boolean exclusive)
+    {
+        Node            node = root;
+
+        for(String component : path)
+        {
+            node = node.children.get(component);
+
+            if(node == null)
+                throw new IllegalArgumentException("path is not locked");
+        }
+
+        while(true)
+        {
+            Lease       lease = null;
+
+            // Release the oldest lease of the given kind. Shared leases on the
+            // same path cannot be told apart by path alone, but renewable
+            // leases are released by number, and are only chosen if there is
+            // no other.
+            synchronized(node)
+            {
+                if(node.leases != null)
+                {
+                    for(Lease held : node.leases)
+                    {
+                        if(held.exclusive != exclusive)
+                            continue;
+
+                        if(lease == null || lease.number != 0)
+                            lease = held;
+
+                        if(held.number == 0)
+                            break;
+                    }
+                }
+            }
+
+            if(lease == null)
+            {
+                throw new IllegalArgumentException("path is not locked for " +
+                    (exclusive ? "exclusive" : "shared") + " access");
+            }
+
+            if(finish(lease))
+                return;
+        }
+    }
+
+    /** Makes a lease expire one lease duration from now, unless it is
+        renewed.
+
+        @param lease A lease returned by <code>lock</code>, which has not been
+                     tracked already.
+        @return The number by which the lease is to be renewed or released.
+     */
+    long track(Lease lease)
+    {
+        long            number = numbers.incrementAndGet();
+
+        lease.number = number;
+        wheel.schedule(lease, System.nanoTime() +
+                       TimeUnit.MILLISECONDS.toNanos(duration));
+        tracked.put(number, lease);
+
+        // The lease may have ended before it was entered.
+        if(lease.ended.get())
+            tracked.remove(number);
+
+        return number;
+    }
+
+    /** Extends a lease to one lease duration from now.
+
+        @param number The number of the lease.
+        @return <code>true</code> if the lease was renewed,
+                <code>false</code> if it has expired or been released.
+     */
+    boolean renew(long number)
+    {
+        Lease           lease = tracked.get(number);
+
+        if(lease == null)
+            return false;
+
+        lease.deadline = System.nanoTime() +
+                         TimeUnit.MILLISECONDS.toNanos(duration);
+
+        return !lease.ended.get();
+    }
+
+    /** Releases a lease by its number.
+
+        @return <code>true</code> if the lock was released,
+                <code>false</code> if the lease has expired or been released
+                already.
+     */
+    boolean release(long number)
+    {
+        Lease           lease = tracked.get(number);
+
+        return lease != null && finish(lease);
+    }
+
+    /** Releases a lease.
+
+        @return <code>true</code> if the lock was released,
+                <code>false</code> if the lease has expired or been released
+                already.
+     */
+    boolean release(Lease lease)
+    {
+        return finish(lease);
+    }
+
+    /** Returns the lease duration, in milliseconds. */
+    long leaseDuration()
+    {
+        return duration;
+    }
+
+    /** Stops expiring leases. Locks held remain held. */
+    void stop()
+    {
+        wheel.stop();
+    }
+
+    /** Returns the number of locks currently in use, including the lock of
+        the root directory. */
+    public int size()
+    {
+        return count.get() + 1;
+    }
+
+    /** Returns the number of leases that have expired. */
+    public long expirations()
+    {
+        return expirations.get();
+    }
+
+    /** Returns the wait time histograms, by path prefix. */
+    public Map<Path, WaitHistogram> waitTimes()
+    {
+        return new HashMap<Path, WaitHistogram>(waits);
+    }
+
+    /** Returns the histogram of a path prefix, creating it if necessary. */
+    private WaitHistogram histogram(Path prefix)
+    {
+        WaitHistogram   histogram = waits.get(prefix);
+
+        if(histogram == null)
+        {
+            WaitHistogram   created = new WaitHistogram();
+
+            histogram = waits.putIfAbsent(prefix, created);
+            if(histogram == null)
+                histogram = created;
+        }
+
+        return histogram;
+    }
+
+    /** Ends a lease and releases its lock, if the lease has not already
+        ended.
+
+        @return <code>true</code> if the lease was ended by this call.
+     */
+    private boolean finish(Lease lease)
+    {
+        if(!lease.ended.compareAndSet(false, true))
+            return false;
+
+        wheel.cancel(lease);
+
+        if(lease.number != 0)
+            tracked.remove(lease.number);
+
+        Node            node = lease.node;
+
+        synchronized(node)
+        {
+            node.leases.remove(lease);
+        }
+
+        node.unlock(lease.exclusive);
+        dereference(node);
+        unlockLineage(node.parent);
+        return true;
+    }
+
+    /** Releases shared locks on a directory and its ancestors, from the
+        directory up.
+
+        @param node Lock of the directory, or <code>null</code> if there are
+                    no locks to release.
+     */
+    private void unlockLineage(Node node)
+    {
+        for(; node != null; node = node.parent)
+        {
+            node.unlock(false);
+            dereference(node);
+        }
+    }
+
+    /** Returns the lock of a child of a directory, creating it if necessary,
+        and registers the caller as one of its users. The caller must hold
+        the lock of the directory. */
+    private Node child(Node parent, String name)
+    {
+        while(true)
+        {
+            Node        node = parent.children.get(name);
+
+            if(node == null)
+            {
+                Node    created = create(parent, name);
+
+                node = parent.children.putIfAbsent(name, created);
+                if(node == null)
+                {
+                    count.incrementAndGet();
+                    node = created;
+                }
+            }
+
+            if(node.reference())
+                return node;
+
+            // The node was discarded after it was looked up.
+            parent.children.remove(name, node);
+        }
+    }
+
+    /** Creates the lock of a child of a directory. Locks no deeper than the
+        prefix by which wait times are grouped get their path and histogram;
+        deeper ones share those of their ancestors. */
+    private Node create(Node parent, String name)
+    {
+        if(parent.depth >= PREFIX_DEPTH)
+            return new Node(parent, name, null, null);
+
+        Path            path = new Path(parent.path, name);
+
+        return new Node(parent, name, path, histogram(path));
+    }
+
+    /** Unregisters a user of a lock, discarding the lock if it is unused. */
+    private void dereference(Node node)
+    {
+        if(node.parent != null && node.dereference())
+        {
+            node.parent.children.remove(node.name, node);
+            count.decrementAndGet();
+        }
+    }
+}
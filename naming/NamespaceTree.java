@@ -0,0 +1,253 @@
+package naming;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.*;
+
+/** Directory tree of the naming server.
+
+    <p>
+    The tree is a trie of path components. Each directory holds a map from the
+    names of its entries to either a subdirectory or a marker for a file, so
+    that looking up a path takes time proportional to its depth, and listing a
+    directory takes time proportional to its number of entries, whatever the
+    size of the filesystem.
+
+    <p>
+    Entry maps are concurrent, so lookups are safe alongside modifications.
+    The naming server still serializes conflicting modifications through its
+    path locks: a directory is only changed by a caller holding it
+    exclusively, or during registration.
+ */
+class NamespaceTree
+{
+    /** Marker for a file entry. Files carry no data in the tree. */
+    private static final Object     FILE = new Object();
+
+    /** The root directory. */
+    private final Directory         root = new Directory();
+
+    /** Directory node: the entries of the directory, by name. */
+    private static class Directory
+    {
+        final Map<String, Object>   entries =
+            new ConcurrentHashMap<String, Object>(4);
+    }
+
+    /** Returns <code>true</code> if the path names a directory. */
+    boolean isDirectory(Path path)
+    {
+        return find(path) instanceof Directory;
+    }
+
+    /** Returns <code>true</code> if the path names a file. */
+    boolean isFile(Path path)
+    {
+        return find(path) == FILE;
+    }
+
+    /** Returns <code>true</code> if the path names a file or directory. */
+    boolean exists(Path path)
+    {
+        return find(path) != null;
+    }
+
+    /** Lists the names of the entries of a directory.
+
+        @return The names, or <code>null</code> if the path does not name a
+                directory.
+     */
+    String[] list(Path directory)
+    {
+        Object          node = find(directory);
+
+        if(!(node instanceof Directory))
+            return null;
+
+        return ((Directory)node).entries.keySet().toArray(new String[0]);
+    }
+
+    /** Adds a file to an existing directory.
+
+        @return <code>true</code> if the file was added, <code>false</code> if
+                its parent is not a directory, or an entry with its name
+                already exists.
+     */
+    boolean createFile(Path file)
+    {
+        return add(file, FILE);
+    }
+
+    /** Adds an empty directory to an existing directory.
+
+        @return <code>true</code> if the directory was added,
+                <code>false</code> if its parent is not a directory, or an
+                entry with its name already exists.
+     */
+    boolean createDirectory(Path directory)
+    {
+        return add(directory, new Directory());
+    }
+
+    /** Adds a file, creating any missing directories on its path.
+
+        @return <code>true</code> if the file was added, <code>false</code> if
+                the path already names a file or directory, or one of its
+                ancestors is a file.
+     */
+    boolean register(Path file)
+    {
+        Directory           directory = root;
+        Iterator<String>    components = file.iterator();
+
+        if(!components.hasNext())
+            return false;
+
+        while(true)
+        {
+            String          name = components.next();
+
+            if(!components.hasNext())
+                return directory.entries.putIfAbsent(name, FILE) == null;
+
+            Object          child = directory.entries.get(name);
+
+            if(child == null)
+            {
+                Directory   created = new Directory();
+
+                child = directory.entries.putIfAbsent(name, created);
+                if(child == null)
+                    child = created;
+            }
+
+            if(!(child instanceof Directory))
+                return false;
+
+            directory = (Directory)child;
+        }
+    }
+
+    /** Removes a file, or a directory and everything below it.
+
+        @return <code>true</code> if the entry was removed, <code>false</code>
+                if it does not exist or is the root directory.
+     */
+    boolean remove(Path path)
+    {
+        if(path.isRoot())
+            return false;
+
+        Object          parent = find(path.parent());
+
+        if(!(parent instanceof Directory))
+            return false;
+
+        return ((Directory)parent).entries.remove(path.last()) != null;
+    }
+
+    /** Receives the entries of the tree from <code>walk</code>. */
+    interface Visitor
+    {
+        /** Called for each directory other than the root, before its
+            entries. */
+        void directory(Path directory) throws IOException;
+
+        /** Called for each file. */
+        void file(Path file) throws IOException;
+    }
+
+    /** Visits every entry of the tree, each directory before its entries.
+
+        <p>
+        Entries added or removed during the walk may or may not be visited.
+     */
+    void walk(Visitor visitor) throws IOException
+    {
+        walk(new Path(), root, visitor);
+    }
+
+    /** Visits the entries below a directory. */
+    private static void walk(Path path, Directory directory, Visitor visitor)
+        throws IOException
+    {
+        for(Map.Entry<String, Object> entry : directory.entries.entrySet())
+        {
+            Path        child = new Path(path, entry.getKey());
+
+            if(entry.getValue() == FILE)
+                visitor.file(child);
+            else
+            {
+                visitor.directory(child);
+                walk(child, (Directory)entry.getValue(), visitor);
+            }
+        }
+    }
+
+    /** Adds the paths of all files at or below a path to a list.
+
+        @param path A file or directory.
+        @param files The list receiving the paths.
+     */
+    void files(Path path, List<Path> files)
+    {
+        Object          node = find(path);
+
+        if(node == FILE)
+            files.add(path);
+        else if(node != null)
+            collect(path, (Directory)node, files);
+    }
+
+    /** Adds the paths of the files below a directory to a list. */
+    private static void collect(Path path, Directory directory,
+                                List<Path> files)
+    {
+        for(Map.Entry<String, Object> entry : directory.entries.entrySet())
+        {
+            Path        child = new Path(path, entry.getKey());
+
+            if(entry.getValue() == FILE)
+                files.add(child);
+            else
+                collect(child, (Directory)entry.getValue(), files);
+        }
+    }
+
+    /** Adds an entry to the directory holding it. */
+    private boolean add(Path path, Object node)
+    {
+        if(path.isRoot())
+            return false;
+
+        Object          parent = find(path.parent());
+
+        if(!(parent instanceof Directory))
+            return false;
+
+        return ((Directory)parent).entries.putIfAbsent(path.last(), node)
+            == null;
+    }
+
+    /** Returns the node named by a path: a <code>Directory</code>, the
+        <code>FILE</code> marker, or <code>null</code> if there is none. */
+    private Object find(Path path)
+    {
+        Object          node = root;
+
+        for(String name : path)
+        {
+            if(!(node instanceof Directory))
+                return null;
+
+            node = ((Directory)node).entries.get(name);
+        }
+
+        return node;
+    }
+}
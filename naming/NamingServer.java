@@ -11,6 +11,8 @@ import common.*;
 //import javafx.util.Pair;
 import storage.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 
 /** Naming server.
@@ -28,7 +30,42 @@ import java.util.concurrent.ConcurrentHashMap;
     use the <code>Registration</code> interface to inform the naming server of
     their existence. Clients use the <code>Service</code> interface to perform
     most filesystem operations. The documentation accompanying these interfaces
-    provides details on the methods supported.
+    provides details on the methods supported. The client interface is
+    exported as <code>LeaseService</code>, which extends <code>Service</code>
+    with locks held under leases, which expire unless they are renewed in
+    time. See <code>LockManager</code>. It is further extended by
+    <code>ReplicaService</code>, which lists all the storage servers hosting a
+    file, and by <code>CacheService</code>, through which clients learn of the
+    changes that make their cached metadata stale. See <code>ChangeLog</code>.
+    The registration interface
+    is exported as <code>Heartbeat</code>, through which registered storage
+    servers report their capacity and load.
+
+    <p>
+    New files and replicas are placed on storage servers by a pluggable
+    strategy, chosen through the constructor or the system property
+    <code>naming.placement</code>. The default strategy favors lightly loaded
+    servers, as reported in heartbeats, and replicas are spread across zones.
+    See <code>Placement</code>.
+
+    <p>
+    Frequently read files are replicated in the background, with a number of
+    replicas that follows the file's recent read rate. Readers do not wait
+    for copies, and a new replica is given to clients only once its copy is
+    complete. See <code>Replicator</code>. When a replicated file is locked
+    for writing, its other replicas are marked stale and the writer proceeds
+    at once; stale replicas are deleted in batches in the background. See
+    <code>Invalidator</code>.
+
+    <p>
+    If the naming server is given a metadata directory, either through its
+    constructor or the system property <code>naming.journal</code>, every
+    change to the directory tree, to the storage servers hosting each file,
+    and to the set of registered storage servers is recorded durably in a
+    write-ahead journal in that directory before it is acknowledged. When the
+    naming server is started again, it recovers this metadata from the
+    latest snapshot and the journal, and storage servers that register again
+    keep the files they host. See <code>Journal</code>.
 
     <p>
     Stubs for accessing the naming server must typically be created by directly
@@ -36,19 +73,76 @@ import java.util.concurrent.ConcurrentHashMap;
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
  */
-public class NamingServer implements Service, Registration
+public class NamingServer implements CacheService, Heartbeat
 {
     private ConcurrentHashMap<Path,Storage> PSmap;
     private ConcurrentHashMap<Storage,Command> SCmap;
-    private ConcurrentHashMap<Path, Integer> repCount;
     private ConcurrentHashMap<Path, HashSet<Storage>> repStorage;
-    private HashSet<Path> p_files;
-    private HashSet<Path> p_directories;
-    private Skeleton<Service> service;
-    private Skeleton<Registration> registration;
+    /** Directory tree of the filesystem. */
+    private NamespaceTree namespace;
+    private Skeleton<CacheService> service;
+    private Skeleton<Heartbeat> registration;
    //private int count=0;
 
-    private ConcurrentHashMap<Path, PathLock> pathLocks;
+    /** Locks of the files and directories. */
+    private final LockManager locks = new LockManager();
+    /** Latest load reports of the storage servers. */
+    private final LoadTable loads = new LoadTable();
+    /** Strategy choosing the storage servers that receive new data. */
+    private final Placement placement;
+    /** Version of the contents of each file that has been written, counting
+        exclusive locks. Replicas copied from an older version are not made
+        visible. */
+    private final ConcurrentHashMap<Path, Long> versions =
+        new ConcurrentHashMap<Path, Long>();
+    /** Recent changes that make metadata cached by clients stale. */
+    private final ChangeLog changelog = new ChangeLog();
+    /** Background deletion of stale replicas. */
+    private final Invalidator invalidator = new Invalidator()
+    {
+        @Override
+        Command command(Storage server)
+        {
+            return loads.down(server) ? null : SCmap.get(server);
+        }
+    };
+    /** Background replication of frequently read files. */
+    private final Replicator replicator = new Replicator()
+    {
+        @Override
+        int replicate(Path file)
+        {
+            return NamingServer.this.replicate(file);
+        }
+    };
+
+    /** Journal record of a storage server: number and stubs. */
+    private static final byte SERVER = 1;
+    /** Journal record of a file: path, primary server and hosting
+        servers. */
+    private static final byte FILE = 2;
+    /** Journal record of a directory: path. */
+    private static final byte DIRECTORY = 3;
+    /** Journal record of a deleted file or directory: path. */
+    private static final byte DELETE = 4;
+
+    /** Directory holding the metadata journal, or <code>null</code> if
+        metadata is kept only in memory. */
+    private final File metadata;
+    /** Metadata journal, while the server is running with a metadata
+        directory. */
+    private Journal journal;
+    /** Storage servers, indexed by the numbers identifying them in the
+        journal. */
+    private final List<Storage> servers =
+        Collections.synchronizedList(new ArrayList<Storage>());
+    /** Numbers identifying storage servers in the journal. */
+    private final ConcurrentHashMap<Storage, Integer> server_ids =
+        new ConcurrentHashMap<Storage, Integer>();
+    /** Storage servers recovered from the journal that have not yet
+        registered again. */
+    private final Set<Storage> recovered =
+        ConcurrentHashMap.<Storage>newKeySet();
 
 
     private static final int NoLock=0;
@@ -62,16 +156,45 @@ public class NamingServer implements Service, Registration
 
     public NamingServer()
     {
+        this(System.getProperty("naming.journal") == null ? null :
+             new File(System.getProperty("naming.journal")));
+    }
+
+    /** Creates the naming server object, keeping its metadata in the given
+        directory.
+
+        <p>
+        The naming server is not started. Metadata is recovered from the
+        directory when it is started.
+
+        @param metadata Directory holding the metadata journal, which is
+                        created if it does not exist, or <code>null</code> to
+                        keep metadata only in memory.
+     */
+    public NamingServer(File metadata)
+    {
+        this(metadata, Placement.configured());
+    }
+
+    /** Creates the naming server object, keeping its metadata in the given
+        directory and placing files with the given strategy.
+
+        <p>
+        The naming server is not started.
+
+        @param metadata Directory holding the metadata journal, or
+                        <code>null</code> to keep metadata only in memory.
+        @param placement Strategy choosing the storage servers that receive
+                         new files and replicas.
+     */
+    public NamingServer(File metadata, Placement placement)
+    {
+        this.metadata = metadata;
+        this.placement = placement;
         PSmap=new ConcurrentHashMap<Path,Storage>();
         SCmap=new ConcurrentHashMap<Storage,Command>();
-        p_files=new HashSet<Path>();
-        p_directories=new HashSet<Path>();
-
-        pathLocks=new ConcurrentHashMap<Path,PathLock>();
-        Path ini=new Path();
-        p_directories.add(ini);
-        pathLocks.put(ini, new PathLock());
-        repCount = new ConcurrentHashMap<Path,Integer>();
+        namespace=new NamespaceTree();
+
         repStorage= new ConcurrentHashMap<Path, HashSet<Storage>>();
 
     }
@@ -89,9 +212,26 @@ public class NamingServer implements Service, Registration
      */
     public synchronized void start() throws RMIException
     {
+        if(metadata != null)
+        {
+            journal = new Journal(metadata, new Metadata());
 
-        this.registration = new Skeleton<Registration>(Registration.class,this, new InetSocketAddress("127.0.0.1",NamingStubs.REGISTRATION_PORT));
-        this.service = new Skeleton<Service>(Service.class, this,new InetSocketAddress("127.0.0.1",NamingStubs.SERVICE_PORT));
+            try
+            {
+                journal.recover();
+            }
+            catch(IOException e)
+            {
+                journal = null;
+                throw new RMIException("unable to recover metadata", e);
+            }
+        }
+
+        this.registration = new Skeleton<Heartbeat>(Heartbeat.class,this, new InetSocketAddress("127.0.0.1",NamingStubs.REGISTRATION_PORT));
+        this.service = new Skeleton<CacheService>(CacheService.class, this,new InetSocketAddress("127.0.0.1",NamingStubs.SERVICE_PORT));
+        // Each caching client keeps a call to changes waiting at all times,
+        // which must not take up the workers of a bounded executor.
+        service.setWaiting("changes");
 
         service.start();
         registration.start();
@@ -113,6 +253,12 @@ public class NamingServer implements Service, Registration
         {
             this.service.stop();
             this.registration.stop();
+            this.locks.stop();
+            this.replicator.stop();
+            this.invalidator.stop();
+            this.changelog.close();
+            if(this.journal != null)
+                this.journal.close();
             this.stopped(null);
         }
         catch (Exception e)
@@ -136,180 +282,262 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /** Returns the lock manager, whose histograms report how long lock
+        requests waited, by path prefix. */
+    public LockManager lockManager()
+    {
+        return locks;
+    }
+
     // The following public methods are documented in Service.java.
     @Override
     public void lock(Path path, boolean exclusive) throws FileNotFoundException
+    {
+        acquire(path, exclusive);
+    }
+
+    /** Locks a file or directory, as described for <code>Service.lock</code>,
+        and returns the lease on the lock. */
+    private LockManager.Lease acquire(Path path, boolean exclusive)
+        throws FileNotFoundException
     {
 
         if(path==null)
             throw new NullPointerException("path null");
 
-        if(!pathLocks.containsKey(path)){
+        if(!namespace.exists(path))
             throw new FileNotFoundException("File not found");
+
+        LockManager.Lease lease;
+
+        try
+        {
+            lease = locks.lock(path, exclusive);
+        }
+        catch(InterruptedException e)
+        {
+            throw new IllegalStateException("lock attempt interrupted");
         }
-        /*
-        if(path.toString().equals("/")) {
-            //pathLocks.get("/").setLock(exclusive);
-            if(pathLocks.containsKey(path))
-                pathLocks.get(path).setLock(exclusive);
-            else
-                pathLocks.put(path,new PathLock());
 
-            System.out.println("root value " + pathLocks.get(path));
-        }*/
+        // The path may have been deleted while waiting for the lock.
+        if(!namespace.exists(path))
+        {
+            locks.release(lease);
+            throw new FileNotFoundException("File not found");
+        }
 
+            // Replication
+            if(namespace.isFile(path)){ // path is a file
+                if(!repStorage.containsKey(path)){
+                    HashSet<Storage> temp = new HashSet<Storage>();
+                    temp.add(PSmap.get(path));
+                    repStorage.put(path, temp);
+                }
 
+            if(!exclusive){ // read request
+                // Replicas are created in the background: see replicate.
+                replicator.read(path, repStorage.get(path).size());
+                }// read replication
+            else{ // write
 
-        ArrayList<Path> listOfDir = new ArrayList<Path>();
-        listOfDir.add(path);
-        Path path1 = new Path(path.toString());
-        if(!path1.toString().equals("/")) {
-            while (!path1.isRoot()) {
-                Path temp = path1.parent();
-                listOfDir.add(temp);
-                path1 = temp;
-            }
-        }
+                // The writer proceeds at once. Replicas other than the primary
+                // are stale from now on: they are dropped from the hosts of
+                // the file, and deleted in the background.
+                long version = versions.containsKey(path) ?
+                               versions.get(path) + 1 : 1;
+                versions.put(path, version);
+
+                Storage primary = PSmap.get(path);
+                HashSet<Storage> hosts = repStorage.get(path);
+
+                if(hosts.size() > 1){
+                    HashSet<Storage> current = new HashSet<Storage>();
+                    current.add(primary);
+                    repStorage.put(path, current);
+                    logFile(path);
+                    changelog.record(path);
+
+                    for(Storage stale : hosts){
+                        if(!stale.equals(primary))
+                            invalidator.invalidate(stale, path, version);
+                    }
+                }
 
+                }// write replication
 
-        for(int i=0;i<listOfDir.size();i++)
-        {
-            if(pathLocks.get(listOfDir.get(i))==null) {
-//                System.out.println(path + " does not exist so creating the object" );
-                pathLocks.put(listOfDir.get(i), new PathLock());
+            } // replication end for file
 
-            }
-        }
+        return lease;
+    } // end lock
+
+    /** Creates one replica of a file, as described for
+        <code>Replicator.replicate</code>.
+
+        <p>
+        The copy is made under a shared lock on the file, so that the file is
+        not written meanwhile, and the new replica is added to the hosts of
+        the file only once the copy has succeeded. The lease on the lock is
+        renewed three times per lease duration while the copy runs, on the
+        thread that renews the leases of <code>LeasedLock</code>, so that
+        copies may take longer than the lease. If the lease expired all the
+        same, or the version of the file changed, the copy is stale and is
+        discarded.
+     */
+    private int replicate(Path file)
+    {
+        LockManager.Lease lease;
 
-//        System.out.println("Need "+exclusive +"for"+path.toString());
+        try
+        {
+            if(!namespace.exists(file))
+                return Replicator.FAILED;
 
-//        System.out.println("Hashtable current status:");
-        //for(int i=0;i<pathLocks.size();i++)
-        for (ConcurrentHashMap.Entry<Path,PathLock> i : pathLocks.entrySet()) {
-//            System.out.println(i.getKey() + " " + i.getValue().readers);
-            //System.out.println(i.getKey() + " " + i.getValue().writers);
-//            System.out.println(i.getKey() + " " + i.getValue().ExcLockReq);
+            lease = locks.lock(file, false);
+        }
+        catch(InterruptedException e)
+        {
+            return Replicator.FAILED;
         }
 
-        Collections.sort(listOfDir);
-        int i=0;
+        final long number = locks.track(lease);
+        Storage source = null;
+        Storage destination = null;
 
+        try
+        {
+            HashSet<Storage> hosts = repStorage.get(file);
 
-        //if(listOfDir.size()>1) {
-            for (i = 0; i < listOfDir.size(); i++) {
-//                System.out.println("locking processing: " + listOfDir.get(i) + " " + i);
-                if (exclusive && i == listOfDir.size() - 1) {
-                    try {
-//                        System.out.println("lock path " + path + " exclusive original " + exclusive + " subdirectory " + listOfDir.get(i) + " true");
-                        pathLocks.get(listOfDir.get(i)).setLock(exclusive);//w
-                    } catch (Exception e) {
-                    }
-                } else {
-                    try {
-//                        System.out.println("lock path " + path + " exclusive original " + exclusive + " subdirectory " + listOfDir.get(i) + " false");
-                        pathLocks.get(listOfDir.get(i)).setLock(false);
-                    } catch (Exception e) {
-                    }
-                }
+            if(!namespace.isFile(file) || hosts == null)
+                return Replicator.FAILED;
 
+            for(Storage host : hosts)
+            {
+                if(replicator.reserve(host))
+                {
+                    source = host;
+                    break;
+                }
             }
 
-        //}
+            if(source == null)
+                return Replicator.BUSY;
 
-            // Replication
-            if(p_files.contains(path)){ // path is a file
-                if(!repStorage.containsKey(path)){
-                    HashSet<Storage> temp = new HashSet<Storage>();
-                    temp.add(PSmap.get(path));
-                    repStorage.put(path, temp);
-                    repCount.put(path, 1);
+            List<Placement.Candidate> candidates = candidates(file);
+            long version = version(file);
+            boolean busy = false;
+
+            while(destination == null)
+            {
+                Storage s = placement.replicate(file, hosts, candidates);
+
+                if(s == null)
+                    return busy ? Replicator.BUSY : Replicator.FAILED;
+
+                if(replicator.reserve(s))
+                {
+                    destination = s;
+                    break;
                 }
 
-            HashSet hs= new HashSet<Storage>();
-            int c;
-            if(!exclusive){ // read request
-                if(repCount.containsKey(path)){
-                    c=repCount.get(path).intValue();
-                    c++;
-                    if(c==20){
-                        c=0;
-                        // create a copy
-                        //Random rand = new Random();
-                        //int serInd = rand.nextInt(SCmap.size());
-
-                        Iterator<Entry<Storage, Command>> it = SCmap.entrySet().iterator();
-
-                        while(it.hasNext())
-                        {
-                            Entry<Storage, Command> entry = (Entry<Storage, Command>) it.next();
-
-                            Storage s = entry.getKey();
-                            Command sc = entry.getValue();
-
-                            if(!repStorage.get(path).contains(s)){
-                                Storage orig = (Storage) PSmap.get(path);
-                                Command corig = (Command) SCmap.get(orig);
-                                try {
-                                    if(!sc.copy(path, orig))
-                                        continue;
-                                } catch (RMIException e) {
-                                    // TODO Auto-generated catch block
-                                    e.printStackTrace();
-                                } catch (IOException e) {
-                                    // TODO Auto-generated catch block
-                                    e.printStackTrace();
-                                }
-                                hs = repStorage.get(path);
-                                hs.add(s);
-                                repStorage.put(path, hs);
-                                PSmap.put(path, s);
-                                break;
-                            }
-                        }
-
-                        //update
-                        repCount.put(path, c);
+                busy = true;
+                for(int i = 0; i < candidates.size(); i++)
+                {
+                    if(candidates.get(i).server.equals(s))
+                    {
+                        candidates.remove(i);
+                        break;
                     }
-                    else{
-                        repCount.put(path, c);
+                }
+            }
+
+            Command command = SCmap.get(destination);
+            boolean copied = false;
+            long period = Math.max(1, locks.leaseDuration() / 3);
+            ScheduledFuture<?> renewal =
+                LeasedLock.renewer.scheduleAtFixedRate(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        locks.renew(number);
                     }
+                }, period, period, TimeUnit.MILLISECONDS);
 
-                    }// contains path
-                }// read replication
-            else{ // write
+            try
+            {
+                copied = command.copy(file, source);
+            }
+            catch(RMIException e) { }
+            catch(IOException e) { }
+            finally
+            {
+                renewal.cancel(false);
+            }
 
-                HashSet hswrite = repStorage.get(path);
-                hswrite.remove(PSmap.get(path));
+            if(!copied)
+                return Replicator.FAILED;
 
-                if(! hswrite.isEmpty()){
-                    Iterator ithsw = hswrite.iterator();
+            if(!locks.renew(number) || version(file) != version)
+            {
+                try
+                {
+                    command.delete(file);
+                }
+                catch(RMIException e) { }
 
-                    while(ithsw.hasNext()){
-                        Storage sw = (Storage) ithsw.next();
-                        Command swc = (Command) SCmap.get(sw);
+                return Replicator.FAILED;
+            }
 
-                        try {
-                            swc.delete(path);
-                        } catch (RMIException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                hswrite.clear();
-                hswrite.add(PSmap.get(path));
-                repStorage.put(path, hswrite);
+            HashSet<Storage> replicas = new HashSet<Storage>(hosts);
 
-                }// write replication
+            replicas.add(destination);
+            repStorage.put(file, replicas);
+            PSmap.put(file, destination);
+            loads.placed(destination);
+            logFile(file);
+            changelog.record(file);
+            return Replicator.CREATED;
+        }
+        finally
+        {
+            if(source != null)
+                replicator.finish(source);
+            if(destination != null)
+                replicator.finish(destination);
+            locks.release(lease);
+        }
+    }
 
-            } // replication end for file
+    /** Returns the storage servers that may receive a copy of a file: those
+        that are up, except any from which a stale replica of the file, or of
+        a file above or below it, is yet to be deleted. Servers recovered from the journal are not known to be
+        up until they register again, and are left out until then. */
+    private List<Placement.Candidate> candidates(Path file)
+    {
+        List<Placement.Candidate> candidates =
+            loads.candidates(SCmap.keySet());
 
+        for(int i = candidates.size() - 1; i >= 0; i--)
+        {
+            Storage server = candidates.get(i).server;
 
+            if(recovered.contains(server) ||
+               invalidator.pending(server, file))
+            {
+                candidates.remove(i);
+            }
+        }
 
+        return candidates;
+    }
 
+    /** Returns the version of the contents of a file. */
+    private long version(Path file)
+    {
+        Long version = versions.get(file);
 
-        //throw new UnsupportedOperationException("not implemented");
-    } // end lock
+        return version == null ? 0 : version;
+    }
 
     @Override
     public void unlock(Path path, boolean exclusive)
@@ -317,48 +545,35 @@ public class NamingServer implements Service, Registration
         if(path==null)
             throw new NullPointerException("PAth is null");
 
-        if(!pathLocks.containsKey(path)){
-            throw new IllegalArgumentException("File not found");
-        }
-
+        locks.unlock(path, exclusive);
+    }
 
-        ArrayList<Path> listOfDir = new ArrayList<Path>();
-        listOfDir.add(path);
-        Path path1 = new Path(path.toString());
-        if(!path1.toString().equals("/"))
-        {
-            while (!path1.isRoot())
-            {
-                Path temp = path1.parent();
-                listOfDir.add(temp);
-                path1 = temp;
-            }
-        }
+    // The following public methods are documented in LeaseService.java.
+    @Override
+    public long lease(Path path, boolean exclusive) throws FileNotFoundException
+    {
+        if(path == null)
+            throw new NullPointerException("path is null");
 
-        for(int i=0;i<listOfDir.size();i++)
-        {
-            if(pathLocks.get(listOfDir.get(i))==null)
-                pathLocks.put(listOfDir.get(i),new PathLock());
-        }
+        return locks.track(acquire(path, exclusive));
+    }
 
+    @Override
+    public boolean renew(long lease)
+    {
+        return locks.renew(lease);
+    }
 
-        Collections.sort(listOfDir);
-        Path ptemp;
-        for(int it=listOfDir.size()-1 ; it>=0 ;it--){
-//            System.out.println("unlocking processing: "+listOfDir.get(it));
-            try {
-                if (exclusive && it==listOfDir.size()-1 ) {
-                    pathLocks.get(listOfDir.get(it)).unsetLock(exclusive);
-                } else
-                    pathLocks.get(listOfDir.get(it)).unsetLock(false);
-            }
-            catch (Exception e){
-                e.printStackTrace();
-            }
-        }
+    @Override
+    public boolean release(long lease)
+    {
+        return locks.release(lease);
+    }
 
-        //throw new UnsupportedOperationException("not implemented");
-        //System.out.println("UNLOCKED");
+    @Override
+    public long leaseDuration()
+    {
+        return locks.leaseDuration();
     }
 
     @Override
@@ -372,28 +587,18 @@ public class NamingServer implements Service, Registration
 
         lock(path.parent(), false); //lock the parent ,shared
 
-        if(p_directories.contains(path))
+        try
         {
-            unlock(path.parent(), false); //unlock the parent , shared
-            return true;
+            if(namespace.isDirectory(path))
+                return true;
+            else if(namespace.isFile(path))
+                return false;
         }
-        else if(p_files.contains(path))
+        finally
         {
             unlock(path.parent(), false); //unlock the parent , shared
-            return false;
         }
 
-
-        /*
-        Iterator<Path> i = p_directories.iterator();
-
-        while(i.hasNext())
-        {
-            Path check=i.next();
-            if(check.isSubpath(path))
-                return true;
-        }
-        */
         throw new FileNotFoundException("Path not found, i.e it is not a directory nor a file");
     }
 
@@ -403,96 +608,21 @@ public class NamingServer implements Service, Registration
         if(directory==null)
             throw new NullPointerException("Path is null");
 
-        boolean checkcondition=false;
-        if(p_directories.contains(directory))
-            checkcondition=true;
-        if(checkcondition)
+        if(namespace.isDirectory(directory))
         {
-            //System.out.println("ENTEREDDD");
             lock(directory, false); //lock current , shared
-            ArrayList<Path> fps=new ArrayList<Path>();
-            ArrayList<String> rlist=new ArrayList<String>();
-
-            ArrayList<Path> subdirps=new ArrayList<Path>();
-            String directstr=directory.toString();
-            //System.out.println("DIRECT"+directstr);
-            Iterator<Path> j = p_directories.iterator();
-            while(j.hasNext())
-            {
-                Path sd=j.next();
-                if(sd.isSubpath(directory))
-                    subdirps.add(sd);
-            }
-
-            int sbsize=subdirps.size();
-            for(int k=0;k<sbsize;k++)
+            try
             {
-                //System.out.println("LLLLLLLDIRECT"+subdirps.get(k));
-                String cstr=subdirps.get(k).toString();
-                cstr=cstr.substring(directstr.length());
-
-                //System.out.println("StrAFTERdel"+cstr);
-
-                int cslash=0;
-                for(int l=0;l<cstr.length();l++)
-                {
-                    if(cstr.charAt(l)=='/'&&l!=0)
-                        cslash++;
-                }
-                if(cslash<1&&!cstr.isEmpty())
-                {
-                    String addingstr=subdirps.get(k).toString();
-                    addingstr=addingstr.substring(directstr.length());
-                    addingstr=addingstr.replace("/", "");
-                    rlist.add(addingstr);
-                    //System.out.println("ADDED"+subdirps.get(k));
+                String[] retlist = namespace.list(directory);
 
-                }
+                // The directory may have been deleted before it was locked.
+                if(retlist != null)
+                    return retlist;
             }
-
-
-            Iterator<Path> i = p_files.iterator();
-            while(i.hasNext())
+            finally
             {
-                Path f=i.next();
-                if(f.isSubpath(directory))
-                    fps.add(f);
+                unlock(directory, false); //unlock current , shared
             }
-            int fpssize=fps.size();
-            for(int k=0;k<fpssize;k++)
-            {
-                //System.out.println("FFFF"+fps.get(k));
-                String cstr=fps.get(k).toString();
-                cstr=cstr.substring(directstr.length());
-                //System.out.println("StrAFTERdel"+cstr);
-                int cslash=0;
-                for(int l=0;l<cstr.length();l++)
-                {
-                    if(cstr.charAt(l)=='/'&&l!=0)
-                        cslash++;
-                }
-                if(cslash<1&&!cstr.isEmpty())
-                {
-                    String addingstr=fps.get(k).toString();
-                    addingstr=addingstr.substring(directstr.length());
-                    addingstr=addingstr.replace("/", "");
-                    rlist.add(addingstr);
-                    //System.out.println("ADDEDFFFF"+fps.get(k));
-                }
-            }
-
-            int rsize=rlist.size();
-            String[] retlist = new String[rsize];
-            for(int k=0;k<rsize;k++)
-            {
-                retlist[k]=rlist.get(k);
-            }
-            /*
-            for(String s:retlist)
-                System.out.println("\nLOLOLOL:\n\n"+s+"\t"+"\n\n");
-                */
-            unlock(directory, false); //unlock current , shared
-            return retlist;
         }
 
         throw new FileNotFoundException("Directory does not exist");
@@ -519,54 +649,43 @@ public class NamingServer implements Service, Registration
         }
 
         //Check whether file already exists
-        if(p_files.contains(file) || p_directories.contains(file))
+        if(namespace.exists(file))
         {
            // System.out.print("File already exists");
             return false;
         }
 
         //Check whether the parent directory exists
-        if(!p_directories.contains(file.parent()))
+        if(!namespace.isDirectory(file.parent()))
         {
             //System.out.print("Parent directory does not exist");
             throw new FileNotFoundException();
         }
+        Storage server = placement.place(file, candidates(file));
+
+        if(server == null)
+            throw new IllegalStateException("no storage servers connected");
+
         lock(file.parent(), true); //lock the parent , exclusive
 
         try
         {
-
-            //Pick a random server from the set
-            Random rand = new Random();
-            int serInd = rand.nextInt(SCmap.size());
-          //  System.out.println(" Selected server  "+ serInd);
-            int ind=0;
-
-            Iterator<Entry<Storage, Command>> it = SCmap.entrySet().iterator();
-
-            while(it.hasNext())
-            {
-
-                if(ind==serInd)
-                {
-                    Entry<Storage, Command> entry = (Entry<Storage, Command>) it.next();
-                    Command sc= (Command) entry.getValue();
-                    sc.create(file);
-                    PSmap.put(file, entry.getKey());
-                    p_files.add(file);
-                    pathLocks.put(file, new PathLock());
-                }
-                ind++;
-            }//end while
-
-            unlock(file.parent(),true); //unlock the parent , exclusive
+            // Another client may have created the file in the meantime.
+            if(namespace.exists(file))
+                return false;
+
+            SCmap.get(server).create(file);
+            PSmap.put(file, server);
+            namespace.createFile(file);
+            loads.placed(server);
+            logFile(file);
+            changelog.record(file);
             return true;
-        }//end try
-        catch(RMIException e)
+        }
+        finally
         {
-            throw new RMIException("RMI EXception");
+            unlock(file.parent(), true); //unlock the parent , exclusive
         }
-                    //throw new UnsupportedOperationException("not implemented");
     }// end create file
 
 
@@ -601,18 +720,13 @@ public class NamingServer implements Service, Registration
         }
 
         //Check whether file already exists
-        if(p_directories.contains(directory))
+        if(namespace.exists(directory))
         {
            // System.out.print("Directory already exists");
             return false;
         }
-        if(p_files.contains(directory))
-        {
-           // System.out.print("Directory given is a file");
-            return false;
-        }
         //Check whether the parent directory exists
-        if(!p_directories.contains(directory.parent()))
+        if(!namespace.isDirectory(directory.parent()))
         {
           //  System.out.print("Parent directory does not exist");
             throw new FileNotFoundException();
@@ -620,12 +734,21 @@ public class NamingServer implements Service, Registration
        // System.out.println("PARENT OF DIRECTORY IS "+directory.parent());
         lock(directory.parent(),true); // lock the parent, for exclusive
 
-       // System.out.println("HERE!");
-        p_directories.add(directory);
-        pathLocks.put(directory, new PathLock());
+        try
+        {
+            boolean created = namespace.createDirectory(directory);
+            if(created)
+            {
+                log(directoryRecord(directory));
+                changelog.record(directory);
+            }
 
-        unlock(directory.parent(),true); // unlock the parent, for exclusive
-        return true;
+            return created;
+        }
+        finally
+        {
+            unlock(directory.parent(),true); // unlock the parent, for exclusive
+        }
         //throw new UnsupportedOperationException("not implemented");
     }
 
@@ -637,14 +760,14 @@ public class NamingServer implements Service, Registration
             throw new NullPointerException("path is null");
         if(path.isRoot())
             return false;
-        if(!p_files.contains(path) && !p_directories.contains(path)){
+        if(!namespace.exists(path)){
         	throw new FileNotFoundException(" Invalid PAth" );
         }
         /*
         if(PSmap.get(path)==null)
             throw new FileNotFoundException("Storage stub is not found");
         */
-        if(p_files.contains(path)) // if path is a file
+        if(namespace.isFile(path)) // if path is a file
         {
 	        HashSet<Storage> hstemp= repStorage.get(path);
 	        Iterator hsit = hstemp.iterator();
@@ -674,11 +797,13 @@ public class NamingServer implements Service, Registration
 
 	        if(count==hstemp.size())
 	        {
-	            p_files.remove(path);
+	            namespace.remove(path);
 	            PSmap.remove(path);
-	            pathLocks.remove(path);
 	            repStorage.remove(path);
-	            repCount.remove(path);
+	            replicator.forget(path);
+	            versions.remove(path);
+	            log(deleteRecord(path));
+	            changelog.record(path);
 	         return true;
 	        }
 	        return false;
@@ -687,24 +812,15 @@ public class NamingServer implements Service, Registration
         //Directory
         HashSet<Storage> hsSt = new HashSet<Storage>();
 
-        //Find all sub-files and delete them
-        Iterator itfiles = p_files.iterator();
-
-        //System.out.println("to be deleted "+ path.toString());
+        //Find all sub-files and the servers storing them
+        ArrayList<Path> subfiles = new ArrayList<Path>();
+        namespace.files(path, subfiles);
 
-        //System.out.println("Printign asll files "+ p_files.toString());
-
-        Path pt;
-        while(itfiles.hasNext()){
-        	pt=(Path) itfiles.next();
-        	//System.out.println("Files : " + pt.toString());
-        	if(pt.toString().trim().startsWith(path.toString().trim())){
-        		//System.out.println("Found match : " + pt.toString());
-        		if(repStorage.containsKey(pt)) {
-        			hsSt.addAll(repStorage.get(pt));}
-        		else if(PSmap.containsKey(pt)){
-        			hsSt.add(PSmap.get(pt));
-        		}
+        for(Path pt : subfiles){
+        	if(repStorage.containsKey(pt)) {
+        		hsSt.addAll(repStorage.get(pt));}
+        	else if(PSmap.containsKey(pt)){
+        		hsSt.add(PSmap.get(pt));
         	}
         }
 
@@ -727,7 +843,15 @@ public class NamingServer implements Service, Registration
         }
         if(checkcount==hsSt.size())
         {
-        	p_directories.remove(path);
+        	namespace.remove(path);
+        	for(Path pt : subfiles){
+        		PSmap.remove(pt);
+        		repStorage.remove(pt);
+        		replicator.forget(pt);
+        		versions.remove(pt);
+        	}
+        	log(deleteRecord(path));
+        	changelog.record(path);
         	return true;
         }
 
@@ -747,6 +871,43 @@ public class NamingServer implements Service, Registration
         //throw new UnsupportedOperationException("not implemented");
     }
 
+    // The method getReplicas is documented in ReplicaService.java.
+    @Override
+    public Storage[] getReplicas(Path file) throws FileNotFoundException
+    {
+        if(file == null)
+            throw new NullPointerException("file is null");
+
+        Storage primary = PSmap.get(file);
+
+        if(primary == null)
+            throw new FileNotFoundException("File not in the naming server");
+
+        // The set is replaced rather than modified, so it may be read
+        // without locking.
+        HashSet<Storage> hosts = repStorage.get(file);
+        ArrayList<Storage> replicas = new ArrayList<Storage>();
+
+        replicas.add(primary);
+        if(hosts != null)
+        {
+            for(Storage host : hosts)
+            {
+                if(!host.equals(primary))
+                    replicas.add(host);
+            }
+        }
+
+        return replicas.toArray(new Storage[replicas.size()]);
+    }
+
+    // The method changes is documented in CacheService.java.
+    @Override
+    public Changes changes(long sequence, long timeout)
+    {
+        return changelog.since(sequence, timeout);
+    }
+
     // The method register is documented in Registration.java.
     @Override
     public Path[] register(Storage client_stub, Command command_stub,
@@ -761,11 +922,18 @@ public class NamingServer implements Service, Registration
         if(files==null)
             throw new NullPointerException();
 
-        if(SCmap.containsKey(client_stub))
+        // A storage server known from the journal may register once after a
+        // restart, and keeps the files it hosts.
+        boolean returning = recovered.remove(client_stub);
+
+        if(SCmap.containsKey(client_stub) && !returning)
         {
             throw new IllegalStateException("Duplicate registeration");
         }
         SCmap.put(client_stub, command_stub);
+        logServer(client_stub, command_stub);
+        long logged = 0;
+        boolean added = false;
 
         ArrayList<Path> duplicatelist=new ArrayList<Path>();
         Path[] dpaths;
@@ -773,33 +941,31 @@ public class NamingServer implements Service, Registration
         {
             if(!f.isRoot())
             {
-                if(p_files.contains(f)||p_directories.contains(f))
+                if(returning && repStorage.containsKey(f) &&
+                   repStorage.get(f).contains(client_stub))
+                {
+                    continue;
+                }
+                if(!namespace.register(f))
                 {
                     duplicatelist.add(f);
                 }
                 else
                 {
-
-                    Iterator<String> i = f.iterator();
-                    Path p=new Path();
-                    while(i.hasNext())
-                    {
-                        String n=i.next();
-                        if(i.hasNext())
-                        {
-                            Path d=new Path(p,n);
-                            p=d;
-                            p_directories.add(d);
-                            pathLocks.put(d, new PathLock());
-                        }
-                    }
-                    p_files.add(f);
-                    pathLocks.put(f, new PathLock());
                     PSmap.put(f, client_stub);
+                    added = true;
+                    logged = append(fileRecord(f, server_ids.get(client_stub),
+                                               new ArrayList<Integer>()));
                 }
             }
         }
 
+        await(logged);
+
+        // New files may have created directories anywhere in the tree.
+        if(added)
+            changelog.record(new Path());
+
         int s=duplicatelist.size();
         dpaths=new Path[s];
         for(int i=0;i<s;i++)
@@ -813,4 +979,354 @@ public class NamingServer implements Service, Registration
         return dpaths;
 
     }
+
+    // The method heartbeat is documented in Heartbeat.java.
+    @Override
+    public boolean heartbeat(Storage client_stub, LoadReport report)
+    {
+        if(client_stub == null || report == null)
+            throw new NullPointerException();
+
+        if(!SCmap.containsKey(client_stub))
+            return false;
+
+        loads.report(client_stub, report);
+        return true;
+    }
+
+    // The method heartbeatInterval is documented in Heartbeat.java.
+    @Override
+    public long heartbeatInterval()
+    {
+        return LoadTable.INTERVAL;
+    }
+
+    /** Records the current storage servers of a file in the journal. */
+    private void logFile(Path file)
+    {
+        if(journal == null)
+            return;
+
+        Storage primary = PSmap.get(file);
+        HashSet<Storage> hosts = repStorage.get(file);
+
+        if(primary != null)
+            log(fileRecord(file, server_ids.get(primary), hostIds(hosts)));
+    }
+
+    /** Records a registering storage server in the journal, assigning it a
+        number if it is new. */
+    private void logServer(Storage client_stub, Command command_stub)
+    {
+        Integer id;
+
+        synchronized(servers)
+        {
+            id = server_ids.get(client_stub);
+            if(id == null)
+            {
+                id = servers.size();
+                servers.add(client_stub);
+                server_ids.put(client_stub, id);
+            }
+        }
+
+        if(journal != null)
+            log(serverRecord(id, client_stub, command_stub));
+    }
+
+    /** Appends a record to the journal, if there is one, and waits until it
+        is durable. */
+    private void log(byte[] record)
+    {
+        await(append(record));
+    }
+
+    /** Appends a record to the journal, if there is one.
+
+        @return The sequence number of the record, or zero if there is no
+                journal.
+     */
+    private long append(byte[] record)
+    {
+        if(journal == null)
+            return 0;
+
+        try
+        {
+            return journal.append(record);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("metadata journal failed", e);
+        }
+    }
+
+    /** Waits until the record with the given sequence number is durable. */
+    private void await(long sequence)
+    {
+        if(journal == null || sequence == 0)
+            return;
+
+        try
+        {
+            journal.await(sequence);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("metadata journal failed", e);
+        }
+    }
+
+    /** Returns the journal numbers of a set of storage servers, which may be
+        changing. */
+    private List<Integer> hostIds(Set<Storage> hosts)
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+
+        while(hosts != null)
+        {
+            try
+            {
+                for(Storage host : hosts)
+                {
+                    Integer id = server_ids.get(host);
+                    if(id != null)
+                        ids.add(id);
+                }
+                break;
+            }
+            catch(ConcurrentModificationException e)
+            {
+                ids.clear();
+            }
+        }
+
+        return ids;
+    }
+
+    /** Encoding of naming server metadata as journal records.
+
+        <p>
+        Each record gives the resulting state of one entry: a storage server
+        with its stubs, a file with the servers hosting it, a directory, or
+        the absence of a file or directory. Applying a record makes the entry
+        match it, creating or removing whatever is needed, so records can be
+        applied over a snapshot that already reflects them.
+     */
+    private class Metadata implements Journal.State
+    {
+        @Override
+        public void snapshot(final Journal.Sink sink) throws IOException
+        {
+            Storage[] known;
+
+            synchronized(servers)
+            {
+                known = servers.toArray(new Storage[0]);
+            }
+
+            for(int id = 0; id < known.length; ++id)
+            {
+                Command command = SCmap.get(known[id]);
+                if(command != null)
+                    sink.write(serverRecord(id, known[id], command));
+            }
+
+            namespace.walk(new NamespaceTree.Visitor()
+            {
+                @Override
+                public void directory(Path directory) throws IOException
+                {
+                    sink.write(directoryRecord(directory));
+                }
+
+                @Override
+                public void file(Path file) throws IOException
+                {
+                    Storage primary = PSmap.get(file);
+
+                    // A file without a server is still being added, and is
+                    // recorded in the journal once it has one.
+                    if(primary != null)
+                    {
+                        sink.write(fileRecord(file, server_ids.get(primary),
+                                              hostIds(repStorage.get(file))));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void apply(DataInputStream record) throws IOException
+        {
+            byte type = record.readByte();
+
+            if(type == SERVER)
+            {
+                int id = record.readInt();
+                ObjectInputStream stubs = new ObjectInputStream(record);
+                Storage storage;
+                Command command;
+
+                try
+                {
+                    storage = (Storage)stubs.readObject();
+                    command = (Command)stubs.readObject();
+                }
+                catch(ClassNotFoundException e)
+                {
+                    throw new IOException("unable to read stubs", e);
+                }
+
+                while(servers.size() <= id)
+                    servers.add(null);
+                servers.set(id, storage);
+                server_ids.put(storage, id);
+                SCmap.put(storage, command);
+                recovered.add(storage);
+                return;
+            }
+
+            Path path = new Path(record.readUTF());
+
+            if(type == DIRECTORY)
+            {
+                makeDirectories(path);
+            }
+            else if(type == FILE)
+            {
+                Storage primary = servers.get(record.readInt());
+                HashSet<Storage> hosts = new HashSet<Storage>();
+
+                for(int count = record.readInt(); count > 0; --count)
+                    hosts.add(servers.get(record.readInt()));
+
+                makeDirectories(path.parent());
+                if(namespace.isDirectory(path))
+                    forget(path);
+                namespace.createFile(path);
+                PSmap.put(path, primary);
+                repStorage.put(path, hosts);
+            }
+            else if(type == DELETE)
+            {
+                forget(path);
+            }
+            else
+                throw new IOException("unknown journal record " + type);
+        }
+
+        /** Creates a directory and its missing ancestors, replacing any files
+            in their way. */
+        private void makeDirectories(Path directory)
+        {
+            if(directory.isRoot())
+                return;
+
+            makeDirectories(directory.parent());
+
+            if(namespace.isFile(directory))
+                forget(directory);
+
+            namespace.createDirectory(directory);
+        }
+
+        /** Removes a file or directory, and everything recorded about the
+            files it contains. */
+        private void forget(Path path)
+        {
+            ArrayList<Path> files = new ArrayList<Path>();
+            namespace.files(path, files);
+
+            for(Path file : files)
+            {
+                PSmap.remove(file);
+                repStorage.remove(file);
+            }
+
+            namespace.remove(path);
+        }
+    }
+
+    /** Encodes a storage server record. */
+    private static byte[] serverRecord(int id, Storage storage, Command command)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+
+            output.writeByte(SERVER);
+            output.writeInt(id);
+
+            ObjectOutputStream stubs = new ObjectOutputStream(output);
+            stubs.writeObject(storage);
+            stubs.writeObject(command);
+            stubs.flush();
+
+            return bytes.toByteArray();
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException("unable to encode stubs", e);
+        }
+    }
+
+    /** Encodes a file record. */
+    private static byte[] fileRecord(Path file, int primary, List<Integer> ids)
+    {
+        if(!ids.contains(primary))
+            ids.add(primary);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        try
+        {
+            output.writeByte(FILE);
+            output.writeUTF(file.toString());
+            output.writeInt(primary);
+            output.writeInt(ids.size());
+            for(int id : ids)
+                output.writeInt(id);
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /** Encodes a directory record. */
+    private static byte[] directoryRecord(Path directory)
+    {
+        return pathRecord(DIRECTORY, directory);
+    }
+
+    /** Encodes a deletion record. */
+    private static byte[] deleteRecord(Path path)
+    {
+        return pathRecord(DELETE, path);
+    }
+
+    /** Encodes a record holding only a path. */
+    private static byte[] pathRecord(byte type, Path path)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        try
+        {
+            output.writeByte(type);
+            output.writeUTF(path.toString());
+        }
+        catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
 }
@@ -16,6 +16,10 @@ public abstract class NamingStubs
 
     /** Returns a stub for a naming server client service interface.
 
+        <p>
+        The stub also implements <code>LeaseService</code>,
+        <code>ReplicaService</code> and <code>CacheService</code>.
+
         @param hostname Naming server hostname.
         @param port Client service interface port.
      */
@@ -23,7 +27,7 @@ public abstract class NamingStubs
     {
         InetSocketAddress   address = new InetSocketAddress(hostname, port);
         
-        return Stub.create(Service.class, address);
+        return Stub.create(CacheService.class, address);
     }
 
     /** Returns a stub for a naming server client service interface.
@@ -40,13 +44,16 @@ public abstract class NamingStubs
 
     /** Returns a stub for a naming server registration interface.
 
+        <p>
+        The stub also implements <code>Heartbeat</code>.
+
         @param hostname Naming server hostname.
         @param port Registration interface port.
      */
     public static Registration registration(String hostname, int port)
     {
         InetSocketAddress   address = new InetSocketAddress(hostname, port);
-        return Stub.create(Registration.class, address);
+        return Stub.create(Heartbeat.class, address);
     }
 
     /** Returns a stub for a naming server registration interface.
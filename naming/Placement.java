@@ -0,0 +1,253 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import common.*;
+import storage.*;
+
+/** Strategy for choosing the storage servers that receive new files and
+    replicas.
+
+    <p>
+    The naming server describes each storage server eligible to receive data
+    as a <code>Candidate</code>, carrying the server's latest
+    <code>LoadReport</code>, if it has sent one, and the number of files
+    placed on it since. A strategy only chooses among candidates: subclasses
+    implement <code>choose</code>. Replicas are additionally spread across
+    zones: a new replica of a file goes to a server in a zone that does not
+    yet hold the file whenever there is one.
+
+    <p>
+    The strategy used by the naming server is given by the system property
+    <code>naming.placement</code>: <code>load</code> (the default) for
+    <code>LeastLoaded</code>, <code>capacity</code> for
+    <code>CapacityWeighted</code>, <code>random</code> for
+    <code>Uniform</code>, or the name of a subclass with a public
+    constructor taking no arguments.
+ */
+public abstract class Placement
+{
+    /** Storage server that may receive new data. */
+    public static class Candidate
+    {
+        /** Client service stub of the server. */
+        public final Storage        server;
+        /** Latest report from the server, or <code>null</code> if it has not
+            sent one. */
+        public final LoadReport     report;
+        /** Number of files placed on the server since the report. */
+        public final int            placed;
+
+        Candidate(Storage server, LoadReport report, int placed)
+        {
+            this.server = server;
+            this.report = report;
+            this.placed = placed;
+        }
+
+        /** Returns the estimated number of requests the server is serving:
+            the number reported, plus one for each file placed on it since.
+         */
+        public int load()
+        {
+            return (report == null ? 0 : report.requests) + placed;
+        }
+
+        /** Returns the zone of the server, or <code>null</code> if it is not
+            known. */
+        public String zone()
+        {
+            return report == null ? null : report.zone;
+        }
+    }
+
+    /** Chooses one of a non-empty list of candidates. */
+    protected abstract Candidate choose(List<Candidate> candidates);
+
+    /** Chooses the storage server to receive a new file.
+
+        @param file The new file.
+        @param candidates The storage servers that may receive the file.
+        @return The chosen server, or <code>null</code> if there are no
+                candidates.
+     */
+    public Storage place(Path file, List<Candidate> candidates)
+    {
+        if(candidates.isEmpty())
+            return null;
+
+        return choose(candidates).server;
+    }
+
+    /** Chooses the storage server to receive a new replica of a file.
+
+        <p>
+        Servers already hosting the file are not considered. Among the
+        others, servers in zones that do not yet hold the file are preferred;
+        servers whose zone is not known count as being in a new zone.
+
+        @param file The file to be replicated.
+        @param hosts The servers currently hosting the file.
+        @param candidates The storage servers that may receive the replica.
+        @return The chosen server, or <code>null</code> if every candidate
+                already hosts the file.
+     */
+    public Storage replicate(Path file, Set<Storage> hosts,
+                             List<Candidate> candidates)
+    {
+        Set<String>         zones = new HashSet<String>();
+        List<Candidate>     others = new ArrayList<Candidate>();
+
+        for(Candidate candidate : candidates)
+        {
+            if(!hosts.contains(candidate.server))
+                others.add(candidate);
+            else if(candidate.zone() != null)
+                zones.add(candidate.zone());
+        }
+
+        if(others.isEmpty())
+            return null;
+
+        List<Candidate>     spread = new ArrayList<Candidate>();
+
+        for(Candidate candidate : others)
+        {
+            if(candidate.zone() == null || !zones.contains(candidate.zone()))
+                spread.add(candidate);
+        }
+
+        return choose(spread.isEmpty() ? others : spread).server;
+    }
+
+    /** Returns the strategy named by the system property
+        <code>naming.placement</code>.
+
+        @throws IllegalArgumentException If the property names a class that
+                                         cannot be instantiated as a
+                                         strategy.
+     */
+    static Placement configured()
+    {
+        String              name = System.getProperty("naming.placement",
+                                                      "load");
+
+        if(name.equals("load"))
+            return new LeastLoaded();
+        if(name.equals("capacity"))
+            return new CapacityWeighted();
+        if(name.equals("random"))
+            return new Uniform();
+
+        try
+        {
+            return (Placement)Class.forName(name).getConstructor()
+                .newInstance();
+        }
+        catch(Exception e)
+        {
+            throw new IllegalArgumentException("unknown placement strategy " +
+                                               name, e);
+        }
+    }
+
+    /** Power-of-two-choices on load: picks two candidates at random, and
+        chooses the one with the lower estimated load.
+
+        <p>
+        Sampling two candidates rather than taking the least loaded one
+        avoids sending every new file to the same server between two reports,
+        while still keeping the most loaded servers from being chosen.
+     */
+    public static class LeastLoaded extends Placement
+    {
+        @Override
+        protected Candidate choose(List<Candidate> candidates)
+        {
+            int                 count = candidates.size();
+
+            if(count == 1)
+                return candidates.get(0);
+
+            ThreadLocalRandom   random = ThreadLocalRandom.current();
+            int                 first = random.nextInt(count);
+            int                 second = random.nextInt(count - 1);
+
+            if(second >= first)
+                ++second;
+
+            Candidate           one = candidates.get(first);
+            Candidate           other = candidates.get(second);
+
+            return other.load() < one.load() ? other : one;
+        }
+    }
+
+    /** Chooses a candidate at random, with probability proportional to its
+        free space. Candidates that have not reported are given the average
+        free space of those that have; if none has, all are equally likely.
+     */
+    public static class CapacityWeighted extends Placement
+    {
+        @Override
+        protected Candidate choose(List<Candidate> candidates)
+        {
+            long                known = 0;
+            int                 reported = 0;
+
+            for(Candidate candidate : candidates)
+            {
+                if(candidate.report != null)
+                {
+                    known += Math.max(0, candidate.report.free);
+                    ++reported;
+                }
+            }
+
+            long                unknown = reported == 0 ? 1 : known / reported;
+            double[]            weights = new double[candidates.size()];
+            double              total = 0;
+
+            for(int index = 0; index < weights.length; ++index)
+            {
+                LoadReport      report = candidates.get(index).report;
+
+                weights[index] = report == null ? unknown :
+                                 Math.max(0, report.free);
+                total += weights[index];
+            }
+
+            if(total <= 0)
+                return new Uniform().choose(candidates);
+
+            double              point =
+                ThreadLocalRandom.current().nextDouble(total);
+
+            for(int index = 0; index < weights.length; ++index)
+            {
+                point -= weights[index];
+
+                if(point < 0)
+                    return candidates.get(index);
+            }
+
+            return candidates.get(weights.length - 1);
+        }
+    }
+
+    /** Chooses a candidate uniformly at random, ignoring load and capacity.
+     */
+    public static class Uniform extends Placement
+    {
+        @Override
+        protected Candidate choose(List<Candidate> candidates)
+        {
+            return candidates.get(
+                ThreadLocalRandom.current().nextInt(candidates.size()));
+        }
+    }
+}
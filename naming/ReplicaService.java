@@ -0,0 +1,37 @@
+package naming;
+
+import java.io.*;
+import common.*;
+import rmi.RMIException;
+import storage.*;
+
+/** Naming server client service interface listing the replicas of a file.
+
+    <p>
+    <code>Service.getStorage</code> returns one storage server hosting a file.
+    A file that is read often is replicated on several servers, and a client
+    transferring a large file may read different parts of it from different
+    replicas at the same time. This interface lists all of them.
+
+    <p>
+    Stubs returned by <code>NamingStubs.service</code> implement this
+    interface.
+ */
+public interface ReplicaService extends LeaseService
+{
+    /** Returns the storage servers hosting up-to-date copies of a file.
+
+        <p>
+        The file should be locked for shared access, so that the list is not
+        changed by a write while it is being used.
+
+        @param file Path to the file.
+        @return The client interface stubs of the servers, at least one. The
+                server returned by <code>getStorage</code> is first.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+}
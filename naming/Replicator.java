@@ -0,0 +1,306 @@
+package naming;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+import storage.*;
+
+/** Background replication of frequently read files.
+
+    <p>
+    The naming server reports each read of a file, together with the number
+    of servers hosting it. The replicator keeps an exponentially decaying
+    count of the reads of each file, which halves every
+    <code>HALF_LIFE</code> milliseconds without reads, and derives from it
+    the file's target number of replicas: one, plus one for every
+    <code>READS_PER_REPLICA</code> reads in the decayed count, up to
+    <code>MAX_REPLICAS</code>. When a file has fewer replicas than its
+    target, one copy is scheduled on a pool of background threads, so that
+    readers never wait for a copy. At most one copy of each file is in
+    progress at a time.
+
+    <p>
+    Copies are performed by <code>replicate</code>, which the naming server
+    implements. A copy is made between two servers, each of which may take
+    part in at most <code>COPIES_PER_SERVER</code> copies at a time; a copy
+    for which no pair of servers is available is deferred until another copy
+    finishes.
+
+    <p>
+    The parameters are given by the system properties
+    <code>naming.replication.halflife</code> (milliseconds, default 10000),
+    <code>naming.replication.reads</code> (default 20),
+    <code>naming.replication.max</code> (default 3),
+    <code>naming.replication.copies</code> (default 2) and
+    <code>naming.replication.threads</code> (default 4).
+ */
+abstract class Replicator
+{
+    /** Time after which the read count of a file halves, in nanoseconds. */
+    static final long           HALF_LIFE = 1000000L *
+        Math.max(1, Long.getLong("naming.replication.halflife", 10000));
+    /** Number of reads in the decayed count calling for each replica beyond
+        the first. */
+    static final int            READS_PER_REPLICA =
+        Math.max(1, Integer.getInteger("naming.replication.reads", 20));
+    /** Largest target number of replicas. */
+    static final int            MAX_REPLICAS =
+        Math.max(1, Integer.getInteger("naming.replication.max", 3));
+    /** Number of copies a server may take part in at a time. */
+    static final int            COPIES_PER_SERVER =
+        Math.max(1, Integer.getInteger("naming.replication.copies", 2));
+    /** Number of threads performing copies. */
+    private static final int    THREADS =
+        Math.max(1, Integer.getInteger("naming.replication.threads", 4));
+
+    /** Read demand of each file that has been read. */
+    private final ConcurrentHashMap<Path, Demand>       demands =
+        new ConcurrentHashMap<Path, Demand>();
+    /** Number of copies each server is taking part in. */
+    private final ConcurrentHashMap<Storage, AtomicInteger> copies =
+        new ConcurrentHashMap<Storage, AtomicInteger>();
+    /** Files whose copy was deferred for lack of available servers. */
+    private final Set<Path>                             deferred =
+        ConcurrentHashMap.<Path>newKeySet();
+    /** Threads performing copies. */
+    private final ExecutorService                       workers =
+        Executors.newFixedThreadPool(THREADS, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread      thread = new Thread(task, "naming-replicator");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    /** Number of reservations released, by which a deferring copy detects
+        that a server may have become available meanwhile. */
+    private final AtomicInteger                         finished =
+        new AtomicInteger();
+    /** Number of replicas created. */
+    private final AtomicInteger                         created =
+        new AtomicInteger();
+
+    /** Read demand of a file. Guarded by the object. */
+    private static class Demand
+    {
+        /** Decayed number of reads. */
+        double              reads = 0;
+        /** Time at which <code>reads</code> was last updated. */
+        long                updated = System.nanoTime();
+        /** Target number of replicas. */
+        int                 target = 1;
+        /** Indicates that a copy of the file is scheduled or in progress. */
+        boolean             copying = false;
+    }
+
+    /** Outcome of <code>replicate</code>: a replica was created. */
+    static final int        CREATED = 0;
+    /** Outcome of <code>replicate</code>: no replica is needed or possible,
+        because the file no longer exists, the copy failed, or every server
+        already hosts the file. */
+    static final int        FAILED = 1;
+    /** Outcome of <code>replicate</code>: the servers able to take part in
+        the copy are busy with other copies. */
+    static final int        BUSY = 2;
+
+    /** Creates one replica of a file.
+
+        <p>
+        Called on a background thread. The implementation chooses a source
+        among the servers hosting the file and a destination among the
+        others, skipping servers for which <code>reserve</code> fails, and
+        calls <code>finish</code> on both once the copy is over. The replica
+        is to be made visible to clients only if the copy succeeds.
+
+        @param file The file to be replicated.
+        @return <code>CREATED</code>, <code>FAILED</code> or
+                <code>BUSY</code>.
+     */
+    abstract int replicate(Path file);
+
+    /** Records a read of a file, scheduling a copy if the file has fewer
+        replicas than its target.
+
+        @param file The file read.
+        @param replicas The number of servers currently hosting the file.
+     */
+    void read(Path file, int replicas)
+    {
+        Demand          demand = demands.get(file);
+
+        if(demand == null)
+        {
+            Demand      created = new Demand();
+
+            demand = demands.putIfAbsent(file, created);
+            if(demand == null)
+                demand = created;
+        }
+
+        synchronized(demand)
+        {
+            long        now = System.nanoTime();
+
+            demand.reads = demand.reads *
+                Math.pow(0.5, (double)(now - demand.updated) / HALF_LIFE) + 1;
+            demand.updated = now;
+            demand.target = Math.min(MAX_REPLICAS,
+                1 + (int)(demand.reads / READS_PER_REPLICA));
+
+            if(demand.copying || replicas >= demand.target)
+                return;
+
+            demand.copying = true;
+        }
+
+        schedule(file);
+    }
+
+    /** Returns the target number of replicas of a file. */
+    int target(Path file)
+    {
+        Demand          demand = demands.get(file);
+
+        if(demand == null)
+            return 1;
+
+        synchronized(demand)
+        {
+            return demand.target;
+        }
+    }
+
+    /** Forgets the read demand of a file that has been deleted. */
+    void forget(Path file)
+    {
+        demands.remove(file);
+        deferred.remove(file);
+    }
+
+    /** Reserves a server for one copy.
+
+        @return <code>true</code> if the server may take part in the copy,
+                <code>false</code> if it is taking part in as many copies as
+                allowed.
+     */
+    boolean reserve(Storage server)
+    {
+        AtomicInteger   count = copies.get(server);
+
+        if(count == null)
+        {
+            AtomicInteger   created = new AtomicInteger();
+
+            count = copies.putIfAbsent(server, created);
+            if(count == null)
+                count = created;
+        }
+
+        while(true)
+        {
+            int         current = count.get();
+
+            if(current >= COPIES_PER_SERVER)
+                return false;
+
+            if(count.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /** Releases a server reserved for a copy, and retries the deferred
+        copies. */
+    void finish(Storage server)
+    {
+        copies.get(server).decrementAndGet();
+        finished.incrementAndGet();
+
+        for(Path file : deferred)
+        {
+            if(deferred.remove(file))
+                schedule(file);
+        }
+    }
+
+    /** Returns the number of replicas created. */
+    int created()
+    {
+        return created.get();
+    }
+
+    /** Stops the background threads. Copies in progress are abandoned. */
+    void stop()
+    {
+        workers.shutdownNow();
+    }
+
+    /** Schedules a copy of a file marked as copying. */
+    private void schedule(final Path file)
+    {
+        try
+        {
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    copy(file);
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            // The replicator has been stopped.
+        }
+    }
+
+    /** Performs a scheduled copy of a file. */
+    private void copy(Path file)
+    {
+        int             outcome = FAILED;
+        int             released = finished.get();
+
+        try
+        {
+            outcome = replicate(file);
+        }
+        catch(RuntimeException e)
+        {
+            // The copy failed: the next read schedules another.
+        }
+
+        if(outcome == CREATED)
+            created.incrementAndGet();
+
+        if(outcome == BUSY)
+        {
+            deferred.add(file);
+
+            // A server released during the attempt would not have seen the
+            // file deferred.
+            if(finished.get() != released && deferred.remove(file))
+                schedule(file);
+
+            return;
+        }
+
+        Demand          demand = demands.get(file);
+
+        if(demand != null)
+        {
+            synchronized(demand)
+            {
+                demand.copying = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package naming;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** Timing wheel expiring timeouts on a background thread.
+
+    <p>
+    Time is divided into ticks, and the wheel has one slot for each tick over
+    a range that covers the longest timeout in use. Each timeout is linked
+    into the slot of the tick in which it expires, and is unlinked when it is
+    cancelled, so that scheduling and cancelling take constant time whatever
+    the number of pending timeouts. A background thread visits each slot once
+    its tick has passed, and expires the timeouts found there. A timeout may
+    therefore expire up to one tick late, but never early.
+
+    <p>
+    Extending a timeout only updates its deadline. The timeout stays in the
+    slot where it was first linked, and is moved to the slot of its new
+    deadline when the background thread reaches it, so that frequently
+    extended timeouts cost the thread at most one visit per tick range.
+    Deadlines further away than the range of the wheel are handled the same
+    way, by being passed over until their tick comes round.
+
+    <p>
+    The thread is started when the first timeout is scheduled, and runs until
+    <code>stop</code> is called.
+ */
+class TimingWheel
+{
+    /** Length of a tick, in nanoseconds. */
+    private final long          tick;
+    /** Slots of the wheel, one per tick. */
+    private final Slot[]        slots;
+    /** Name of the background thread. */
+    private final String        name;
+    /** Time from which ticks are counted. */
+    private final long          origin = System.nanoTime();
+    /** Last tick whose slot has been visited. */
+    private volatile long       visited = 0;
+
+    /** The background thread, or <code>null</code> if it is not running. */
+    private volatile Thread     worker = null;
+    /** Indicates that the wheel has been stopped. */
+    private volatile boolean    stopped = false;
+
+    /** Pending operation with a deadline.
+
+        <p>
+        The links of a timeout are guarded by the slot it is in.
+     */
+    abstract static class Timeout
+    {
+        /** Time at which the timeout expires, as given by
+            <code>System.nanoTime</code>. */
+        volatile long           deadline;
+        /** Slot holding the timeout, or <code>null</code> if it is not
+            linked into the wheel. */
+        Slot                    slot = null;
+        /** Previous timeout in the slot. */
+        Timeout                 previous = null;
+        /** Next timeout in the slot. */
+        Timeout                 next = null;
+
+        /** Called on the background thread when the deadline has passed. */
+        abstract void expire();
+    }
+
+    /** List of the timeouts expiring in a tick. */
+    private static class Slot
+    {
+        /** First timeout in the slot. */
+        Timeout                 head = null;
+    }
+
+    /** Creates a wheel.
+
+        @param tick Length of a tick, in nanoseconds.
+        @param range Longest timeout in common use, in nanoseconds. The wheel
+                     has enough slots to cover it.
+        @param name Name of the background thread.
+     */
+    TimingWheel(long tick, long range, String name)
+    {
+        this.tick = Math.max(1, tick);
+        this.name = name;
+
+        slots = new Slot[(int)Math.min(1 << 16, range / this.tick + 2)];
+        for(int index = 0; index < slots.length; ++index)
+            slots[index] = new Slot();
+    }
+
+    /** Schedules a timeout.
+
+        @param timeout The timeout, which must not be scheduled already.
+        @param deadline Time at which the timeout is to expire, as given by
+                        <code>System.nanoTime</code>.
+     */
+    void schedule(Timeout timeout, long deadline)
+    {
+        timeout.deadline = deadline;
+        link(timeout);
+
+        if(worker == null)
+            start();
+    }
+
+    /** Removes a timeout from the wheel, if it has not already expired. */
+    void cancel(Timeout timeout)
+    {
+        Slot            slot = timeout.slot;
+
+        if(slot == null)
+            return;
+
+        synchronized(slot)
+        {
+            // The background thread may have taken the timeout out of the
+            // slot in the meantime.
+            if(timeout.slot != slot)
+                return;
+
+            if(timeout.previous == null)
+                slot.head = timeout.next;
+            else
+                timeout.previous.next = timeout.next;
+
+            if(timeout.next != null)
+                timeout.next.previous = timeout.previous;
+
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+
+    /** Stops the background thread. Pending timeouts do not expire. */
+    void stop()
+    {
+        Thread          thread;
+
+        synchronized(this)
+        {
+            stopped = true;
+            thread = worker;
+        }
+
+        if(thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /** Links a timeout into the slot of its deadline, or of the next tick to
+        be visited if the deadline is earlier. */
+    private void link(Timeout timeout)
+    {
+        while(true)
+        {
+            long        at = Math.max(tickOf(timeout.deadline), visited + 1);
+            Slot        slot = slots[(int)(at % slots.length)];
+
+            synchronized(slot)
+            {
+                // If the background thread has started visiting the slot
+                // since the tick was chosen, it may already have emptied it.
+                if(at <= visited)
+                    continue;
+
+                timeout.slot = slot;
+                timeout.previous = null;
+                timeout.next = slot.head;
+
+                if(slot.head != null)
+                    slot.head.previous = timeout;
+
+                slot.head = timeout;
+                return;
+            }
+        }
+    }
+
+    /** Returns the tick containing a time. */
+    private long tickOf(long time)
+    {
+        return Math.max(0, time - origin) / tick;
+    }
+
+    /** Starts the background thread, if it is not running. */
+    private synchronized void start()
+    {
+        if(worker != null || stopped)
+            return;
+
+        worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                turn();
+            }
+        }, name);
+
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Visits each slot once its tick has passed, until stopped. */
+    private void turn()
+    {
+        while(!stopped)
+        {
+            long        now = System.nanoTime();
+            long        current = tickOf(now);
+
+            // Visit the slots of every tick that has ended.
+            while(visited + 1 < current && !stopped)
+                visit(visited + 1, now);
+
+            LockSupport.parkNanos(this, origin + (visited + 2) * tick -
+                                        System.nanoTime());
+        }
+    }
+
+    /** Expires or moves the timeouts in the slot of a tick that has ended. */
+    private void visit(long at, long now)
+    {
+        Slot            slot = slots[(int)(at % slots.length)];
+        Timeout         timeout;
+
+        // Published before the slot is emptied, so that timeouts linked from
+        // now on go to later slots.
+        visited = at;
+
+        synchronized(slot)
+        {
+            timeout = slot.head;
+            slot.head = null;
+
+            for(Timeout unlinked = timeout; unlinked != null;
+                unlinked = unlinked.next)
+            {
+                unlinked.slot = null;
+            }
+        }
+
+        while(timeout != null)
+        {
+            Timeout     next = timeout.next;
+
+            timeout.previous = null;
+            timeout.next = null;
+
+            if(timeout.deadline <= now)
+                timeout.expire();
+            else
+                link(timeout);
+
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package rmi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/** Persistent, non-blocking connection from asynchronous stubs to a
+    skeleton.
+
+    <p>
+    An asynchronous connection always uses the binary wire protocol, whose
+    frames carry their own length. After the handshake, which is performed in
+    blocking mode by the thread opening the connection, the channel is
+    switched to non-blocking mode and handed to the shared
+    <code>EventLoop</code>.
+    Sending a request only queues its frame and returns a future; the event
+    loop writes queued frames as the socket accepts them, and completes the
+    future of each call when its response frame has been read. No thread is
+    held while a call is in flight.
+
+    <p>
+    When the connection fails, every call still waiting for a response is
+    completed exceptionally, and the connection is marked closed so that
+    <code>ConnectionPool</code> replaces it on the next call.
+ */
+class AsyncConnection extends FrameChannel
+{
+    /** Encoder and decoder of frames. */
+    private final BinaryFraming         framing;
+
+    /** Calls waiting for a response, by correlation id. */
+    private final Map<Long, PendingCall>    pending =
+        new ConcurrentHashMap<Long, PendingCall>();
+    /** Source of correlation ids. */
+    private final AtomicLong            next_id = new AtomicLong();
+    /** Returns the request of a call waiting for a response. */
+    private final LongFunction<Request> requests = new LongFunction<Request>()
+    {
+        @Override
+        public Request apply(long id)
+        {
+            PendingCall     call = pending.get(id);
+            return call == null ? null : call.request;
+        }
+    };
+
+    /** Creates a connection over a channel whose handshake is complete. */
+    private AsyncConnection(SocketChannel channel, BinaryFraming framing,
+                            EventLoop loop)
+    {
+        super(channel, loop);
+        this.framing = framing;
+    }
+
+    /** Opens a connection to the skeleton at the given address.
+
+        @param address Address of the skeleton.
+        @param c Remote interface served by the skeleton.
+        @return The connection, registered with the shared event loop.
+        @throws IOException If the connection cannot be established, or the
+                            skeleton refuses the binary protocol for the
+                            given interface.
+     */
+    static AsyncConnection open(InetSocketAddress address, Class<?> c)
+        throws IOException
+    {
+        SocketChannel   channel = SocketChannel.open();
+        AsyncConnection connection;
+
+        try
+        {
+            channel.connect(address);
+            channel.socket().setTcpNoDelay(true);
+
+            // The input stream is not buffered: it must not consume bytes
+            // beyond the handshake, since the rest of the stream is read
+            // directly from the channel.
+            BinaryFraming   framing = BinaryFraming.connect(
+                new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel))),
+                new DataInputStream(Channels.newInputStream(channel)), c);
+
+            if(framing == null)
+            {
+                throw new IOException("skeleton at " + address + " does not " +
+                                      "serve " + c.getName() + " over the " +
+                                      "binary protocol");
+            }
+
+            channel.configureBlocking(false);
+
+            connection = new AsyncConnection(channel, framing,
+                                             EventLoop.shared());
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        // Registration is queued ahead of any flush requested by a call.
+        connection.register();
+
+        return connection;
+    }
+
+    /** Sends a request without waiting for the response.
+
+        @param request The request to send. Its correlation id is assigned by
+                       this method.
+        @return A future that is completed with the response, or completed
+                exceptionally with an <code>RMIException</code> if the
+                connection fails first.
+        @throws RMIException If the connection is already closed, or the
+                             request cannot be encoded.
+     */
+    CompletableFuture<Response> send(Request request) throws RMIException
+    {
+        if(isClosed())
+            throw new RMIException("connection is closed");
+
+        ByteBuffer      frame;
+        PendingCall     call = new PendingCall(request);
+
+        request.id = next_id.incrementAndGet();
+
+        try
+        {
+            frame = framing.requestFrame(request);
+        }
+        catch(IOException e)
+        {
+            throw new RMIException("unable to encode request", e);
+        }
+
+        // Register the call before queueing the request, so that the event
+        // loop cannot receive the response before it knows of the call.
+        pending.put(request.id, call);
+        write(frame);
+
+        // The connection may have failed between the check above and the
+        // registration of the call, in which case nobody else will complete
+        // the future.
+        if(isClosed() && pending.remove(request.id) != null)
+            throw new RMIException("connection is closed");
+
+        return call;
+    }
+
+    /** Completes the call answered by a response frame. */
+    @Override
+    void received(ByteBuffer body) throws IOException
+    {
+        Response        response = framing.decodeResponse(body, requests);
+        PendingCall     call = pending.remove(response.id);
+
+        if(call != null)
+            call.complete(response);
+    }
+
+    /** Fails all calls waiting for a response. */
+    @Override
+    void closed(Throwable cause)
+    {
+        RMIException    exception = cause instanceof RMIException ?
+            (RMIException)cause :
+            new RMIException("connection to skeleton failed", cause);
+
+        for(Long id : pending.keySet())
+        {
+            PendingCall     call = pending.remove(id);
+
+            if(call != null)
+                call.completeExceptionally(exception);
+        }
+    }
+
+    /** Call waiting for its response. */
+    private static class PendingCall extends CompletableFuture<Response>
+    {
+        /** The request that was sent. */
+        final Request   request;
+
+        PendingCall(Request request)
+        {
+            this.request = request;
+        }
+    }
+}
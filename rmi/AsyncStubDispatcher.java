@@ -0,0 +1,164 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/** Invocation handler of asynchronous stubs.
+
+    <p>
+    An asynchronous stub implements an interface that mirrors a remote
+    interface: each of its methods has the name and parameter types of a
+    remote method, but returns a <code>CompletableFuture</code> of the result
+    instead of the result itself. Calls are sent over a non-blocking
+    <code>AsyncConnection</code> and return at once. The future is completed
+    with the value returned by the remote method, or completed exceptionally
+    with the exception thrown by the remote method, or with an
+    <code>RMIException</code> if the call could not be made.
+
+    <p>
+    Futures are completed by the event loop thread. Dependent actions that
+    block, including synchronous remote calls, must be registered with the
+    <code>Async</code> variants of the <code>CompletableFuture</code> methods.
+ */
+class AsyncStubDispatcher implements InvocationHandler, Serializable
+{
+    private static final long serialVersionUID = -6000213906745134581L;
+
+    /** Address of the skeleton. */
+    final InetSocketAddress             address;
+    /** Remote interface served by the skeleton. */
+    final Class<?>                      remote_interface;
+    /** Remote methods, by the asynchronous methods mirroring them. Rebuilt on
+        first use after deserialization. */
+    private transient volatile Map<Method, Method>  targets = null;
+
+    /** Creates the handler of an asynchronous stub.
+
+        @param address Address of the skeleton.
+        @param remote_interface Remote interface served by the skeleton.
+     */
+    AsyncStubDispatcher(InetSocketAddress address, Class<?> remote_interface)
+    {
+        this.address = address;
+        this.remote_interface = remote_interface;
+    }
+
+    /** Returns the remote methods mirrored by the methods of an asynchronous
+        interface.
+
+        @param c The asynchronous interface.
+        @param remote_interface The remote interface.
+        @return Map from each method of <code>c</code> to the corresponding
+                remote method.
+        @throws Error If a method of <code>c</code> does not return
+                      <code>CompletableFuture</code>, or has no counterpart
+                      in the remote interface.
+     */
+    static Map<Method, Method> targets(Class<?> c, Class<?> remote_interface)
+    {
+        Map<Method, Method>     targets = new HashMap<Method, Method>();
+
+        for(Method method : c.getMethods())
+        {
+            if(method.getReturnType() != CompletableFuture.class)
+            {
+                throw new Error(method.getName() + " does not return " +
+                                "CompletableFuture");
+            }
+
+            try
+            {
+                targets.put(method, remote_interface.getMethod(
+                    method.getName(), method.getParameterTypes()));
+            }
+            catch(NoSuchMethodException e)
+            {
+                throw new Error(method.getName() + " is not a method of " +
+                                remote_interface.getName());
+            }
+        }
+
+        return targets;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+    {
+        if(method.getDeclaringClass() == Object.class)
+            return invokeLocal(proxy, method, args);
+
+        Map<Method, Method>     current = targets;
+
+        if(current == null)
+        {
+            current = targets(method.getDeclaringClass(), remote_interface);
+            targets = current;
+        }
+
+        final CompletableFuture<Object>     result =
+            new CompletableFuture<Object>();
+        CompletableFuture<Response>         response;
+
+        try
+        {
+            AsyncConnection     connection =
+                ConnectionPool.acquireAsync(address, remote_interface);
+
+            response = connection.send(new Request(current.get(method), args));
+        }
+        catch(RMIException e)
+        {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        response.whenComplete(new BiConsumer<Response, Throwable>()
+        {
+            @Override
+            public void accept(Response response, Throwable failure)
+            {
+                if(failure != null)
+                    result.completeExceptionally(failure);
+                else if(response.exception != null)
+                    result.completeExceptionally(response.exception);
+                else
+                    result.complete(response.result);
+            }
+        });
+
+        return result;
+    }
+
+    /** Implements the methods of <code>Object</code>. Two asynchronous stubs
+        are equal if they implement the same interface and carry the same
+        skeleton address. */
+    private Object invokeLocal(Object proxy, Method method, Object[] args)
+    {
+        if(method.getName().equals("equals"))
+        {
+            Object      other = args[0];
+
+            if(other == null || other.getClass() != proxy.getClass())
+                return false;
+
+            InvocationHandler   handler = Proxy.getInvocationHandler(other);
+
+            return handler instanceof AsyncStubDispatcher &&
+                   address.equals(((AsyncStubDispatcher)handler).address);
+        }
+
+        if(method.getName().equals("hashCode"))
+            return address.hashCode() + proxy.getClass().hashCode();
+
+        return "asynchronous stub for " + remote_interface.getName() +
+               " at " + address;
+    }
+}
@@ -0,0 +1,328 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/** Batch of calls to a single remote object.
+
+    <p>
+    A batch collects calls made on a stub and sends them to the skeleton
+    together, in a single request. The skeleton makes the calls in order and
+    returns all their results in a single response. This saves a round trip
+    per call when a client makes many small, independent calls, such as
+    checking the type of every entry in a directory listing.
+
+    <p>
+    Calls are queued on the recording object returned by <code>queue</code>,
+    which implements the remote interface. The recording object does not
+    contact the server: each call returns <code>null</code>, zero or
+    <code>false</code>, and the actual outcome becomes available from
+    <code>flush</code>. Each queued call has its own <code>Result</code>, so an
+    exception thrown by one call, such as a
+    <code>FileNotFoundException</code>, does not affect the others.
+
+    <p>
+    For example:
+    <pre>
+    Batch&lt;Service&gt;    batch = new Batch&lt;Service&gt;(service);
+
+    for(String name : service.list(directory))
+        batch.queue().isDirectory(new Path(directory, name));
+
+    List&lt;Batch.Result&gt;    results = batch.flush();
+    </pre>
+
+    <p>
+    Batches require the persistent connections of this package. If connection
+    reuse has been disabled with the <code>rmi.connection.reuse</code> system
+    property, the calls of a batch are made one at a time. A batch is not
+    thread-safe.
+ */
+public class Batch<T>
+{
+    /** Stub through which the calls are made. */
+    private final T                 stub;
+    /** Handler of the stub. */
+    private final ClientStubDispatcher  handler;
+    /** Remote interface of the stub. */
+    private final Class<?>          remote_interface;
+    /** Recording object returned by <code>queue</code>. */
+    private final T                 recorder;
+    /** Calls queued since the last flush. */
+    private List<Request>           calls = new ArrayList<Request>();
+
+    /** Outcome of one call in a batch. */
+    public static class Result
+    {
+        /** Value returned by the call. */
+        private final Object        value;
+        /** Exception thrown by the call, or <code>null</code>. */
+        private final Throwable     exception;
+
+        /** Creates a result. */
+        Result(Object value, Throwable exception)
+        {
+            this.value = value;
+            this.exception = exception;
+        }
+
+        /** Returns the value returned by the call, boxed if it is primitive.
+
+            @return The value, or <code>null</code> if the method is
+                    <code>void</code>.
+            @throws Exception The exception thrown by the call, if any.
+         */
+        public Object get() throws Exception
+        {
+            if(exception instanceof Exception)
+                throw (Exception)exception;
+
+            if(exception instanceof Error)
+                throw (Error)exception;
+
+            if(exception != null)
+                throw new RMIException(exception);
+
+            return value;
+        }
+
+        /** Returns <code>true</code> if the call threw an exception. */
+        public boolean failed()
+        {
+            return exception != null;
+        }
+
+        /** Returns the exception thrown by the call, or <code>null</code> if
+            the call returned normally. */
+        public Throwable exception()
+        {
+            return exception;
+        }
+    }
+
+    /** Creates an empty batch of calls to the given stub.
+
+        @param stub A stub created by <code>Stub.create</code>.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub
+                                         created by this package.
+     */
+    @SuppressWarnings("unchecked")
+    public Batch(T stub)
+    {
+        if(stub == null)
+            throw new NullPointerException("stub is null");
+
+        if(!Proxy.isProxyClass(stub.getClass()) ||
+           !(Proxy.getInvocationHandler(stub) instanceof ClientStubDispatcher))
+        {
+            throw new IllegalArgumentException("not a stub");
+        }
+
+        this.stub = stub;
+        handler = (ClientStubDispatcher)Proxy.getInvocationHandler(stub);
+        remote_interface = handler.remoteInterface != null ?
+            handler.remoteInterface : stub.getClass().getInterfaces()[0];
+
+        recorder = (T)Proxy.newProxyInstance(
+            stub.getClass().getClassLoader(), new Class<?>[] {remote_interface},
+            new Recorder());
+    }
+
+    /** Returns the object on which calls are queued. It implements the remote
+        interface of the stub. */
+    public T queue()
+    {
+        return recorder;
+    }
+
+    /** Returns the number of calls queued since the last flush. */
+    public int size()
+    {
+        return calls.size();
+    }
+
+    /** Sends the queued calls to the server and waits for their results. The
+        batch is emptied and may be reused.
+
+        @return The results of the calls, in the order in which they were
+                queued.
+        @throws RMIException If the batch could not be sent, or the connection
+                             failed before the results were received. In that
+                             case, it is not known which calls were made.
+     */
+    public List<Result> flush() throws RMIException
+    {
+        Request[]       queued = take();
+
+        if(queued.length == 0)
+            return Collections.emptyList();
+
+        if(!ConnectionPool.ENABLED)
+            return callEach(queued);
+
+        Connection      connection =
+            ConnectionPool.acquire(handler.srvrAddress, remote_interface);
+
+        return results(connection.call(new Request(queued)));
+    }
+
+    /** Sends the queued calls to the server without waiting for their
+        results. The batch is emptied and may be reused.
+
+        <p>
+        The batch is sent over the non-blocking connections used by
+        asynchronous stubs: see <code>Stub.createAsync</code>.
+
+        @return A future completed with the results of the calls, in the order
+                in which they were queued, or completed exceptionally with an
+                <code>RMIException</code> if the batch could not be sent or
+                the connection failed.
+     */
+    public CompletableFuture<List<Result>> flushAsync()
+    {
+        final CompletableFuture<List<Result>>   results =
+            new CompletableFuture<List<Result>>();
+        Request[]                               queued = take();
+
+        if(queued.length == 0)
+        {
+            results.complete(Collections.<Result>emptyList());
+            return results;
+        }
+
+        CompletableFuture<Response>             response;
+
+        try
+        {
+            response = ConnectionPool.acquireAsync(
+                handler.srvrAddress, remote_interface).send(
+                    new Request(queued));
+        }
+        catch(RMIException e)
+        {
+            results.completeExceptionally(e);
+            return results;
+        }
+
+        response.whenComplete(new BiConsumer<Response, Throwable>()
+        {
+            @Override
+            public void accept(Response response, Throwable failure)
+            {
+                if(failure != null)
+                    results.completeExceptionally(failure);
+                else
+                    results.complete(results(response));
+            }
+        });
+
+        return results;
+    }
+
+    /** Removes and returns the queued calls. */
+    private Request[] take()
+    {
+        Request[]       queued = calls.toArray(new Request[calls.size()]);
+
+        calls = new ArrayList<Request>();
+
+        return queued;
+    }
+
+    /** Converts the response to a batch request into a list of results. */
+    private static List<Result> results(Response response)
+    {
+        List<Result>    results =
+            new ArrayList<Result>(response.results.length);
+
+        for(Response call : response.results)
+            results.add(new Result(call.result, call.exception));
+
+        return results;
+    }
+
+    /** Makes the given calls one at a time through the stub. */
+    private List<Result> callEach(Request[] queued) throws RMIException
+    {
+        List<Result>    results = new ArrayList<Result>(queued.length);
+
+        for(Request call : queued)
+        {
+            try
+            {
+                results.add(new Result(call.target.invoke(stub, call.args),
+                                       null));
+            }
+            catch(InvocationTargetException e)
+            {
+                Throwable   cause = e.getTargetException();
+
+                // A failure to reach the server applies to the whole batch,
+                // as it does when the batch is sent in one request.
+                if(cause instanceof RMIException)
+                    throw (RMIException)cause;
+
+                results.add(new Result(null, cause));
+            }
+            catch(IllegalAccessException e)
+            {
+                throw new RMIException(e);
+            }
+        }
+
+        return results;
+    }
+
+    /** Invocation handler of the recording object. */
+    private class Recorder implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if(method.getDeclaringClass() == Object.class)
+            {
+                if(method.getName().equals("equals"))
+                    return proxy == args[0];
+                if(method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                return "batch recorder for " + stub;
+            }
+
+            calls.add(new Request(method, args));
+
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /** Returns the value returned by the recording object for a method with
+        the given return type. */
+    private static Object defaultValue(Class<?> type)
+    {
+        if(!type.isPrimitive() || type == void.class)
+            return null;
+        if(type == boolean.class)
+            return false;
+        if(type == char.class)
+            return (char)0;
+        if(type == byte.class)
+            return (byte)0;
+        if(type == short.class)
+            return (short)0;
+        if(type == int.class)
+            return 0;
+        if(type == long.class)
+            return 0L;
+        if(type == float.class)
+            return 0f;
+        return 0d;
+    }
+}
@@ -0,0 +1,322 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import common.Path;
+
+/** Encoders for values and exceptions in the binary wire protocol.
+
+    <p>
+    Values are encoded according to the type declared in the remote
+    interface, so no type information is sent for them. Primitives are written
+    in their fixed-size big-endian form. Byte arrays, strings, paths, and
+    arrays of strings and paths have compact length-prefixed encodings. Values
+    of any other type, such as stubs passed as arguments, are written using
+    Java serialization, prefixed by their length.
+
+    <p>
+    Exceptions of the types commonly thrown by the filesystem interfaces are
+    encoded as a one-byte type code and the exception message. Stack traces
+    and causes of such exceptions are not transmitted. All other exceptions are
+    serialized in full.
+ */
+abstract class BinaryCodec
+{
+    /** Exception types with compact encodings. The code of each type is its
+        index in this array plus one. Only exact instances of these classes
+        are encoded compactly. */
+    private static final Class<?>[]     EXCEPTIONS =
+        {FileNotFoundException.class, IOException.class,
+         IndexOutOfBoundsException.class, NullPointerException.class,
+         IllegalArgumentException.class, IllegalStateException.class,
+         RMIException.class, SecurityException.class,
+         UnsupportedOperationException.class};
+
+    /** Writes a value of the given declared type.
+
+        @param output Stream to receive the value.
+        @param type Declared type of the value.
+        @param value The value.
+        @throws IOException If the value cannot be written.
+     */
+    static void write(DataOutputStream output, Class<?> type, Object value)
+        throws IOException
+    {
+        if(type == void.class)
+            return;
+
+        if(type.isPrimitive())
+        {
+            if(type == int.class)
+                output.writeInt((Integer)value);
+            else if(type == long.class)
+                output.writeLong((Long)value);
+            else if(type == boolean.class)
+                output.writeBoolean((Boolean)value);
+            else if(type == byte.class)
+                output.writeByte((Byte)value);
+            else if(type == short.class)
+                output.writeShort((Short)value);
+            else if(type == char.class)
+                output.writeChar((Character)value);
+            else if(type == float.class)
+                output.writeFloat((Float)value);
+            else
+                output.writeDouble((Double)value);
+
+            return;
+        }
+
+        if(type == byte[].class)
+        {
+            byte[]      bytes = (byte[])value;
+
+            if(bytes == null)
+                output.writeInt(-1);
+            else
+            {
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+        else if(type == String.class)
+            writeString(output, (String)value);
+        else if(type == Path.class)
+            writeString(output, value == null ? null : value.toString());
+        else if(type == String[].class || type == Path[].class)
+        {
+            Object[]    items = (Object[])value;
+
+            if(items == null)
+                output.writeInt(-1);
+            else
+            {
+                output.writeInt(items.length);
+
+                for(Object item : items)
+                    writeString(output, item == null ? null : item.toString());
+            }
+        }
+        else
+            writeSerialized(output, value);
+    }
+
+    /** Reads a value of the given declared type.
+
+        @param input Stream from which the value is read.
+        @param type Declared type of the value.
+        @return The value.
+        @throws IOException If the value cannot be read.
+     */
+    static Object read(DataInputStream input, Class<?> type)
+        throws IOException
+    {
+        if(type == void.class)
+            return null;
+
+        if(type.isPrimitive())
+        {
+            if(type == int.class)
+                return input.readInt();
+            if(type == long.class)
+                return input.readLong();
+            if(type == boolean.class)
+                return input.readBoolean();
+            if(type == byte.class)
+                return input.readByte();
+            if(type == short.class)
+                return input.readShort();
+            if(type == char.class)
+                return input.readChar();
+            if(type == float.class)
+                return input.readFloat();
+
+            return input.readDouble();
+        }
+
+        if(type == byte[].class)
+        {
+            int         length = input.readInt();
+
+            if(length < 0)
+                return null;
+
+            byte[]      bytes = new byte[length];
+            input.readFully(bytes);
+            return bytes;
+        }
+
+        if(type == String.class)
+            return readString(input);
+
+        if(type == Path.class)
+        {
+            String      path = readString(input);
+            return path == null ? null : new Path(path);
+        }
+
+        if(type == String[].class || type == Path[].class)
+        {
+            int         count = input.readInt();
+
+            if(count < 0)
+                return null;
+
+            boolean     paths = type == Path[].class;
+            Object[]    items = paths ? new Path[count] : new String[count];
+
+            for(int index = 0; index < count; ++index)
+            {
+                String  item = readString(input);
+
+                if(item != null)
+                    items[index] = paths ? new Path(item) : item;
+            }
+
+            return items;
+        }
+
+        return readSerialized(input);
+    }
+
+    /** Writes an exception.
+
+        @param output Stream to receive the exception.
+        @param exception The exception.
+        @throws IOException If the exception cannot be written.
+     */
+    static void writeException(DataOutputStream output, Throwable exception)
+        throws IOException
+    {
+        for(int index = 0; index < EXCEPTIONS.length; ++index)
+        {
+            if(exception.getClass() == EXCEPTIONS[index])
+            {
+                output.writeByte(index + 1);
+                writeString(output, exception.getMessage());
+                return;
+            }
+        }
+
+        output.writeByte(0);
+        writeSerialized(output, exception);
+    }
+
+    /** Reads an exception.
+
+        @param input Stream from which the exception is read.
+        @return The exception.
+        @throws IOException If the exception cannot be read.
+     */
+    static Throwable readException(DataInputStream input) throws IOException
+    {
+        int         code = input.readUnsignedByte();
+
+        if(code == 0)
+        {
+            Object  exception = readSerialized(input);
+
+            if(!(exception instanceof Throwable))
+                throw new InvalidObjectException("exception expected");
+
+            return (Throwable)exception;
+        }
+
+        if(code > EXCEPTIONS.length)
+            throw new InvalidObjectException("unknown exception code " + code);
+
+        String      message = readString(input);
+
+        try
+        {
+            return (Throwable)EXCEPTIONS[code - 1]
+                .getConstructor(String.class).newInstance(message);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            throw new InvalidObjectException("cannot create exception");
+        }
+    }
+
+    /** Writes a string, which may be <code>null</code>, as UTF-8. */
+    static void writeString(DataOutputStream output, String value)
+        throws IOException
+    {
+        if(value == null)
+        {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[]      bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Reads a string written by <code>writeString</code>. */
+    static String readString(DataInputStream input) throws IOException
+    {
+        int         length = input.readInt();
+
+        if(length < 0)
+            return null;
+
+        byte[]      bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes an object using Java serialization, prefixed by its length. */
+    private static void writeSerialized(DataOutputStream output, Object value)
+        throws IOException
+    {
+        if(value == null)
+        {
+            output.writeInt(-1);
+            return;
+        }
+
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        ObjectOutputStream      stream = new ObjectOutputStream(buffer);
+
+        stream.writeObject(value);
+        stream.close();
+
+        output.writeInt(buffer.size());
+        buffer.writeTo(output);
+    }
+
+    /** Reads an object written by <code>writeSerialized</code>. */
+    private static Object readSerialized(DataInputStream input)
+        throws IOException
+    {
+        int         length = input.readInt();
+
+        if(length < 0)
+            return null;
+
+        byte[]      bytes = new byte[length];
+        input.readFully(bytes);
+
+        ObjectInputStream   stream =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+        try
+        {
+            return stream.readObject();
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new IOException("cannot deserialize value", e);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.function.LongFunction;
+
+/** Framing using the compact binary wire protocol.
+
+    <p>
+    A binary connection opens with a handshake. The stub sends the protocol
+    magic number and version, the name of the remote interface and the
+    fingerprint of its <code>MethodTable</code>. The skeleton answers with a
+    single byte, which is non-zero if it serves the same interface. Because the
+    magic number differs from the header of a Java serialization stream, a
+    skeleton can tell binary stubs from serialization-based stubs by the first
+    bytes they send.
+
+    <p>
+    After the handshake, a request frame consists of the correlation id, the
+    method id, and the arguments encoded by <code>BinaryCodec</code> according
+    to the parameter types of the method. A response frame consists of the
+    correlation id, a status byte, and either the result, encoded according to
+    the return type of the method, or the exception thrown.
+
+    <p>
+    A batch request frame carries the reserved method id <code>BATCH</code>,
+    the number of calls, and the method id and arguments of each call. The
+    response frame carries the status <code>RESULTS</code>, the number of
+    calls, and the status and result or exception of each call.
+
+    <p>
+    Every frame is preceded by its length in bytes. This allows frames to be
+    read from non-blocking channels, which deliver them in arbitrary pieces:
+    see <code>AsyncConnection</code>. The methods <code>requestFrame</code>,
+    <code>responseFrame</code>, <code>decodeRequest</code> and
+    <code>decodeResponse</code> convert between frames and buffers for that
+    purpose; the stream-based methods of <code>Framing</code> are implemented
+    on top of them.
+ */
+class BinaryFraming extends Framing
+{
+    /** Magic number opening a binary connection: <code>"RMIB"</code>. */
+    static final int        MAGIC = 0x524d4942;
+    /** Protocol version. */
+    static final int        VERSION = 2;
+    /** Largest frame accepted, in bytes. */
+    static final int        MAX_FRAME = 1 << 30;
+
+    /** Status of a response carrying a result. */
+    private static final int    RESULT = 0;
+    /** Status of a response carrying an exception. */
+    private static final int    EXCEPTION = 1;
+    /** Status of a response carrying the results of a batch. */
+    private static final int    RESULTS = 2;
+    /** Method id of a batch request. */
+    private static final int    BATCH = 0xffff;
+
+    /** Stream carrying outgoing frames. Connections that perform their own
+        I/O use this stream only for the handshake. */
+    private final DataOutputStream  output;
+    /** Stream carrying incoming frames. Connections that perform their own
+        I/O use this stream only for the handshake. */
+    private final DataInputStream   input;
+    /** Method table of the remote interface. */
+    private final MethodTable       table;
+
+    /** Creates the framing for a connection whose handshake is complete. */
+    private BinaryFraming(DataOutputStream output, DataInputStream input,
+                          MethodTable table)
+    {
+        this.output = output;
+        this.input = input;
+        this.table = table;
+    }
+
+    /** Performs the stub side of the handshake.
+
+        @param output Stream to the skeleton.
+        @param input Stream from the skeleton.
+        @param c The remote interface.
+        @return The framing, or <code>null</code> if the skeleton refused the
+                interface.
+        @throws IOException If the handshake cannot be completed, which is the
+                            case when the skeleton predates the binary
+                            protocol.
+     */
+    static BinaryFraming connect(DataOutputStream output,
+                                 DataInputStream input, Class<?> c)
+        throws IOException
+    {
+        MethodTable     table = MethodTable.forInterface(c);
+
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        BinaryCodec.writeString(output, c.getName());
+        output.writeLong(table.fingerprint());
+        output.flush();
+
+        if(input.readUnsignedByte() == 0)
+            return null;
+
+        return new BinaryFraming(output, input, table);
+    }
+
+    /** Performs the skeleton side of the handshake, after the magic number
+        has been read.
+
+        @param output Stream to the stub.
+        @param input Stream from the stub.
+        @param c The interface served by the skeleton.
+        @return The framing, or <code>null</code> if the stub was created for
+                a different interface or protocol version, in which case the
+                refusal has been sent.
+        @throws IOException If the handshake cannot be completed.
+     */
+    static BinaryFraming accept(DataOutputStream output,
+                                DataInputStream input, Class<?> c)
+        throws IOException
+    {
+        MethodTable     table = MethodTable.forInterface(c);
+
+        int             version = input.readUnsignedByte();
+        String          name = BinaryCodec.readString(input);
+        long            fingerprint = input.readLong();
+
+        boolean         accepted = version == VERSION &&
+                                   c.getName().equals(name) &&
+                                   fingerprint == table.fingerprint();
+
+        output.writeByte(accepted ? 1 : 0);
+        output.flush();
+
+        return accepted ? new BinaryFraming(output, input, table) : null;
+    }
+
+    @Override
+    void writeRequest(Request request) throws IOException
+    {
+        ByteBuffer  frame = requestFrame(request);
+
+        synchronized(output)
+        {
+            output.write(frame.array(), 0, frame.limit());
+            output.flush();
+        }
+    }
+
+    @Override
+    Request readRequest() throws IOException
+    {
+        return decodeRequest(readFrame());
+    }
+
+    @Override
+    void writeResponse(Request request, Response response) throws IOException
+    {
+        ByteBuffer  frame = responseFrame(request, response);
+
+        synchronized(output)
+        {
+            output.write(frame.array(), 0, frame.limit());
+            output.flush();
+        }
+    }
+
+    @Override
+    Response readResponse(LongFunction<Request> requests) throws IOException
+    {
+        return decodeResponse(readFrame(), requests);
+    }
+
+    /** Encodes a request.
+
+        @param request The request.
+        @return A buffer holding the complete frame, including its length,
+                between position zero and its limit.
+        @throws IOException If the request is not a call to a method of the
+                            remote interface, or an argument cannot be
+                            encoded.
+     */
+    ByteBuffer requestFrame(Request request) throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        frame = new DataOutputStream(bytes);
+
+        frame.writeInt(0);
+        frame.writeLong(request.id);
+
+        if(request.calls != null)
+        {
+            frame.writeShort(BATCH);
+            frame.writeInt(request.calls.length);
+
+            for(Request call : request.calls)
+                writeCall(frame, call);
+        }
+        else
+            writeCall(frame, request);
+
+        return finish(frame, bytes);
+    }
+
+    /** Encodes a response.
+
+        @param request The request being answered.
+        @param response The response.
+        @return A buffer holding the complete frame, including its length,
+                between position zero and its limit.
+        @throws IOException If the result or exception cannot be encoded.
+     */
+    ByteBuffer responseFrame(Request request, Response response)
+        throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        frame = new DataOutputStream(bytes);
+
+        frame.writeInt(0);
+        frame.writeLong(response.id);
+
+        if(response.results != null)
+        {
+            frame.writeByte(RESULTS);
+            frame.writeInt(response.results.length);
+
+            for(int index = 0; index < response.results.length; ++index)
+            {
+                writeOutcome(frame, request.calls[index],
+                             response.results[index]);
+            }
+        }
+        else
+            writeOutcome(frame, request, response);
+
+        return finish(frame, bytes);
+    }
+
+    /** Decodes a request.
+
+        @param body The frame, without its length, between the position and
+                    the limit of the buffer.
+        @return The request.
+        @throws IOException If the frame is malformed.
+     */
+    Request decodeRequest(ByteBuffer body) throws IOException
+    {
+        DataInputStream     frame = open(body);
+
+        long                id = frame.readLong();
+        int                 method_id = frame.readUnsignedShort();
+        Request             request;
+
+        if(method_id == BATCH)
+        {
+            Request[]       calls = new Request[readCount(frame)];
+
+            for(int index = 0; index < calls.length; ++index)
+                calls[index] = readCall(frame, frame.readUnsignedShort());
+
+            request = new Request(calls);
+        }
+        else
+            request = readCall(frame, method_id);
+
+        request.id = id;
+        return request;
+    }
+
+    /** Decodes a response.
+
+        @param body The frame, without its length, between the position and
+                    the limit of the buffer.
+        @param requests Returns the outstanding request with a given
+                        correlation id, or <code>null</code> if there is none.
+        @return The response.
+        @throws IOException If the frame is malformed.
+     */
+    Response decodeResponse(ByteBuffer body, LongFunction<Request> requests)
+        throws IOException
+    {
+        DataInputStream     frame = open(body);
+
+        long                id = frame.readLong();
+        int                 status = frame.readUnsignedByte();
+
+        if(status == EXCEPTION)
+            return new Response(id, null, BinaryCodec.readException(frame));
+
+        Request             request = requests.apply(id);
+
+        if(request == null)
+            throw new InvalidObjectException("response to unknown request");
+
+        if(status != RESULTS)
+            return readOutcome(frame, id, status, request);
+
+        Response[]          results = new Response[readCount(frame)];
+
+        if(request.calls == null || request.calls.length != results.length)
+            throw new InvalidObjectException("response does not match batch");
+
+        for(int index = 0; index < results.length; ++index)
+        {
+            results[index] = readOutcome(frame, id, frame.readUnsignedByte(),
+                                         request.calls[index]);
+        }
+
+        return new Response(id, results);
+    }
+
+    /** Writes the method id and arguments of a single call. */
+    private void writeCall(DataOutputStream frame, Request call)
+        throws IOException
+    {
+        int         id = table.id(call.target);
+
+        if(id < 0)
+            throw new IOException(call.method + " is not a remote method");
+
+        Class<?>[]  types = call.target.getParameterTypes();
+
+        frame.writeShort(id);
+
+        for(int index = 0; index < types.length; ++index)
+            BinaryCodec.write(frame, types[index], call.args[index]);
+    }
+
+    /** Reads the arguments of a single call, given its method id. */
+    private Request readCall(DataInputStream frame, int id) throws IOException
+    {
+        Method      method = table.method(id);
+
+        if(method == null)
+            throw new InvalidObjectException("unknown method id");
+
+        Class<?>[]  types = method.getParameterTypes();
+        Object[]    args = new Object[types.length];
+
+        for(int index = 0; index < types.length; ++index)
+            args[index] = BinaryCodec.read(frame, types[index]);
+
+        return new Request(method, args);
+    }
+
+    /** Writes the status and result or exception of a single call. */
+    private static void writeOutcome(DataOutputStream frame, Request call,
+                                     Response response)
+        throws IOException
+    {
+        if(response.exception != null)
+        {
+            frame.writeByte(EXCEPTION);
+            BinaryCodec.writeException(frame, response.exception);
+        }
+        else
+        {
+            frame.writeByte(RESULT);
+            BinaryCodec.write(frame, call.target.getReturnType(),
+                              response.result);
+        }
+    }
+
+    /** Reads the result or exception of a single call, given its status. */
+    private static Response readOutcome(DataInputStream frame, long id,
+                                        int status, Request call)
+        throws IOException
+    {
+        if(status == EXCEPTION)
+            return new Response(id, null, BinaryCodec.readException(frame));
+
+        if(status != RESULT)
+            throw new InvalidObjectException("bad response status " + status);
+
+        return new Response(id, BinaryCodec.read(frame,
+                                call.target.getReturnType()), null);
+    }
+
+    /** Reads the number of calls in a batch. */
+    private static int readCount(DataInputStream frame) throws IOException
+    {
+        int         count = frame.readInt();
+
+        if(count < 0 || count > MAX_FRAME)
+            throw new InvalidObjectException("bad batch size " + count);
+
+        return count;
+    }
+
+    /** Checks the length of an incoming frame.
+
+        @param length The length read from the connection.
+        @throws StreamCorruptedException If the length is out of range.
+     */
+    static void checkLength(int length) throws StreamCorruptedException
+    {
+        if(length < 0 || length > MAX_FRAME)
+            throw new StreamCorruptedException("bad frame length " + length);
+    }
+
+    /** Reads the next frame from the input stream, without its length. */
+    private ByteBuffer readFrame() throws IOException
+    {
+        int         length = input.readInt();
+        checkLength(length);
+
+        byte[]      body = new byte[length];
+        input.readFully(body);
+
+        return ByteBuffer.wrap(body);
+    }
+
+    /** Fills in the length of an encoded frame and returns its buffer. */
+    private static ByteBuffer finish(DataOutputStream frame,
+                                     ByteArrayOutputStream bytes)
+        throws IOException
+    {
+        frame.flush();
+
+        ByteBuffer  buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, buffer.limit() - 4);
+
+        return buffer;
+    }
+
+    /** Returns a stream reading the remaining bytes of a buffer. */
+    private static DataInputStream open(ByteBuffer body)
+    {
+        if(body.hasArray())
+        {
+            return new DataInputStream(new ByteArrayInputStream(
+                body.array(), body.arrayOffset() + body.position(),
+                body.remaining()));
+        }
+
+        byte[]      copy = new byte[body.remaining()];
+        body.duplicate().get(copy);
+
+        return new DataInputStream(new ByteArrayInputStream(copy));
+    }
+}
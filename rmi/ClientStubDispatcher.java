@@ -6,29 +6,43 @@ import java.io.Serializable;
 import java.lang.reflect.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Arrays;
 
 public class ClientStubDispatcher implements InvocationHandler , Serializable  
 {
 	InetSocketAddress srvrAddress;
+	/** Remote interface implemented by the stub, or <code>null</code> if not
+	    known, in which case the declaring class of each method is used. */
+	Class<?> remoteInterface;
+	/** Dispatch table of the remote interface. It is not serialized, and is
+	    rebuilt from the cache on first use after deserialization. */
+	private transient volatile MethodTable table;
 	public ClientStubDispatcher(InetSocketAddress srvrAddress ) 
 	{
 		this.srvrAddress = srvrAddress;
 	}
+
+	public ClientStubDispatcher(InetSocketAddress srvrAddress, Class<?> remoteInterface)
+	{
+		this.srvrAddress = srvrAddress;
+		this.remoteInterface = remoteInterface;
+		this.table = MethodTable.forInterface(remoteInterface);
+	}
 	
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable 
 	{
 		try 
 		{
-			boolean isRemoteFlag = false;
-			Class[] exceptionTypes = method.getExceptionTypes();
-			for(Class e : exceptionTypes) 
-			{
-				if(e.equals(RMIException.class)) 
-				{
-					isRemoteFlag = true;
-		        }			
-			}
+			boolean isRemoteFlag;
+			MethodTable t = table;
+			if(t == null && remoteInterface != null)
+				table = t = MethodTable.forInterface(remoteInterface);
+			int id = t == null ? -1 : t.id(method);
+			if(id >= 0)
+				isRemoteFlag = t.isRemote(id);
+			else
+				isRemoteFlag = Arrays.asList(method.getExceptionTypes()).contains(RMIException.class);
 			if(isRemoteFlag==true)
 			{
 				return invokeRemote(proxy,method,args);
@@ -78,9 +92,20 @@ public class ClientStubDispatcher implements InvocationHandler , Serializable
          return Boolean.TRUE;
 	}
 
-	private Object invokeRemote(Object proxy, Method method, Object[] args) throws Throwable 
+	private Object invokeRemote(Object proxy, Method method, Object[] args) throws Throwable
 	{
-		Socket socket   = null; 
+		if(ConnectionPool.ENABLED)
+		{
+			// Send the call as one frame on a pooled persistent connection.
+			Class<?> c = remoteInterface != null ? remoteInterface : method.getDeclaringClass();
+			Connection connection = ConnectionPool.acquire(srvrAddress, c);
+			Response response = connection.call(new Request(method, args));
+			if(response.exception != null)
+				throw response.exception;
+			return response.result;
+		}
+
+		Socket socket   = null;
         Integer result  = null;
         Object obj      = null;
         ObjectOutputStream out=null;
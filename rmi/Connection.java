@@ -0,0 +1,272 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/** Persistent, multiplexed connection from stubs to a skeleton.
+
+    <p>
+    A connection carries any number of request and response frames, encoded
+    by a <code>Framing</code>. Each request is tagged with a correlation id,
+    and a single reader thread matches incoming responses to waiting callers by
+    that id. Calls made from several threads may therefore be in flight on the
+    same socket at once.
+
+    <p>
+    When the connection fails, every call still waiting for a response
+    receives an <code>RMIException</code>, and the connection is marked closed
+    so that <code>ConnectionPool</code> replaces it on the next call.
+ */
+class Connection implements Runnable
+{
+    /** Socket connected to the skeleton. */
+    private final Socket                socket;
+    /** Encoding of frames on the socket. */
+    private final Framing               framing;
+
+    /** Calls waiting for a response, by correlation id. */
+    private final Map<Long, PendingCall>    pending =
+        new ConcurrentHashMap<Long, PendingCall>();
+    /** Source of correlation ids. */
+    private final AtomicLong            next_id = new AtomicLong();
+
+    /** Indicates that the connection can no longer be used. */
+    private volatile boolean            closed = false;
+
+    /** Creates a connection over a connected socket. The reader thread is
+        started by <code>open</code>. */
+    private Connection(Socket socket, Framing framing)
+    {
+        this.socket = socket;
+        this.framing = framing;
+    }
+
+    /** Opens a connection to the skeleton at the given address.
+
+        @param address Address of the skeleton.
+        @param c Remote interface served by the skeleton.
+        @param binary If <code>true</code>, the binary wire protocol is
+                      offered to the skeleton. If the skeleton does not accept
+                      it, <code>null</code> is returned and the caller should
+                      retry with Java serialization.
+        @param timeout Time in milliseconds to wait for the skeleton to answer
+                       the opening of the connection, or zero to wait
+                       indefinitely.
+        @return The connection, with its reader thread running, or
+                <code>null</code> if the binary protocol was refused.
+        @throws IOException If the connection cannot be established.
+     */
+    static Connection open(InetSocketAddress address, Class<?> c,
+                           boolean binary, int timeout)
+        throws IOException
+    {
+        Socket      socket = new Socket();
+        Framing     framing;
+
+        try
+        {
+            socket.connect(address);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+
+            if(binary)
+            {
+                framing = BinaryFraming.connect(
+                    new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream())),
+                    new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream())), c);
+
+                if(framing == null)
+                {
+                    socket.close();
+                    return null;
+                }
+            }
+            else
+            {
+                ObjectOutputStream  output = new ObjectOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+                output.flush();
+
+                framing = new ObjectFraming(output, new ObjectInputStream(
+                    new BufferedInputStream(socket.getInputStream())));
+            }
+
+            socket.setSoTimeout(0);
+        }
+        catch(IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        Connection  connection = new Connection(socket, framing);
+        Thread      reader =
+            new Thread(connection, "rmi-connection-" + address);
+
+        reader.setDaemon(true);
+        reader.start();
+
+        return connection;
+    }
+
+    /** Returns <code>true</code> if the connection has failed or been
+        closed. */
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /** Sends a request and waits for the matching response.
+
+        @param request The request to send. Its correlation id is assigned by
+                       this method.
+        @return The response from the skeleton.
+        @throws RMIException If the request cannot be sent, or the connection
+                             fails before the response arrives.
+     */
+    Response call(Request request) throws RMIException
+    {
+        CompletableFuture<Response>     future = send(request);
+
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            // The call stays registered: the reader thread must still be able
+            // to decode its response when it arrives.
+            Thread.currentThread().interrupt();
+            throw new RMIException("interrupted while waiting for response",
+                                   e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new RMIException("connection to " +
+                                   socket.getRemoteSocketAddress() +
+                                   " failed", e.getCause());
+        }
+    }
+
+    /** Sends a request without waiting for the response.
+
+        @param request The request to send. Its correlation id is assigned by
+                       this method.
+        @return A future that is completed with the response, or completed
+                exceptionally if the connection fails first.
+        @throws RMIException If the connection is already closed, or the
+                             request cannot be written.
+     */
+    CompletableFuture<Response> send(Request request) throws RMIException
+    {
+        if(closed)
+            throw new RMIException("connection is closed");
+
+        PendingCall     call = new PendingCall(request);
+
+        // Register the call before writing the request, so that the reader
+        // thread cannot receive the response before it knows of the call.
+        request.id = next_id.incrementAndGet();
+        pending.put(request.id, call);
+
+        try
+        {
+            framing.writeRequest(request);
+        }
+        catch(IOException e)
+        {
+            pending.remove(request.id);
+            close(e);
+            throw new RMIException("unable to send request", e);
+        }
+
+        // The connection may have failed between the check above and the
+        // registration of the call, in which case nobody else will complete
+        // the future.
+        if(closed && pending.remove(request.id) != null)
+            throw new RMIException("connection is closed");
+
+        return call;
+    }
+
+    /** Reads response frames and hands each one to its waiting caller. */
+    @Override
+    public void run()
+    {
+        LongFunction<Request>   requests = new LongFunction<Request>()
+        {
+            @Override
+            public Request apply(long id)
+            {
+                PendingCall     call = pending.get(id);
+                return call == null ? null : call.request;
+            }
+        };
+
+        try
+        {
+            while(true)
+            {
+                Response        response = framing.readResponse(requests);
+                PendingCall     call = pending.remove(response.id);
+
+                if(call != null)
+                    call.complete(response);
+            }
+        }
+        catch(Throwable t)
+        {
+            close(t);
+        }
+    }
+
+    /** Closes the connection and fails all calls waiting on it.
+
+        @param cause The reason for closing the connection.
+     */
+    void close(Throwable cause)
+    {
+        closed = true;
+
+        try
+        {
+            socket.close();
+        }
+        catch(IOException e) { }
+
+        for(Long id : pending.keySet())
+        {
+            PendingCall     call = pending.remove(id);
+
+            if(call != null)
+                call.completeExceptionally(cause);
+        }
+    }
+
+    /** Call waiting for its response. */
+    private static class PendingCall extends CompletableFuture<Response>
+    {
+        /** The request that was sent. */
+        final Request   request;
+
+        PendingCall(Request request)
+        {
+            this.request = request;
+        }
+    }
+}
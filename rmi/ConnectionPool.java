@@ -0,0 +1,204 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pool of persistent connections, shared by all stubs in the process.
+
+    <p>
+    The pool keeps a small, fixed number of connections to each skeleton
+    address. Calls are spread over the connections of an address in
+    round-robin order, and each connection multiplexes any number of
+    concurrent calls. Connections that have failed are replaced the next time
+    their slot is chosen.
+
+    <p>
+    Connection reuse is enabled by default. It can be disabled by setting the
+    system property <code>rmi.connection.reuse</code> to <code>false</code>, in
+    which case stubs open a new connection for every call. The number of
+    connections per address is given by the system property
+    <code>rmi.connection.pool</code>.
+
+    <p>
+    When the system property <code>rmi.codec</code> is set to
+    <code>binary</code>, new connections offer the compact binary wire protocol
+    described in <code>BinaryFraming</code>. Skeletons that refuse the binary
+    handshake, or that predate it, are remembered, and Java serialization is
+    used for them instead.
+
+    <p>
+    Asynchronous stubs share a single non-blocking connection to each
+    skeleton address, since a connection driven by the event loop is never
+    held by a call in progress.
+ */
+abstract class ConnectionPool
+{
+    /** Indicates that stubs should use pooled persistent connections. */
+    static final boolean    ENABLED =
+        Boolean.parseBoolean(System.getProperty("rmi.connection.reuse",
+                                                "true"));
+    /** Indicates that new connections should offer the binary protocol. */
+    static final boolean    BINARY =
+        "binary".equals(System.getProperty("rmi.codec"));
+    /** Time in milliseconds that a skeleton which has dropped a binary
+        handshake is given to answer the serialization handshake that
+        follows. */
+    private static final int    FALLBACK_TIMEOUT = 1000;
+    /** Number of connections kept to each address. */
+    private static final int    SIZE =
+        Math.max(1, Integer.getInteger("rmi.connection.pool", 2));
+
+    /** Connection slots for each skeleton address and remote interface. */
+    private static final ConcurrentHashMap<Map.Entry<InetSocketAddress,
+                                                     Class<?>>, Connection[]>
+                            pools =
+        new ConcurrentHashMap<Map.Entry<InetSocketAddress, Class<?>>,
+                              Connection[]>();
+    /** Non-blocking connections for each skeleton address and remote
+        interface. */
+    private static final ConcurrentHashMap<Map.Entry<InetSocketAddress,
+                                                     Class<?>>, AsyncConnection>
+                            async_connections =
+        new ConcurrentHashMap<Map.Entry<InetSocketAddress, Class<?>>,
+                              AsyncConnection>();
+    /** Addresses of skeletons that do not accept the binary protocol. */
+    private static final Set<InetSocketAddress>     serialization_only =
+        ConcurrentHashMap.newKeySet();
+    /** Round-robin counter used to choose a slot. */
+    private static final AtomicInteger  next_slot = new AtomicInteger();
+
+    /** Returns an open connection to the given address.
+
+        <p>
+        If the chosen slot is empty or holds a closed connection, a new
+        connection is opened in its place.
+
+        @param address Address of the skeleton.
+        @param c Remote interface served by the skeleton.
+        @return A connection to the skeleton.
+        @throws RMIException If a new connection cannot be established.
+     */
+    static Connection acquire(InetSocketAddress address, Class<?> c)
+        throws RMIException
+    {
+        Map.Entry<InetSocketAddress, Class<?>>  key =
+            new AbstractMap.SimpleImmutableEntry<InetSocketAddress, Class<?>>(
+                address, c);
+        Connection[]    slots = pools.get(key);
+
+        if(slots == null)
+        {
+            pools.putIfAbsent(key, new Connection[SIZE]);
+            slots = pools.get(key);
+        }
+
+        int             index = Math.floorMod(next_slot.getAndIncrement(),
+                                              SIZE);
+
+        synchronized(slots)
+        {
+            Connection  connection = slots[index];
+
+            if(connection == null || connection.isClosed())
+            {
+                try
+                {
+                    connection = open(address, c);
+                }
+                catch(IOException e)
+                {
+                    throw new RMIException("unable to connect to " + address,
+                                           e);
+                }
+
+                slots[index] = connection;
+            }
+
+            return connection;
+        }
+    }
+
+    /** Returns an open non-blocking connection to the given address.
+
+        @param address Address of the skeleton.
+        @param c Remote interface served by the skeleton.
+        @return A connection to the skeleton.
+        @throws RMIException If a new connection cannot be established.
+     */
+    static AsyncConnection acquireAsync(InetSocketAddress address, Class<?> c)
+        throws RMIException
+    {
+        Map.Entry<InetSocketAddress, Class<?>>  key =
+            new AbstractMap.SimpleImmutableEntry<InetSocketAddress, Class<?>>(
+                address, c);
+        AsyncConnection connection = async_connections.get(key);
+
+        if(connection != null && !connection.isClosed())
+            return connection;
+
+        synchronized(async_connections)
+        {
+            connection = async_connections.get(key);
+
+            if(connection == null || connection.isClosed())
+            {
+                try
+                {
+                    connection = AsyncConnection.open(address, c);
+                }
+                catch(IOException e)
+                {
+                    throw new RMIException("unable to connect to " + address,
+                                           e);
+                }
+
+                async_connections.put(key, connection);
+            }
+
+            return connection;
+        }
+    }
+
+    /** Opens a new connection, using the binary protocol if it is enabled and
+        the skeleton accepts it. */
+    private static Connection open(InetSocketAddress address, Class<?> c)
+        throws IOException
+    {
+        if(BINARY && !serialization_only.contains(address))
+        {
+            Connection  connection;
+
+            try
+            {
+                connection = Connection.open(address, c, true, 0);
+            }
+            catch(ConnectException e)
+            {
+                throw e;
+            }
+            catch(IOException e)
+            {
+                // A skeleton that predates the binary protocol drops the
+                // connection when it fails to read a serialization header.
+                connection = null;
+            }
+
+            if(connection != null)
+                return connection;
+
+            serialization_only.add(address);
+
+            // A skeleton that predates the binary protocol answers at once. Do
+            // not wait indefinitely on a peer that is not a skeleton at all.
+            return Connection.open(address, c, false, FALLBACK_TIMEOUT);
+        }
+
+        return Connection.open(address, c, false, 0);
+    }
+}
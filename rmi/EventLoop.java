@@ -0,0 +1,238 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Selector thread driving non-blocking channels.
+
+    <p>
+    An event loop owns a <code>Selector</code> and a single daemon thread. All
+    operations on the selection keys of its channels are made by that thread:
+    other threads submit them as tasks with <code>execute</code>, which wakes
+    the selector. A single event loop can therefore serve any number of
+    connections without dedicating a thread to each.
+
+    <p>
+    Handlers are run by the event loop thread and must not block. In
+    particular, futures completed by a handler run their dependent actions in
+    the event loop thread, unless they are registered with the
+    <code>Async</code> variants of the <code>CompletableFuture</code> methods.
+ */
+class EventLoop implements Runnable
+{
+    /** Event loop shared by all asynchronous stubs in the process. */
+    private static EventLoop            shared = null;
+
+    /** Selector watching the registered channels. */
+    private final Selector              selector;
+    /** Tasks waiting to be run by the event loop thread. */
+    private final Queue<Runnable>       tasks =
+        new ConcurrentLinkedQueue<Runnable>();
+    /** The event loop thread. */
+    private final Thread                thread;
+    /** Indicates that the event loop has been asked to terminate. */
+    private volatile boolean            shutdown = false;
+
+    /** Receives readiness events for a registered channel. */
+    interface Handler
+    {
+        /** Called when the channel is ready for some of the operations in its
+            interest set.
+
+            @param key The selection key of the channel.
+            @throws IOException If the operation fails. The handler is then
+                                notified through <code>failed</code>.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /** Called when an operation on the channel has failed. The key has
+            already been cancelled.
+
+            @param cause The reason for the failure.
+         */
+        void failed(Throwable cause);
+    }
+
+    /** Creates an event loop and starts its thread.
+
+        @param name Name of the event loop thread.
+        @throws IOException If the selector cannot be opened.
+     */
+    EventLoop(String name) throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Returns the event loop shared by all asynchronous stubs, starting it
+        if necessary.
+
+        @throws IOException If the selector cannot be opened.
+     */
+    static synchronized EventLoop shared() throws IOException
+    {
+        if(shared == null)
+            shared = new EventLoop("rmi-event-loop");
+
+        return shared;
+    }
+
+    /** Returns <code>true</code> if the calling thread is the event loop
+        thread. */
+    boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Runs a task in the event loop thread.
+
+        @param task The task. Exceptions thrown by the task are ignored.
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Terminates the event loop. Every channel registered with it is closed,
+        and its handler notified through <code>failed</code>.
+
+        <p>
+        Unless called from the event loop thread itself, this method waits for
+        the thread to exit. Sockets of closed channels are only released once
+        the selector has dropped their keys, so a listening port is free for
+        reuse when this method returns.
+     */
+    void shutdown()
+    {
+        shutdown = true;
+        selector.wakeup();
+
+        if(inEventLoop())
+            return;
+
+        boolean     interrupted = false;
+
+        while(thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Returns the selection key of a channel registered with the event loop,
+        or <code>null</code> if the channel is not registered. */
+    SelectionKey keyFor(SelectableChannel channel)
+    {
+        return channel.keyFor(selector);
+    }
+
+    /** Registers a non-blocking channel with the event loop.
+
+        @param channel The channel.
+        @param operations The initial interest set.
+        @param handler Handler to be notified of events on the channel.
+     */
+    void register(final SelectableChannel channel, final int operations,
+                  final Handler handler)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    channel.register(selector, operations, handler);
+                }
+                catch(ClosedChannelException e)
+                {
+                    handler.failed(e);
+                }
+            }
+        });
+    }
+
+    /** Runs the event loop. */
+    @Override
+    public void run()
+    {
+        while(!shutdown)
+        {
+            try
+            {
+                selector.select();
+            }
+            catch(IOException e)
+            {
+                // Nothing can be done about a broken selector except to keep
+                // running the tasks submitted to the loop.
+            }
+
+            Runnable                task;
+            while((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch(RuntimeException e) { }
+            }
+
+            Iterator<SelectionKey>  keys = selector.selectedKeys().iterator();
+
+            while(keys.hasNext())
+            {
+                SelectionKey        key = keys.next();
+                Handler             handler = (Handler)key.attachment();
+
+                keys.remove();
+
+                try
+                {
+                    if(key.isValid())
+                        handler.ready(key);
+                }
+                catch(IOException | RuntimeException e)
+                {
+                    key.cancel();
+                    handler.failed(e);
+                }
+            }
+        }
+
+        for(SelectionKey key : selector.keys())
+        {
+            try
+            {
+                key.channel().close();
+            }
+            catch(IOException e) { }
+
+            ((Handler)key.attachment()).failed(new ClosedChannelException());
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch(IOException e) { }
+    }
+}
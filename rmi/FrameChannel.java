@@ -0,0 +1,289 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Non-blocking socket channel carrying length-prefixed frames.
+
+    <p>
+    A frame channel is driven by an <code>EventLoop</code>. Frames to be sent
+    may be queued from any thread with <code>write</code>; the event loop
+    writes them as the socket accepts them. Incoming bytes are accumulated
+    until a whole frame, as delimited by its four-byte length, is available,
+    and the frame is then passed to <code>received</code> in the event loop
+    thread.
+
+    <p>
+    Subclasses may consume bytes that precede the first frame, such as a
+    handshake, by overriding <code>preamble</code>. When the channel fails or
+    is closed, <code>closed</code> is called once.
+ */
+abstract class FrameChannel implements EventLoop.Handler
+{
+    /** Initial size of the receive buffer. Kept small so that idle channels
+        are cheap; the buffer grows to hold the largest frame received, and
+        shrinks back once it has been emptied. */
+    private static final int            BUFFER_SIZE = 1024;
+
+    /** The channel. */
+    final SocketChannel                 channel;
+    /** Event loop driving the channel. */
+    final EventLoop                     loop;
+
+    /** Frames waiting to be written. */
+    private final Queue<ByteBuffer>     outgoing =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    /** Indicates that a flush of the outgoing frames has been requested from
+        the event loop and has not yet run. */
+    private final AtomicBoolean         flush_scheduled = new AtomicBoolean();
+    /** Task writing the outgoing frames. */
+    private final Runnable              flush_task = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush_scheduled.set(false);
+
+            try
+            {
+                flush();
+            }
+            catch(IOException e)
+            {
+                failed(e);
+            }
+        }
+    };
+
+    /** Buffer receiving incoming bytes. Used only by the event loop. */
+    private ByteBuffer                  read_buffer =
+        ByteBuffer.allocate(BUFFER_SIZE);
+    /** Indicates that the preamble has been consumed. Used only by the event
+        loop. */
+    private boolean                     preamble_done = false;
+    /** Indicates that the channel is to be closed once all queued frames
+        have been written. */
+    private volatile boolean            closing = false;
+    /** Indicates that the channel can no longer be used. */
+    private final AtomicBoolean         closed = new AtomicBoolean();
+
+    /** Creates a frame channel. The channel must be in non-blocking mode, and
+        is registered with the event loop by <code>register</code>. */
+    FrameChannel(SocketChannel channel, EventLoop loop)
+    {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /** Registers the channel with its event loop. Frames queued before the
+        registration is processed are written once it has been. */
+    void register()
+    {
+        loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    /** Returns <code>true</code> if the channel has failed or been closed. */
+    boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    /** Queues a frame for writing.
+
+        @param frame The complete frame, between the position and the limit
+                     of the buffer.
+     */
+    void write(ByteBuffer frame)
+    {
+        outgoing.add(frame);
+
+        if(flush_scheduled.compareAndSet(false, true))
+            loop.execute(flush_task);
+    }
+
+    /** Closes the channel once all frames queued so far have been written. */
+    void closeAfterFlush()
+    {
+        closing = true;
+
+        if(flush_scheduled.compareAndSet(false, true))
+            loop.execute(flush_task);
+    }
+
+    /** Consumes bytes received before the first frame. Called by the event
+        loop thread whenever bytes arrive, until it returns <code>true</code>.
+        The default implementation expects no preamble.
+
+        @param buffer Bytes received so far, between the position and the
+                      limit. Bytes consumed are skipped by advancing the
+                      position.
+        @return <code>true</code> if the preamble is complete and the rest of
+                the stream consists of frames, <code>false</code> if more
+                bytes are needed.
+        @throws IOException If the preamble is malformed.
+     */
+    boolean preamble(ByteBuffer buffer) throws IOException
+    {
+        return true;
+    }
+
+    /** Called by the event loop thread for every frame received.
+
+        @param body The frame, without its length, between the position and
+                    the limit of the buffer. The buffer is only valid for the
+                    duration of the call.
+        @throws IOException If the frame is malformed.
+     */
+    abstract void received(ByteBuffer body) throws IOException;
+
+    /** Called once when the channel has failed or been closed.
+
+        @param cause The reason, or <code>null</code> if the channel was
+                     closed normally.
+     */
+    abstract void closed(Throwable cause);
+
+    /** Reads incoming frames and writes queued frames as the channel
+        allows. */
+    @Override
+    public void ready(SelectionKey key) throws IOException
+    {
+        if(key.isWritable())
+            flush();
+
+        if(key.isValid() && key.isReadable())
+            read();
+    }
+
+    /** Closes the channel. */
+    @Override
+    public void failed(Throwable cause)
+    {
+        if(!closed.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e) { }
+
+        outgoing.clear();
+        closed(cause);
+    }
+
+    /** Writes as many queued frames as the channel accepts. If some remain,
+        the event loop is asked to report when the channel becomes writable.
+        Called by the event loop thread. */
+    private void flush() throws IOException
+    {
+        if(closed.get())
+            return;
+
+        ByteBuffer      frame;
+
+        while((frame = outgoing.peek()) != null)
+        {
+            channel.write(frame);
+
+            if(frame.hasRemaining())
+                break;
+
+            outgoing.poll();
+        }
+
+        if(closing && outgoing.isEmpty())
+        {
+            failed(null);
+            return;
+        }
+
+        SelectionKey    key = loop.keyFor(channel);
+
+        if(key != null && key.isValid())
+        {
+            int         operations = SelectionKey.OP_READ;
+
+            if(!outgoing.isEmpty())
+                operations |= SelectionKey.OP_WRITE;
+
+            key.interestOps(operations);
+        }
+    }
+
+    /** Reads from the channel and dispatches every complete frame. Called by
+        the event loop thread. */
+    private void read() throws IOException
+    {
+        if(!read_buffer.hasRemaining())
+            read_buffer = grow(read_buffer, read_buffer.capacity() * 2);
+
+        if(channel.read(read_buffer) < 0)
+            throw new EOFException("channel closed by peer");
+
+        read_buffer.flip();
+
+        try
+        {
+            if(!preamble_done)
+                preamble_done = preamble(read_buffer);
+
+            while(preamble_done && !closed.get() &&
+                  read_buffer.remaining() >= 4)
+            {
+                int         length = read_buffer.getInt(read_buffer.position());
+                BinaryFraming.checkLength(length);
+
+                if(read_buffer.remaining() < 4 + length)
+                {
+                    // Make room for the whole frame if the buffer is too
+                    // small.
+                    if(read_buffer.capacity() < 4 + length)
+                    {
+                        ByteBuffer  larger = ByteBuffer.allocate(4 + length);
+                        larger.put(read_buffer);
+                        larger.flip();
+                        read_buffer = larger;
+                    }
+
+                    break;
+                }
+
+                ByteBuffer  body = read_buffer.duplicate();
+                body.position(read_buffer.position() + 4);
+                body.limit(body.position() + length);
+                read_buffer.position(body.limit());
+
+                received(body);
+            }
+        }
+        finally
+        {
+            if(!read_buffer.hasRemaining() &&
+               read_buffer.capacity() > BUFFER_SIZE)
+            {
+                read_buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            else
+                read_buffer.compact();
+        }
+    }
+
+    /** Returns a larger buffer holding the bytes of a full buffer, ready for
+        further filling. */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity)
+    {
+        ByteBuffer  larger = ByteBuffer.allocate(capacity);
+
+        buffer.flip();
+        larger.put(buffer);
+
+        return larger;
+    }
+}
@@ -0,0 +1,52 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.function.LongFunction;
+
+/** Encoding of request and response frames on a persistent connection.
+
+    <p>
+    A framing object wraps the streams of one connection. It is used on the
+    stub side to write requests and read responses, and on the skeleton side
+    to read requests and write responses. Writes may be made from several
+    threads and are serialized by the framing object; reads are made only by
+    the single reader thread of the connection.
+ */
+abstract class Framing
+{
+    /** Writes a request frame.
+
+        @param request The request.
+        @throws IOException If the frame cannot be written.
+     */
+    abstract void writeRequest(Request request) throws IOException;
+
+    /** Reads a request frame.
+
+        @return The request.
+        @throws IOException If the frame cannot be read. End of stream is
+                            reported as <code>EOFException</code>.
+     */
+    abstract Request readRequest() throws IOException;
+
+    /** Writes a response frame.
+
+        @param request The request being answered.
+        @param response The response.
+        @throws IOException If the frame cannot be written.
+     */
+    abstract void writeResponse(Request request, Response response)
+        throws IOException;
+
+    /** Reads a response frame.
+
+        @param requests Returns the outstanding request with a given
+                        correlation id, or <code>null</code> if there is none.
+                        Binary framing needs the request to know the type of
+                        the result.
+        @return The response.
+        @throws IOException If the frame cannot be read.
+     */
+    abstract Response readResponse(LongFunction<Request> requests)
+        throws IOException;
+}
@@ -0,0 +1,259 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Numbering and dispatch table of the methods of a remote interface.
+
+    <p>
+    The binary wire protocol identifies methods by small integer ids instead of
+    by name and parameter types. Both ends derive the ids from the interface
+    alone: methods are sorted by their signatures and numbered in that order.
+    A fingerprint of the sorted signatures is exchanged when a binary
+    connection is opened, so that a stub and a skeleton built from different
+    versions of an interface refuse to talk rather than call the wrong method.
+
+    <p>
+    The table also carries everything the hot path of a call needs, so that no
+    reflective lookups are made per call: whether each method is remote, a
+    map from method names to overloads for requests that identify methods by
+    name, and a method handle through which the skeleton invokes each method.
+    Tables are immutable and cached per interface.
+ */
+class MethodTable
+{
+    /** Tables already built, by interface. */
+    private static final Map<Class<?>, MethodTable>    tables =
+        new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    /** Methods, indexed by id. */
+    private final Method[]              methods;
+    /** Whether each method is marked as throwing <code>RMIException</code>,
+        indexed by id. */
+    private final boolean[]             remote;
+    /** Handles of type <code>(Object, Object[])Object</code> invoking each
+        method, indexed by id. An entry is <code>null</code> if the method
+        cannot be unreflected, in which case reflection is used instead. */
+    private final MethodHandle[]        handles;
+    /** Ids, by method. */
+    private final Map<Method, Integer>  ids = new HashMap<Method, Integer>();
+    /** Ids of the overloads of each method name. */
+    private final Map<String, int[]>    overloads =
+        new HashMap<String, int[]>();
+    /** Fingerprint of the interface. */
+    private final long                  fingerprint;
+
+    /** Builds the table for an interface. */
+    private MethodTable(Class<?> c)
+    {
+        methods = c.getMethods();
+        Arrays.sort(methods, new Comparator<Method>()
+        {
+            @Override
+            public int compare(Method first, Method second)
+            {
+                return signature(first).compareTo(signature(second));
+            }
+        });
+
+        remote = new boolean[methods.length];
+        handles = new MethodHandle[methods.length];
+
+        // 64-bit FNV-1a hash over the signatures and return types.
+        long    hash = 0xcbf29ce484222325L;
+
+        for(int id = 0; id < methods.length; ++id)
+        {
+            ids.put(methods[id], id);
+            remote[id] = Arrays.asList(methods[id].getExceptionTypes())
+                               .contains(RMIException.class);
+            handles[id] = spreadHandle(methods[id]);
+
+            int[]   same_name = overloads.get(methods[id].getName());
+            if(same_name == null)
+                same_name = new int[0];
+            same_name = Arrays.copyOf(same_name, same_name.length + 1);
+            same_name[same_name.length - 1] = id;
+            overloads.put(methods[id].getName(), same_name);
+
+            String  text = signature(methods[id]) +
+                           methods[id].getReturnType().getName() + ";";
+
+            for(int index = 0; index < text.length(); ++index)
+            {
+                hash ^= text.charAt(index);
+                hash *= 0x100000001b3L;
+            }
+        }
+
+        fingerprint = hash;
+    }
+
+    /** Returns the table for the given interface.
+
+        @param c The remote interface.
+        @return The method table.
+     */
+    static MethodTable forInterface(Class<?> c)
+    {
+        MethodTable     table = tables.get(c);
+
+        if(table == null)
+        {
+            table = new MethodTable(c);
+            tables.put(c, table);
+        }
+
+        return table;
+    }
+
+    /** Returns the method with the given id, or <code>null</code> if there is
+        no such method. */
+    Method method(int id)
+    {
+        if(id < 0 || id >= methods.length)
+            return null;
+
+        return methods[id];
+    }
+
+    /** Returns the id of the given method, or <code>-1</code> if the method is
+        not part of the interface. */
+    int id(Method method)
+    {
+        Integer     id = ids.get(method);
+
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the id of the method with the given name and parameter types,
+        or <code>-1</code> if there is no such method. */
+    int id(String name, Class<?>[] types)
+    {
+        int[]       candidates = overloads.get(name);
+
+        if(candidates == null)
+            return -1;
+
+        for(int id : candidates)
+        {
+            if(Arrays.equals(methods[id].getParameterTypes(), types))
+                return id;
+        }
+
+        return -1;
+    }
+
+    /** Returns <code>true</code> if the method with the given id is marked as
+        throwing <code>RMIException</code>. */
+    boolean isRemote(int id)
+    {
+        return remote[id];
+    }
+
+    /** Invokes a method on an object.
+
+        @param id Id of the method.
+        @param target The object on which the method is invoked.
+        @param args Arguments to the method, or <code>null</code> if it takes
+                    none.
+        @return The value returned by the method, boxed if primitive, or
+                <code>null</code> if the method is <code>void</code>.
+        @throws InvocationTargetException If the method throws an exception.
+        @throws Exception If the method cannot be invoked with the given
+                          arguments.
+     */
+    Object invoke(int id, Object target, Object[] args) throws Exception
+    {
+        MethodHandle    handle = handles[id];
+
+        if(handle == null)
+            return methods[id].invoke(target, args);
+
+        // Check the arguments up front, so that the only exceptions leaving
+        // the handle are those thrown by the method itself.
+        Class<?>[]      types = methods[id].getParameterTypes();
+        int             count = args == null ? 0 : args.length;
+
+        if(target == null || count != types.length)
+            throw new IllegalArgumentException("wrong number of arguments");
+
+        for(int index = 0; index < count; ++index)
+        {
+            if(!accepts(types[index], args[index]))
+            {
+                throw new IllegalArgumentException("argument " + index +
+                                                   " has the wrong type");
+            }
+        }
+
+        try
+        {
+            return handle.invokeExact(target, args);
+        }
+        catch(Throwable t)
+        {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /** Returns the fingerprint of the interface. */
+    long fingerprint()
+    {
+        return fingerprint;
+    }
+
+    /** Returns a handle of type <code>(Object, Object[])Object</code> that
+        invokes the given method, or <code>null</code> if the method is not
+        accessible through the public lookup. */
+    private static MethodHandle spreadHandle(Method method)
+    {
+        int         count = method.getParameterTypes().length;
+
+        try
+        {
+            return MethodHandles.publicLookup().unreflect(method)
+                .asType(MethodType.genericMethodType(count + 1))
+                .asSpreader(Object[].class, count);
+        }
+        catch(IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+
+    /** Returns <code>true</code> if a value may be passed as an argument of
+        the given declared type. */
+    private static boolean accepts(Class<?> type, Object value)
+    {
+        if(!type.isPrimitive())
+            return value == null || type.isInstance(value);
+
+        if(value == null)
+            return false;
+
+        return MethodType.methodType(type).wrap().returnType() ==
+               value.getClass();
+    }
+
+    /** Returns a string identifying a method by name and parameter types. */
+    private static String signature(Method method)
+    {
+        StringBuilder   text = new StringBuilder(method.getName());
+
+        text.append('(');
+
+        for(Class<?> type : method.getParameterTypes())
+            text.append(type.getName()).append(',');
+
+        return text.append(')').toString();
+    }
+}
@@ -0,0 +1,84 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.function.LongFunction;
+
+/** Framing using Java serialization.
+
+    <p>
+    Each frame is a serialized <code>Request</code> or <code>Response</code>
+    object. The output stream is reset after every frame, so that objects sent
+    in earlier frames are neither retained nor replaced by back-references.
+ */
+class ObjectFraming extends Framing
+{
+    /** Stream carrying outgoing frames. */
+    private final ObjectOutputStream    output;
+    /** Stream carrying incoming frames. */
+    private final ObjectInputStream     input;
+
+    /** Creates the framing for a pair of object streams. */
+    ObjectFraming(ObjectOutputStream output, ObjectInputStream input)
+    {
+        this.output = output;
+        this.input = input;
+    }
+
+    @Override
+    void writeRequest(Request request) throws IOException
+    {
+        write(request);
+    }
+
+    @Override
+    Request readRequest() throws IOException
+    {
+        return (Request)read(Request.class);
+    }
+
+    @Override
+    void writeResponse(Request request, Response response) throws IOException
+    {
+        write(response);
+    }
+
+    @Override
+    Response readResponse(LongFunction<Request> requests) throws IOException
+    {
+        return (Response)read(Response.class);
+    }
+
+    /** Writes one frame. */
+    private void write(Object frame) throws IOException
+    {
+        synchronized(output)
+        {
+            output.writeUnshared(frame);
+            output.reset();
+            output.flush();
+        }
+    }
+
+    /** Reads one frame of the expected type. */
+    private Object read(Class<?> type) throws IOException
+    {
+        Object      frame;
+
+        try
+        {
+            frame = input.readUnshared();
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new IOException("malformed frame", e);
+        }
+
+        if(!type.isInstance(frame))
+            throw new InvalidObjectException("unexpected frame " + frame);
+
+        return frame;
+    }
+}
@@ -0,0 +1,76 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+/** Request frame sent by a stub over a persistent connection.
+
+    <p>
+    Each request carries a correlation id assigned by the connection on which
+    it is sent. The skeleton copies the id into the matching
+    <code>Response</code>, which allows several calls to be in flight on one
+    connection at the same time, and to complete in any order.
+
+    <p>
+    A batch request carries several calls instead of one. The skeleton makes
+    the calls in order and answers them all in a single <code>Response</code>.
+ */
+class Request implements Serializable
+{
+    private static final long serialVersionUID = -2630941265283713044L;
+
+    /** Correlation id, unique among the requests sent on one connection. */
+    long                id;
+    /** Name of the method to be called. */
+    final String        method;
+    /** Parameter types of the method, used to resolve overloads. */
+    final Class<?>[]    types;
+    /** Arguments to the call. */
+    final Object[]      args;
+    /** The method itself. This is known to the stub, and to the skeleton when
+        the request arrives in binary form. It is not serialized. */
+    transient Method    target;
+    /** Calls carried by a batch request, or <code>null</code> if this request
+        is a single call. */
+    final Request[]     calls;
+
+    /** Creates a request for a call to the given method.
+
+        @param method Name of the method.
+        @param types Parameter types of the method.
+        @param args Arguments to the call, or <code>null</code> if the method
+                    takes no arguments.
+     */
+    Request(String method, Class<?>[] types, Object[] args)
+    {
+        this.method = method;
+        this.types = types;
+        this.args = args;
+        this.calls = null;
+    }
+
+    /** Creates a request for a call to the given method.
+
+        @param target The method.
+        @param args Arguments to the call, or <code>null</code> if the method
+                    takes no arguments.
+     */
+    Request(Method target, Object[] args)
+    {
+        this(target.getName(), target.getParameterTypes(), args);
+        this.target = target;
+    }
+
+    /** Creates a batch request.
+
+        @param calls The calls in the batch, in the order in which they are to
+                     be made. Their correlation ids are not used.
+     */
+    Request(Request[] calls)
+    {
+        this.method = null;
+        this.types = null;
+        this.args = null;
+        this.calls = calls;
+    }
+}
@@ -0,0 +1,59 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Response frame sent by a skeleton over a persistent connection.
+
+    <p>
+    A response either carries the value returned by the remote method, or the
+    exception that the method threw. In the latter case, the exception is
+    re-thrown by the stub in the calling thread.
+
+    <p>
+    The response to a batch request carries one response for each call in the
+    batch, so that an exception thrown by one call does not affect the
+    results of the others.
+ */
+class Response implements Serializable
+{
+    private static final long serialVersionUID = 4418062512938842190L;
+
+    /** Correlation id of the request this response answers. */
+    final long          id;
+    /** Value returned by the method, if it returned normally. */
+    final Object        result;
+    /** Exception thrown by the method, or <code>null</code>. */
+    final Throwable     exception;
+    /** Responses to the calls of a batch request, in the order of the calls,
+        or <code>null</code> if the request was a single call. */
+    final Response[]    results;
+
+    /** Creates a response.
+
+        @param id Correlation id of the request.
+        @param result Value returned by the method.
+        @param exception Exception thrown by the method, or <code>null</code>
+                         if the method returned normally.
+     */
+    Response(long id, Object result, Throwable exception)
+    {
+        this.id = id;
+        this.result = result;
+        this.exception = exception;
+        this.results = null;
+    }
+
+    /** Creates the response to a batch request.
+
+        @param id Correlation id of the request.
+        @param results Responses to the calls of the batch. Their correlation
+                       ids are not used.
+     */
+    Response(long id, Response[] results)
+    {
+        this.id = id;
+        this.result = null;
+        this.exception = null;
+        this.results = results;
+    }
+}
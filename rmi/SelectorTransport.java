@@ -0,0 +1,311 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Skeleton transport built on non-blocking channels.
+
+    <p>
+    The transport accepts connections on a <code>ServerSocketChannel</code>
+    and spreads them over a small, fixed number of event loops. The event
+    loops perform all network I/O and framing; decoded requests are handed to
+    the <code>ServiceExecutor</code> of the skeleton, and responses are queued
+    back to the event loop of their connection. An idle connection therefore
+    costs a registered channel and a small buffer, rather than a thread.
+
+    <p>
+    Connections using the binary wire protocol are served entirely by the
+    event loops. Connections from serialization-based stubs cannot be framed
+    without blocking: they are detached from the event loop and served by the
+    blocking code of the skeleton, as they would be by the default transport.
+
+    <p>
+    The transport is selected by setting the system property
+    <code>rmi.transport</code> to <code>nio</code>. The number of event loops
+    is given by <code>rmi.transport.threads</code>, and defaults to two.
+ */
+class SelectorTransport
+{
+    /** Indicates that skeletons should use this transport. */
+    static final boolean            ENABLED =
+        "nio".equals(System.getProperty("rmi.transport"));
+    /** Number of event loops. */
+    private static final int        THREADS =
+        Math.max(1, Integer.getInteger("rmi.transport.threads", 2));
+
+    /** The skeleton served by the transport. */
+    private final Skeleton<?>       skeleton;
+    /** Channel accepting connections. */
+    private final ServerSocketChannel   server;
+    /** Event loops. The first also accepts connections. */
+    private final EventLoop[]       loops = new EventLoop[THREADS];
+    /** Round-robin counter used to choose the event loop of a connection. */
+    private final AtomicInteger     next_loop = new AtomicInteger();
+
+    /** Binds the listening channel and starts the event loops.
+
+        @param skeleton The skeleton served by the transport.
+        @param port Port to listen on, or zero for a system-assigned port.
+        @throws IOException If the channel cannot be bound, or the event loops
+                            cannot be started.
+     */
+    SelectorTransport(Skeleton<?> skeleton, int port) throws IOException
+    {
+        this.skeleton = skeleton;
+
+        server = ServerSocketChannel.open();
+
+        try
+        {
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+
+            for(int index = 0; index < loops.length; ++index)
+            {
+                loops[index] = new EventLoop("rmi-skeleton-" +
+                                             server.socket().getLocalPort() +
+                                             "-" + index);
+            }
+        }
+        catch(IOException e)
+        {
+            shutdown();
+            throw e;
+        }
+
+        loops[0].register(server, SelectionKey.OP_ACCEPT, new Acceptor());
+    }
+
+    /** Returns the listening socket. Closing it stops the acceptance of new
+        connections. */
+    ServerSocket socket()
+    {
+        return server.socket();
+    }
+
+    /** Closes the listening channel and every connection, and terminates the
+        event loops. Calls already handed to the executor run to completion,
+        but their responses are discarded. */
+    void shutdown()
+    {
+        try
+        {
+            server.close();
+        }
+        catch(IOException e) { }
+
+        for(EventLoop loop : loops)
+        {
+            if(loop != null)
+                loop.shutdown();
+        }
+    }
+
+    /** Accepts connections and assigns them to event loops. */
+    private class Acceptor implements EventLoop.Handler
+    {
+        @Override
+        public void ready(SelectionKey key) throws IOException
+        {
+            SocketChannel   channel;
+
+            while((channel = server.accept()) != null)
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                EventLoop   loop = loops[Math.floorMod(
+                    next_loop.getAndIncrement(), loops.length)];
+
+                new Client(channel, loop).register();
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause)
+        {
+            // The listening channel is closed by stop. Any other failure
+            // also leaves the skeleton unable to accept connections.
+            if(skeleton.isServerStarted)
+            {
+                skeleton.service_error(new RMIException(
+                    "unable to accept connections", cause));
+            }
+        }
+    }
+
+    /** Connection served by an event loop.
+
+        <p>
+        The first four bytes received tell the protocol used by the stub. If
+        they are the binary magic number, the rest of the binary handshake is
+        read from the channel and answered, and request frames follow.
+        Otherwise, the connection is detached and served by the blocking code
+        of the skeleton, starting with the bytes already received.
+     */
+    private class Client extends FrameChannel
+    {
+        /** Framing of the connection, once the handshake is complete. */
+        private BinaryFraming       framing = null;
+
+        Client(SocketChannel channel, EventLoop loop)
+        {
+            super(channel, loop);
+        }
+
+        @Override
+        boolean preamble(ByteBuffer buffer) throws IOException
+        {
+            if(buffer.remaining() < 4)
+                return false;
+
+            if(buffer.getInt(buffer.position()) != BinaryFraming.MAGIC)
+            {
+                detach(buffer);
+                return false;
+            }
+
+            // Parse the handshake from the bytes received so far. If it is
+            // not yet complete, it is parsed again when more bytes arrive.
+            ByteArrayInputStream    bytes = new ByteArrayInputStream(
+                buffer.array(), buffer.arrayOffset() + buffer.position() + 4,
+                buffer.remaining() - 4);
+            ByteArrayOutputStream   answer = new ByteArrayOutputStream();
+
+            try
+            {
+                framing = BinaryFraming.accept(
+                    new DataOutputStream(answer), new DataInputStream(bytes),
+                    skeleton.sclass);
+            }
+            catch(EOFException e)
+            {
+                return false;
+            }
+
+            buffer.position(buffer.limit() - bytes.available());
+            write(ByteBuffer.wrap(answer.toByteArray()));
+
+            if(framing == null)
+            {
+                closeAfterFlush();
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        void received(ByteBuffer body) throws IOException
+        {
+            final Request   request = framing.decodeRequest(body);
+
+            // With a blocking executor, this waits for capacity, which holds
+            // up the other connections of this event loop as well.
+            boolean         accepted = skeleton.execute(request,
+                new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    respond(request, skeleton.dispatch(request));
+                }
+            });
+
+            if(!accepted)
+            {
+                respond(request, new Response(request.id, null,
+                    new RMIException("skeleton is busy")));
+            }
+        }
+
+        @Override
+        void closed(Throwable cause)
+        {
+        }
+
+        /** Queues the response to a request. */
+        private void respond(Request request, Response response)
+        {
+            if(isClosed())
+                return;
+
+            try
+            {
+                write(framing.responseFrame(request, response));
+            }
+            catch(IOException e)
+            {
+                // The result could not be encoded. Report that to the stub
+                // rather than leaving the call without an answer.
+                try
+                {
+                    write(framing.responseFrame(request, new Response(
+                        request.id, null,
+                        new RMIException("unable to encode result", e))));
+                }
+                catch(IOException ignored)
+                {
+                    failed(ignored);
+                }
+            }
+        }
+
+        /** Hands the connection over to the blocking code of the skeleton.
+
+            @param buffer Bytes already received, which the blocking code
+                          reads before those still in the socket.
+         */
+        private void detach(ByteBuffer buffer)
+        {
+            final byte[]    received = new byte[buffer.remaining()];
+            buffer.get(received);
+
+            loop.keyFor(channel).cancel();
+
+            // The channel can only be put back into blocking mode once the
+            // selector has dropped the cancelled key, which it does at the
+            // start of the next selection, before running queued tasks.
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Socket      socket = channel.socket();
+
+                    try
+                    {
+                        channel.configureBlocking(true);
+
+                        if(!skeleton.getExecutor().execute(
+                               skeleton.new SingleClient(socket, received)))
+                        {
+                            socket.close();
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch(IOException ignored) { }
+                    }
+                }
+            });
+        }
+    }
+}
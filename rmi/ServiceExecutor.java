@@ -0,0 +1,339 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Executor for the calls served by a skeleton.
+
+    <p>
+    A skeleton hands every incoming call to its service executor. Three kinds
+    of executor are provided:
+    <ul>
+    <li><em>Thread per call</em>, the default, which starts a new platform
+        thread for each call. This places no limit on the number of threads.
+        </li>
+    <li><em>Bounded</em>, which runs calls on a fixed number of worker threads
+        with a queue of limited length in front of them. When both the workers
+        and the queue are full, new calls are either rejected or the caller is
+        blocked until there is room. A skeleton blocked in this way stops
+        accepting connections, pushing back on its clients. Only calls are
+        bounded: each persistent connection still has a reader thread of its
+        own, so the number of threads grows with the number of connected
+        clients.</li>
+    <li><em>Virtual</em>, which starts a virtual thread for each call on JDKs
+        that support them, and falls back to a pool of reusable daemon threads
+        on older JDKs.</li>
+    </ul>
+
+    <p>
+    The default executor for new skeletons can be chosen with the system
+    property <code>rmi.executor</code>, set to <code>thread</code>,
+    <code>bounded</code> or <code>virtual</code>. The bounded executor is
+    configured by <code>rmi.executor.threads</code>,
+    <code>rmi.executor.queue</code> and <code>rmi.executor.policy</code>
+    (<code>block</code> or <code>reject</code>).
+
+    <p>
+    Calls that block in the server, such as lock requests on the naming
+    server, occupy a worker for as long as they wait. A bounded executor must
+    therefore have more workers than the number of calls that may wait at the
+    same time, or a waiting call can starve the call that would release it.
+    Calls that wait by design for as long as there is nothing to report, such
+    as the long poll through which clients of the naming server learn of
+    metadata changes, would hold one worker per client all the time. Methods
+    called in this way are marked with <code>Skeleton.setWaiting</code>, and
+    their calls on persistent connections are then run outside the workers,
+    on a thread per call, like the reader loops of the connections.
+
+    <p>
+    Each executor keeps counts of active, queued, rejected and completed
+    calls. A service executor should not be shared between skeletons if these
+    counts are to be attributed to a single skeleton.
+ */
+public class ServiceExecutor
+{
+    /** Executor running calls. */
+    private final Executor          calls;
+    /** Executor running the long-lived reader loops of persistent
+        connections. */
+    private final Executor          connections;
+    /** Permits for calls that may be running or queued, or
+        <code>null</code> if the executor is unbounded. */
+    private final Semaphore         capacity;
+    /** Whether calls wait for capacity rather than being rejected. */
+    private final boolean           block;
+    /** Underlying pool, if bounded, used to report the queue length. */
+    private final ThreadPoolExecutor    pool;
+
+    /** Number of calls currently running. */
+    private final AtomicInteger     active = new AtomicInteger();
+    /** Number of calls rejected for lack of capacity. */
+    private final AtomicLong        rejected = new AtomicLong();
+    /** Number of calls that have finished running. */
+    private final AtomicLong        completed = new AtomicLong();
+
+    /** Creates a service executor from its parts. */
+    private ServiceExecutor(Executor calls, Executor connections,
+                            ThreadPoolExecutor pool, Semaphore capacity,
+                            boolean block)
+    {
+        this.calls = calls;
+        this.connections = connections;
+        this.pool = pool;
+        this.capacity = capacity;
+        this.block = block;
+    }
+
+    /** Returns an executor that starts a new thread for every call.
+
+        <p>
+        This is the behavior of the skeleton when no other executor is set.
+     */
+    public static ServiceExecutor threadPerCall()
+    {
+        return new ServiceExecutor(new NewThreadExecutor(false),
+                                   new NewThreadExecutor(true), null, null,
+                                   false);
+    }
+
+    /** Returns an executor with a bounded number of workers and a bounded
+        queue.
+
+        <p>
+        The bound applies to calls, not to connections. The reader loop of
+        each persistent connection runs on a new daemon thread of its own,
+        outside the workers, so a server with many connected clients has as
+        many reader threads, however few workers it has.
+
+        @param threads Number of worker threads.
+        @param queue Maximum number of calls waiting for a worker.
+        @param block If <code>true</code>, a call submitted while the workers
+                     and queue are full waits for room. If <code>false</code>,
+                     such a call is rejected.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive or <code>queue</code> is
+                                         negative.
+     */
+    public static ServiceExecutor bounded(int threads, int queue,
+                                          boolean block)
+    {
+        if(threads <= 0 || queue < 0)
+            throw new IllegalArgumentException("invalid executor bounds");
+
+        // The semaphore, not the queue, enforces the bound. The queue is made
+        // large enough never to refuse a call that holds a permit, even while
+        // finishing workers have released their permits but not yet returned
+        // to the pool.
+        ThreadPoolExecutor  pool =
+            new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue<Runnable>(
+                                       threads + queue),
+                                   new DaemonThreadFactory("rmi-worker-"));
+        pool.allowCoreThreadTimeOut(true);
+
+        return new ServiceExecutor(pool, new NewThreadExecutor(true), pool,
+                                   new Semaphore(threads + queue), block);
+    }
+
+    /** Returns an executor that runs each call in a new virtual thread.
+
+        <p>
+        If the running JDK does not support virtual threads, calls are instead
+        run on an unbounded pool of reusable daemon threads.
+     */
+    public static ServiceExecutor virtual()
+    {
+        Executor    executor = newVirtualThreadExecutor();
+
+        if(executor == null)
+        {
+            executor = Executors.newCachedThreadPool(
+                new DaemonThreadFactory("rmi-worker-"));
+        }
+
+        return new ServiceExecutor(executor, executor, null, null, false);
+    }
+
+    /** Returns the executor selected by the <code>rmi.executor</code> system
+        properties. */
+    static ServiceExecutor fromProperties()
+    {
+        String      kind = System.getProperty("rmi.executor", "thread");
+
+        if(kind.equals("virtual"))
+            return virtual();
+
+        if(kind.equals("bounded"))
+        {
+            return bounded(Integer.getInteger("rmi.executor.threads", 64),
+                           Integer.getInteger("rmi.executor.queue", 1024),
+                           !"reject".equals(
+                               System.getProperty("rmi.executor.policy")));
+        }
+
+        return threadPerCall();
+    }
+
+    /** Submits a call.
+
+        @param call The call to run.
+        @return <code>true</code> if the call has been accepted, and
+                <code>false</code> if it has been rejected for lack of
+                capacity.
+     */
+    boolean execute(final Runnable call)
+    {
+        if(capacity != null)
+        {
+            if(block)
+                capacity.acquireUninterruptibly();
+            else if(!capacity.tryAcquire())
+            {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        calls.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                active.incrementAndGet();
+
+                try
+                {
+                    call.run();
+                }
+                finally
+                {
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+
+                    if(capacity != null)
+                        capacity.release();
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /** Runs a call that may wait in the server for a long time.
+
+        <p>
+        The call is run as reader loops are, outside the bounded worker pool,
+        and is not counted.
+
+        @param call The call to run.
+     */
+    void executeWaiting(Runnable call)
+    {
+        connections.execute(call);
+    }
+
+    /** Starts the reader loop of a persistent connection.
+
+        <p>
+        Reader loops last as long as their connections, so they are not run on
+        the bounded worker pool and are not counted as calls.
+
+        @param reader The reader loop.
+     */
+    void startConnection(Runnable reader)
+    {
+        connections.execute(reader);
+    }
+
+    /** Returns the number of calls currently running. */
+    public int activeCalls()
+    {
+        return active.get();
+    }
+
+    /** Returns the number of calls accepted but waiting for a worker. This is
+        always zero for unbounded executors. */
+    public int queuedCalls()
+    {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /** Returns the number of calls rejected for lack of capacity. */
+    public long rejectedCalls()
+    {
+        return rejected.get();
+    }
+
+    /** Returns the number of calls that have finished running. */
+    public long completedCalls()
+    {
+        return completed.get();
+    }
+
+    /** Creates a virtual-thread-per-task executor, or returns
+        <code>null</code> if the JDK does not provide one. */
+    private static Executor newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method  factory =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch(Exception e)
+        {
+            return null;
+        }
+    }
+
+    /** Executor that starts a new platform thread for every task. */
+    private static class NewThreadExecutor implements Executor
+    {
+        /** Whether the threads are daemon threads. */
+        private final boolean   daemon;
+
+        NewThreadExecutor(boolean daemon)
+        {
+            this.daemon = daemon;
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            Thread  thread = new Thread(task);
+            thread.setDaemon(daemon);
+            thread.start();
+        }
+    }
+
+    /** Thread factory producing named daemon threads. */
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        /** Prefix of thread names. */
+        private final String        prefix;
+        /** Number of the next thread. */
+        private final AtomicInteger next = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread  thread = new Thread(task, prefix + next.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
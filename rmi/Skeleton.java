@@ -3,10 +3,20 @@ package rmi;
 import java.net.*;
 import java.lang.reflect.*;
 import java.net.InetSocketAddress;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;              
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /** RMI skeleton
@@ -37,9 +47,23 @@ public class Skeleton<T>
 	public T srvr = null ;
     public InetSocketAddress sock_addr = null ;
     public Class<T> sclass = null;
+    /** Dispatch table of the remote interface. */
+    MethodTable table = null;
     public ServerSocket listeningSocket = null;
     public listeningThreads serverthread=null;
-    public boolean isServerStarted = false;
+    /** Indicates that the skeleton is serving. Written by <code>start</code>
+        and <code>stop</code>, and read by the threads serving connections. */
+    public volatile boolean isServerStarted = false;
+    /** Sockets of persistent connections currently being served. */
+    final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    /** Names of the methods whose calls may wait in the server for a long
+        time. */
+    private final Set<String> waiting = ConcurrentHashMap.newKeySet();
+    /** Executor running the calls served by this skeleton. */
+    private volatile ServiceExecutor executor = ServiceExecutor.fromProperties();
+    /** Non-blocking transport, when selected by the <code>rmi.transport</code>
+        system property; <code>null</code> otherwise. */
+    private SelectorTransport transport = null;
    
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
@@ -82,7 +106,8 @@ public class Skeleton<T>
     	}	    
 	   
     	this.sclass = c;
-    	this.srvr = server;	
+    	this.srvr = server;
+    	this.table = MethodTable.forInterface(c);	
     }
        
     
@@ -128,6 +153,7 @@ public class Skeleton<T>
     
     	this.sclass = c;
     	this.srvr = server;
+    	this.table = MethodTable.forInterface(c);
 	   
     	if (address != null)
     	{
@@ -217,6 +243,27 @@ public class Skeleton<T>
         if(isServerStarted == true) 
         	throw new RMIException("Server is already started");
         
+    	if(SelectorTransport.ENABLED)
+    	{
+    		try
+    		{
+    			transport = new SelectorTransport(this, sock_addr == null ? 0 : port);
+    		}
+    		catch(IOException e)
+    		{
+    			throw new RMIException("unable to start skeleton", e);
+    		}
+    		listeningSocket = transport.socket();
+    		if(sock_addr == null)
+    		{
+    			port = listeningSocket.getLocalPort();
+    			sock_addr = new InetSocketAddress(port);
+    		}
+    		serverthread = null;
+    		isServerStarted = true;
+    		return;
+    	}
+
     	try
     	{
     		if(sock_addr == null) 
@@ -255,8 +302,10 @@ public class Skeleton<T>
 					Socket ClientSocket = listeningSocket.accept();
 					
 					SingleClient newSClient = new SingleClient(ClientSocket);
-	    			Thread ClientThread = new Thread(newSClient);
-	    			ClientThread.start();
+					// With a blocking executor this waits for capacity
+					// before the next connection is accepted.
+					if(!executor.execute(newSClient))
+						ClientSocket.close();
 				} 
 				catch (Exception e) 
 				{
@@ -280,18 +329,59 @@ public class Skeleton<T>
 		Class<?>[] paramTypes;
 		Object result,err=null;
 		
+		/** Bytes already read from the socket by the non-blocking transport,
+		    or <code>null</code>. */
+		private byte[] received = null;
+
 		public SingleClient(Socket ClientSocket)
 		{
 			this.ClientSocket=ClientSocket;
 		}
+
+		SingleClient(Socket ClientSocket, byte[] received)
+		{
+			this.ClientSocket=ClientSocket;
+			this.received=received;
+		}
 		public void run()
 		{
 			try
 			{
-				in = new ObjectInputStream(ClientSocket.getInputStream());
-				out = new ObjectOutputStream(ClientSocket.getOutputStream());
-				
-				methodName = (String) in.readObject();
+				InputStream raw = ClientSocket.getInputStream();
+				if(received != null)
+					raw = new SequenceInputStream(new ByteArrayInputStream(received), raw);
+				BufferedInputStream input = new BufferedInputStream(raw);
+				BufferedOutputStream output = new BufferedOutputStream(ClientSocket.getOutputStream());
+
+				// Binary stubs open with a magic number that cannot begin a
+				// serialization stream.
+				input.mark(4);
+				DataInputStream data = new DataInputStream(input);
+				if(data.readInt() == BinaryFraming.MAGIC)
+				{
+					Framing framing = BinaryFraming.accept(new DataOutputStream(output), data, sclass);
+					if(framing == null)
+						ClientSocket.close();
+					else
+						startMultiplexed(framing, null);
+					return;
+				}
+				input.reset();
+
+				in = new ObjectInputStream(input);
+				out = new ObjectOutputStream(output);
+				out.flush();
+
+				// Stubs using persistent connections open with a request
+				// frame; older stubs send the bare method name.
+				Object first = in.readObject();
+				if(first instanceof Request)
+				{
+					startMultiplexed(new ObjectFraming(out, in), (Request) first);
+					return;
+				}
+
+				methodName = (String) first;
 				params = (Object[]) in.readObject();
 				paramTypes = (Class<?>[]) in.readObject();
 				
@@ -328,8 +418,229 @@ public class Skeleton<T>
 				//e.printStackTrace();
 			}
 		}
+
+		private void startMultiplexed(Framing framing, final Request first)
+		{
+			final MultiplexedClient client = new MultiplexedClient(ClientSocket, framing);
+			// The reader loop lasts as long as the connection, so it must not
+			// hold on to a worker of the executor.
+			executor.startConnection(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						client.serve(first);
+					}
+					catch(IOException e) { }
+				}
+			});
+		}
     }
-    
+
+    /** Serves a persistent connection opened by a stub.
+
+        <p>
+        Request frames are read until the stub closes the connection or the
+        skeleton is stopped. Each request is executed in its own thread, so a
+        call that blocks in the server, such as a lock request, does not hold
+        up other calls multiplexed on the same connection. Responses are
+        written in completion order and matched to their calls by correlation
+        id.
+     */
+    class MultiplexedClient
+    {
+    	private final Socket socket;
+    	private final Framing framing;
+
+    	MultiplexedClient(Socket socket, Framing framing)
+    	{
+    		this.socket = socket;
+    		this.framing = framing;
+    	}
+
+    	/** Serves the connection until it is closed.
+
+    	    @param request The first request, if it has already been read, or
+    	                   <code>null</code>.
+    	 */
+    	void serve(Request request) throws IOException
+    	{
+    		connections.add(socket);
+    		try
+    		{
+    			if(request == null)
+    				request = framing.readRequest();
+
+    			while(isServerStarted)
+    			{
+    				final Request next = request;
+    				boolean accepted = execute(next, new Runnable()
+    				{
+    					public void run()
+    					{
+    						respond(next);
+    					}
+    				});
+    				if(!accepted)
+    					send(next, new Response(next.id, null, new RMIException("skeleton is busy")));
+
+    				request = framing.readRequest();
+    			}
+    		}
+    		catch(EOFException | SocketException e)
+    		{
+    			// The stub closed the connection, or stop closed it.
+    		}
+    		catch(IOException e)
+    		{
+    			service_error(new RMIException("malformed request frame", e));
+    		}
+    		finally
+    		{
+    			connections.remove(socket);
+    			socket.close();
+    		}
+    	}
+
+    	private void respond(Request request)
+    	{
+    		send(request, dispatch(request));
+    	}
+
+    	private void send(Request request, Response response)
+    	{
+    		try
+    		{
+    			framing.writeResponse(request, response);
+    		}
+    		catch(IOException e)
+    		{
+    			// The frame could not be sent; the stream is no longer usable,
+    			// so fail every call still in flight on this connection.
+    			try
+    			{
+    				socket.close();
+    			}
+    			catch(IOException ignored) { }
+    		}
+    	}
+    }
+
+    /** Calls the server method named by a request.
+
+        <p>
+        The calls of a batch request are made in order, by the calling thread.
+        Each call has its own slot in the response, so an exception thrown by
+        one call does not prevent the following calls.
+
+        @param request The request.
+        @return The response carrying the result of the call, or the exception
+                thrown by the method, or an <code>RMIException</code> if the
+                method could not be called.
+     */
+    Response dispatch(Request request)
+    {
+    	if(request.calls != null)
+    	{
+    		Response[] results = new Response[request.calls.length];
+    		for(int i = 0; i < results.length; i++)
+    			results[i] = dispatch(request.calls[i]);
+    		return new Response(request.id, results);
+    	}
+
+    	Object result = null;
+    	Throwable exception = null;
+    	try
+    	{
+    		int id = request.target != null ? table.id(request.target)
+    		                                 : table.id(request.method, request.types);
+    		if(id < 0)
+    			throw new NoSuchMethodException(request.method);
+    		result = table.invoke(id, srvr, request.args);
+    	}
+    	catch(InvocationTargetException e)
+    	{
+    		exception = e.getTargetException();
+    	}
+    	catch(Exception e)
+    	{
+    		exception = new RMIException("unable to call " + request.method, e);
+    	}
+
+    	return new Response(request.id, result, exception);
+    }
+
+    /** Sets the executor that runs the calls served by this skeleton.
+
+        <p>
+        The executor takes effect for connections accepted after this call.
+        By default, a skeleton uses the executor selected by the
+        <code>rmi.executor</code> system properties; see
+        <code>ServiceExecutor</code>.
+
+        @param executor The new executor.
+        @throws NullPointerException If <code>executor</code> is
+                                     <code>null</code>.
+     */
+    public void setExecutor(ServiceExecutor executor)
+    {
+    	if(executor == null)
+    		throw new NullPointerException("executor is null");
+    	this.executor = executor;
+    }
+
+    /** Returns the executor running the calls served by this skeleton. Its
+        counters give the number of active, queued and rejected calls. */
+    public ServiceExecutor getExecutor()
+    {
+    	return executor;
+    }
+
+    /** Marks a method of the remote interface as one whose calls may wait in
+        the server for a long time, such as a long poll.
+
+        <p>
+        Calls to the method that arrive on persistent connections are run on
+        threads of their own, outside the workers of the service executor, so
+        that waiting calls cannot take up every worker of a bounded executor
+        while other calls queue behind them. Such calls are not counted by the
+        executor. Calls that arrive on connections carrying a single call, and
+        calls within batch requests, are run by the workers as usual.
+
+        @param name Name of the method. Every overload of the method is
+                    marked.
+        @throws NullPointerException If <code>name</code> is
+                                     <code>null</code>.
+     */
+    public void setWaiting(String name)
+    {
+    	if(name == null)
+    		throw new NullPointerException("name is null");
+    	waiting.add(name);
+    }
+
+    /** Submits a call made by a request on a persistent connection to the
+        executor, or runs it on a thread of its own if the method called has
+        been marked by <code>setWaiting</code>.
+
+        @return <code>true</code> if the call has been accepted, and
+                <code>false</code> if it has been rejected for lack of
+                capacity.
+     */
+    boolean execute(Request request, Runnable call)
+    {
+    	ServiceExecutor current = executor;
+
+    	if(request.calls == null && waiting.contains(request.method))
+    	{
+    		current.executeWaiting(call);
+    		return true;
+    	}
+
+    	return current.execute(call);
+    }
+
     public void checkServer()
     {
     	if(serverthread!=null)
@@ -366,7 +677,16 @@ public class Skeleton<T>
     	isServerStarted=false;
     	try 
     	{
+			if(transport != null)
+			{
+				transport.shutdown();
+				transport = null;
+			}
 			listeningSocket.close();
+			// Persistent connections would otherwise outlive the server and
+			// keep serving calls.
+			for(Socket socket : connections)
+				socket.close();
 			stopped(null);
 			checkServer();
 		} 
@@ -4,6 +4,7 @@ import java.net.*;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.*;
+import java.util.Arrays;
 
 
 /** RMI stub factory.
@@ -77,7 +78,7 @@ public abstract class Stub
     	if(srvAddress == null) 
     		throw new IllegalStateException();
         
-    	return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c},new ClientStubDispatcher(srvAddress));    	
+    	return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c},new ClientStubDispatcher(srvAddress, c));    	
         //throw new UnsupportedOperationException("not implemented");
     }
 
@@ -140,7 +141,7 @@ public abstract class Stub
     	if(srvAddress.getAddress() == null) 
     		throw new IllegalStateException("Paramater skeleton has not been assigned a port");
     	
-    	return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c},new ClientStubDispatcher(srvAddress));
+    	return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c},new ClientStubDispatcher(srvAddress, c));
     	
     }
 
@@ -188,6 +189,103 @@ public abstract class Stub
     			throw new Error("Not a remote interface");
     	}
     	
-        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new ClientStubDispatcher(address));
+        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] {c}, new ClientStubDispatcher(address, c));
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        An asynchronous stub implements an interface that mirrors the remote
+        interface <code>remote</code>: each method of <code>c</code> must have
+        the name and parameter types of a method of <code>remote</code>, and
+        return a <code>CompletableFuture</code> of that method's result. A call
+        returns as soon as the request has been queued. The future is later
+        completed with the result of the remote method, or completed
+        exceptionally with the exception it threw, or with an
+        <code>RMIException</code> if the call could not be made.
+
+        <p>
+        Asynchronous stubs communicate with the skeleton over non-blocking
+        connections serviced by a single event loop thread, so any number of
+        calls may be in flight without holding a thread each. Futures are
+        completed by the event loop thread: dependent actions that block must
+        be registered with the <code>Async</code> variants of the
+        <code>CompletableFuture</code> methods.
+
+        @param c A <code>Class</code> object representing the asynchronous
+                 interface.
+        @param remote A <code>Class</code> object representing the remote
+                      interface implemented by the server.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not an interface mirroring the
+                      remote interface <code>remote</code>, or if an object
+                      implementing <code>c</code> cannot be dynamically
+                      created.
+     */
+    @SuppressWarnings("unchecked")
+    public static <A> A createAsync(Class<A> c, Class<?> remote,
+                                    InetSocketAddress address)
+    {
+        if(c == null || remote == null || address == null)
+            throw new NullPointerException("One of the Argument passed is NULL");
+        if(!c.isInterface() || !remote.isInterface())
+            throw new Error("c is not an interface");
+
+        for(Method method : remote.getMethods())
+        {
+            if(!Arrays.asList(method.getExceptionTypes())
+                      .contains(RMIException.class))
+            {
+                throw new Error("Not a remote interface");
+            }
+        }
+
+        AsyncStubDispatcher.targets(c, remote);
+
+        return (A)Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c},
+                                         new AsyncStubDispatcher(address,
+                                                                 remote));
+    }
+
+    /** Creates an asynchronous stub that calls the same skeleton as an
+        existing stub.
+
+        <p>
+        This is convenient when a synchronous stub has been received from
+        another server, for instance a storage stub returned by the naming
+        server. See <code>createAsync(Class, Class, InetSocketAddress)</code>
+        for the requirements on <code>c</code>.
+
+        @param c A <code>Class</code> object representing the asynchronous
+                 interface.
+        @param stub A stub created by this class.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub
+                                         created by this class.
+        @throws Error If <code>c</code> is not an interface mirroring the
+                      remote interface implemented by <code>stub</code>.
+     */
+    public static <A> A createAsync(Class<A> c, Object stub)
+    {
+        if(c == null || stub == null)
+            throw new NullPointerException("One of the Argument passed is NULL");
+
+        if(!Proxy.isProxyClass(stub.getClass()) ||
+           !(Proxy.getInvocationHandler(stub) instanceof ClientStubDispatcher))
+        {
+            throw new IllegalArgumentException("not a stub");
+        }
+
+        ClientStubDispatcher    handler =
+            (ClientStubDispatcher)Proxy.getInvocationHandler(stub);
+        Class<?>                remote = handler.remoteInterface;
+
+        if(remote == null)
+            remote = stub.getClass().getInterfaces()[0];
+
+        return createAsync(c, remote, handler.srvrAddress);
     }
 }
@@ -0,0 +1,35 @@
+package storage;
+
+import common.*;
+import rmi.RMIException;
+
+/** Storage server command interface with batched commands.
+
+    <p>
+    The naming server invalidates stale replicas in the background, and may
+    have many files to delete on the same storage server at once. This
+    interface lets it delete them in a single call, rather than one round trip
+    per file.
+
+    <p>
+    Command stubs handed out by storage servers implement this interface. The
+    naming server tests a <code>Command</code> stub with
+    <code>instanceof</code>, and falls back to <code>delete</code> for stubs
+    that do not.
+ */
+public interface BatchCommand extends Command
+{
+    /** Deletes files or directories on the storage server.
+
+        <p>
+        Each path is deleted as by <code>Command.delete</code>. A failure to
+        delete one path does not prevent the others from being deleted.
+
+        @param paths Paths to the files or directories to be deleted.
+        @return For each path, <code>true</code> if the file or directory is
+                deleted, <code>false</code> otherwise.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] deleteAll(Path[] paths) throws RMIException;
+}
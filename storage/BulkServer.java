@@ -0,0 +1,383 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+
+/** Data channel of a storage server.
+
+    <p>
+    The data channel carries the payload of bulk transfers set up through
+    <code>BulkStorage</code>. Each transfer is granted in an RMI call, which
+    checks the request and records it under a random token. The client then
+    connects to the data channel and presents the token, and the recorded
+    range of the file is streamed with <code>FileChannel.transferTo</code> or
+    <code>transferFrom</code>.
+
+    <p>
+    A transfer holds the lock of its file, in the storage server's
+    <code>StripedLocks</code>, for as long as the data flows: a read lock to
+    send the file, and a write lock to receive it. Bulk transfers are
+    therefore ordered with respect to <code>read</code> and
+    <code>write</code> calls on the same file as those calls are with each
+    other. After receiving data, and before releasing the write lock, the
+    file is dropped from the channel cache and the memory-mapped read path,
+    as it is by <code>write</code>. Because file locks are held under the
+    shared namespace lock, operations that change the directory tree wait
+    for the transfers in progress to finish.
+
+    <p>
+    Grants are used at most once, and expire after <code>GRANT_TIMEOUT</code>
+    milliseconds. Each connection is served by its own daemon thread for the
+    duration of its transfer.
+ */
+class BulkServer implements Runnable
+{
+    /** Time in milliseconds after which an unused grant expires. */
+    static final long                   GRANT_TIMEOUT = 30000;
+    /** Time in milliseconds given to a client to present its token. */
+    private static final int            TOKEN_TIMEOUT = 10000;
+
+    /** Source of tokens. */
+    private final SecureRandom          random = new SecureRandom();
+    /** Outstanding grants, by token. */
+    private final Map<Long, Grant>      grants =
+        new ConcurrentHashMap<Long, Grant>();
+    /** Host name placed in tickets. */
+    private final String                host;
+    /** Listening channel. */
+    private final ServerSocketChannel   server;
+    /** Number of transfers in progress. */
+    private final AtomicInteger         active = new AtomicInteger();
+    /** Locks of the storage server's files. */
+    private final StripedLocks          locks;
+    /** Open files of the storage server. */
+    private final ChannelCache          channels;
+    /** Memory-mapped read path of the storage server. */
+    private final MappedFiles           mapped;
+
+    /** Transfer granted to a client. */
+    private static class Grant
+    {
+        /** Path to the file, by which it is locked. */
+        final Path          path;
+        /** File to be read or written. */
+        final File          file;
+        /** The ticket issued for the transfer. */
+        final BulkTicket    ticket;
+        /** Indicates that the file is to be written. */
+        final boolean       write;
+        /** Time at which the grant expires. */
+        final long          deadline;
+
+        Grant(Path path, File file, BulkTicket ticket, boolean write)
+        {
+            this.path = path;
+            this.file = file;
+            this.ticket = ticket;
+            this.write = write;
+            this.deadline = System.currentTimeMillis() + GRANT_TIMEOUT;
+        }
+    }
+
+    /** Opens the data channel and starts accepting connections.
+
+        @param host Externally-routable host name of the storage server.
+        @param port Port on which to listen, or zero for a system-assigned
+                    port.
+        @param locks Locks of the storage server's files.
+        @param channels Open files of the storage server.
+        @param mapped Memory-mapped read path of the storage server.
+        @throws IOException If the channel cannot be opened.
+     */
+    BulkServer(String host, int port, StripedLocks locks,
+               ChannelCache channels, MappedFiles mapped) throws IOException
+    {
+        this.host = host;
+        this.locks = locks;
+        this.channels = channels;
+        this.mapped = mapped;
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+
+        Thread      listener = new Thread(this, "storage-data-channel");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /** Grants a transfer and returns its ticket.
+
+        @param path Path to the file.
+        @param file The file, which has already been checked.
+        @param write <code>true</code> if the file is to be written,
+                     <code>false</code> if it is to be read.
+        @param offset Offset of the first byte to be transferred.
+        @param length Number of bytes to be transferred.
+        @return The ticket.
+     */
+    BulkTicket grant(Path path, File file, boolean write, long offset,
+                     long length)
+    {
+        expire();
+
+        long        token;
+        BulkTicket  ticket;
+
+        do
+        {
+            token = random.nextLong();
+            ticket = new BulkTicket(host, server.socket().getLocalPort(),
+                                    token, write, offset, length);
+        }
+        while(grants.putIfAbsent(token, new Grant(path, file, ticket, write))
+              != null);
+
+        return ticket;
+    }
+
+    /** Closes the data channel. Transfers in progress are allowed to
+        finish. */
+    void stop()
+    {
+        try
+        {
+            server.close();
+        }
+        catch(IOException e) { }
+
+        grants.clear();
+    }
+
+    /** Returns the number of transfers in progress. */
+    int active()
+    {
+        return active.get();
+    }
+
+    /** Accepts connections and starts a thread to serve each one. */
+    @Override
+    public void run()
+    {
+        while(true)
+        {
+            final SocketChannel     channel;
+
+            try
+            {
+                channel = server.accept();
+            }
+            catch(IOException e)
+            {
+                // The channel has been closed by stop.
+                return;
+            }
+
+            Thread      transfer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    serve(channel);
+                }
+            }, "storage-data-transfer");
+
+            transfer.setDaemon(true);
+            transfer.start();
+        }
+    }
+
+    /** Reads the token presented on a connection and performs the granted
+        transfer. */
+    private void serve(SocketChannel channel)
+    {
+        try
+        {
+            channel.socket().setSoTimeout(TOKEN_TIMEOUT);
+
+            DataInputStream     input = new DataInputStream(
+                channel.socket().getInputStream());
+            Grant               grant = grants.remove(input.readLong());
+
+            channel.socket().setSoTimeout(0);
+
+            if(grant == null || grant.deadline < System.currentTimeMillis())
+                return;
+
+            active.incrementAndGet();
+            try
+            {
+                if(grant.write)
+                    receive(channel, grant);
+                else
+                    send(channel, grant);
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        }
+        catch(IOException e)
+        {
+            // The client sees the connection close before the transfer is
+            // complete, and reports the failure.
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Streams a range of a file to the client, with the file locked for
+        reading. */
+    private void send(SocketChannel channel, Grant grant) throws IOException
+    {
+        long            position = grant.ticket.offset();
+        long            remaining = grant.ticket.length();
+
+        locks.lockRead(grant.path);
+        try(FileChannel file = FileChannel.open(grant.file.toPath(),
+                                                StandardOpenOption.READ))
+        {
+            while(remaining > 0)
+            {
+                long    count = file.transferTo(position, remaining, channel);
+
+                if(count == 0 && position >= file.size())
+                    throw new EOFException("file truncated during transfer");
+
+                position += count;
+                remaining -= count;
+            }
+        }
+        finally
+        {
+            locks.unlockRead(grant.path);
+        }
+    }
+
+    /** Writes the bytes sent by the client to a range of a file, with the
+        file locked for writing, and reports the outcome. */
+    private void receive(SocketChannel channel, Grant grant)
+        throws IOException
+    {
+        DataOutputStream    status = new DataOutputStream(
+            Channels.newOutputStream(channel));
+        long                position = grant.ticket.offset();
+        long                remaining = grant.ticket.length();
+        IOException         failure = null;
+
+        locks.lockWrite(grant.path);
+        try(FileChannel file = FileChannel.open(grant.file.toPath(),
+                                                StandardOpenOption.WRITE))
+        {
+            ByteBuffer  buffer = null;
+
+            while(remaining > 0)
+            {
+                long    count;
+
+                // transferFrom writes nothing at a position past the end of
+                // the file, where a transfer lands when transfers of earlier
+                // ranges, made in parallel, have not yet extended the file.
+                // Those bytes are copied through a buffer instead.
+                if(position > file.size())
+                {
+                    if(buffer == null)
+                        buffer = ByteBuffer.allocate(64 * 1024);
+
+                    count = copy(channel, file, position, remaining, buffer);
+                }
+                else
+                    count = file.transferFrom(channel, position, remaining);
+
+                // Zero bytes are transferred when the client has closed its
+                // side of the connection early.
+                if(count == 0)
+                    throw new EOFException("transfer ended early");
+
+                position += count;
+                remaining -= count;
+            }
+        }
+        catch(IOException e)
+        {
+            failure = e;
+        }
+        finally
+        {
+            // Any part of the range may have been written, even if the
+            // transfer failed. The cached channel is reopened, and the file
+            // mapped again at its new size, by later reads.
+            try
+            {
+                mapped.invalidate(grant.path);
+                channels.invalidate(grant.path);
+            }
+            finally
+            {
+                locks.unlockWrite(grant.path);
+            }
+        }
+
+        if(failure != null)
+        {
+            status.writeByte(BulkTicket.FAILED);
+            status.writeUTF(String.valueOf(failure.getMessage()));
+        }
+        else
+            status.writeByte(BulkTicket.OK);
+
+        status.flush();
+    }
+
+    /** Copies bytes from the client to a file through a buffer.
+
+        @return The number of bytes copied, which is zero if the client has
+                closed its side of the connection.
+     */
+    private static long copy(SocketChannel channel, FileChannel file,
+                             long position, long remaining, ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+        if(remaining < buffer.capacity())
+            buffer.limit((int)remaining);
+
+        if(channel.read(buffer) <= 0)
+            return 0;
+
+        buffer.flip();
+
+        long        count = buffer.remaining();
+
+        while(buffer.hasRemaining())
+            position += file.write(buffer, position);
+
+        return count;
+    }
+
+    /** Removes expired grants. */
+    private void expire()
+    {
+        long        now = System.currentTimeMillis();
+
+        for(Map.Entry<Long, Grant> entry : grants.entrySet())
+        {
+            if(entry.getValue().deadline < now)
+                grants.remove(entry.getKey(), entry.getValue());
+        }
+    }
+}
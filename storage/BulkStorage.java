@@ -0,0 +1,65 @@
+package storage;
+
+import java.io.*;
+
+import common.*;
+import rmi.RMIException;
+
+/** Storage server client interface with bulk data transfers.
+
+    <p>
+    Reading or writing file data through <code>Storage.read</code> and
+    <code>Storage.write</code> carries the data inside RMI calls, as arrays
+    that must be held in memory in full on both sides. This interface adds
+    bulk transfers, in which the RMI call only checks the request and returns
+    a <code>BulkTicket</code>. The data itself is then streamed over a
+    separate connection to the storage server, directly between the file and
+    the socket on the server side, and between the socket and the caller's
+    buffer or file on the client side.
+
+    <p>
+    Stubs handed out by storage servers implement this interface, so clients
+    may test a <code>Storage</code> stub with <code>instanceof</code> and use
+    bulk transfers for large requests.
+ */
+public interface BulkStorage extends Storage
+{
+    /** Opens a bulk transfer of a sequence of bytes from a file.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param length The number of bytes to be read.
+        @return A ticket through which the bytes are to be received. The
+                ticket expires if it is not used promptly.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the transfer cannot be set up on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BulkTicket openRead(Path file, long offset, long length)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Opens a bulk transfer of a sequence of bytes to a file.
+
+        @param file Path to the file.
+        @param offset Offset into the file where data is to be written.
+        @param length The number of bytes to be written.
+        @return A ticket through which the bytes are to be sent. The ticket
+                expires if it is not used promptly.
+        @throws IndexOutOfBoundsException If <code>offset</code> or
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the transfer cannot be set up on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BulkTicket openWrite(Path file, long offset, long length)
+        throws RMIException, FileNotFoundException, IOException;
+}
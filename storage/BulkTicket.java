@@ -0,0 +1,273 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** Permission to perform one bulk transfer with a storage server.
+
+    <p>
+    Tickets are issued by <code>BulkStorage.openRead</code> and
+    <code>BulkStorage.openWrite</code>. A ticket names the data channel of the
+    storage server and carries a random token identifying the transfer. It may
+    be used exactly once, by calling one of the transfer methods of the
+    matching direction. Each transfer opens its own connection to the data
+    channel, presents the token, and moves exactly <code>length()</code>
+    bytes.
+
+    <p>
+    On the server, data moves between the file and the socket with
+    <code>FileChannel.transferTo</code> and <code>transferFrom</code>, so that
+    file data is not copied through the Java heap. On the client, data is
+    received into or sent from the caller's <code>ByteBuffer</code> or file,
+    without intermediate arrays.
+ */
+public class BulkTicket implements Serializable
+{
+    private static final long serialVersionUID = 3385024133946342577L;
+
+    /** Status sent by the server after a successful write transfer. */
+    static final int            OK = 0;
+    /** Status sent by the server after a failed write transfer, followed by
+        an error message. */
+    static final int            FAILED = 1;
+
+    /** Host name of the storage server. */
+    private final String        host;
+    /** Port of the data channel. */
+    private final int           port;
+    /** Token identifying the transfer. */
+    private final long          token;
+    /** Indicates that data is to be written to the server. */
+    private final boolean       write;
+    /** Offset into the file of the first byte transferred. */
+    private final long          offset;
+    /** Number of bytes to be transferred. */
+    private final long          length;
+
+    /** Creates a ticket. */
+    BulkTicket(String host, int port, long token, boolean write, long offset,
+               long length)
+    {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.write = write;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** Returns the token identifying the transfer. */
+    long token()
+    {
+        return token;
+    }
+
+    /** Returns the offset into the file of the first byte transferred. */
+    public long offset()
+    {
+        return offset;
+    }
+
+    /** Returns the number of bytes to be transferred. */
+    public long length()
+    {
+        return length;
+    }
+
+    /** Receives the bytes of a read transfer into a buffer.
+
+        <p>
+        Exactly <code>length()</code> bytes are placed in the buffer, starting
+        at its position, and the position is advanced past them.
+
+        @param destination Buffer to receive the bytes.
+        @throws IOException If the ticket is not for a read transfer, if the
+                            buffer does not have enough space remaining, or if
+                            the transfer fails.
+     */
+    public void read(ByteBuffer destination) throws IOException
+    {
+        if(destination.remaining() < length)
+            throw new IOException("buffer too small for transfer");
+
+        ByteBuffer      window = destination.duplicate();
+        window.limit(window.position() + (int)length);
+
+        SocketChannel   channel = connect(false);
+
+        try
+        {
+            while(window.hasRemaining())
+            {
+                if(channel.read(window) < 0)
+                    throw new EOFException("transfer ended early");
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        destination.position(window.position());
+    }
+
+    /** Receives the bytes of a read transfer into a file.
+
+        @param file File to receive the bytes.
+        @param position Offset in <code>file</code> at which the first byte is
+                        to be written.
+        @throws IOException If the ticket is not for a read transfer, or if
+                            the transfer fails.
+     */
+    public void read(FileChannel file, long position) throws IOException
+    {
+        SocketChannel   channel = connect(false);
+
+        try
+        {
+            long        done = 0;
+
+            while(done < length)
+            {
+                long    count = file.transferFrom(channel, position + done,
+                                                  length - done);
+
+                // transferFrom returns zero both when the socket has reached
+                // end of stream and when it has merely delivered nothing.
+                // Tell the two apart with an ordinary read.
+                if(count == 0)
+                {
+                    ByteBuffer  single = ByteBuffer.allocate(1);
+
+                    if(channel.read(single) < 0)
+                        throw new EOFException("transfer ended early");
+
+                    single.flip();
+                    file.write(single, position + done);
+                    count = 1;
+                }
+
+                done += count;
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /** Sends the bytes of a write transfer from a buffer.
+
+        <p>
+        Exactly <code>length()</code> bytes are taken from the buffer, starting
+        at its position, and the position is advanced past them. The method
+        returns once the server has written the bytes to the file.
+
+        @param source Buffer holding the bytes.
+        @throws IOException If the ticket is not for a write transfer, if the
+                            buffer does not hold enough bytes, or if the
+                            transfer fails.
+     */
+    public void write(ByteBuffer source) throws IOException
+    {
+        if(source.remaining() < length)
+            throw new IOException("buffer too small for transfer");
+
+        ByteBuffer      window = source.duplicate();
+        window.limit(window.position() + (int)length);
+
+        SocketChannel   channel = connect(true);
+
+        try
+        {
+            while(window.hasRemaining())
+                channel.write(window);
+
+            awaitStatus(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        source.position(window.position());
+    }
+
+    /** Sends the bytes of a write transfer from a file.
+
+        @param file File holding the bytes.
+        @param position Offset in <code>file</code> of the first byte to be
+                        sent.
+        @throws IOException If the ticket is not for a write transfer, if the
+                            file is too short, or if the transfer fails.
+     */
+    public void write(FileChannel file, long position) throws IOException
+    {
+        SocketChannel   channel = connect(true);
+
+        try
+        {
+            long        done = 0;
+
+            while(done < length)
+            {
+                long    count = file.transferTo(position + done,
+                                                length - done, channel);
+
+                if(count == 0 && position + done >= file.size())
+                    throw new EOFException("source file too short");
+
+                done += count;
+            }
+
+            awaitStatus(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /** Opens a connection to the data channel and presents the token. */
+    private SocketChannel connect(boolean for_write) throws IOException
+    {
+        if(for_write != write)
+        {
+            throw new IOException("ticket is for a " +
+                                  (write ? "write" : "read") + " transfer");
+        }
+
+        SocketChannel   channel =
+            SocketChannel.open(new InetSocketAddress(host, port));
+
+        try
+        {
+            ByteBuffer  header = ByteBuffer.allocate(8);
+            header.putLong(token).flip();
+
+            while(header.hasRemaining())
+                channel.write(header);
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /** Waits for the server to report the outcome of a write transfer. */
+    private void awaitStatus(SocketChannel channel) throws IOException
+    {
+        channel.shutdownOutput();
+
+        DataInputStream     status =
+            new DataInputStream(Channels.newInputStream(channel));
+
+        if(status.readUnsignedByte() != OK)
+            throw new IOException(status.readUTF());
+    }
+}
@@ -0,0 +1,277 @@
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+
+/** Bounded cache of open files on a storage server.
+
+    <p>
+    Opening and closing a file for each <code>read</code> or
+    <code>write</code> call costs more than the call itself when requests are
+    small. The cache keeps up to <code>capacity()</code> files open, as
+    <code>FileChannel</code>s keyed by path, and closes the least recently
+    used one when a new file must be opened. Cached channels are used with
+    positional reads and writes only, so they can be shared by concurrent
+    callers.
+
+    <p>
+    Files are opened read-only until they are first acquired for writing, so
+    that files the server may read but not write can still be read. A file
+    acquired for writing is opened for reading and writing, and its channel
+    replaces any read-only channel to it in the cache.
+
+    <p>
+    A channel found in the cache also shows that its path names an existing
+    regular file, so the storage server skips its checks of the local
+    filesystem on a hit. This relies on every change to the directory tree
+    made by the server invalidating the paths it affects: see
+    <code>invalidate</code>.
+
+    <p>
+    A channel that is evicted or invalidated while in use is closed when its
+    last user releases it. The capacity is read from the system property
+    <code>storage.channel.cache</code>, and defaults to 128. The counters
+    returned by <code>hits</code>, <code>misses</code> and
+    <code>evictions</code> count since the server was created.
+ */
+public class ChannelCache
+{
+    /** Maximum number of open files. */
+    private final int                       capacity;
+    /** Open files, from least to most recently used. */
+    private final LinkedHashMap<Path, Handle>   handles;
+
+    /** Number of lookups that found an open file. */
+    private final AtomicLong                hits = new AtomicLong();
+    /** Number of lookups that had to open the file. */
+    private final AtomicLong                misses = new AtomicLong();
+    /** Number of files closed to make room for others. */
+    private final AtomicLong                evictions = new AtomicLong();
+
+    /** Open file, shared by the callers that have acquired it. */
+    static class Handle
+    {
+        /** The open file. */
+        final FileChannel   channel;
+        /** Indicates that the file was opened for writing as well as
+            reading. */
+        final boolean       writable;
+        /** Number of callers currently using the file. */
+        private int         users = 0;
+        /** Indicates that the handle has left the cache, and is to be closed
+            once it has no users. */
+        private boolean     retired = false;
+
+        Handle(FileChannel channel, boolean writable)
+        {
+            this.channel = channel;
+            this.writable = writable;
+        }
+    }
+
+    /** Creates a cache with the capacity given by the system property. */
+    ChannelCache()
+    {
+        this(Integer.getInteger("storage.channel.cache", 128));
+    }
+
+    /** Creates a cache holding at most the given number of open files. */
+    ChannelCache(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+
+        handles = new LinkedHashMap<Path, Handle>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Handle> eldest)
+            {
+                if(size() <= ChannelCache.this.capacity)
+                    return false;
+
+                evictions.incrementAndGet();
+                retire(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /** Returns the open file for a path, opening it if necessary. The caller
+        must pass the handle to <code>release</code> when done with it.
+
+        @param path Path to the file.
+        @param file The local file named by the path.
+        @param write <code>true</code> if the caller is to write to the file,
+                     <code>false</code> if it only reads.
+        @return The handle of the open file.
+        @throws FileNotFoundException If the file does not exist, or the path
+                                      refers to a directory.
+        @throws IOException If the file cannot be opened.
+     */
+    Handle acquire(Path path, File file, boolean write) throws IOException
+    {
+        synchronized(handles)
+        {
+            Handle      handle = handles.get(path);
+
+            if(handle != null && (handle.writable || !write))
+            {
+                hits.incrementAndGet();
+                ++handle.users;
+                return handle;
+            }
+        }
+
+        misses.incrementAndGet();
+
+        if(!file.exists())
+            throw new FileNotFoundException("File does not exist.");
+        if(file.isDirectory())
+            throw new FileNotFoundException("Path refers to a directory.");
+
+        Handle          opened = write ?
+            new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE), true) :
+            new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                       false);
+
+        synchronized(handles)
+        {
+            // Another caller may have opened the same file in the meantime.
+            Handle      handle = handles.get(path);
+
+            if(handle == null || (write && !handle.writable))
+            {
+                // A read-only channel in use stays open until it is
+                // released.
+                if(handle != null)
+                {
+                    handles.remove(path);
+                    retire(handle);
+                }
+
+                handle = opened;
+                handles.put(path, handle);
+            }
+            else
+                retire(opened);
+
+            ++handle.users;
+            return handle;
+        }
+    }
+
+    /** Releases a handle returned by <code>acquire</code>. */
+    void release(Handle handle)
+    {
+        synchronized(handles)
+        {
+            --handle.users;
+
+            if(handle.retired && handle.users == 0)
+                close(handle);
+        }
+    }
+
+    /** Closes the files at and below a path.
+
+        <p>
+        This must be called whenever the file named by a path is replaced,
+        created or deleted other than through a cached channel, before the
+        change becomes visible to other callers.
+
+        @param path The path whose files are to be closed.
+     */
+    void invalidate(Path path)
+    {
+        synchronized(handles)
+        {
+            Iterator<Map.Entry<Path, Handle>>   entries =
+                handles.entrySet().iterator();
+
+            while(entries.hasNext())
+            {
+                Map.Entry<Path, Handle>         entry = entries.next();
+
+                if(entry.getKey().isSubpath(path))
+                {
+                    entries.remove();
+                    retire(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /** Closes every cached file. */
+    void clear()
+    {
+        synchronized(handles)
+        {
+            for(Handle handle : handles.values())
+                retire(handle);
+
+            handles.clear();
+        }
+    }
+
+    /** Returns the maximum number of open files. */
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    /** Returns the number of files currently open in the cache. */
+    public int size()
+    {
+        synchronized(handles)
+        {
+            return handles.size();
+        }
+    }
+
+    /** Returns the number of lookups that found an open file. */
+    public long hits()
+    {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that had to open the file. */
+    public long misses()
+    {
+        return misses.get();
+    }
+
+    /** Returns the number of files closed to make room for others. */
+    public long evictions()
+    {
+        return evictions.get();
+    }
+
+    /** Marks a handle as having left the cache, closing it if it is not in
+        use. Called with the cache locked. */
+    private static void retire(Handle handle)
+    {
+        handle.retired = true;
+
+        if(handle.users == 0)
+            close(handle);
+    }
+
+    /** Closes the file of a handle. */
+    private static void close(Handle handle)
+    {
+        try
+        {
+            handle.channel.close();
+        }
+        catch(IOException e) { }
+    }
+}
@@ -0,0 +1,294 @@
+package storage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+import rmi.RMIException;
+
+/** Streamed copy of a file from another storage server.
+
+    <p>
+    The file is fetched in chunks of <code>CHUNK_SIZE</code> bytes, with up to
+    <code>WINDOW</code> chunks in flight at once, so that memory use does not
+    depend on the size of the file and transfers overlap with the round trips
+    of the following requests. If the source server supports bulk transfers,
+    each chunk is streamed from the source file straight into the local file;
+    otherwise, chunks are fetched with <code>Storage.read</code>.
+
+    <p>
+    Chunks are written into a temporary file next to the destination, which
+    replaces the destination with an atomic rename once every chunk has
+    arrived. Readers of the destination therefore see either the old file or
+    the complete copy. If the connection to the source fails, only the chunks
+    that have not completed are fetched again. The copy gives up after
+    <code>RETRIES</code> consecutive attempts that make no progress.
+
+    <p>
+    The chunk size, window and retry count are read from the system properties
+    <code>storage.copy.chunk</code>, <code>storage.copy.window</code> and
+    <code>storage.copy.retries</code>, and default to 1 MiB, four chunks and
+    three attempts.
+ */
+class ChunkedCopy
+{
+    /** Size of each chunk, in bytes. */
+    static final int            CHUNK_SIZE =
+        Math.max(1, Integer.getInteger("storage.copy.chunk", 1 << 20));
+    /** Number of chunks fetched concurrently. */
+    static final int            WINDOW =
+        Math.max(1, Integer.getInteger("storage.copy.window", 4));
+    /** Number of consecutive attempts without progress before giving up. */
+    static final int            RETRIES =
+        Math.max(1, Integer.getInteger("storage.copy.retries", 3));
+
+    /** Threads fetching chunks, shared by all copies. */
+    private static final ExecutorService    fetchers =
+        Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread      thread = new Thread(task, "storage-copy");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Path to the file on both servers. */
+    private final Path          path;
+    /** Server from which the file is copied. */
+    private final Storage       source;
+    /** Local temporary file receiving the chunks. */
+    private final File          temporary;
+    /** Size of the file on the source server. */
+    private long                size;
+    /** Chunks that have been written to the temporary file. */
+    private final BitSet        completed = new BitSet();
+
+    /** Prepares a copy.
+
+        @param path Path to the file.
+        @param source Server from which the file is copied.
+        @param destination Local file to be replaced by the copy. Its parent
+                           directory must exist.
+     */
+    ChunkedCopy(Path path, Storage source, File destination)
+    {
+        this.path = path;
+        this.source = source;
+        this.temporary = new File(destination.getParentFile(),
+                                  "." + destination.getName() + ".copy-" +
+                                  Long.toHexString(System.nanoTime()));
+    }
+
+    /** Fetches the file into the temporary file.
+
+        @return The temporary file, holding a complete copy. The caller is
+                responsible for installing it with <code>install</code>, or
+                deleting it.
+        @throws FileNotFoundException If the file is not present on the source
+                                      server, or the path refers to a
+                                      directory.
+        @throws IOException If the file cannot be written locally, or the
+                            source server reports an error.
+        @throws RMIException If the source server could not be reached after
+                             the allowed number of attempts.
+     */
+    File fetch() throws RMIException, FileNotFoundException, IOException
+    {
+        size = source.size(path);
+
+        FileChannel     file = FileChannel.open(
+            temporary.toPath(), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+
+        try
+        {
+            int         chunks = (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            int         failures = 0;
+
+            while(completed.cardinality() < chunks)
+            {
+                int         before = completed.cardinality();
+                Exception   failure = attempt(file, chunks);
+
+                if(failure == null)
+                    continue;
+
+                // A failure that does not come from the network will recur
+                // on every attempt.
+                if(failure instanceof FileNotFoundException ||
+                   failure instanceof IndexOutOfBoundsException)
+                {
+                    throw rethrow(failure);
+                }
+
+                failures = completed.cardinality() > before ? 1 : failures + 1;
+
+                if(failures >= RETRIES)
+                    throw rethrow(failure);
+            }
+
+            file.force(false);
+        }
+        catch(RMIException | IOException | RuntimeException e)
+        {
+            file.close();
+            temporary.delete();
+            throw e;
+        }
+
+        file.close();
+
+        return temporary;
+    }
+
+    /** Replaces the destination with the fetched file.
+
+        @param destination The file to be replaced.
+        @throws IOException If the rename fails. The temporary file is deleted
+                            in that case.
+     */
+    void install(File destination) throws IOException
+    {
+        try
+        {
+            Files.move(temporary.toPath(), destination.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            temporary.delete();
+            throw e;
+        }
+    }
+
+    /** Fetches every chunk that has not yet completed, keeping up to
+        <code>WINDOW</code> chunks in flight.
+
+        @return The first failure encountered, or <code>null</code> if every
+                chunk was fetched.
+     */
+    private Exception attempt(final FileChannel file, int chunks)
+        throws InterruptedIOException
+    {
+        final int[]             pending = new int[chunks -
+                                                  completed.cardinality()];
+        final AtomicInteger     next = new AtomicInteger();
+        final AtomicInteger     stop = new AtomicInteger();
+
+        for(int chunk = completed.nextClearBit(0), index = 0;
+            index < pending.length; chunk = completed.nextClearBit(chunk + 1))
+        {
+            pending[index++] = chunk;
+        }
+
+        List<Future<Exception>> workers = new ArrayList<Future<Exception>>();
+
+        for(int worker = 0; worker < Math.min(WINDOW, pending.length);
+            ++worker)
+        {
+            workers.add(fetchers.submit(new Callable<Exception>()
+            {
+                @Override
+                public Exception call()
+                {
+                    int         index;
+
+                    while(stop.get() == 0 &&
+                          (index = next.getAndIncrement()) < pending.length)
+                    {
+                        try
+                        {
+                            fetchChunk(file, pending[index]);
+                        }
+                        catch(Exception e)
+                        {
+                            stop.set(1);
+                            return e;
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        Exception               failure = null;
+
+        for(Future<Exception> worker : workers)
+        {
+            try
+            {
+                Exception       result = worker.get();
+
+                if(failure == null)
+                    failure = result;
+            }
+            catch(InterruptedException e)
+            {
+                stop.set(1);
+                throw new InterruptedIOException("copy interrupted");
+            }
+            catch(ExecutionException e)
+            {
+                if(failure == null)
+                    failure = new IOException(e.getCause());
+            }
+        }
+
+        return failure;
+    }
+
+    /** Fetches one chunk into the temporary file and records its completion.
+     */
+    private void fetchChunk(FileChannel file, int chunk)
+        throws RMIException, IOException
+    {
+        long            offset = (long)chunk * CHUNK_SIZE;
+        int             length = (int)Math.min(CHUNK_SIZE, size - offset);
+
+        if(source instanceof BulkStorage)
+        {
+            ((BulkStorage)source).openRead(path, offset, length)
+                .read(file, offset);
+        }
+        else
+        {
+            ByteBuffer  data = ByteBuffer.wrap(
+                source.read(path, offset, length));
+
+            while(data.hasRemaining())
+                file.write(data, offset + data.position());
+        }
+
+        synchronized(completed)
+        {
+            completed.set(chunk);
+        }
+    }
+
+    /** Returns a failure in a form that can be thrown by <code>fetch</code>.
+     */
+    private static IOException rethrow(Exception failure) throws RMIException
+    {
+        if(failure instanceof RMIException)
+            throw (RMIException)failure;
+        if(failure instanceof RuntimeException)
+            throw (RuntimeException)failure;
+        if(failure instanceof IOException)
+            return (IOException)failure;
+        return new IOException(failure);
+    }
+}
@@ -0,0 +1,320 @@
+package storage;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.*;
+
+/** Memory-mapped read path for frequently read files on a storage server.
+
+    <p>
+    When enabled, the storage server counts reads of each recently used file.
+    Once a file of at least <code>threshold()</code> bytes has been read
+    <code>MIN_READS</code> times, it is mapped read-only with
+    <code>FileChannel.map</code>, in segments of at most
+    <code>SEGMENT_SIZE</code> bytes, and later reads within the mapped range
+    are served by copying from the mapping rather than by a system call.
+
+    <p>
+    The total size of the mapped files is kept within <code>limit()</code>:
+    mapping a file first drops the least recently used mappings needed to
+    make room, and files larger than the limit are never mapped. Writing,
+    creating, deleting or replacing a file drops its mapping and its read
+    count, so that only read-mostly files stay mapped. The Java platform
+    provides no safe way to unmap a buffer explicitly, so a dropped mapping
+    is released when it is garbage collected; it no longer counts towards
+    the limit from the moment it is dropped.
+
+    <p>
+    The read path is enabled by setting the system property
+    <code>storage.mmap</code> to <code>true</code>. It is configured by
+    <code>storage.mmap.threshold</code> (smallest mapped file, default
+    1 MiB), <code>storage.mmap.reads</code> (reads before mapping, default
+    16), <code>storage.mmap.limit</code> (total mapped bytes, default
+    256 MiB) and <code>storage.mmap.segment</code> (segment size, default
+    64 MiB).
+ */
+public class MappedFiles
+{
+    /** Indicates that the read path is enabled. */
+    static final boolean        ENABLED = Boolean.getBoolean("storage.mmap");
+    /** Number of reads of a file before it is mapped. */
+    static final int            MIN_READS =
+        Math.max(1, Integer.getInteger("storage.mmap.reads", 16));
+    /** Largest segment in which a file is mapped. */
+    static final int            SEGMENT_SIZE = (int)Math.min(
+        Integer.MAX_VALUE,
+        Math.max(4096, Long.getLong("storage.mmap.segment", 64L << 20)));
+    /** Number of files whose read counts are tracked. */
+    private static final int    TRACKED = 4096;
+
+    /** Smallest file that is mapped. */
+    private final long          threshold;
+    /** Largest total size of the mapped files. */
+    private final long          limit;
+    /** Tracked files, from least to most recently read. */
+    private final LinkedHashMap<Path, Entry>    entries;
+    /** Total size of the mapped files. */
+    private long                mapped_bytes = 0;
+
+    /** Number of reads served from a mapping. */
+    private final AtomicLong    hits = new AtomicLong();
+    /** Number of reads of tracked files not served from a mapping. */
+    private final AtomicLong    misses = new AtomicLong();
+
+    /** Read count and mapping of a file. */
+    private static class Entry
+    {
+        /** Number of reads since the file was last changed. */
+        int                     reads = 0;
+        /** Segments of the mapping, or <code>null</code> if the file is not
+            mapped. */
+        MappedByteBuffer[]      segments = null;
+        /** Number of bytes mapped. */
+        long                    size = 0;
+        /** Indicates that the file was found too small or too large to be
+            mapped. */
+        boolean                 rejected = false;
+    }
+
+    /** Creates the read path, configured by the system properties. If it is
+        not enabled, no file is ever mapped. */
+    MappedFiles()
+    {
+        this(Long.getLong("storage.mmap.threshold", 1L << 20),
+             ENABLED ? Long.getLong("storage.mmap.limit", 256L << 20) : 0);
+    }
+
+    /** Creates a read path with the given smallest file size and limit on the
+        total size of mapped files. */
+    MappedFiles(long threshold, long limit)
+    {
+        this.threshold = Math.max(1, threshold);
+        this.limit = Math.max(0, limit);
+
+        entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest)
+            {
+                if(size() <= TRACKED)
+                    return false;
+
+                unmap(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /** Reads a sequence of bytes from the mapping of a file, mapping the file
+        first if it has become eligible.
+
+        <p>
+        The caller must hold at least a read lock on the file, and must have
+        checked that the sequence lies within the file.
+
+        @param path Path to the file.
+        @param channel An open channel to the file.
+        @param offset Offset of the first byte to be read.
+        @param destination Array to be filled with the bytes.
+        @return <code>true</code> if the bytes were read from the mapping,
+                <code>false</code> if the caller must read them itself.
+        @throws IOException If the file cannot be mapped.
+     */
+    boolean read(Path path, FileChannel channel, long offset,
+                 byte[] destination) throws IOException
+    {
+        if(limit == 0)
+            return false;
+
+        MappedByteBuffer[]      segments;
+        long                    size;
+
+        synchronized(entries)
+        {
+            Entry               entry = entries.get(path);
+
+            if(entry == null)
+            {
+                entry = new Entry();
+                entries.put(path, entry);
+            }
+
+            ++entry.reads;
+
+            if(entry.segments == null && !entry.rejected &&
+               entry.reads >= MIN_READS)
+            {
+                map(entry, channel);
+            }
+
+            segments = entry.segments;
+            size = entry.size;
+        }
+
+        // The caller reads bytes past the mapped range itself.
+        if(segments == null || offset + destination.length > size)
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        int                     copied = 0;
+
+        while(copied < destination.length)
+        {
+            long                position = offset + copied;
+            MappedByteBuffer    segment =
+                segments[(int)(position / SEGMENT_SIZE)];
+            int                 index = (int)(position % SEGMENT_SIZE);
+            int                 count = Math.min(destination.length - copied,
+                                                 segment.limit() - index);
+
+            segment.get(index, destination, copied, count);
+            copied += count;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /** Drops the mappings and read counts of the files at and below a path.
+
+        <p>
+        This must be called, with the file locked for writing, whenever the
+        file named by a path is written, replaced, created or deleted.
+
+        @param path The path whose files are to be dropped.
+     */
+    void invalidate(Path path)
+    {
+        if(limit == 0)
+            return;
+
+        synchronized(entries)
+        {
+            Iterator<Map.Entry<Path, Entry>>    iterator =
+                entries.entrySet().iterator();
+
+            while(iterator.hasNext())
+            {
+                Map.Entry<Path, Entry>          entry = iterator.next();
+
+                if(entry.getKey().isSubpath(path))
+                {
+                    unmap(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /** Drops every mapping. */
+    void clear()
+    {
+        synchronized(entries)
+        {
+            for(Entry entry : entries.values())
+                unmap(entry);
+
+            entries.clear();
+        }
+    }
+
+    /** Returns the smallest file that is mapped. */
+    public long threshold()
+    {
+        return threshold;
+    }
+
+    /** Returns the largest total size of the mapped files, or zero if the
+        read path is disabled. */
+    public long limit()
+    {
+        return limit;
+    }
+
+    /** Returns the total size of the files currently mapped. */
+    public long mappedBytes()
+    {
+        synchronized(entries)
+        {
+            return mapped_bytes;
+        }
+    }
+
+    /** Returns the number of reads served from a mapping. */
+    public long hits()
+    {
+        return hits.get();
+    }
+
+    /** Returns the number of reads of tracked files that were not served
+        from a mapping. */
+    public long misses()
+    {
+        return misses.get();
+    }
+
+    /** Returns the fraction of reads served from a mapping, or zero if there
+        have been no reads. */
+    public double hitRate()
+    {
+        long        hit_count = hits.get();
+        long        total = hit_count + misses.get();
+
+        return total == 0 ? 0 : (double)hit_count / total;
+    }
+
+    /** Maps a file if it is large enough, dropping other mappings to stay
+        within the limit. Called with the entries locked. */
+    private void map(Entry entry, FileChannel channel) throws IOException
+    {
+        long                    size = channel.size();
+
+        if(size < threshold || size > limit)
+        {
+            entry.rejected = true;
+            return;
+        }
+
+        Iterator<Entry>         iterator = entries.values().iterator();
+
+        while(mapped_bytes + size > limit && iterator.hasNext())
+            unmap(iterator.next());
+
+        int                     count =
+            (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[]      segments = new MappedByteBuffer[count];
+
+        for(int index = 0; index < count; ++index)
+        {
+            long                start = (long)index * SEGMENT_SIZE;
+
+            segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                          Math.min(SEGMENT_SIZE, size - start));
+        }
+
+        entry.segments = segments;
+        entry.size = size;
+        mapped_bytes += size;
+    }
+
+    /** Drops the mapping of a file, if any. Called with the entries locked. */
+    private void unmap(Entry entry)
+    {
+        if(entry.segments == null)
+            return;
+
+        mapped_bytes -= entry.size;
+        entry.segments = null;
+        entry.size = 0;
+    }
+}
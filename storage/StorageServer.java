@@ -2,6 +2,8 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Exception.*;
 import java.lang.Object;
 import common.*;
@@ -14,15 +16,43 @@ import naming.*;
     Storage servers respond to client file access requests. The files accessible
     through a storage server are those accessible under a given directory of the
     local filesystem.
+
+    <p>
+    Besides the client and command interfaces, a storage server listens on a
+    data channel for the payload of bulk transfers: see
+    <code>BulkStorage</code>. The data channel port is chosen by the system.
+    The command interface is exported as <code>BatchCommand</code>, so that
+    the naming server can delete many files in one call.
+
+    <p>
+    If the naming server accepts heartbeats, the storage server reports its
+    free space and the number of requests it is serving at the interval the
+    naming server asks for. The zone of the server, across which the naming
+    server spreads replicas, is given by the system property
+    <code>storage.zone</code>.
  */
-public class StorageServer implements Storage, Command
+public class StorageServer implements BulkStorage, BatchCommand
 {
     private File root_dir;
     private static int clientport=5000;
     private static int commandport=6000;
-    Skeleton <Storage>  storageSkeleton;
-    Skeleton <Command>  commandSkeleton;
+    Skeleton <BulkStorage>  storageSkeleton;
+    Skeleton <BatchCommand>  commandSkeleton;
+    /** Data channel for bulk transfers, while the server is running. */
+    private BulkServer bulkServer;
+    /** Locks over the files of the server, which replace synchronization on
+        the server object so that different files are accessed in parallel. */
+    private final StripedLocks locks = new StripedLocks();
+    /** Files kept open for reads and writes. */
+    private final ChannelCache channels = new ChannelCache();
+    /** Memory-mapped read path for frequently read files. */
+    private final MappedFiles mapped = new MappedFiles();
     private boolean make_dir;
+    /** Number of client reads, writes and size queries in progress. */
+    private final AtomicInteger requests = new AtomicInteger();
+    /** Thread reporting load to the naming server, while the server is
+        running. */
+    private Thread heartbeat;
     /** Creates a storage server, given a directory on the local filesystem, and
         ports to use for the client and command interfaces.
 
@@ -116,11 +146,23 @@ public class StorageServer implements Storage, Command
         storageAddress = new InetSocketAddress(hostname, clientport++);
         commandAddress = new InetSocketAddress(hostname, commandport++);
 
-        this.storageSkeleton = new Skeleton<Storage>(Storage.class, this,storageAddress);
-        this.commandSkeleton = new Skeleton<Command>(Command.class, this,commandAddress);
+        this.storageSkeleton = new Skeleton<BulkStorage>(BulkStorage.class, this,storageAddress);
+        this.commandSkeleton = new Skeleton<BatchCommand>(BatchCommand.class, this,commandAddress);
+
+        // Stubs implement BulkStorage, so that clients can find the data
+        // channel through any Storage stub they receive.
+        Storage store = Stub.create(BulkStorage.class, storageAddress);
+        Command cmd = Stub.create(BatchCommand.class, commandAddress);
 
-        Storage store = Stub.create(Storage.class, storageAddress);
-        Command cmd = Stub.create(Command.class, commandAddress);
+        try
+        {
+            this.bulkServer = new BulkServer(hostname, 0, locks, channels,
+                                             mapped);
+        }
+        catch(IOException e)
+        {
+            throw new RMIException("unable to open data channel", e);
+        }
 
         this.storageSkeleton.start();
         this.commandSkeleton.start();
@@ -141,6 +183,66 @@ public class StorageServer implements Storage, Command
         }
 
         deleteEmpty(root_dir);//C
+
+        if(naming_server instanceof Heartbeat)
+            startHeartbeat((Heartbeat)naming_server, store);
+    }
+
+    /** Starts the thread reporting the capacity and load of the server to
+        the naming server. Failed reports are not retried: the next one is
+        sent at the following interval. */
+    private void startHeartbeat(final Heartbeat naming_server,
+                                final Storage store)
+    {
+        final String zone = System.getProperty("storage.zone");
+
+        heartbeat = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long interval = 1000;
+
+                try
+                {
+                    interval = naming_server.heartbeatInterval();
+                }
+                catch(RMIException e) { }
+
+                while(!Thread.currentThread().isInterrupted())
+                {
+                    try
+                    {
+                        naming_server.heartbeat(store, load(zone));
+                    }
+                    catch(RMIException e) { }
+
+                    try
+                    {
+                        Thread.sleep(interval);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }, "storage-heartbeat");
+
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /** Returns the current capacity and load of the server. */
+    private LoadReport load(String zone)
+    {
+        int active = requests.get();
+
+        if(bulkServer != null)
+            active += bulkServer.active();
+
+        return new LoadReport(root_dir.getTotalSpace(),
+                              root_dir.getUsableSpace(), active, zone);
     }
 
     private void deleteEmpty(File root_dir2)
@@ -168,8 +270,14 @@ public class StorageServer implements Storage, Command
     {
         try
         {
+            if(this.heartbeat != null)
+                this.heartbeat.interrupt();
             this.commandSkeleton.stop();
             this.storageSkeleton.stop();
+            if(this.bulkServer != null)
+                this.bulkServer.stop();
+            this.channels.clear();
+            this.mapped.clear();
             stopped(null);
         }
         catch (Exception e)
@@ -187,152 +295,266 @@ public class StorageServer implements Storage, Command
     {
     }
 
-    // The following methods are documented in Storage.java.
+    /** Returns the cache of open files, whose counters report how often
+        reads and writes found their file already open. */
+    public ChannelCache channelCache()
+    {
+        return channels;
+    }
+
+    /** Returns the memory-mapped read path, whose counters report the size of
+        the mapped files and how often reads were served from them. */
+    public MappedFiles mappedFiles()
+    {
+        return mapped;
+    }
+
+    // The following methods are documented in Storage.java. They use open
+    // files from the channel cache, which also performs the checks on the
+    // local file when it is not already open.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
         if(file==null)
             throw new NullPointerException("Path is null");
 
-        File f=file.toFile(this.root_dir);
-
-        if(!f.exists())
-            throw new FileNotFoundException("File does not exist.");
-        if(f.isDirectory())
-            throw new FileNotFoundException("Path refers to a directory.");
-
-        return f.length();
+        requests.incrementAndGet();
+        locks.lockRead(file);
+        try
+        {
+            ChannelCache.Handle handle =
+                channels.acquire(file, file.toFile(root_dir), false);
+            try
+            {
+                return handle.channel.size();
+            }
+            finally
+            {
+                channels.release(handle);
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw e;
+        }
+        catch(IOException e)
+        {
+            // The file exists but cannot be opened; its length can still be
+            // reported.
+            return file.toFile(root_dir).length();
+        }
+        finally
+        {
+            locks.unlockRead(file);
+            requests.decrementAndGet();
+        }
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
         if(file==null)
             throw new NullPointerException("Path is null");
-        File f = file.toFile(this.root_dir);
 
-        if(!f.exists())
-            throw new FileNotFoundException("File does not exist.");
-        if(f.isDirectory())
-            throw new FileNotFoundException("Path refers to a directory.");
+        requests.incrementAndGet();
+        locks.lockRead(file);
+        try
+        {
+            ChannelCache.Handle handle =
+                channels.acquire(file, file.toFile(root_dir), false);
+            try
+            {
+                if(length+offset > handle.channel.size())
+                    throw new IndexOutOfBoundsException("length and offset is greater than file size");
+                if (length < 0 || offset < 0)
+                    throw new IndexOutOfBoundsException();
 
-        if(length+offset > this.size(file))
-            throw new IndexOutOfBoundsException("length and offset is greater than file size");
-        if (length < 0 || offset < 0)
-            throw new IndexOutOfBoundsException();
+                byte[] data = new byte[length];
 
+                if(mapped.read(file, handle.channel, offset, data))
+                    return data;
 
-        RandomAccessFile readfile = new RandomAccessFile(f, "r");
-        readfile.seek(offset);
+                ByteBuffer b = ByteBuffer.wrap(data);
 
-        byte[] b=new byte[length];
+                while(b.hasRemaining())
+                {
+                    if(handle.channel.read(b, offset + b.position()) < 0)
+                        throw new IndexOutOfBoundsException("Length exceeded the file");
+                }
 
-        int r;
+                return data;
+            }
+            finally
+            {
+                channels.release(handle);
+            }
+        }
+        finally
+        {
+            locks.unlockRead(file);
+            requests.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws FileNotFoundException, IOException
+    {
+        if(file==null||data==null)
+            throw new NullPointerException("Path is null");
+
+        requests.incrementAndGet();
+        locks.lockWrite(file);
         try
         {
-            r = readfile.read(b);
+            ChannelCache.Handle handle =
+                channels.acquire(file, file.toFile(root_dir), true);
+            try
+            {
+                if (offset < 0)
+                    throw new IndexOutOfBoundsException();
+
+                mapped.invalidate(file);
+                ByteBuffer b = ByteBuffer.wrap(data);
+
+                while(b.hasRemaining())
+                    handle.channel.write(b, offset + b.position());
+            }
+            finally
+            {
+                channels.release(handle);
+            }
         }
-        catch(Exception e)
+        finally
         {
-            readfile.close();
-            throw new IOException(e);
+            locks.unlockWrite(file);
+            requests.decrementAndGet();
         }
-        readfile.close();
+    }
+
+    // The following methods are documented in BulkStorage.java.
+    @Override
+    public BulkTicket openRead(Path file, long offset, long length)
+        throws FileNotFoundException, IOException
+    {
+        File f = checkFile(file);
 
-        if(r < length)
-            throw new IndexOutOfBoundsException("Length exceeded the file");
+        if(length < 0 || offset < 0 || offset + length > f.length())
+            throw new IndexOutOfBoundsException("length and offset is greater than file size");
 
-        return b;
+        return bulkServer.grant(file, f, false, offset, length);
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public BulkTicket openWrite(Path file, long offset, long length)
         throws FileNotFoundException, IOException
     {
-      //System.out.println("Write check 11");
-        if(file==null||data==null)
+        File f = checkFile(file);
+
+        if(offset < 0 || length < 0)
+            throw new IndexOutOfBoundsException();
+
+        return bulkServer.grant(file, f, true, offset, length);
+    }
+
+    /** Returns the local file for a path, checking that it is a file.
+
+        @throws FileNotFoundException If the file does not exist, or the path
+                                      refers to a directory.
+     */
+    private File checkFile(Path file) throws FileNotFoundException
+    {
+        if(file==null)
             throw new NullPointerException("Path is null");
-        //System.out.println("Write check 12");
+
         File f = file.toFile(this.root_dir);
-        //System.out.println("Write check 13");
 
+        if(!f.exists())
+            throw new FileNotFoundException("File does not exist.");
         if(f.isDirectory())
             throw new FileNotFoundException("Path refers to a directory.");
-          //  System.out.println("Write check 14");
 
-        if(!f.exists()){
-            //create(file);
-            throw new FileNotFoundException("File does not exist.");
-          }
-
-
-      //  System.out.println("Write check 15");
-        if (offset < 0)
-            throw new IndexOutOfBoundsException();
-        if (data.length == 0) {
-            return;
-        }
+        return f;
+    }
 
-        //System.out.println("Write check 1");
-        RandomAccessFile writefile = new RandomAccessFile(f, "rw");
-        writefile.seek(offset);
+    // The following methods are documented in Command.java.
+    @Override
+    public boolean create(Path file)
+    {
+        locks.lockNamespace();
         try
         {
-            writefile.write(data);
+            if(file.isRoot())
+                return false;
+
+            if (file.toFile(root_dir).exists()) {
+                return false;
+            }
+
+            if(file.parent().toFile(root_dir).isFile()){
+                delete(file.parent());
+            }
+
+            channels.invalidate(file);
+            mapped.invalidate(file);
+            file.parent().toFile(root_dir).mkdirs();
+            try
+            {
+                return file.toFile(root_dir).createNewFile();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            return false;
         }
-        catch(Exception e)
+        finally
         {
-      //    System.out.println("Write Exception");
-            writefile.close();
-            throw new IOException(e);
+            locks.unlockNamespace();
         }
-        writefile.close();
-
     }
 
-    // The following methods are documented in Command.java.
     @Override
-    public synchronized boolean create(Path file)
+    public boolean delete(Path path)
     {
-    //  System.out.println("Attempting to create file "+ file.toString());
-        if(file.isRoot())
-            return false;
-
-        if (file.toFile(root_dir).exists()) {
-            return false;
-        }
+        if (path == null)
+            throw new NullPointerException ("Null Path Cannot be Deleted");
 
-        if(file.parent().toFile(root_dir).isFile()){
-        	delete(file.parent());
-        }
-
-        boolean tmake_dir = file.parent().toFile(root_dir).mkdirs();
-    //    System.out.println("Success in creating parents "+ tmake_dir);
+        locks.lockNamespace();
         try
         {
-            return file.toFile(root_dir).createNewFile();
+            if(path.isRoot())
+                return false;
+
+            channels.invalidate(path);
+            mapped.invalidate(path);
+            if(path.toFile(root_dir).exists()&& ! path.toFile(root_dir).isDirectory())
+                return path.toFile(root_dir).delete();
+
+            return recurssive_delete(path.toFile(root_dir));
         }
-        catch (IOException e)
+        finally
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            locks.unlockNamespace();
         }
-        return false;
     }
 
+    // The method deleteAll is documented in BatchCommand.java.
     @Override
-    public synchronized boolean delete(Path path)
+    public boolean[] deleteAll(Path[] paths)
     {
-         if (path == null)
-             throw new NullPointerException ("Null Path Cannot be Deleted");
-         if(path.isRoot())
-             return false;
-         if(path.toFile(root_dir).exists()&& ! path.toFile(root_dir).isDirectory())
-             return path.toFile(root_dir).delete();
-
-         return recurssive_delete(path.toFile(root_dir));
-     }
+        if (paths == null)
+            throw new NullPointerException("Null Paths Cannot be Deleted");
+
+        boolean[] deleted = new boolean[paths.length];
+
+        for(int i = 0; i < paths.length; i++)
+            deleted[i] = delete(paths[i]);
+
+        return deleted;
+    }
+
     private boolean recurssive_delete(File f)
     {
         if (!f.exists())
@@ -347,66 +569,61 @@ public class StorageServer implements Storage, Command
         return f.delete();
     }
 
+    // The file is streamed in chunks into a temporary file, which replaces the
+    // local copy only once it is complete (see ChunkedCopy). The server is not
+    // locked while data is being transferred.
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException
     {
-    //	System.out.println("COPPPPPP" + file + " "+ server);
         if (file == null || server == null)
             throw new NullPointerException("The file or server cannot be null.");
 
-        File f=file.toFile(root_dir);
-        if (f.exists())
+        File f = file.toFile(root_dir);
+        ChunkedCopy copy;
+
+        locks.lockNamespace();
+        try
         {
-      //    System.out.println("COPPPPPP222" + file + " "+ server);
-            delete(file);
+            if(!file.isRoot() && file.parent().toFile(root_dir).isFile())
+                delete(file.parent());
+
+            f.getParentFile().mkdirs();
+            copy = new ChunkedCopy(file, server, f);
         }
-        /*
-        else
+        finally
         {
-          System.out.println("COPPPPmmmeee" + file + " "+ server);
-          throw new FileNotFoundException("File not found exception");
+            locks.unlockNamespace();
         }
-        */
-        if (f.isDirectory())
+
+        try
         {
-          throw new FileNotFoundException("File is a directory");
-        }
+            copy.fetch();
 
-        boolean b =create(file);
-
-      //  System.out.println("COPPPPrrrr" + file + " "+ server);
-       if (!b)
-       {
-    //     System.out.println("COPPPPPP333" + file + " "+ server);
-           throw new IOException("File creation failed");
-       }
-
-    //   System.out.println("COPPPPPP444" + file + " "+ server);
-       long size = server.size(file);
-       // int bytesToRead = 1024;
-    //   System.out.println("COPPPPPiiiiii" + file + " "+ server);
-       long offset=0;
-
-       try {
-           while (offset < size) {
-               int toRead = (int) Math.min(size - offset,
-                                           Integer.MAX_VALUE);
-               byte[] data = server.read(file, offset, toRead);
-               write(file, offset, data);
-               offset += toRead;
-           }
-           return true;
-       } catch (IOException e) {
-           throw e;
-       }
-
-       catch (Exception e) {
-      //   System.out.println("COPPPPPP555" + file + " "+ server);
-           return false;
-        // throw new UnsupportedOperationException("not implemented");
-    }
+            locks.lockNamespace();
+            try
+            {
+                if(f.isDirectory())
+                    delete(file);
 
+                channels.invalidate(file);
+                mapped.invalidate(file);
+                copy.install(f);
+            }
+            finally
+            {
+                locks.unlockNamespace();
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,104 @@
+package storage;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.*;
+
+/** Locks protecting the files of a storage server.
+
+    <p>
+    Operations on the contents of a single file take a read or write lock on
+    that file: any number of clients may read a file at once, while a write
+    excludes all other access to it. Files are mapped onto a fixed number of
+    lock stripes by the hash code of their path, so that locks need not be
+    created or cleaned up per file. Distinct files rarely share a stripe, and
+    when they do, their readers still proceed in parallel.
+
+    <p>
+    Operations that change the directory tree, such as creating or deleting
+    files, can affect many files at once. They take the namespace lock
+    exclusively, and every file operation holds the namespace lock shared
+    while it runs. The namespace lock is always taken before a stripe lock,
+    and no operation holds two stripe locks, so these locks cannot deadlock.
+
+    <p>
+    The number of stripes is read from the system property
+    <code>storage.lock.stripes</code>, rounded up to a power of two, and
+    defaults to 64.
+ */
+class StripedLocks
+{
+    /** Lock over the directory tree. */
+    private final ReentrantReadWriteLock    namespace =
+        new ReentrantReadWriteLock();
+    /** Locks over file contents. */
+    private final ReentrantReadWriteLock[]  stripes;
+
+    /** Creates the locks. */
+    StripedLocks()
+    {
+        int         requested =
+            Math.max(1, Integer.getInteger("storage.lock.stripes", 64));
+        int         count = Integer.highestOneBit(requested);
+
+        if(count < requested)
+            count <<= 1;
+
+        stripes = new ReentrantReadWriteLock[count];
+
+        for(int index = 0; index < stripes.length; ++index)
+            stripes[index] = new ReentrantReadWriteLock();
+    }
+
+    /** Locks a file for reading. */
+    void lockRead(Path file)
+    {
+        namespace.readLock().lock();
+        stripe(file).readLock().lock();
+    }
+
+    /** Releases a read lock taken with <code>lockRead</code>. */
+    void unlockRead(Path file)
+    {
+        stripe(file).readLock().unlock();
+        namespace.readLock().unlock();
+    }
+
+    /** Locks a file for writing. */
+    void lockWrite(Path file)
+    {
+        namespace.readLock().lock();
+        stripe(file).writeLock().lock();
+    }
+
+    /** Releases a write lock taken with <code>lockWrite</code>. */
+    void unlockWrite(Path file)
+    {
+        stripe(file).writeLock().unlock();
+        namespace.readLock().unlock();
+    }
+
+    /** Locks the directory tree, excluding all other operations. */
+    void lockNamespace()
+    {
+        namespace.writeLock().lock();
+    }
+
+    /** Releases the lock taken with <code>lockNamespace</code>. */
+    void unlockNamespace()
+    {
+        namespace.writeLock().unlock();
+    }
+
+    /** Returns the stripe protecting a file. */
+    private ReentrantReadWriteLock stripe(Path file)
+    {
+        // Path.hashCode sums the hashes of the components, so spread the
+        // string hash instead.
+        int         hash = file.toString().hashCode();
+
+        hash ^= hash >>> 16;
+
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
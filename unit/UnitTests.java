@@ -5,7 +5,19 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link rmi.BinaryCodecTest}</li>
+    <li>{@link rmi.WaitingCallTest}</li>
+    <li>{@link storage.ChannelCacheTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.LockManagerTest}</li>
+    <li>{@link naming.TimingWheelTest}</li>
+    <li>{@link naming.ReplicationLeaseTest}</li>
+    <li>{@link naming.InvalidatorTest}</li>
+    <li>{@link naming.ChangeLogTest}</li>
+    <li>{@link client.BlockCacheTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +30,16 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {rmi.BinaryCodecTest.class,
+                         rmi.WaitingCallTest.class,
+                         storage.ChannelCacheTest.class,
+                         naming.JournalTest.class,
+                         naming.LockManagerTest.class,
+                         naming.TimingWheelTest.class,
+                         naming.ReplicationLeaseTest.class,
+                         naming.InvalidatorTest.class,
+                         naming.ChangeLogTest.class,
+                         client.BlockCacheTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,217 @@
+package client;
+
+import java.io.*;
+import java.util.Arrays;
+
+import test.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Unit tests for the block cache of <code>DFSInputStream</code>.
+
+    <p>
+    The streams read a file from a storage server that is a plain object in
+    this virtual machine, found through a naming server that is also a plain
+    object. Properties checked are:
+    <ul>
+    <li>Small reads are served from cached blocks, so that a block is read
+        from the storage server once.</li>
+    <li>Opening a stream drops the blocks cached for the file, so that a
+        stream sees writes made before it was opened, even if they did not
+        change the length of the file.</li>
+    <li>Streams open on a file at the same time share its blocks.</li>
+    </ul>
+ */
+public class BlockCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking client block cache";
+
+    /** Size of the file read, in bytes: less than one block. */
+    private static final int    SIZE = 16 * 1024;
+    /** Size of each read, in bytes. */
+    private static final int    READ = 4096;
+
+    /** File read by the test. */
+    private final Path          file = new Path("/file");
+    /** Storage server hosting the file. */
+    private final Server        server = new Server();
+    /** Naming server listing the file. */
+    private final Service       naming = new Naming(file, server);
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(BlockCache.CAPACITY == 0)
+            throw new TestFailed("block cache disabled by client.cache");
+
+        try
+        {
+            server.fill((byte)1);
+
+            DFSInputStream  first = new DFSInputStream(naming, file);
+
+            check(first, (byte)1);
+            check(first, (byte)1);
+
+            if(server.reads() != 1)
+                throw new TestFailed("block read more than once by a stream");
+
+            // Rewrite the file without changing its length, as another client
+            // holding an exclusive lock could.
+            server.fill((byte)2);
+
+            DFSInputStream  second = new DFSInputStream(naming, file);
+
+            check(second, (byte)2);
+
+            if(server.reads() != 2)
+                throw new TestFailed("block not read again for a new stream");
+
+            // The first stream, still open, shares the block read by the
+            // second.
+            check(first, (byte)2);
+
+            if(server.reads() != 2)
+                throw new TestFailed("block not shared by open streams");
+
+            first.close();
+            second.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O error", e);
+        }
+    }
+
+    /** Reads the next bytes of a stream, and checks that every byte read has
+        the given value. */
+    private static void check(DFSInputStream stream, byte value)
+        throws TestFailed, IOException
+    {
+        byte[]          buffer = new byte[READ];
+
+        if(stream.read(buffer, 0, READ) != READ)
+            throw new TestFailed("short read");
+
+        for(byte read : buffer)
+        {
+            if(read != value)
+                throw new TestFailed("read " + read + " instead of " + value);
+        }
+    }
+
+    /** Storage server holding a single file in memory, and counting
+        reads. */
+    private static class Server implements Storage
+    {
+        /** Contents of the file. */
+        private final byte[]    data = new byte[SIZE];
+        /** Number of reads served. */
+        private int             reads = 0;
+
+        /** Sets every byte of the file to a value. */
+        synchronized void fill(byte value)
+        {
+            Arrays.fill(data, value);
+        }
+
+        synchronized int reads()
+        {
+            return reads;
+        }
+
+        @Override
+        public synchronized long size(Path file)
+        {
+            return data.length;
+        }
+
+        @Override
+        public synchronized byte[] read(Path file, long offset, int length)
+        {
+            ++reads;
+            return Arrays.copyOfRange(data, (int)offset,
+                                      (int)offset + length);
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+            throw new UnsupportedOperationException("read-only server");
+        }
+    }
+
+    /** Naming server listing a single file. */
+    private static class Naming implements Service
+    {
+        /** The file. */
+        private final Path      file;
+        /** Storage server hosting the file. */
+        private final Storage   server;
+
+        Naming(Path file, Storage server)
+        {
+            this.file = file;
+            this.server = server;
+        }
+
+        @Override
+        public Storage getStorage(Path path) throws FileNotFoundException
+        {
+            if(!path.equals(file))
+                throw new FileNotFoundException(path.toString());
+
+            return server;
+        }
+
+        @Override
+        public boolean isDirectory(Path path) throws FileNotFoundException
+        {
+            if(path.isRoot())
+                return true;
+
+            getStorage(path);
+            return false;
+        }
+
+        @Override
+        public String[] list(Path directory)
+        {
+            return new String[] {file.last()};
+        }
+
+        @Override
+        public void lock(Path path, boolean exclusive)
+        {
+        }
+
+        @Override
+        public void unlock(Path path, boolean exclusive)
+        {
+        }
+
+        @Override
+        public boolean createFile(Path path)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean createDirectory(Path path)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Unit tests for <code>ChangeLog</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Clients presenting a number the log never issued are told to
+        reset.</li>
+    <li>Changes made after a given number are returned once each, in the
+        order in which they were first made.</li>
+    <li>Clients wait for changes up to the given time, and are woken as soon
+        as a change is recorded.</li>
+    <li>Clients that have missed changes no longer in the log are told to
+        reset.</li>
+    <li>Closing the log releases waiting clients, and stops further
+        waits.</li>
+    </ul>
+ */
+public class ChangeLogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server change log";
+
+    /** Time for which a client waits when no change is made, in
+        milliseconds. */
+    private static final long   WAIT = 100;
+    /** Longest time allowed for a waiting client to be released, in
+        milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Log under test. */
+    private final ChangeLog     log = new ChangeLog();
+
+    /** Releases any clients left waiting. */
+    @Override
+    protected void clean()
+    {
+        log.close();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        long            start = testUnknown();
+
+        long            sequence = testRecord(start);
+        sequence = testWait(sequence);
+        testOverflow(sequence);
+        testClose();
+    }
+
+    /** Checks that numbers the log never issued cause a reset, and returns
+        the number of the latest change. */
+    private long testUnknown() throws TestFailed
+    {
+        Changes         changes = log.since(-1, 0);
+
+        if(!changes.reset || changes.paths.length != 0)
+            throw new TestFailed("negative number not reset");
+
+        long            start = changes.sequence;
+
+        if(!log.since(start + 1, 0).reset)
+            throw new TestFailed("number from the future not reset");
+
+        changes = log.since(start, 0);
+
+        if(changes.reset || changes.paths.length != 0 ||
+           changes.sequence != start)
+        {
+            throw new TestFailed("changes returned when none were made");
+        }
+
+        return start;
+    }
+
+    /** Checks that changes are returned once each, in order. */
+    private long testRecord(long start) throws TestFailed
+    {
+        Path            first = new Path("/first");
+        Path            second = new Path("/second");
+
+        log.record(first);
+        log.record(second);
+        log.record(first);
+
+        Changes         changes = log.since(start, 0);
+
+        if(changes.reset)
+            throw new TestFailed("reset after three changes");
+
+        if(changes.sequence != start + 3)
+            throw new TestFailed("changes numbered incorrectly");
+
+        if(!Arrays.equals(changes.paths, new Path[] {first, second}))
+        {
+            throw new TestFailed("expected [/first, /second], but got " +
+                                 Arrays.toString(changes.paths));
+        }
+
+        changes = log.since(start + 2, 0);
+
+        if(!Arrays.equals(changes.paths, new Path[] {first}))
+            throw new TestFailed("changes before the given number returned");
+
+        return changes.sequence;
+    }
+
+    /** Checks that clients wait for changes, and are woken when one is
+        recorded. */
+    private long testWait(long sequence) throws TestFailed
+    {
+        long            began = System.currentTimeMillis();
+        Changes         changes = log.since(sequence, WAIT);
+
+        if(System.currentTimeMillis() - began < WAIT)
+            throw new TestFailed("client did not wait for changes");
+
+        if(changes.reset || changes.paths.length != 0)
+            throw new TestFailed("changes returned when none were made");
+
+        final Path      path = new Path("/woken");
+
+        Thread          recorder = new Thread("test-recorder")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(WAIT);
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+
+                log.record(path);
+            }
+        };
+
+        recorder.setDaemon(true);
+        recorder.start();
+
+        began = System.currentTimeMillis();
+        changes = log.since(sequence, ChangeLog.MAX_WAIT);
+
+        if(System.currentTimeMillis() - began > TIMEOUT)
+            throw new TestFailed("client not woken by a change");
+
+        if(!Arrays.equals(changes.paths, new Path[] {path}))
+            throw new TestFailed("change waited for not returned");
+
+        return changes.sequence;
+    }
+
+    /** Checks that clients that have fallen too far behind are told to
+        reset. */
+    private void testOverflow(long sequence) throws TestFailed
+    {
+        for(int index = 0; index < ChangeLog.CAPACITY; ++index)
+            log.record(new Path("/file" + index));
+
+        Changes         changes = log.since(sequence, 0);
+
+        if(changes.reset)
+            throw new TestFailed("reset while all changes still held");
+
+        if(changes.paths.length != ChangeLog.CAPACITY)
+        {
+            throw new TestFailed("expected " + ChangeLog.CAPACITY +
+                                 " changes, but got " + changes.paths.length);
+        }
+
+        log.record(new Path("/overflow"));
+
+        changes = log.since(sequence, 0);
+
+        if(!changes.reset || changes.paths.length != 0)
+            throw new TestFailed("missed changes not reported as a reset");
+
+        if(changes.sequence != sequence + ChangeLog.CAPACITY + 1)
+            throw new TestFailed("reset does not carry the latest number");
+    }
+
+    /** Checks that closing the log releases waiting clients. */
+    private void testClose() throws TestFailed
+    {
+        final long      sequence = log.since(-1, 0).sequence;
+
+        Thread          closer = new Thread("test-closer")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(WAIT);
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+
+                log.close();
+            }
+        };
+
+        closer.setDaemon(true);
+        closer.start();
+
+        long            began = System.currentTimeMillis();
+        Changes         changes = log.since(sequence, ChangeLog.MAX_WAIT);
+
+        if(System.currentTimeMillis() - began > TIMEOUT)
+            throw new TestFailed("waiting client not released by close");
+
+        if(changes.reset || changes.paths.length != 0)
+            throw new TestFailed("changes returned when none were made");
+
+        began = System.currentTimeMillis();
+        log.since(sequence, ChangeLog.MAX_WAIT);
+
+        if(System.currentTimeMillis() - began > TIMEOUT)
+            throw new TestFailed("client waited on a closed log");
+    }
+}
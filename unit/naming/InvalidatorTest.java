@@ -0,0 +1,295 @@
+package naming;
+
+import java.io.FileNotFoundException;
+
+import test.*;
+import common.*;
+import rmi.RMIException;
+import storage.*;
+
+/** Unit tests for <code>Invalidator</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Deletions on a storage server that cannot be reached are retried
+        with exponential backoff, and deletions on other servers are not
+        held up meanwhile.</li>
+    <li>Deletions are sent once the server can be reached again.</li>
+    <li>A file is pending while a deletion of it, of a directory above it, or
+        of a file below it is pending.</li>
+    <li>Pending deletions are abandoned once the server is no longer
+        registered or is presumed down.</li>
+    <li>Deletions the server reports as failed are retried, unless the file
+        no longer exists.</li>
+    </ul>
+ */
+public class InvalidatorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server invalidator";
+
+    /** Shortest time for which the unreachable server is observed, in
+        milliseconds. */
+    private static final long   OBSERVED = 700;
+    /** Longest time allowed for a deletion to be sent or abandoned, in
+        milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Invalidator under test. */
+    private Invalidator         invalidator = null;
+    /** Server that cannot be reached until it is repaired. */
+    private final Server        failing = new Server(true);
+    /** Server that can always be reached. */
+    private final Server        working = new Server(false);
+    /** Indicates that the failing server is to be reported as gone. */
+    private volatile boolean    gone = false;
+
+    /** Creates the invalidator. */
+    @Override
+    protected void initialize()
+    {
+        invalidator = new Invalidator()
+        {
+            @Override
+            Command command(Storage server)
+            {
+                return gone && server == failing ? null : (Command)server;
+            }
+        };
+    }
+
+    /** Stops the invalidator. */
+    @Override
+    protected void clean()
+    {
+        if(invalidator != null)
+        {
+            invalidator.stop();
+            invalidator = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path            file = new Path("/file");
+        long            began = System.currentTimeMillis();
+
+        invalidator.invalidate(failing, file, 1);
+        sleep(OBSERVED / 2);
+
+        // A deletion on another server is sent at once, whatever the backoff
+        // of the failing server.
+        invalidator.invalidate(working, file, 1);
+        sleep(Invalidator.DELAY * 4);
+
+        if(working.deletes() != 1 || invalidator.pending(working, file))
+            throw new TestFailed("deletion held up by an unreachable server");
+
+        // Meanwhile, deletions the working server refuses are retried until
+        // they succeed.
+        Path            kept = new Path("/kept");
+
+        working.refuse(true);
+        invalidator.invalidate(working, kept, 1);
+        sleep(Invalidator.DELAY * 4);
+
+        if(!invalidator.pending(working, kept))
+            throw new TestFailed("refused deletion no longer pending");
+
+        working.refuse(false);
+        settle(working, kept);
+
+        if(working.deletes() != 2 || invalidator.pending(working, kept))
+            throw new TestFailed("refused deletion not retried");
+
+        // A file that is already gone is not retried.
+        Path            missing = new Path("/missing");
+
+        working.refuse(true);
+        working.lose(missing);
+        invalidator.invalidate(working, missing, 1);
+        settle(working, missing);
+
+        if(invalidator.pending(working, missing))
+            throw new TestFailed("deletion of a missing file still pending");
+
+        long            observed = System.currentTimeMillis() - began;
+
+        sleep(Math.max(0, OBSERVED - observed));
+        observed = Math.max(OBSERVED, observed);
+
+        // Without backoff, the failing server would be tried every DELAY
+        // milliseconds.
+        int             attempts = failing.attempts();
+        int             limit = 2 + (int)(Math.log((double)observed /
+            Math.max(1, Invalidator.DELAY)) / Math.log(2));
+
+        if(attempts < 2)
+            throw new TestFailed("deletion not retried");
+
+        if(attempts > limit)
+        {
+            throw new TestFailed("deletion retried " + attempts + " times in " +
+                                 observed + " ms");
+        }
+
+        if(!invalidator.pending(failing, file))
+            throw new TestFailed("failed deletion no longer pending");
+
+        // A file under the stale file, as after it is replaced by a
+        // directory, must not be placed on the server either.
+        if(!invalidator.pending(failing, new Path(file, "child")))
+            throw new TestFailed("file under a stale file not pending");
+
+        if(invalidator.pending(failing, new Path("/file2")))
+            throw new TestFailed("file beside a stale file pending");
+
+        // Deletions are sent once the server can be reached again.
+        failing.repair();
+        settle(failing, file);
+
+        if(failing.deletes() != 1 || invalidator.pending(failing, file))
+            throw new TestFailed("deletion not sent after server recovered");
+
+        // Deletions for a server that has gone are abandoned.
+        failing.fail();
+        invalidator.invalidate(failing, file, 2);
+        sleep(Invalidator.DELAY * 4);
+        gone = true;
+        settle(failing, file);
+
+        if(invalidator.pending(failing, file))
+            throw new TestFailed("deletion for a departed server still pending");
+    }
+
+    /** Waits until no deletion of a file is pending on a server, for at most
+        <code>TIMEOUT</code> milliseconds. */
+    private void settle(Server server, Path file) throws TestFailed
+    {
+        long            deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(invalidator.pending(server, file) &&
+              System.currentTimeMillis() < deadline)
+        {
+            sleep(10);
+        }
+    }
+
+    /** Sleeps for the given number of milliseconds. */
+    private static void sleep(long milliseconds) throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(milliseconds);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Storage server counting deletions, which may be unreachable or refuse
+        to delete files. */
+    private static class Server implements Storage, Command
+    {
+        /** Indicates that the server cannot be reached. */
+        private boolean         failing;
+        /** Indicates that the server reports deletions as failed. */
+        private boolean         refusing = false;
+        /** File reported as not existing on the server, if any. */
+        private Path            lost = null;
+        /** Number of deletion attempts made while unreachable. */
+        private int             attempts = 0;
+        /** Number of files deleted. */
+        private int             deletes = 0;
+
+        Server(boolean failing)
+        {
+            this.failing = failing;
+        }
+
+        synchronized int attempts()
+        {
+            return attempts;
+        }
+
+        synchronized int deletes()
+        {
+            return deletes;
+        }
+
+        synchronized void repair()
+        {
+            failing = false;
+        }
+
+        synchronized void fail()
+        {
+            failing = true;
+        }
+
+        synchronized void refuse(boolean refusing)
+        {
+            this.refusing = refusing;
+        }
+
+        synchronized void lose(Path file)
+        {
+            lost = file;
+        }
+
+        @Override
+        public synchronized boolean delete(Path path) throws RMIException
+        {
+            if(failing)
+            {
+                ++attempts;
+                throw new RMIException("unreachable");
+            }
+
+            if(refusing)
+                return false;
+
+            ++deletes;
+            return true;
+        }
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            return false;
+        }
+
+        @Override
+        public synchronized long size(Path file) throws FileNotFoundException
+        {
+            if(file.equals(lost))
+                throw new FileNotFoundException(file.toString());
+
+            return 0;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            return new byte[0];
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+    }
+}
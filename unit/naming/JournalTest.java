@@ -0,0 +1,425 @@
+package naming;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+
+import test.*;
+
+/** Unit tests for <code>Journal</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Records committed by concurrent threads are all recovered from the
+        journal segments after a crash.</li>
+    <li>A journal closed cleanly is recovered from its final snapshot alone,
+        and older segments and snapshots are deleted.</li>
+    <li>A segment ending in an incomplete or damaged record is truncated at
+        that record: the records before it are recovered, and the journal
+        can be written and recovered again.</li>
+    <li>A damaged snapshot is reported rather than partly applied.</li>
+    </ul>
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server journal recovery";
+
+    /** Number of threads committing records at once. */
+    private static final int    THREADS = 4;
+    /** Number of records committed by each thread. */
+    private static final int    RECORDS = 100;
+
+    /** Directory holding the journals of the test. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the directory used by the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create directory", e);
+        }
+    }
+
+    /** Removes the directory used by the test. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCrashRecovery();
+            testCleanRecovery();
+            testTruncation();
+            testDamagedSnapshot();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O error", e);
+        }
+    }
+
+    /** Checks that records committed concurrently are recovered from the
+        segments of a journal that was not closed. */
+    private void testCrashRecovery() throws TestFailed, IOException
+    {
+        File            live = new File(directory.root(), "crash");
+        File            image = new File(directory.root(), "crash-image");
+        final Journal   journal = new Journal(live, new Table());
+
+        journal.recover();
+
+        Thread[]        threads = new Thread[THREADS];
+        final List<IOException> failures =
+            Collections.synchronizedList(new ArrayList<IOException>());
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final int   thread = index;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int record = 0; record < RECORDS; ++record)
+                        {
+                            journal.commit(Table.record(
+                                "key" + thread + "-" + record, "" + record));
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[index].start();
+        }
+
+        join(threads);
+
+        if(!failures.isEmpty())
+            throw new TestFailed("unable to commit record", failures.get(0));
+
+        // The committed records are durable, so a copy of the directory
+        // taken now is what a crash would leave behind.
+        copy(live, image);
+        journal.close();
+
+        Table           recovered = new Table();
+        Journal         restarted = new Journal(image, recovered);
+        long            replayed = restarted.recover();
+
+        restarted.close();
+
+        if(replayed != THREADS * RECORDS)
+        {
+            throw new TestFailed("replayed " + replayed + " records instead " +
+                                 "of " + THREADS * RECORDS);
+        }
+
+        for(int thread = 0; thread < THREADS; ++thread)
+        {
+            for(int record = 0; record < RECORDS; ++record)
+            {
+                if(!("" + record).equals(
+                        recovered.values.get("key" + thread + "-" + record)))
+                {
+                    throw new TestFailed("record " + thread + "-" + record +
+                                         " not recovered");
+                }
+            }
+        }
+    }
+
+    /** Checks that a journal closed cleanly is recovered from its snapshot.
+     */
+    private void testCleanRecovery() throws TestFailed, IOException
+    {
+        File            live = new File(directory.root(), "clean");
+        Table           original = new Table();
+        Journal         journal = new Journal(live, original);
+
+        journal.recover();
+
+        for(int record = 0; record < RECORDS; ++record)
+        {
+            // Later records replace earlier ones with the same key.
+            journal.commit(Table.record("key" + record % 10, "" + record));
+            original.values.put("key" + record % 10, "" + record);
+        }
+
+        journal.close();
+
+        String[]        names = live.list();
+
+        Arrays.sort(names);
+
+        if(names.length != 2 || !names[0].startsWith("journal-") ||
+           !names[1].startsWith("snapshot-"))
+        {
+            throw new TestFailed("unexpected files after close: " +
+                                 Arrays.toString(names));
+        }
+
+        Table           recovered = new Table();
+        Journal         restarted = new Journal(live, recovered);
+        long            replayed = restarted.recover();
+
+        restarted.close();
+
+        if(replayed != 0)
+            throw new TestFailed("records replayed after a clean close");
+
+        if(!recovered.values.equals(original.values))
+            throw new TestFailed("snapshot recovered incorrectly");
+    }
+
+    /** Checks that a segment is truncated at its first damaged record. */
+    private void testTruncation() throws TestFailed, IOException
+    {
+        File            live = new File(directory.root(), "truncation");
+        File            image = new File(directory.root(),
+                                         "truncation-image");
+        Journal         journal = new Journal(live, new Table());
+
+        journal.recover();
+
+        for(int record = 0; record < RECORDS; ++record)
+            journal.commit(Table.record("key" + record, "" + record));
+
+        copy(live, image);
+        journal.close();
+
+        // Damage the last record, and add the beginning of another, as a
+        // crash in the middle of a write could.
+        File            segment = segment(image);
+        RandomAccessFile    file = new RandomAccessFile(segment, "rw");
+
+        try
+        {
+            long        length = file.length();
+
+            file.seek(length - 1);
+            int         last = file.read();
+
+            file.seek(length - 1);
+            file.write(last ^ 0xff);
+            file.writeInt(1000);
+            file.writeInt(0);
+            file.write(new byte[10]);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        Table           recovered = new Table();
+        Journal         restarted = new Journal(image, recovered);
+        long            replayed = restarted.recover();
+
+        if(replayed != RECORDS - 1)
+        {
+            restarted.close();
+            throw new TestFailed("replayed " + replayed + " records from a " +
+                                 "damaged segment instead of " +
+                                 (RECORDS - 1));
+        }
+
+        if(recovered.values.containsKey("key" + (RECORDS - 1)) ||
+           !("" + (RECORDS - 2)).equals(
+               recovered.values.get("key" + (RECORDS - 2))))
+        {
+            restarted.close();
+            throw new TestFailed("wrong records recovered from a damaged " +
+                                 "segment");
+        }
+
+        // The journal must remain usable after the damaged record, whether
+        // it is closed or not.
+        File            crashed = new File(directory.root(),
+                                           "truncation-crashed");
+
+        restarted.commit(Table.record("after", "damage"));
+        recovered.values.put("after", "damage");
+        copy(image, crashed);
+        restarted.close();
+
+        for(File recovery : new File[] {image, crashed})
+        {
+            Table       again = new Table();
+            Journal     last = new Journal(recovery, again);
+
+            last.recover();
+            last.close();
+
+            if(!again.values.equals(recovered.values))
+                throw new TestFailed("journal not usable after truncation");
+        }
+    }
+
+    /** Checks that a damaged snapshot is reported. */
+    private void testDamagedSnapshot() throws TestFailed, IOException
+    {
+        File            live = new File(directory.root(), "snapshot");
+        Table           original = new Table();
+        Journal         journal = new Journal(live, original);
+
+        journal.recover();
+        journal.commit(Table.record("key", "value"));
+        original.values.put("key", "value");
+        journal.close();
+
+        File            snapshot = null;
+
+        for(File file : live.listFiles())
+        {
+            if(file.getName().startsWith("snapshot-"))
+                snapshot = file;
+        }
+
+        if(snapshot == null)
+            throw new TestFailed("no snapshot written on close");
+
+        RandomAccessFile    file = new RandomAccessFile(snapshot, "rw");
+
+        try
+        {
+            file.setLength(file.length() - 1);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        try
+        {
+            new Journal(live, new Table()).recover();
+            throw new TestFailed("damaged snapshot recovered");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Returns the only journal segment in a directory that is not empty. */
+    private static File segment(File directory) throws TestFailed
+    {
+        File            found = null;
+
+        for(File file : directory.listFiles())
+        {
+            if(file.getName().startsWith("journal-") && file.length() > 0)
+            {
+                if(found != null)
+                    throw new TestFailed("more than one segment written");
+
+                found = file;
+            }
+        }
+
+        if(found == null)
+            throw new TestFailed("no segment written");
+
+        return found;
+    }
+
+    /** Copies the files of a directory into a new directory. Files that
+        disappear meanwhile, such as a snapshot being renamed or a segment
+        being discarded, are skipped, as they would be missing after a crash
+        at that moment. */
+    private static void copy(File source, File destination) throws IOException
+    {
+        if(!destination.mkdir())
+            throw new IOException("cannot create " + destination);
+
+        for(File file : source.listFiles())
+        {
+            try
+            {
+                Files.copy(file.toPath(), new File(destination,
+                                                   file.getName()).toPath());
+            }
+            catch(NoSuchFileException e) { }
+        }
+    }
+
+    /** Waits for threads to terminate. */
+    private static void join(Thread[] threads) throws TestFailed
+    {
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Metadata recorded in the journals of the test: a map from keys to
+        values, each record giving the value of one key. */
+    private static class Table implements Journal.State
+    {
+        /** The values, by key. */
+        final Map<String, String>   values =
+            Collections.synchronizedMap(new TreeMap<String, String>());
+
+        /** Encodes a record giving a key a value. */
+        static byte[] record(String key, String value) throws IOException
+        {
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+            DataOutputStream        output = new DataOutputStream(buffer);
+
+            output.writeUTF(key);
+            output.writeUTF(value);
+            output.close();
+
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void snapshot(Journal.Sink sink) throws IOException
+        {
+            Map<String, String>     copy;
+
+            synchronized(values)
+            {
+                copy = new TreeMap<String, String>(values);
+            }
+
+            for(Map.Entry<String, String> entry : copy.entrySet())
+                sink.write(record(entry.getKey(), entry.getValue()));
+        }
+
+        @Override
+        public void apply(DataInputStream record) throws IOException
+        {
+            values.put(record.readUTF(), record.readUTF());
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Unit tests for <code>LockManager</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Shared locks on a path are granted together, and an exclusive lock
+        waits for them.</li>
+    <li>A request for shared access waits behind a queued request for
+        exclusive access, even while the lock is held for shared access.</li>
+    <li>Locking a path locks its ancestors for shared access: an exclusive
+        lock on a directory excludes every lock below it, and a lock below a
+        directory excludes an exclusive lock on the directory.</li>
+    <li>A lock may be released by a thread other than the one that took
+        it.</li>
+    <li>Locks are discarded once no caller holds or waits for them.</li>
+    <li>A request interrupted while waiting holds no locks.</li>
+    <li>Unlocking a path that is not locked is rejected with
+        <code>IllegalArgumentException</code>.</li>
+    <li>Waits are recorded in the histogram of the leading component of the
+        requested path.</li>
+    <li>Locks that are not tracked never expire. Tracked leases expire after
+        the lease duration unless they are renewed, releasing their locks,
+        and cannot be renewed or released afterwards.</li>
+    </ul>
+ */
+public class LockManagerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lock manager";
+
+    /** Time given to a request to queue for its lock, in milliseconds. A
+        request that has not been granted after this time is taken to be
+        waiting. */
+    private static final int    DELAY = 100;
+    /** Lease duration used by the lease tests, in milliseconds. */
+    private static final long   LEASE = 200;
+
+    /** Threads started by the test. */
+    private final List<Locker>  lockers =
+        Collections.synchronizedList(new ArrayList<Locker>());
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testShared();
+        testQueue();
+        testAncestors();
+        testOtherThread();
+        testInterrupt();
+        testNotLocked();
+        testHistogram();
+        testUntracked();
+        testExpiry();
+        testRenewal();
+    }
+
+    /** Interrupts any threads still waiting for locks. */
+    @Override
+    protected void clean()
+    {
+        synchronized(lockers)
+        {
+            for(Locker locker : lockers)
+                locker.interrupt();
+        }
+    }
+
+    /** Checks that shared locks are granted together, and that an exclusive
+        lock waits for them. */
+    private void testShared() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            path = new Path("/a/b");
+
+        Locker          first = start(manager, path, false);
+        Locker          second = start(manager, path, false);
+
+        granted(first, "first shared lock");
+        granted(second, "second shared lock");
+
+        // The root and the two components of the path.
+        if(manager.size() != 3)
+            throw new TestFailed("unexpected number of locks in use");
+
+        Locker          writer = start(manager, path, true);
+
+        waiting(writer, "exclusive lock while shared locks are held");
+        manager.unlock(path, false);
+        waiting(writer, "exclusive lock while a shared lock is held");
+        manager.unlock(path, false);
+        granted(writer, "exclusive lock after shared locks were released");
+
+        manager.unlock(path, true);
+        discarded(manager);
+    }
+
+    /** Checks that a shared request waits behind a queued exclusive
+        request. */
+    private void testQueue() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            path = new Path("/a/b/c");
+
+        granted(start(manager, path, false), "first shared lock");
+
+        Locker          writer = start(manager, path, true);
+
+        waiting(writer, "exclusive lock while a shared lock is held");
+
+        Locker          reader = start(manager, path, false);
+
+        waiting(reader, "shared lock behind a queued exclusive lock");
+
+        manager.unlock(path, false);
+        granted(writer, "exclusive lock after shared lock was released");
+        waiting(reader, "shared lock while an exclusive lock is held");
+
+        manager.unlock(path, true);
+        granted(reader, "shared lock after exclusive lock was released");
+
+        manager.unlock(path, false);
+        discarded(manager);
+    }
+
+    /** Checks that locking a path locks its ancestors for shared access. */
+    private void testAncestors() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            directory = new Path("/a");
+        Path            file = new Path("/a/b");
+
+        // The directory is locked for shared access on the way to each file
+        // below it, so files below it can be locked at the same time.
+        granted(start(manager, file, true), "exclusive file lock");
+        granted(start(manager, new Path("/a/c"), true),
+                "exclusive lock beside a locked file");
+        manager.unlock(file, true);
+        manager.unlock(new Path("/a/c"), true);
+
+        granted(start(manager, directory, true), "exclusive directory lock");
+
+        Locker          below = start(manager, file, false);
+
+        waiting(below, "lock below an exclusively locked directory");
+        manager.unlock(directory, true);
+        granted(below, "lock below a directory after it was unlocked");
+
+        Locker          above = start(manager, directory, true);
+
+        waiting(above, "exclusive lock above a locked file");
+
+        manager.unlock(file, false);
+        granted(above, "exclusive lock above a file after it was unlocked");
+
+        manager.unlock(directory, true);
+        discarded(manager);
+    }
+
+    /** Checks that a lock can be released by another thread. */
+    private void testOtherThread() throws TestFailed
+    {
+        final LockManager   manager = new LockManager();
+        final Path          path = new Path("/a/b");
+        Locker              locker = start(manager, path, true);
+
+        granted(locker, "exclusive lock");
+
+        final List<RuntimeException>    failures =
+            new ArrayList<RuntimeException>();
+        Thread              unlocker = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    manager.unlock(path, true);
+                }
+                catch(RuntimeException e)
+                {
+                    synchronized(failures)
+                    {
+                        failures.add(e);
+                    }
+                }
+            }
+        };
+
+        unlocker.start();
+        join(unlocker);
+
+        synchronized(failures)
+        {
+            if(!failures.isEmpty())
+            {
+                throw new TestFailed("lock not released by another thread",
+                                     failures.get(0));
+            }
+        }
+
+        granted(start(manager, path, true), "exclusive lock after release");
+        manager.unlock(path, true);
+        discarded(manager);
+    }
+
+    /** Checks that an interrupted request holds no locks. */
+    private void testInterrupt() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            path = new Path("/a/b/c");
+
+        granted(start(manager, path, true), "exclusive lock");
+
+        Locker          waiter = start(manager, path, false);
+
+        waiting(waiter, "shared lock while an exclusive lock is held");
+        waiter.interrupt();
+        join(waiter);
+
+        if(!waiter.failed)
+            throw new TestFailed("interrupted request did not fail");
+
+        manager.unlock(path, true);
+        discarded(manager);
+
+        // The ancestors taken by the interrupted request must have been
+        // released, or an exclusive lock on the root would wait forever.
+        granted(start(manager, new Path("/"), true), "exclusive root lock");
+        manager.unlock(new Path("/"), true);
+    }
+
+    /** Checks that unlocking a path that is not locked is rejected. */
+    private void testNotLocked() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            path = new Path("/a");
+
+        try
+        {
+            manager.unlock(path, false);
+            throw new TestFailed("unlocked a path that was never locked");
+        }
+        catch(IllegalArgumentException e) { }
+
+        granted(start(manager, path, false), "shared lock");
+
+        try
+        {
+            manager.unlock(path, true);
+            throw new TestFailed("unlocked a shared lock as exclusive");
+        }
+        catch(IllegalArgumentException e) { }
+
+        manager.unlock(path, false);
+
+        try
+        {
+            manager.unlock(path, false);
+            throw new TestFailed("unlocked a path twice");
+        }
+        catch(IllegalArgumentException e) { }
+
+        discarded(manager);
+    }
+
+    /** Checks that waits are recorded by the leading path component. */
+    private void testHistogram() throws TestFailed
+    {
+        LockManager     manager = new LockManager();
+        Path            path = new Path("/etc/a");
+
+        granted(start(manager, path, true), "exclusive lock");
+
+        Locker          waiter = start(manager, path, true);
+
+        waiting(waiter, "exclusive lock while an exclusive lock is held");
+        manager.unlock(path, true);
+        granted(waiter, "exclusive lock after release");
+        manager.unlock(path, true);
+
+        LockManager.WaitHistogram   histogram =
+            manager.waitTimes().get(new Path("/etc"));
+
+        if(histogram == null || histogram.count() != 2)
+            throw new TestFailed("waits not recorded under /etc");
+
+        // The waiter was queued for at least DELAY milliseconds.
+        if(histogram.totalWait() < DELAY * 1000000L ||
+           histogram.percentile(1.0) < DELAY * 1000L)
+        {
+            throw new TestFailed("wait recorded incorrectly");
+        }
+
+        if(histogram.percentile(0.5) != 0)
+            throw new TestFailed("immediate grant recorded as a wait");
+    }
+
+    /** Checks that a lock that is not tracked does not expire. */
+    private void testUntracked() throws TestFailed
+    {
+        LockManager     manager = new LockManager(LEASE);
+        Path            path = new Path("/a");
+
+        granted(start(manager, path, true), "exclusive lock");
+
+        Locker          waiter = start(manager, path, true);
+
+        join(waiter, 3 * LEASE);
+        waiting(waiter, "lock held without a lease");
+
+        if(manager.expirations() != 0)
+            throw new TestFailed("lock without a lease expired");
+
+        manager.unlock(path, true);
+        granted(waiter, "exclusive lock after release");
+        manager.unlock(path, true);
+        manager.stop();
+        discarded(manager);
+    }
+
+    /** Checks that a tracked lease expires if it is not renewed. */
+    private void testExpiry() throws TestFailed
+    {
+        LockManager     manager = new LockManager(LEASE);
+        Path            path = new Path("/a/b");
+        Locker          holder = start(manager, path, true);
+
+        granted(holder, "exclusive lock");
+
+        long            number = manager.track(holder.lease);
+        Locker          waiter = start(manager, path, true);
+
+        waiting(waiter, "lock held under a lease");
+        join(waiter, 3 * LEASE);
+
+        if(waiter.lease == null)
+            throw new TestFailed("lock not released when its lease expired");
+
+        if(manager.expirations() != 1)
+            throw new TestFailed("expiry not counted");
+
+        if(manager.renew(number) || manager.release(number))
+            throw new TestFailed("expired lease renewed or released");
+
+        // The lock now belongs to the waiter alone.
+        manager.unlock(path, true);
+        manager.stop();
+        discarded(manager);
+    }
+
+    /** Checks that a renewed lease is kept past the lease duration. */
+    private void testRenewal() throws TestFailed
+    {
+        LockManager     manager = new LockManager(LEASE);
+        Path            path = new Path("/a");
+        Locker          holder = start(manager, path, false);
+
+        granted(holder, "shared lock");
+
+        long            number = manager.track(holder.lease);
+        Locker          waiter = start(manager, path, true);
+
+        for(long waited = 0; waited < 3 * LEASE; waited += LEASE / 4)
+        {
+            if(!manager.renew(number))
+                throw new TestFailed("lease not renewed");
+
+            join(waiter, LEASE / 4);
+        }
+
+        waiting(waiter, "lock held under a renewed lease");
+
+        if(!manager.release(number))
+            throw new TestFailed("renewed lease not released");
+
+        granted(waiter, "exclusive lock after lease was released");
+
+        if(manager.release(number))
+            throw new TestFailed("lease released twice");
+
+        manager.unlock(path, true);
+        manager.stop();
+        discarded(manager);
+    }
+
+    /** Starts a thread taking a lock. */
+    private Locker start(LockManager manager, Path path, boolean exclusive)
+    {
+        Locker          locker = new Locker(manager, path, exclusive);
+
+        lockers.add(locker);
+        locker.start();
+
+        return locker;
+    }
+
+    /** Checks that a thread takes its lock within the test delay. */
+    private static void granted(Locker locker, String lock) throws TestFailed
+    {
+        join(locker, DELAY * 10);
+
+        if(locker.lease == null)
+            throw new TestFailed(lock + " not granted");
+    }
+
+    /** Checks that a thread is still waiting for its lock after the test
+        delay. */
+    private static void waiting(Locker locker, String lock) throws TestFailed
+    {
+        join(locker, DELAY);
+
+        if(locker.lease != null)
+            throw new TestFailed(lock + " granted");
+    }
+
+    /** Checks that every lock other than the root has been discarded. */
+    private static void discarded(LockManager manager) throws TestFailed
+    {
+        if(manager.size() != 1)
+        {
+            throw new TestFailed(manager.size() - 1 + " locks not discarded " +
+                                 "after release");
+        }
+    }
+
+    /** Waits for a thread to terminate. */
+    private static void join(Thread thread) throws TestFailed
+    {
+        join(thread, 0);
+    }
+
+    /** Waits for a thread to terminate, for at most the given number of
+        milliseconds, or without limit if it is zero. */
+    private static void join(Thread thread, long milliseconds)
+        throws TestFailed
+    {
+        try
+        {
+            thread.join(milliseconds);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Thread taking a lock. */
+    private static class Locker extends Thread
+    {
+        /** Lock manager from which the lock is taken. */
+        private final LockManager       manager;
+        /** Path to be locked. */
+        private final Path              path;
+        /** Kind of access requested. */
+        private final boolean           exclusive;
+        /** Lease on the lock, once it has been granted. */
+        volatile LockManager.Lease      lease = null;
+        /** Indicates that the request was interrupted. */
+        volatile boolean                failed = false;
+
+        Locker(LockManager manager, Path path, boolean exclusive)
+        {
+            this.manager = manager;
+            this.path = path;
+            this.exclusive = exclusive;
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                lease = manager.lock(path, exclusive);
+            }
+            catch(InterruptedException e)
+            {
+                failed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package naming;
+
+import java.io.*;
+
+import test.*;
+import common.*;
+import storage.*;
+
+/** Checks that background replication keeps its lock for a copy that takes
+    longer than the lease duration.
+
+    <p>
+    The naming server is created with a short lease, given by the system
+    property <code>naming.lease</code>, and two storage servers that are
+    plain objects in this virtual machine. The first hosts a file; copies to
+    the second take several lease durations. The file is read often enough
+    for a second replica to be wanted. The test checks that the copy is made
+    visible as a replica, rather than deleted because the lease on its lock
+    expired, and that no lease expired.
+ */
+public class ReplicationLeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server replication under short leases";
+
+    /** Lease duration used by the test, in milliseconds. */
+    private static final long   LEASE = 300;
+    /** Time taken by a copy, in milliseconds. */
+    private static final long   COPY = 4 * LEASE;
+    /** Time allowed for the replica to appear, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+
+    /** File replicated. */
+    private final Path          file = new Path("/file");
+    /** Naming server under test. */
+    private NamingServer        server = null;
+
+    /** Creates the naming server with a short lease. */
+    @Override
+    protected void initialize()
+    {
+        String          previous = System.getProperty("naming.lease");
+
+        System.setProperty("naming.lease", "" + LEASE);
+
+        try
+        {
+            server = new NamingServer(null);
+        }
+        finally
+        {
+            if(previous == null)
+                System.clearProperty("naming.lease");
+            else
+                System.setProperty("naming.lease", previous);
+        }
+    }
+
+    /** Stops expiring leases on the naming server. The server was never
+        started, so it has no skeletons to stop. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.lockManager().stop();
+            server = null;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(server.leaseDuration() != LEASE)
+            throw new TestFailed("lease duration not taken from naming.lease");
+
+        SlowServer      source = new SlowServer();
+        SlowServer      destination = new SlowServer();
+
+        server.register(source, source, new Path[] {file});
+        server.register(destination, destination, new Path[0]);
+
+        // Read the file often enough for a second replica to be wanted.
+        try
+        {
+            for(int read = 0; read <= Replicator.READS_PER_REPLICA; ++read)
+            {
+                server.lock(file, false);
+                server.unlock(file, false);
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock file", e);
+        }
+
+        long            deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(replicas() < 2)
+        {
+            if(destination.deleted() || System.currentTimeMillis() > deadline)
+                break;
+
+            try
+            {
+                Thread.sleep(LEASE / 3);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+        }
+
+        if(destination.copies() != 1)
+        {
+            throw new TestFailed("expected one copy, but " +
+                                 destination.copies() + " were made");
+        }
+
+        if(destination.deleted())
+            throw new TestFailed("replica deleted after a long copy");
+
+        if(replicas() != 2)
+            throw new TestFailed("replica not made visible after a long copy");
+
+        if(server.lockManager().expirations() != 0)
+            throw new TestFailed("lease expired during a long copy");
+    }
+
+    /** Returns the number of storage servers hosting the file. */
+    private int replicas() throws TestFailed
+    {
+        try
+        {
+            return server.getReplicas(file).length;
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("file not found", e);
+        }
+    }
+
+    /** Storage server whose copies take several lease durations. */
+    private static class SlowServer implements Storage, Command
+    {
+        /** Number of copies made to this server. */
+        private int             copies = 0;
+        /** Indicates that a file has been deleted from this server. */
+        private boolean         deleted = false;
+
+        synchronized int copies()
+        {
+            return copies;
+        }
+
+        synchronized boolean deleted()
+        {
+            return deleted;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            synchronized(this)
+            {
+                ++copies;
+            }
+
+            try
+            {
+                Thread.sleep(COPY);
+            }
+            catch(InterruptedException e)
+            {
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public synchronized boolean delete(Path path)
+        {
+            deleted = true;
+            return true;
+        }
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException("not stored");
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException("not stored");
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException("not stored");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Unit tests for <code>TimingWheel</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Timeouts expire no earlier than their deadlines, and not much later,
+        including deadlines beyond the range of the wheel.</li>
+    <li>Cancelled timeouts do not expire.</li>
+    <li>A timeout whose deadline is extended expires at its new deadline.</li>
+    <li>Timeouts do not expire once the wheel has been stopped.</li>
+    </ul>
+ */
+public class TimingWheelTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server timing wheel";
+
+    /** Length of a tick, in milliseconds. */
+    private static final long   TICK = 10;
+    /** Range of the wheel, in milliseconds. */
+    private static final long   RANGE = 200;
+    /** Lateness tolerated beyond one tick, in milliseconds, to allow for
+        scheduling of the background thread. */
+    private static final long   SLACK = 200;
+
+    /** Wheel used by the test, stopped when the test ends. */
+    private TimingWheel         wheel = null;
+
+    /** Creates the wheel. */
+    @Override
+    protected void initialize()
+    {
+        wheel = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(TICK),
+                                TimeUnit.MILLISECONDS.toNanos(RANGE),
+                                "test-wheel");
+    }
+
+    /** Stops the wheel. */
+    @Override
+    protected void clean()
+    {
+        if(wheel != null)
+        {
+            wheel.stop();
+            wheel = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testExpiry();
+        testCancel();
+        testExtension();
+        testStop();
+    }
+
+    /** Checks that timeouts expire on time, whatever their deadlines. */
+    private void testExpiry() throws TestFailed
+    {
+        long            now = System.nanoTime();
+        List<Recorder>  timeouts = new ArrayList<Recorder>();
+
+        // Deadlines in the past, within the range of the wheel, and up to
+        // three times beyond it.
+        for(long delay = -TICK; delay <= 3 * RANGE; delay += 7)
+        {
+            Recorder    timeout = new Recorder();
+
+            wheel.schedule(timeout,
+                           now + TimeUnit.MILLISECONDS.toNanos(delay));
+            timeouts.add(timeout);
+        }
+
+        for(Recorder timeout : timeouts)
+            timeout.await(TimeUnit.MILLISECONDS.toNanos(TICK + SLACK));
+    }
+
+    /** Checks that cancelled timeouts do not expire. */
+    private void testCancel() throws TestFailed
+    {
+        long            now = System.nanoTime();
+        Recorder        cancelled = new Recorder();
+        Recorder        kept = new Recorder();
+
+        // Both in the same slot, so that the cancelled timeout is unlinked
+        // from beside another.
+        wheel.schedule(cancelled, now + TimeUnit.MILLISECONDS.toNanos(50));
+        wheel.schedule(kept, now + TimeUnit.MILLISECONDS.toNanos(50));
+        wheel.cancel(cancelled);
+
+        kept.await(TimeUnit.MILLISECONDS.toNanos(TICK + SLACK));
+        sleep(2 * TICK);
+
+        if(cancelled.expired())
+            throw new TestFailed("cancelled timeout expired");
+
+        // Cancelling a timeout that has expired has no effect.
+        wheel.cancel(kept);
+    }
+
+    /** Checks that an extended timeout expires at its new deadline. */
+    private void testExtension() throws TestFailed
+    {
+        Recorder        timeout = new Recorder();
+
+        wheel.schedule(timeout, System.nanoTime() +
+                                TimeUnit.MILLISECONDS.toNanos(50));
+
+        // Extend the deadline several times, past the range of the wheel.
+        for(int round = 0; round < 10; ++round)
+        {
+            sleep(30);
+
+            if(timeout.expired())
+                throw new TestFailed("extended timeout expired early");
+
+            timeout.deadline = System.nanoTime() +
+                               TimeUnit.MILLISECONDS.toNanos(50);
+        }
+
+        timeout.await(TimeUnit.MILLISECONDS.toNanos(TICK + SLACK));
+    }
+
+    /** Checks that timeouts do not expire after the wheel is stopped. */
+    private void testStop() throws TestFailed
+    {
+        Recorder        timeout = new Recorder();
+
+        wheel.schedule(timeout, System.nanoTime() +
+                                TimeUnit.MILLISECONDS.toNanos(50));
+        wheel.stop();
+        sleep(100 + 2 * TICK);
+
+        if(timeout.expired())
+            throw new TestFailed("timeout expired after the wheel stopped");
+    }
+
+    /** Sleeps for the given number of milliseconds. */
+    private static void sleep(long milliseconds) throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(milliseconds);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Timeout recording the time at which it expired. */
+    private static class Recorder extends TimingWheel.Timeout
+    {
+        /** Time at which the timeout expired, or zero if it has not. Guarded
+            by the object. */
+        private long            expired = 0;
+        /** Number of times the timeout has expired. */
+        private int             expirations = 0;
+
+        @Override
+        synchronized void expire()
+        {
+            expired = System.nanoTime();
+            ++expirations;
+            notifyAll();
+        }
+
+        /** Returns <code>true</code> if the timeout has expired. */
+        synchronized boolean expired()
+        {
+            return expirations > 0;
+        }
+
+        /** Waits for the timeout to expire, and checks that it expired once,
+            no earlier than its deadline and at most the given number of
+            nanoseconds after it. */
+        synchronized void await(long lateness) throws TestFailed
+        {
+            long        limit = deadline + lateness;
+
+            try
+            {
+                while(expirations == 0 && System.nanoTime() - limit < 0)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(1,
+                        limit - System.nanoTime()));
+                }
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+
+            if(expirations == 0)
+                throw new TestFailed("timeout did not expire");
+
+            if(expirations > 1)
+                throw new TestFailed("timeout expired more than once");
+
+            if(expired - deadline < 0)
+                throw new TestFailed("timeout expired early");
+
+            if(expired - limit > 0)
+                throw new TestFailed("timeout expired late");
+        }
+    }
+}
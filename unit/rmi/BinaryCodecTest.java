@@ -0,0 +1,197 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+import common.*;
+
+/** Unit tests for <code>BinaryCodec</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Values of every primitive type are read back as they were written.</li>
+    <li>Byte arrays, strings, paths, and arrays of strings and paths are read
+        back equal to the values written, including <code>null</code> values
+        and <code>null</code> elements.</li>
+    <li>Values of other types are serialized and read back equal.</li>
+    <li>Exceptions with compact encodings are read back with the same class
+        and message, and other exceptions are read back in full.</li>
+    <li>Consecutive values in one stream do not disturb one another.</li>
+    </ul>
+ */
+public class BinaryCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking rmi binary codec";
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testPrimitives();
+        testArraysAndStrings();
+        testSerialized();
+        testExceptions();
+    }
+
+    /** Checks that primitive values survive a round trip. */
+    private void testPrimitives() throws TestFailed
+    {
+        Class<?>[]  types = {int.class, long.class, boolean.class, byte.class,
+                             short.class, char.class, float.class,
+                             double.class};
+        Object[]    values = {-7, Long.MIN_VALUE, true, (byte)-1,
+                              (short)300, 'x', 1.5f, -0.25};
+
+        Object[]    read = roundTrip(types, values);
+
+        for(int index = 0; index < values.length; ++index)
+        {
+            if(!values[index].equals(read[index]))
+            {
+                throw new TestFailed("value of type " + types[index] +
+                                     " read as " + read[index]);
+            }
+        }
+
+        if(roundTrip(new Class<?>[] {void.class}, new Object[] {null})[0] !=
+           null)
+        {
+            throw new TestFailed("void value read as non-null");
+        }
+    }
+
+    /** Checks the compact encodings of arrays, strings and paths. */
+    private void testArraysAndStrings() throws TestFailed
+    {
+        byte[]      bytes = {1, 2, 3, -128};
+        String[]    strings = {"a", null, "\u00e9t\u00e9", ""};
+        Path[]      paths = {new Path("/"), new Path("/a/b"), null};
+
+        Class<?>[]  types = {byte[].class, byte[].class, String.class,
+                             String.class, Path.class, Path.class,
+                             String[].class, Path[].class, Path[].class};
+        Object[]    values = {bytes, null, "\u4e16\u754c", null,
+                              new Path("/dir/file"), null, strings, paths,
+                              null};
+
+        Object[]    read = roundTrip(types, values);
+
+        if(!Arrays.equals(bytes, (byte[])read[0]) || read[1] != null)
+            throw new TestFailed("byte arrays read incorrectly");
+
+        if(!"\u4e16\u754c".equals(read[2]) || read[3] != null)
+            throw new TestFailed("strings read incorrectly");
+
+        if(!new Path("/dir/file").equals(read[4]) || read[5] != null)
+            throw new TestFailed("paths read incorrectly");
+
+        if(!(read[6] instanceof String[]) ||
+           !Arrays.equals(strings, (String[])read[6]))
+        {
+            throw new TestFailed("string array read incorrectly");
+        }
+
+        if(!(read[7] instanceof Path[]) ||
+           !Arrays.equals(paths, (Path[])read[7]) || read[8] != null)
+        {
+            throw new TestFailed("path arrays read incorrectly");
+        }
+    }
+
+    /** Checks that values of other types are serialized. */
+    private void testSerialized() throws TestFailed
+    {
+        ArrayList<String>   list = new ArrayList<String>();
+
+        list.add("one");
+        list.add("two");
+
+        Object[]    read = roundTrip(new Class<?>[] {List.class,
+                                                     Object.class},
+                                     new Object[] {list, null});
+
+        if(!list.equals(read[0]) || read[1] != null)
+            throw new TestFailed("serialized values read incorrectly");
+    }
+
+    /** Checks that exceptions keep their class and message. */
+    private void testExceptions() throws TestFailed
+    {
+        Throwable[] exceptions =
+            {new FileNotFoundException("missing"),
+             new IndexOutOfBoundsException(null),
+             new RMIException("unreachable"),
+             new EOFException("serialized in full")};
+
+        try
+        {
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+            DataOutputStream        output = new DataOutputStream(buffer);
+
+            for(Throwable exception : exceptions)
+                BinaryCodec.writeException(output, exception);
+
+            output.close();
+
+            DataInputStream         input = new DataInputStream(
+                new ByteArrayInputStream(buffer.toByteArray()));
+
+            for(Throwable exception : exceptions)
+            {
+                Throwable           read = BinaryCodec.readException(input);
+
+                if(read.getClass() != exception.getClass() ||
+                   !Objects.equals(read.getMessage(), exception.getMessage()))
+                {
+                    throw new TestFailed(exception + " read as " + read);
+                }
+            }
+
+            if(input.read() != -1)
+                throw new TestFailed("bytes left after exceptions");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode exceptions", e);
+        }
+    }
+
+    /** Writes values of the given types to one stream, and reads them back.
+     */
+    private Object[] roundTrip(Class<?>[] types, Object[] values)
+        throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+            DataOutputStream        output = new DataOutputStream(buffer);
+
+            for(int index = 0; index < types.length; ++index)
+                BinaryCodec.write(output, types[index], values[index]);
+
+            output.close();
+
+            DataInputStream         input = new DataInputStream(
+                new ByteArrayInputStream(buffer.toByteArray()));
+            Object[]                read = new Object[types.length];
+
+            for(int index = 0; index < types.length; ++index)
+                read[index] = BinaryCodec.read(input, types[index]);
+
+            if(input.read() != -1)
+                throw new TestFailed("bytes left after values");
+
+            return read;
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode values", e);
+        }
+    }
+}
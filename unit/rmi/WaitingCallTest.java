@@ -0,0 +1,243 @@
+package rmi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import test.*;
+
+/** Unit tests for calls marked by <code>Skeleton.setWaiting</code>.
+
+    <p>
+    The skeleton is given a bounded executor with a single worker and no
+    queue, which rejects calls it has no room for. Properties checked are:
+    <ul>
+    <li>A call to a marked method that waits in the server does not hold the
+        worker, so that other calls are still served.</li>
+    <li>Without the mark, the same waiting call holds the worker, and other
+        calls are rejected.</li>
+    </ul>
+ */
+public class WaitingCallTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking rmi waiting calls";
+
+    /** Longest time a call is expected to take, in milliseconds. */
+    private static final long   TIMEOUT = 1000;
+    /** Number of calls made to open the pooled connections before the
+        test, more than the connections kept to each skeleton. */
+    private static final int    WARM_UP = 16;
+
+    /** Skeleton under test. */
+    private Skeleton<Poller>    skeleton = null;
+    /** Server, which releases waiting calls when the test ends. */
+    private final Server        server = new Server();
+
+    /** Stops the skeleton, after releasing any waiting call. */
+    @Override
+    protected void clean()
+    {
+        server.release();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(!ConnectionPool.ENABLED)
+            throw new TestFailed("persistent connections disabled");
+
+        if(!served(true))
+            throw new TestFailed("call rejected while a waiting call ran");
+
+        if(served(false))
+            throw new TestFailed("unmarked waiting call left the worker free");
+    }
+
+    /** Starts a skeleton, makes a call that waits in the server, and then a
+        call that returns at once, and returns <code>true</code> if the second
+        call was served.
+
+        @param mark Whether the waiting method is marked.
+     */
+    private boolean served(boolean mark) throws TestFailed
+    {
+        server.reset();
+
+        skeleton = new Skeleton<Poller>(Poller.class, server);
+        skeleton.setExecutor(ServiceExecutor.bounded(1, 0, false));
+        if(mark)
+            skeleton.setWaiting("poll");
+
+        try
+        {
+            skeleton.start();
+
+            final Poller    stub =
+                Stub.create(Poller.class, skeleton, "127.0.0.1");
+
+            warmUp(stub);
+
+            Thread          poller = new Thread("test-poller")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stub.poll();
+                    }
+                    catch(RMIException e)
+                    {
+                    }
+                }
+            };
+
+            poller.setDaemon(true);
+            poller.start();
+
+            if(!server.waiting(TIMEOUT))
+                throw new TestFailed("waiting call not made");
+
+            try
+            {
+                stub.ping();
+                return true;
+            }
+            catch(RMIException e)
+            {
+                return false;
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to set up skeleton", e);
+        }
+        finally
+        {
+            clean();
+        }
+    }
+
+    /** Opens the pooled connections to the skeleton. The single worker also
+        accepts new connections, so a call on a connection being opened may
+        be rejected; such calls are retried. */
+    private static void warmUp(Poller stub) throws TestFailed
+    {
+        for(int call = 0; call < WARM_UP; ++call)
+        {
+            long        deadline = System.currentTimeMillis() + TIMEOUT;
+
+            while(true)
+            {
+                try
+                {
+                    stub.ping();
+                    break;
+                }
+                catch(RMIException e)
+                {
+                    if(System.currentTimeMillis() > deadline)
+                        throw new TestFailed("unable to call skeleton", e);
+                }
+
+                sleep(10);
+            }
+        }
+
+        // Let the worker finish accepting the last connection.
+        sleep(50);
+    }
+
+    /** Sleeps for the given number of milliseconds. */
+    private static void sleep(long milliseconds) throws TestFailed
+    {
+        try
+        {
+            Thread.sleep(milliseconds);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Remote interface with a method that waits and one that does not. */
+    public interface Poller
+    {
+        /** Waits until the server is released. */
+        public void poll() throws RMIException;
+
+        /** Returns at once. */
+        public void ping() throws RMIException;
+    }
+
+    /** Server whose <code>poll</code> method waits until released. */
+    private static class Server implements Poller
+    {
+        /** Released when a call to <code>poll</code> has started. */
+        private volatile CountDownLatch started;
+        /** Released when waiting calls are to return. */
+        private volatile CountDownLatch released;
+
+        Server()
+        {
+            reset();
+        }
+
+        /** Prepares for a new call to <code>poll</code>. */
+        void reset()
+        {
+            started = new CountDownLatch(1);
+            released = new CountDownLatch(1);
+        }
+
+        /** Lets waiting calls return. */
+        void release()
+        {
+            released.countDown();
+        }
+
+        /** Waits for a call to <code>poll</code> to start, and returns
+            <code>true</code> if one did in time. */
+        boolean waiting(long timeout) throws TestFailed
+        {
+            try
+            {
+                return started.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+        }
+
+        @Override
+        public void poll()
+        {
+            started.countDown();
+
+            try
+            {
+                released.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+
+        @Override
+        public void ping()
+        {
+        }
+    }
+}
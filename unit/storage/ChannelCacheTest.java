@@ -0,0 +1,255 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+
+import test.*;
+import common.*;
+
+/** Unit tests for <code>ChannelCache</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Files acquired for reading are opened read-only, and files without
+        write permission can be read by the storage server.</li>
+    <li>Acquiring a file for writing replaces its read-only channel with a
+        writable one, which later reads share. The read-only channel stays
+        open until it is released.</li>
+    <li>Lookups are counted as hits and misses.</li>
+    <li>The least recently used file is closed when the cache is full, and a
+        file in use is closed only when it is released.</li>
+    <li><code>invalidate</code> closes the files at and below a path, and
+        only those.</li>
+    <li>Missing files and directories are rejected with
+        <code>FileNotFoundException</code>.</li>
+    </ul>
+ */
+public class ChannelCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage channel cache";
+
+    /** Directory holding the files opened by the test. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the files used by the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            directory.add(new String[] {"a"}, "contents of a");
+            directory.add(new String[] {"b"}, "contents of b");
+            directory.add(new String[] {"c"}, "contents of c");
+            directory.add(new String[] {"d", "x"}, "contents of x");
+            directory.add(new String[] {"d", "y"}, "contents of y");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create files", e);
+        }
+    }
+
+    /** Removes the files used by the test. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testReadOnly();
+            testUpgrade();
+            testEviction();
+            testInvalidation();
+            testMissing();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O error", e);
+        }
+    }
+
+    /** Checks that files are opened read-only for reading. */
+    private void testReadOnly() throws TestFailed, IOException
+    {
+        ChannelCache        cache = new ChannelCache(4);
+        ChannelCache.Handle handle = acquire(cache, "/a", false);
+
+        if(handle.writable)
+            throw new TestFailed("file opened for writing by a read");
+
+        try
+        {
+            handle.channel.write(ByteBuffer.allocate(1), 0);
+            throw new TestFailed("read-only channel accepted a write");
+        }
+        catch(NonWritableChannelException e) { }
+
+        cache.release(handle);
+
+        // Root may write the file regardless of its permissions, so this
+        // is only a complete check when the test is not run as root.
+        File                file = new File(directory.root(), "b");
+
+        file.setWritable(false);
+
+        try
+        {
+            StorageServer   server = new StorageServer(directory.root());
+            byte[]          data = server.read(new Path("/b"), 0, 8);
+
+            if(!"contents".equals(new String(data, "UTF-8")))
+                throw new TestFailed("read returned wrong data");
+
+            if(server.size(new Path("/b")) != file.length())
+                throw new TestFailed("size returned wrong length");
+        }
+        finally
+        {
+            file.setWritable(true);
+        }
+    }
+
+    /** Checks that a file acquired for writing replaces its read-only
+        channel. */
+    private void testUpgrade() throws TestFailed, IOException
+    {
+        ChannelCache        cache = new ChannelCache(4);
+        ChannelCache.Handle reader = acquire(cache, "/a", false);
+        ChannelCache.Handle writer = acquire(cache, "/a", true);
+
+        if(writer == reader || !writer.writable)
+            throw new TestFailed("write did not open a writable channel");
+
+        if(cache.misses() != 2 || cache.hits() != 0 || cache.size() != 1)
+            throw new TestFailed("lookups counted incorrectly");
+
+        if(!reader.channel.isOpen())
+            throw new TestFailed("read-only channel closed while in use");
+
+        cache.release(reader);
+
+        if(reader.channel.isOpen())
+            throw new TestFailed("replaced channel not closed on release");
+
+        ChannelCache.Handle again = acquire(cache, "/a", false);
+
+        if(again != writer || cache.hits() != 1)
+            throw new TestFailed("read did not share writable channel");
+
+        cache.release(again);
+        cache.release(writer);
+
+        if(!writer.channel.isOpen())
+            throw new TestFailed("cached channel closed on release");
+
+        cache.clear();
+
+        if(writer.channel.isOpen() || cache.size() != 0)
+            throw new TestFailed("clear did not close cached channel");
+    }
+
+    /** Checks that the least recently used file is closed when the cache is
+        full. */
+    private void testEviction() throws TestFailed, IOException
+    {
+        ChannelCache        cache = new ChannelCache(2);
+        ChannelCache.Handle a = acquire(cache, "/a", false);
+        ChannelCache.Handle b = acquire(cache, "/b", false);
+
+        cache.release(b);
+
+        ChannelCache.Handle c = acquire(cache, "/c", false);
+
+        if(cache.evictions() != 1 || cache.size() != 2)
+            throw new TestFailed("file not evicted when cache was full");
+
+        if(!a.channel.isOpen())
+            throw new TestFailed("evicted channel closed while in use");
+
+        cache.release(a);
+
+        if(a.channel.isOpen())
+            throw new TestFailed("evicted channel not closed on release");
+
+        if(!b.channel.isOpen())
+            throw new TestFailed("recently used channel evicted");
+
+        cache.release(c);
+        cache.clear();
+    }
+
+    /** Checks that invalidation closes the files at and below a path. */
+    private void testInvalidation() throws TestFailed, IOException
+    {
+        ChannelCache        cache = new ChannelCache(8);
+        ChannelCache.Handle x = acquire(cache, "/d/x", false);
+        ChannelCache.Handle y = acquire(cache, "/d/y", false);
+        ChannelCache.Handle a = acquire(cache, "/a", false);
+
+        cache.release(y);
+        cache.release(a);
+        cache.invalidate(new Path("/d"));
+
+        if(cache.size() != 1 || y.channel.isOpen() || !a.channel.isOpen())
+            throw new TestFailed("invalidation closed the wrong files");
+
+        if(!x.channel.isOpen())
+            throw new TestFailed("invalidated channel closed while in use");
+
+        cache.release(x);
+
+        if(x.channel.isOpen())
+            throw new TestFailed("invalidated channel not closed on release");
+
+        if(acquire(cache, "/d/x", false) == x)
+            throw new TestFailed("invalidated channel returned again");
+
+        cache.clear();
+    }
+
+    /** Checks that missing files and directories are rejected. */
+    private void testMissing() throws TestFailed, IOException
+    {
+        ChannelCache        cache = new ChannelCache(4);
+
+        for(String path : new String[] {"/missing", "/d"})
+        {
+            try
+            {
+                acquire(cache, path, false);
+                throw new TestFailed(path + " acquired");
+            }
+            catch(FileNotFoundException e) { }
+        }
+
+        if(cache.size() != 0)
+            throw new TestFailed("rejected path cached");
+    }
+
+    /** Acquires the file at a path under the temporary directory. */
+    private ChannelCache.Handle acquire(ChannelCache cache, String path,
+                                        boolean write) throws IOException
+    {
+        Path        file = new Path(path);
+
+        return cache.acquire(file, file.toFile(directory.root()), write);
+    }
+}